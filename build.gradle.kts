@@ -9,11 +9,44 @@ repositories {
     mavenCentral()
 }
 
+// JMH benchmarks live in src/jmh/java, in the same package as the code they measure
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val jmhVersion = "1.37"
+
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// The benchmarks are not run by the build, but they must keep compiling against the code they measure
+tasks.check {
+    dependsOn("compileJmhJava")
+}
+
+// Run with e.g. ./gradlew jmh -PjmhArgs="CheckpointBench -p dirtyPages=1000", the value is passed to JMH as arguments
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks and writes the results to build/reports/jmh/results.json"
+    group = "verification"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    val jmhArgs = providers.gradleProperty("jmhArgs").orNull?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+    args(jmhArgs + listOf("-rf", "json", "-rff", results.get().asFile.path))
+    doFirst {
+        results.get().asFile.parentFile.mkdirs()
+    }
+}
@@ -0,0 +1,135 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures commit throughput at 1, 64 and 1024 commits in flight, either as blocked threads or as pending futures.
+ * One benchmark thread starts the commits and waits for a free slot once the given number of them is in flight.
+ * <br/> Modes: {@code platform-threads} and {@code virtual-threads} hand every commit to a thread that blocks in
+ * {@link Transaction#commit()}, a pool of one platform thread per commit in flight or a new virtual thread per commit.
+ * {@code commit-async} calls {@link Transaction#commitAsync()} and keeps the futures pending instead.
+ * {@code async-durability} does the same with {@link Durability#ASYNC}, which does not wait for the disk before the
+ * changes become visible. The score is commits per second.
+ * <br/> Virtual threads need Java 21, run with {@code -jvm} pointing to its {@code java} on older JDKs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncCommitBench {
+    private static final String TABLE = "bench";
+    private static final int KEYS = 100_000;
+
+    @Param({"1", "64", "1024"})
+    public int inFlight;
+
+    @Param({"platform-threads", "virtual-threads", "commit-async", "async-durability"})
+    public String mode;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    // Null in the modes that keep futures pending
+    private ExecutorService committers;
+    private Durability durability;
+    private Semaphore slots;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long next;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        if (mode.equals("platform-threads")) {
+            committers = Executors.newFixedThreadPool(inFlight);
+        } else if (mode.equals("virtual-threads")) {
+            committers = newVirtualThreadPerTaskExecutor();
+        }
+        durability = mode.equals("async-durability") ? Durability.ASYNC : Durability.SYNC;
+        slots = new Semaphore(inFlight);
+        directory = Files.createTempDirectory("jmh-async-commit");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage);
+    }
+
+    // The commits of an iteration complete within it, they do not overlap with the next one
+    @TearDown(Level.Iteration)
+    public void awaitInFlight() {
+        slots.acquireUninterruptibly(inFlight);
+        slots.release(inFlight);
+        Throwable error = failure.getAndSet(null);
+        if (error != null) {
+            throw new IllegalStateException("Commit failed", error);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if (committers != null) {
+            committers.shutdown();
+        }
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public long commit() {
+        slots.acquireUninterruptibly();
+        // Far more keys than commits in flight, so concurrent commits never conflict
+        String key = Long.toString(next++ % KEYS);
+        if (committers != null) {
+            committers.execute(() -> {
+                try {
+                    Transaction txn = new Transaction(wal, bufferPool);
+                    txn.insert(TABLE, key, "value");
+                    txn.commit();
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    slots.release();
+                }
+            });
+        } else {
+            Transaction txn = new Transaction(wal, bufferPool, durability);
+            txn.insert(TABLE, key, "value");
+            txn.commitAsync().whenComplete((lsn, error) -> {
+                if (error != null) {
+                    failure.compareAndSet(null, error);
+                }
+                slots.release();
+            });
+        }
+        return next;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21, this JVM is " + Runtime.version(), e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the helpers shared by the benchmarks: deleting their temporary directories and writing a log of
+ * committed transactions without going through the commit path.
+ */
+final class BenchSupport {
+    private static final int ENTRIES_PER_TRANSACTION = 4;
+
+    private BenchSupport() {
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Writes committed transactions straight into the segments, without the commit path and its fsyncs
+    static void generateLog(Path walDir, long entryCount, int keySpace) throws IOException {
+        SegmentedLog log = new SegmentedLog(walDir, new WALConfig().getSegmentSize(), 0);
+        LogRecordEncoder encoder = new LogRecordEncoder();
+        long lsn = 0;
+        long transactionId = 0;
+        List<LogEntry> transaction = new ArrayList<>(ENTRIES_PER_TRANSACTION + 1);
+        for (long i = 0; i < entryCount; i++) {
+            if (transaction.isEmpty()) {
+                transactionId++;
+            }
+            String key = "user" + (i * 7919 % keySpace);
+            transaction.add(new LogEntry(++lsn, transactionId, "UPDATE", "accounts", key, null, String.valueOf(i)));
+            if (transaction.size() == ENTRIES_PER_TRANSACTION || i == entryCount - 1) {
+                LogEntry commit = LogEntry.commitRecord(transactionId);
+                commit.assignLsn(++lsn);
+                transaction.add(commit);
+                for (LogEntry entry : transaction) {
+                    log.append(encoder.encode(entry), entry.getLsn());
+                }
+                transaction.clear();
+            }
+        }
+        log.close();
+    }
+}
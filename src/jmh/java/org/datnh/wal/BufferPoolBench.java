@@ -0,0 +1,132 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a bounded buffer pool whose working set is 10 times larger than its budget, from one thread.
+ * <br/> Workloads: uniform random reads, skewed reads (90% to a hot set that fits into the budget), the skewed reads
+ * interrupted by sequential scans over cold keys, and skewed reads with 20% updates that force dirty write-backs. The
+ * score is operations per microsecond. The secondary results count the reads and hits of all reads and of the hot-set
+ * reads alone; for the scan workload the hot hit ratio stays high if scans do not push the hot pages out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferPoolBench {
+    private static final String TABLE = "bench";
+    private static final double HOT_SHARE = 0.05;
+    private static final int SCAN_INTERVAL = 200_000;
+    private static final int SCAN_LENGTH = 100_000;
+
+    @Param({"1000000"})
+    public int keys;
+
+    @Param({"uniform", "skewed", "skewed+scan", "skewed+writes"})
+    public String workload;
+
+    private Path directory;
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private String[] keyNames;
+    private int hotKeys;
+    private final Random random = new Random(7);
+    private long operations;
+    private long lsn;
+    private int scanPosition;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Reads {
+        public long reads;
+        public long hits;
+        public long hotReads;
+        public long hotHits;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reads = 0;
+            hits = 0;
+            hotReads = 0;
+            hotHits = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-buffer-pool");
+        storage = new DiskStorage(directory.resolve("data.db").toString());
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = String.format("key%08d", i);
+            storage.writePageToDisk(TABLE, keyNames[i], String.format("value-%014d", i));
+        }
+        storage.flush();
+        // About a tenth of the working set
+        long budget = (long) keys * (2 * (TABLE.length() + keyNames[0].length() + 20) + 96) / 10;
+        bufferPool = new BufferPool(budget, storage);
+        hotKeys = (int) (keys * HOT_SHARE);
+        scanPosition = hotKeys;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        storage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String operation(Reads reads) {
+        long i = operations++;
+        if (workload.equals("uniform")) {
+            return read(reads, random.nextInt(keys), false);
+        }
+        if (workload.equals("skewed+scan") && i % SCAN_INTERVAL == SCAN_INTERVAL / 2) {
+            // A sequential scan over cold keys
+            for (int j = 0; j < SCAN_LENGTH; j++) {
+                bufferPool.get(TABLE, keyNames[scanPosition]);
+                scanPosition = scanPosition + 1 < keys ? scanPosition + 1 : hotKeys;
+            }
+        }
+        boolean hot = random.nextDouble() < 0.9;
+        int key = hot ? random.nextInt(hotKeys) : hotKeys + random.nextInt(keys - hotKeys);
+        if (workload.equals("skewed+writes") && random.nextDouble() < 0.2) {
+            bufferPool.put(TABLE, keyNames[key], "updated-" + i, ++lsn);
+            return null;
+        }
+        return read(reads, key, hot);
+    }
+
+    private String read(Reads reads, int key, boolean hot) {
+        long hitsBefore = bufferPool.getHitCount();
+        String value = bufferPool.get(TABLE, keyNames[key]);
+        long hit = bufferPool.getHitCount() - hitsBefore;
+        reads.reads++;
+        reads.hits += hit;
+        if (hot) {
+            reads.hotReads++;
+            reads.hotHits += hit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,105 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link BufferPool#get} and {@link BufferPool#put} under contention: 3 reader threads and 1 writer thread
+ * share one buffer pool, each picking uniformly random keys. Modes are the unbounded heap pool, a bounded pool holding
+ * about half of the rows (misses fault rows in from a page file) and the off-heap pool. The score is operations per
+ * microsecond per thread group.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferPoolContentionBench {
+    private static final String TABLE = "bench";
+
+    @Param({"10000", "1000000"})
+    public int keys;
+
+    @Param({"unbounded", "bounded", "offheap"})
+    public String mode;
+
+    private Path directory;
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private String[] keyNames;
+    private final AtomicLong lsn = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-buffer");
+        storage = new DiskStorage(directory.resolve("data.db").toString());
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key" + i;
+            storage.writePageToDisk(TABLE, keyNames[i], "value" + i);
+        }
+        storage.flush();
+
+        switch (mode) {
+            case "unbounded":
+                bufferPool = new BufferPool();
+                break;
+            case "bounded":
+                long rowBytes = 2L * (TABLE.length() + keyNames[keys - 1].length() + 16) + 96;
+                bufferPool = new BufferPool(keys * rowBytes / 2, storage);
+                // Dirty victims need no WAL force here, there is no log
+                bufferPool.setWalFlusher(flushLsn -> { });
+                break;
+            case "offheap":
+                bufferPool = BufferPool.offHeap();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (!bufferPool.isBounded()) {
+            for (int i = 0; i < keys; i++) {
+                bufferPool.load(TABLE, keyNames[i], "value" + i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        storage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String get() {
+        return bufferPool.get(TABLE, keyNames[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void put() {
+        bufferPool.put(TABLE, keyNames[ThreadLocalRandom.current().nextInt(keys)], "updated", lsn.incrementAndGet());
+    }
+}
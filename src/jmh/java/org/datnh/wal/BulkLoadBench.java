@@ -0,0 +1,117 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading 1M rows into an empty table with {@link WriteAheadLog#bulkLoad} against the logged path.
+ * <br/> Modes: {@code transactions} inserts 1000 rows per transaction, then a checkpoint writes the pages.
+ * {@code bulk-load} writes the pages itself and logs a single record. Both load the same rows, in key order or
+ * shuffled, into a {@link BufferPool} that reads through to the page storage. Every invocation loads a new data file
+ * and WAL. The score is rows per second.
+ * <br/> At the end of every trial the bytes appended to the WAL and written to the data file and its key index by the
+ * last load are printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkLoadBench {
+    private static final String TABLE = "bench";
+    private static final int ROWS = 1_000_000;
+    private static final int BATCH = 1000;
+
+    @Param({"transactions", "bulk-load"})
+    public String mode;
+
+    @Param({"sorted", "shuffled"})
+    public String order;
+
+    private List<Map.Entry<String, String>> rows;
+    private Path directory;
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+    private long walBytes;
+    private long dataBytes;
+
+    @Setup(Level.Trial)
+    public void rows() {
+        rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            String digits = Integer.toString(i);
+            rows.add(Map.entry("key" + "0".repeat(10 - digits.length()) + digits, "value-" + i));
+        }
+        if (order.equals("shuffled")) {
+            Collections.shuffle(rows, new Random(7));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-bulk-load");
+        storage = new DiskStorage(directory.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0));
+        wal.recover();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws Exception {
+        walBytes = wal.getAppendedBytes();
+        dataBytes = storage.getBytesWritten();
+        wal.close();
+        storage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.printf("%n%s %s: %d WAL bytes, %.1f MB written to the data file%n", mode, order, walBytes,
+                dataBytes / (1024.0 * 1024));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long load() {
+        if (mode.equals("bulk-load")) {
+            return wal.bulkLoad(TABLE, rows.iterator());
+        }
+        Transaction txn = new Transaction(wal, bufferPool);
+        for (int i = 0; i < ROWS; i++) {
+            Map.Entry<String, String> row = rows.get(i);
+            txn.insert(TABLE, row.getKey(), row.getValue());
+            if ((i + 1) % BATCH == 0) {
+                txn.commit();
+                txn.begin();
+            }
+        }
+        txn.rollback();
+        wal.checkpoint();
+        return ROWS;
+    }
+}
@@ -0,0 +1,80 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the duration of {@link WriteAheadLog#checkpoint()} with 1K to 1M dirty pages, on both storage engines.
+ * Before every checkpoint all pages are changed again, so each one writes every page of the table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CheckpointBench {
+    private static final String TABLE = "bench";
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int dirtyPages;
+
+    @Param({"page", "lsm"})
+    public String storage;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private StorageEngine diskStorage;
+    private WriteAheadLog wal;
+    private String[] keys;
+    private long version;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-checkpoint");
+        bufferPool = new BufferPool();
+        diskStorage = StorageEngine.open(storage, directory.toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage,
+                new WALConfig().checkpointIntervalMillis(0));
+        keys = new String[dirtyPages];
+        for (int i = 0; i < dirtyPages; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    // The changes are put into the buffer pool directly, logging them would only add setup time
+    @Setup(Level.Invocation)
+    public void dirtyPages() {
+        version++;
+        for (String key : keys) {
+            bufferPool.put(TABLE, key, "value-" + version, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void checkpoint() {
+        wal.checkpoint();
+    }
+}
@@ -0,0 +1,92 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the commit latency of 8 threads inserting into a key space of 2000 rows while background checkpoints are
+ * disabled, run every second at an unlimited page write rate, and run every second writing at most 50 pages per
+ * second. The score is the latency distribution of a commit in microseconds, with its percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckpointLatencyBench {
+    private static final int KEY_SPACE = 2_000;
+    private static final int THREADS = 8;
+
+    @Param({"disabled", "unlimited", "throttled"})
+    public String checkpoints;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        // The threads interleave over the key space
+        private long next = threadIds.getAndIncrement();
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        WALConfig config;
+        switch (checkpoints) {
+            case "disabled":
+                config = new WALConfig().checkpointIntervalMillis(0);
+                break;
+            case "unlimited":
+                config = new WALConfig().checkpointIntervalMillis(1000);
+                break;
+            case "throttled":
+                config = new WALConfig().checkpointIntervalMillis(1000).checkpointPagesPerSecond(50);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown checkpoints: " + checkpoints);
+        }
+        directory = Files.createTempDirectory("jmh-checkpoint-latency");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void commit(Keys keys) {
+        long i = keys.next;
+        keys.next += THREADS;
+        Transaction txn = new Transaction(wal, bufferPool);
+        txn.insert("bench", "key" + (i % KEY_SPACE), "value" + i);
+        txn.commit();
+    }
+}
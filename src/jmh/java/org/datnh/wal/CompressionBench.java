@@ -0,0 +1,112 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures commit throughput of 16 threads with WAL compression disabled ({@code -1}) and at several compression
+ * levels, level 0 only applies the compact encoding and table dictionary. Every commit updates a few rows of two
+ * tables with JSON-like values, the kind of redundancy batch compression is meant for. The score is commits per
+ * second.
+ * <br/> At the end of every trial the WAL bytes per commit are printed, then the log is closed without a checkpoint
+ * and the time to recover all of it is printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBench {
+    private static final int ROWS_PER_TRANSACTION = 4;
+    private static final int KEY_SPACE = 100_000;
+
+    @Param({"-1", "0", "1", "6", "9"})
+    public int level;
+
+    private Path directory;
+    private WALConfig config;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private final LongAdder commits = new LongAdder();
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        private final long threadId = threadIds.getAndIncrement();
+        private long next;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-compression");
+        config = new WALConfig().metricsEnabled(true).checkpointIntervalMillis(0)
+                .compression(level >= 0).compressionLevel(Math.max(level, 0));
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        long walBytes = wal.getAppendedBytes();
+        wal.close();
+        diskStorage.close();
+
+        // Nothing of the run was checkpointed, recovery replays the whole log
+        DiskStorage recoveredStorage = new DiskStorage(directory.resolve("data.db").toString());
+        WriteAheadLog recovered = new WriteAheadLog(directory.resolve("wal").toString(), new BufferPool(),
+                recoveredStorage, config);
+        long start = System.nanoTime();
+        recovered.recover();
+        long recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        recovered.close();
+        recoveredStorage.close();
+        System.out.printf("%nlevel %d: %.0f WAL bytes per commit, %.1f MB recovered in %d ms%n", level,
+                (double) walBytes / Math.max(commits.sum(), 1), walBytes / (1024.0 * 1024), recoveryMillis);
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void commit(Client client) {
+        long i = client.next++;
+        Transaction txn = new Transaction(wal, bufferPool);
+        for (int r = 0; r < ROWS_PER_TRANSACTION; r++) {
+            long id = (i * 7919 + client.threadId * 104_729L + r) % KEY_SPACE;
+            String table = r == 0 ? "accounts" : "orders";
+            txn.insert(table, table + ":" + id, value(id, i));
+        }
+        try {
+            txn.commit();
+            commits.increment();
+        } catch (WriteConflictException e) {
+            // Another thread wrote one of the rows first, the next transaction uses other keys
+        }
+    }
+
+    private static String value(long id, long version) {
+        return "{\"id\":" + id + ",\"status\":\"" + (version % 3 == 0 ? "active" : "pending")
+                + "\",\"version\":" + version + ",\"region\":\"eu-west-1\",\"owner\":\"user" + (id % 1000) + "\"}";
+    }
+}
@@ -0,0 +1,156 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures commit throughput on a single hot counter row, like the balance {@code accounts.alice} of
+ * {@link WALSimulation}, from 1, 4, 16 and 64 threads.
+ * <br/> Modes: {@code read-update} reads the balance and writes it back plus 1, a write conflict rolls the
+ * transaction back and it is retried, the retries count in the secondary result {@code conflicts}.
+ * {@code increment} calls {@link Transaction#increment}, which never conflicts with another increment. Every thread
+ * reuses one transaction with {@link Transaction#begin()}. The score is commits per second.
+ * <br/> At the end of every trial the WAL is closed without a checkpoint and recovered, and the recovered balance must
+ * have grown by exactly the number of commits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotCounterBench {
+    private static final String TABLE = "accounts";
+    private static final String KEY = "alice";
+    private static final long INITIAL_BALANCE = 1000;
+
+    @Param({"read-update", "increment"})
+    public String mode;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private WALConfig config;
+    private final LongAdder commits = new LongAdder();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Client {
+        public long conflicts;
+
+        private Transaction txn;
+
+        @Setup(Level.Trial)
+        public void open(HotCounterBench bench) {
+            txn = new Transaction(bench.wal, bench.bufferPool);
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            conflicts = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            txn.rollback();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-hot-counter");
+        config = new WALConfig().checkpointIntervalMillis(0);
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage, config);
+        wal.recover();
+        Transaction setup = new Transaction(wal, bufferPool);
+        setup.insert(TABLE, KEY, String.valueOf(INITIAL_BALANCE));
+        setup.commit();
+        commits.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BufferPool recoveredPool = new BufferPool();
+        DiskStorage recoveredStorage = new DiskStorage(directory.resolve("data.db").toString());
+        WriteAheadLog recovered = new WriteAheadLog(directory.resolve("wal").toString(), recoveredPool,
+                recoveredStorage, config);
+        recovered.recover();
+        String balance = recoveredPool.get(TABLE, KEY);
+        recovered.close();
+        recoveredStorage.close();
+        BenchSupport.deleteRecursively(directory);
+        if (Long.parseLong(balance) != INITIAL_BALANCE + commits.sum()) {
+            throw new IllegalStateException("Recovered balance " + balance + " after " + commits.sum() + " commits");
+        }
+        System.out.printf("%n%s: recovered balance %s after %d commits%n", mode, balance, commits.sum());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long commitOneThread(Client client) {
+        return commit(client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long commitFourThreads(Client client) {
+        return commit(client);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long commitSixteenThreads(Client client) {
+        return commit(client);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long commitSixtyFourThreads(Client client) {
+        return commit(client);
+    }
+
+    // Retries on a write conflict until the transaction commits
+    private long commit(Client client) {
+        Transaction txn = client.txn;
+        while (true) {
+            if (mode.equals("increment")) {
+                txn.increment(TABLE, KEY, 1);
+            } else {
+                String balance = txn.read(TABLE, KEY);
+                txn.update(TABLE, KEY, balance, LogEntry.increment(balance, 1));
+            }
+            try {
+                txn.commit();
+                commits.increment();
+                txn.begin();
+                return client.conflicts;
+            } catch (WriteConflictException e) {
+                client.conflicts++;
+                txn.begin();
+            }
+        }
+    }
+}
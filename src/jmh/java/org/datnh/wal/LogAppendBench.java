@@ -0,0 +1,154 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how WAL append throughput scales with 1, 4, 16 and 64 appending threads, without forcing the log.
+ * <br/> Modes: {@code locked} appends like the WAL did before the log buffer, every thread takes one monitor to assign
+ * LSNs, encode and copy its records into the segments. {@code log-buffer} appends through {@link LogBuffer}, threads
+ * reserve with one CAS and copy in parallel while a flusher thread drains the published prefix to the segments.
+ * <br/> Every transaction holds 4 updates and a commit record. Released segments are recycled by the flusher, so long
+ * runs do not fill the disk. The score is transactions per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogAppendBench {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int UPDATES = 4;
+
+    @Param({"locked", "log-buffer"})
+    public String mode;
+
+    private Path directory;
+    private SegmentedLog log;
+    private LogBuffer buffer;
+    private Appender appender;
+    private final AtomicLong appendedLsn = new AtomicLong();
+    private volatile boolean running;
+    private Thread flusher;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        private final int threadId = threadIds.getAndIncrement();
+        private long next;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-append");
+        log = new SegmentedLog(directory, SEGMENT_SIZE, 4);
+        buffer = new LogBuffer(log, new WALConfig().getLogBufferSize(), 0, null);
+        appender = mode.equals("locked") ? new LockedAppender(log) : buffer::append;
+        running = true;
+        // Drains the log buffer like a group commit leader would, and recycles segments in both modes
+        flusher = new Thread(() -> {
+            try {
+                while (running) {
+                    long lsn = mode.equals("locked") ? appendedLsn.get() : buffer.drain();
+                    log.releaseSegmentsUpTo(lsn - 1);
+                    Thread.yield();
+                }
+            } catch (IOException e) {
+                System.err.println("Error draining log buffer: " + e.getMessage());
+            }
+        });
+        flusher.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        running = false;
+        flusher.join();
+        log.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long appendOneThread(Client client) throws IOException {
+        return append(client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long appendFourThreads(Client client) throws IOException {
+        return append(client);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long appendSixteenThreads(Client client) throws IOException {
+        return append(client);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long appendSixtyFourThreads(Client client) throws IOException {
+        return append(client);
+    }
+
+    private long append(Client client) throws IOException {
+        long i = client.next++;
+        List<LogEntry> records = new ArrayList<>(UPDATES + 1);
+        for (int u = 0; u < UPDATES; u++) {
+            records.add(new LogEntry(i, "UPDATE", "bench", client.threadId + "-" + (i % 1000) + "-" + u,
+                    "old-value", "new-value"));
+        }
+        records.add(LogEntry.commitRecord(i));
+        long lsn = appender.append(records);
+        appendedLsn.accumulateAndGet(lsn, Math::max);
+        return lsn;
+    }
+
+    private interface Appender {
+        long append(List<LogEntry> records) throws IOException;
+    }
+
+    // The append path of the WAL before the log buffer: one monitor around LSN assignment, encoding and copying
+    private static final class LockedAppender implements Appender {
+        private final SegmentedLog log;
+        private final LogRecordEncoder encoder = new LogRecordEncoder();
+        private long lsn = 0;
+
+        private LockedAppender(SegmentedLog log) {
+            this.log = log;
+        }
+
+        @Override
+        public synchronized long append(List<LogEntry> records) throws IOException {
+            for (LogEntry record : records) {
+                record.assignLsn(++lsn);
+                log.append(encoder.encode(record), lsn);
+            }
+            return lsn;
+        }
+    }
+}
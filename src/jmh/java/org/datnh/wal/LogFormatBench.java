@@ -0,0 +1,115 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the binary WAL record format against the former {@code LogEntry.toString()} text lines: writing a log of
+ * 100K entries to a file and reading it back. The score is nanoseconds per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogFormatBench {
+    private static final int ENTRIES = 100_000;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private Path directory;
+    private Path file;
+    private List<LogEntry> entries;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-format");
+        file = directory.resolve("wal." + format);
+        entries = new ArrayList<>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            String key = "user" + (i % 100_000);
+            entries.add(new LogEntry(i + 1, i / 4 + 1, i % 3 == 0 ? "INSERT" : "UPDATE", "accounts", key,
+                    i % 3 == 0 ? null : String.valueOf(i), String.valueOf(i + 100)));
+        }
+        // The file read back by decode
+        encode();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void encode() throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            if (format.equals("text")) {
+                for (LogEntry entry : entries) {
+                    out.write((entry.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } else {
+                LogRecordEncoder encoder = new LogRecordEncoder();
+                out.write(LogRecordFormat.segmentHeader(1, 0).array());
+                for (LogEntry entry : entries) {
+                    ByteBuffer record = encoder.encode(entry);
+                    out.write(record.array(), 0, record.limit());
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public long decode() throws IOException {
+        long checksum = 0;
+        if (format.equals("text")) {
+            // Same parsing the text based recovery used to do
+            try (BufferedReader reader = Files.newBufferedReader(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\\|");
+                    if (parts.length >= 7) {
+                        checksum += parts[3].length() + parts[4].length() + parts[5].split("->")[1].length();
+                    }
+                }
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                LogRecordDecoder decoder = new LogRecordDecoder(channel);
+                LogEntry entry;
+                while ((entry = decoder.next()) != null) {
+                    checksum += entry.getTable().length() + entry.getKey().length() + entry.getNewValue().length();
+                }
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,114 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures commit throughput of 64 threads on a WAL split into 1 to 16 log streams. Every transaction inserts one new
+ * row, a given share of them inserts a second row that usually belongs to another stream, so they commit across
+ * streams. The score is commits per second.
+ * <br/> At the end of every trial the WAL is closed without a checkpoint and recovered from all streams, and every
+ * committed row must be back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogStreamBench {
+    private static final String TABLE = "bench";
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int streams;
+
+    @Param({"10"})
+    public int twoRowPercent;
+
+    private Path directory;
+    private WALConfig config;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private final LongAdder rows = new LongAdder();
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        private final int threadId = threadIds.getAndIncrement();
+        private final Random random = new Random(threadId);
+        private long next;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-streams");
+        config = new WALConfig().logStreams(streams).checkpointIntervalMillis(0);
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+
+        BufferPool recoveredPool = new BufferPool();
+        DiskStorage recoveredStorage = new DiskStorage(directory.resolve("data.db").toString());
+        WriteAheadLog recovered = new WriteAheadLog(directory.resolve("wal").toString(), recoveredPool,
+                recoveredStorage, config);
+        recovered.recover();
+        long count = 0;
+        Transaction txn = new Transaction(recovered, recoveredPool);
+        Iterator<Map.Entry<String, String>> scan = txn.scan(TABLE, null, null, Integer.MAX_VALUE);
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        txn.rollback();
+        recovered.close();
+        recoveredStorage.close();
+        BenchSupport.deleteRecursively(directory);
+        if (count != rows.sum()) {
+            throw new IllegalStateException("Recovered " + count + " of " + rows.sum() + " rows from " + streams
+                    + " streams");
+        }
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void commit(Client client) {
+        Transaction txn = new Transaction(wal, bufferPool);
+        txn.insert(TABLE, client.threadId + "-" + client.next++, "value");
+        int inserted = 1;
+        if (client.random.nextInt(100) < twoRowPercent) {
+            txn.insert(TABLE, client.threadId + "-" + client.next++, "value");
+            inserted++;
+        }
+        txn.commit();
+        rows.add(inserted);
+    }
+}
@@ -0,0 +1,65 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of metrics on the commit path: commits per second of one thread with metrics disabled and
+ * enabled. Run with {@code -prof gc} for the bytes allocated per commit, and with
+ * {@code -jvmArgs -XX:StartFlightRecording} to include the cost of the JFR events.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBench {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-metrics");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage,
+                new WALConfig().metricsEnabled(metrics).checkpointIntervalMillis(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void commit() {
+        Transaction txn = new Transaction(wal, bufferPool);
+        txn.update("bench", "key" + (next++ % 1000), null, "value");
+        txn.commit();
+    }
+}
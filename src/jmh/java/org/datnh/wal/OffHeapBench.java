@@ -0,0 +1,64 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the heap and the off-heap buffer pool layout: all rows are loaded as dirty pages, then one thread runs
+ * random operations, a quarter of them updates and the rest reads. The score is operations per microsecond.
+ * <br/> Run with {@code -prof gc} for the allocation rate and the collections of both layouts, e.g.
+ * {@code -PjmhArgs="OffHeapBench -prof gc -jvmArgs -Xmx4g -p rows=10000000"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OffHeapBench {
+    private static final String TABLE = "bench";
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"heap", "offheap"})
+    public String mode;
+
+    private BufferPool bufferPool;
+    private String[] keys;
+    private final Random random = new Random(11);
+    private long lsn;
+
+    @Setup(Level.Trial)
+    public void load() {
+        bufferPool = mode.equals("offheap") ? BufferPool.offHeap() : new BufferPool();
+        keys = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            keys[i] = String.format("key%08d", i);
+            bufferPool.put(TABLE, keys[i], "value-" + i, ++lsn);
+        }
+    }
+
+    @Benchmark
+    public String operation() {
+        String key = keys[random.nextInt(rows)];
+        if (lsn++ % 4 == 0) {
+            bufferPool.put(TABLE, key, "updated-" + lsn, lsn);
+            return null;
+        }
+        return bufferPool.get(TABLE, key);
+    }
+}
@@ -0,0 +1,81 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link WriteAheadLog#recover()} against a generated log of the given number of entries, with one and with
+ * all available redo threads. Every recovery starts from empty data files and replays the whole log.
+ * <br/> Larger logs can be given on the command line, e.g. {@code -p logEntries=10000000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBench {
+
+    @Param({"100000", "1000000"})
+    public long logEntries;
+
+    @Param({"100000"})
+    public int keySpace;
+
+    // 0 means one redo thread per available processor
+    @Param({"1", "0"})
+    public int recoveryThreads;
+
+    private Path directory;
+    private Path walDirectory;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        directory = Files.createTempDirectory("jmh-recovery");
+        walDirectory = directory.resolve("wal");
+        BenchSupport.generateLog(walDirectory, logEntries, keySpace);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws Exception {
+        Files.deleteIfExists(directory.resolve("data.db"));
+        int threads = recoveryThreads > 0 ? recoveryThreads : Runtime.getRuntime().availableProcessors();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        // No checkpoint may run, it would release the generated segments
+        wal = new WriteAheadLog(walDirectory.toString(), new BufferPool(), diskStorage,
+                new WALConfig().recoveryThreads(threads).checkpointIntervalMillis(0));
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        wal.close();
+        diskStorage.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void recover() {
+        wal.recover();
+    }
+}
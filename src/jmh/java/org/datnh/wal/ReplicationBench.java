@@ -0,0 +1,169 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures commit throughput of 16 threads without a standby and with a standby on localhost in every
+ * {@link ReplicationMode}. The score is commits per second. After every commit the thread samples the replication lag
+ * of the primary, the secondary results sum the lag in records and in milliseconds over the samples, divided by
+ * {@code lagSamples} they give the mean lag.
+ * <br/> At the end of every trial the rows the standby does not hold with the primary's value are counted and printed.
+ * After the {@code SYNC} trial the primary is stopped and the standby promoted, the time to promote it and commit is
+ * printed next to a cold recovery of the primary's directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicationBench {
+    private static final String TABLE = "bench";
+    private static final int THREADS = 16;
+    private static final int KEYS_PER_THREAD = 1000;
+
+    @Param({"none", "ASYNC", "SEMI_SYNC", "SYNC"})
+    public String mode;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    // Null without replication
+    private StandbyReplica standby;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        private final int threadId = threadIds.getAndIncrement() % THREADS;
+        private long next;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Lag {
+        public long lagSamples;
+        public long lagRecords;
+        public long lagMillis;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lagSamples = 0;
+            lagRecords = 0;
+            lagMillis = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-replication");
+        Path primary = Files.createDirectories(directory.resolve("primary"));
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(primary.resolve("data.db").toString());
+        WALConfig config = new WALConfig().replicationMode(mode.equals("none") ? ReplicationMode.ASYNC
+                : ReplicationMode.valueOf(mode));
+        wal = new WriteAheadLog(primary.resolve("wal").toString(), bufferPool, diskStorage, config);
+        wal.recover();
+        if (!mode.equals("none")) {
+            int port = wal.startReplication(0);
+            standby = new StandbyReplica(directory.resolve("standby"), new WALConfig());
+            standby.connect(port);
+            while (wal.getReplicationLagLsn() < 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if (standby != null) {
+            while (wal.getReplicationLagLsn() > 0) {
+                Thread.sleep(1);
+            }
+            System.out.printf("%n%s: %d row(s) missing on the standby%n", mode, countMissing());
+        }
+        wal.close();
+        diskStorage.close();
+        if (mode.equals("SYNC")) {
+            failover();
+        } else if (standby != null) {
+            standby.close();
+        }
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public void commit(Client client, Lag lag) {
+        long i = client.next++;
+        Transaction txn = new Transaction(wal, bufferPool);
+        txn.insert(TABLE, client.threadId + "-" + (i % KEYS_PER_THREAD), String.valueOf(i));
+        txn.commit();
+        if (standby != null) {
+            lag.lagSamples++;
+            lag.lagRecords += Math.max(wal.getReplicationLagLsn(), 0);
+            lag.lagMillis += Math.max(wal.getReplicationLagMillis(), 0);
+        }
+    }
+
+    // Rows committed on the primary that the standby does not return with the same value
+    private long countMissing() {
+        Transaction primary = new Transaction(wal, bufferPool);
+        Transaction replica = standby.begin();
+        long missing = 0;
+        for (int t = 0; t < THREADS; t++) {
+            for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                String key = t + "-" + k;
+                String value = primary.read(TABLE, key);
+                if (value != null && !value.equals(replica.read(TABLE, key))) {
+                    missing++;
+                }
+            }
+        }
+        primary.rollback();
+        replica.rollback();
+        return missing;
+    }
+
+    private void failover() throws Exception {
+        long start = System.nanoTime();
+        WriteAheadLog promoted = standby.promote();
+        Transaction txn = new Transaction(promoted, standby.getBufferPool());
+        txn.insert(TABLE, "after-failover", "value");
+        txn.commit();
+        long promoteMillis = (System.nanoTime() - start) / 1_000_000;
+        standby.close();
+
+        Path primary = directory.resolve("primary");
+        DiskStorage recoveredStorage = new DiskStorage(primary.resolve("data.db").toString());
+        WriteAheadLog recovered = new WriteAheadLog(primary.resolve("wal").toString(), new BufferPool(),
+                recoveredStorage);
+        start = System.nanoTime();
+        recovered.recover();
+        long recoverMillis = (System.nanoTime() - start) / 1_000_000;
+        recovered.close();
+        recoveredStorage.close();
+        System.out.printf("failover: promote and first commit %d ms, cold recovery of the primary %d ms%n",
+                promoteMillis, recoverMillis);
+    }
+}
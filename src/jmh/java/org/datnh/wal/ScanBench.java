@@ -0,0 +1,152 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures range scans through {@link Transaction#scan} against reading the same keys one by one with
+ * {@link Transaction#read}: a range of 1K rows from a random key, and the whole table.
+ * <br/> Pools: {@code heap} is an unbounded buffer pool holding every row, {@code off-heap} is
+ * {@link BufferPool#offHeap()}, and {@code page} is a buffer pool with an 8MB budget over a {@link DiskStorage} opened
+ * after the rows were written, so most rows are read from disk. The score is scans per second, the secondary result
+ * {@code rows} is rows read per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBench {
+    private static final String TABLE = "bench";
+    private static final int RANGE_ROWS = 1000;
+    private static final long PAGE_POOL_BYTES = 8L * 1024 * 1024;
+
+    @Param({"1000", "1000000"})
+    public int rows;
+
+    @Param({"heap", "off-heap", "page"})
+    public String pool;
+
+    private Path directory;
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private Transaction txn;
+    private String[] keys;
+    private final Random random = new Random(42);
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Rows {
+        public long rows;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        keys = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            keys[i] = String.format("key%08d", i);
+        }
+        if (pool.equals("page")) {
+            directory = Files.createTempDirectory("jmh-scan");
+            String dataFile = directory.resolve("data.db").toString();
+            DiskStorage writer = new DiskStorage(dataFile);
+            for (int i = 0; i < rows; i++) {
+                writer.writePageToDisk(TABLE, keys[i], value(i));
+            }
+            writer.close();
+            storage = new DiskStorage(dataFile);
+            bufferPool = new BufferPool(PAGE_POOL_BYTES, storage);
+        } else {
+            bufferPool = pool.equals("off-heap") ? BufferPool.offHeap() : new BufferPool();
+            for (int i = 0; i < rows; i++) {
+                bufferPool.put(TABLE, keys[i], value(i));
+            }
+        }
+        txn = new Transaction(null, bufferPool);
+        txn.rollback();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if (storage != null) {
+            storage.close();
+            BenchSupport.deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    public long scanRange(Rows counter) {
+        int first = random.nextInt(Math.max(1, rows - RANGE_ROWS));
+        String toKey = first + RANGE_ROWS < rows ? keys[first + RANGE_ROWS] : null;
+        return scan(counter, keys[first], toKey, RANGE_ROWS);
+    }
+
+    @Benchmark
+    public long readRange(Rows counter) {
+        int first = random.nextInt(Math.max(1, rows - RANGE_ROWS));
+        txn.begin();
+        long read = 0;
+        for (int i = first; i < first + RANGE_ROWS && i < rows; i++) {
+            if (txn.read(TABLE, keys[i]) != null) {
+                read++;
+            }
+        }
+        txn.rollback();
+        if (read != Math.min(RANGE_ROWS, rows)) {
+            throw new IllegalStateException("Read " + read + " rows from " + keys[first]);
+        }
+        counter.rows += read;
+        return read;
+    }
+
+    @Benchmark
+    public long scanTable(Rows counter) {
+        long scanned = scan(counter, null, null, Integer.MAX_VALUE);
+        if (scanned != rows) {
+            throw new IllegalStateException("Scan of the table returned " + scanned + " of " + rows + " rows");
+        }
+        return scanned;
+    }
+
+    private long scan(Rows counter, String fromKey, String toKey, int limit) {
+        txn.begin();
+        long scanned = 0;
+        Iterator<Map.Entry<String, String>> range = txn.scan(TABLE, fromKey, toKey, limit);
+        while (range.hasNext()) {
+            range.next();
+            scanned++;
+        }
+        txn.rollback();
+        counter.rows += scanned;
+        return scanned;
+    }
+
+    private static String value(int i) {
+        return "value-" + i + "-" + "x".repeat(64);
+    }
+}
@@ -0,0 +1,128 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures read throughput under concurrent writers: 4 reader threads sum the balances of all accounts while 4 writer
+ * threads transfer money between random accounts, so the total never changes.
+ * <br/> Modes: {@code snapshot} reads through {@link Transaction#read}, which reads a snapshot of the versions.
+ * {@code latest} reads the live buffer pool row by row, as transactions did before snapshot isolation. The score is
+ * sums and transfers per second. The secondary results count the sums that differ from the total, which are
+ * inconsistent reads, and the transfers that failed with a write conflict.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotReadBench {
+    private static final String TABLE = "accounts";
+    private static final int BALANCE = 1000;
+
+    @Param({"100"})
+    public int accounts;
+
+    @Param({"latest", "snapshot"})
+    public String mode;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private String[] keys;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Anomalies {
+        public long inconsistent;
+        public long conflicts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            inconsistent = 0;
+            conflicts = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-snapshot-read");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage);
+        keys = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            keys[i] = "account" + i;
+            bufferPool.put(TABLE, keys[i], String.valueOf(BALANCE));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Group("transfers")
+    @GroupThreads(4)
+    public long sum(Anomalies anomalies) {
+        long total = 0;
+        if (mode.equals("snapshot")) {
+            Transaction txn = new Transaction(wal, bufferPool);
+            for (String key : keys) {
+                total += Long.parseLong(txn.read(TABLE, key));
+            }
+            txn.commit();
+        } else {
+            for (String key : keys) {
+                total += Long.parseLong(bufferPool.get(TABLE, key));
+            }
+        }
+        if (total != (long) BALANCE * accounts) {
+            anomalies.inconsistent++;
+        }
+        return total;
+    }
+
+    @Benchmark
+    @Group("transfers")
+    @GroupThreads(4)
+    public void transfer(Anomalies anomalies) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts);
+        int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+        Transaction txn = new Transaction(wal, bufferPool);
+        int fromBalance = Integer.parseInt(txn.read(TABLE, keys[from]));
+        int toBalance = Integer.parseInt(txn.read(TABLE, keys[to]));
+        txn.update(TABLE, keys[from], null, String.valueOf(fromBalance - 1));
+        txn.update(TABLE, keys[to], null, String.valueOf(toBalance + 1));
+        try {
+            txn.commit();
+        } catch (WriteConflictException e) {
+            anomalies.conflicts++;
+        }
+    }
+}
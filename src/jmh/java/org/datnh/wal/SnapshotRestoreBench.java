@@ -0,0 +1,285 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures online snapshots and restoring them against recovering a database by replaying its whole log.
+ * <br/> The trial writes a log of transfers between accounts without checkpoints and keeps a copy of it, recovers it
+ * and takes a full base snapshot. Full and incremental snapshots are then taken while 8 threads keep transferring
+ * money between a small set of hot accounts; an incremental snapshot copies the pages changed since the base. A
+ * restore rebuilds the data file from an incremental snapshot and its base and recovers the log tail, the full-log
+ * recovery replays the copied log from the start. Every recovery checks that no account is missing and that the
+ * transfers kept the total balance. The score is milliseconds per snapshot, restore or recovery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotRestoreBench {
+    private static final String TABLE = "accounts";
+    private static final int BALANCE = 100;
+    private static final int THREADS = 8;
+    private static final WALConfig CONFIG = new WALConfig().checkpointIntervalMillis(0);
+
+    @Param({"200000"})
+    public int accounts;
+
+    @Param({"500000"})
+    public int transfers;
+
+    @Param({"1000"})
+    public int hotAccounts;
+
+    private Path directory;
+    private Path crashed;
+    private Node primary;
+    private DatabaseSnapshot base;
+    private final AtomicLong outputs = new AtomicLong();
+
+    // Transfers between the hot accounts while snapshots are taken
+    @State(Scope.Thread)
+    public static class Load {
+        private final AtomicBoolean running = new AtomicBoolean();
+        private List<Thread> workers;
+
+        @Setup(Level.Iteration)
+        public void start(SnapshotRestoreBench bench) {
+            running.set(true);
+            workers = startTransfers(bench.primary, Math.min(bench.hotAccounts, bench.accounts), running,
+                    new AtomicLong());
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() throws InterruptedException {
+            SnapshotRestoreBench.stop(workers, running);
+        }
+    }
+
+    // A directory for the snapshot or restore of one invocation, deleted after it
+    @State(Scope.Thread)
+    public static class Output {
+        private Path path;
+        private Path source;
+        private Node node;
+
+        @Setup(Level.Invocation)
+        public void create(SnapshotRestoreBench bench) {
+            path = bench.directory.resolve("output-" + bench.outputs.incrementAndGet());
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete(SnapshotRestoreBench bench) throws IOException {
+            if (node != null) {
+                verify(node, bench.accounts);
+                node.close();
+                node = null;
+            }
+            if (source != null) {
+                BenchSupport.deleteRecursively(source);
+                source = null;
+            }
+            if (Files.exists(path)) {
+                BenchSupport.deleteRecursively(path);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-snapshot-restore");
+        Path primaryDirectory = directory.resolve("primary");
+        primary = new Node(primaryDirectory);
+        for (int first = 0; first < accounts; first += 1000) {
+            Transaction txn = new Transaction(primary.wal, primary.bufferPool);
+            for (int i = first; i < Math.min(accounts, first + 1000); i++) {
+                txn.insert(TABLE, key(i), String.valueOf(BALANCE));
+            }
+            txn.commit();
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong commits = new AtomicLong();
+        List<Thread> workers = startTransfers(primary, accounts, running, commits);
+        while (commits.get() < transfers) {
+            Thread.sleep(10);
+        }
+        stop(workers, running);
+        primary.close();
+
+        // Nothing was checkpointed, a copy of the primary holds the whole log
+        crashed = directory.resolve("crashed");
+        copy(primaryDirectory, crashed);
+        primary = new Node(primaryDirectory);
+        base = primary.wal.snapshot(directory.resolve("base"));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        primary.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int fullSnapshot(Load load, Output output) throws IOException {
+        return primary.wal.snapshot(output.path).getCopiedPages();
+    }
+
+    @Benchmark
+    public int incrementalSnapshot(Load load, Output output) throws IOException {
+        return primary.wal.snapshot(output.path, base.getDirectory()).getCopiedPages();
+    }
+
+    @Benchmark
+    public Node restore(Restore restore, Output output) throws Exception {
+        DatabaseSnapshot.restore(restore.snapshot.getDirectory(), output.path.resolve("data.db"),
+                output.path.resolve("wal"));
+        output.node = new Node(output.path);
+        output.source = restore.snapshot.getDirectory();
+        return output.node;
+    }
+
+    @Benchmark
+    public Node recoverFullLog(CrashedCopy copy, Output output) throws Exception {
+        output.node = new Node(copy.path);
+        output.source = copy.path;
+        return output.node;
+    }
+
+    // An incremental snapshot to restore, taken before the invocation
+    @State(Scope.Thread)
+    public static class Restore {
+        private DatabaseSnapshot snapshot;
+
+        @Setup(Level.Invocation)
+        public void snapshot(SnapshotRestoreBench bench) throws IOException {
+            snapshot = bench.primary.wal.snapshot(bench.directory.resolve("incremental-" + bench.outputs
+                    .incrementAndGet()), bench.base.getDirectory());
+        }
+    }
+
+    // A copy of the crashed primary, recovered by the invocation
+    @State(Scope.Thread)
+    public static class CrashedCopy {
+        private Path path;
+
+        @Setup(Level.Invocation)
+        public void copy(SnapshotRestoreBench bench) throws IOException {
+            path = bench.directory.resolve("recovered-" + bench.outputs.incrementAndGet());
+            SnapshotRestoreBench.copy(bench.crashed, path);
+        }
+    }
+
+    private static List<Thread> startTransfers(Node node, int accounts, AtomicBoolean running, AtomicLong commits) {
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                while (running.get()) {
+                    String from = key(random.nextInt(accounts));
+                    String to = key(random.nextInt(accounts));
+                    if (from.equals(to)) {
+                        continue;
+                    }
+                    Transaction txn = new Transaction(node.wal, node.bufferPool);
+                    int fromBalance = Integer.parseInt(txn.read(TABLE, from));
+                    int toBalance = Integer.parseInt(txn.read(TABLE, to));
+                    txn.update(TABLE, from, null, String.valueOf(fromBalance - 1));
+                    txn.update(TABLE, to, null, String.valueOf(toBalance + 1));
+                    try {
+                        txn.commit();
+                        commits.incrementAndGet();
+                    } catch (WriteConflictException e) {
+                        // Retried with other accounts
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        return workers;
+    }
+
+    private static void stop(List<Thread> workers, AtomicBoolean running) throws InterruptedException {
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static void verify(Node node, int accounts) {
+        Transaction txn = new Transaction(node.wal, node.bufferPool);
+        long count = 0;
+        long total = 0;
+        Iterator<Map.Entry<String, String>> rows = txn.scan(TABLE, null, null, Integer.MAX_VALUE);
+        while (rows.hasNext()) {
+            total += Integer.parseInt(rows.next().getValue());
+            count++;
+        }
+        txn.rollback();
+        if (count != accounts || total != (long) accounts * BALANCE) {
+            throw new IllegalStateException("Recovered " + count + " of " + accounts + " accounts holding " + total
+                    + " instead of " + (long) accounts * BALANCE);
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        try (var paths = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path target = to.resolve(from.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(path, target);
+                }
+            }
+        }
+    }
+
+    private static String key(int i) {
+        return String.format("acct%07d", i);
+    }
+
+    // A buffer pool, data file and WAL in one directory, recovered when opened
+    public static final class Node {
+        private final BufferPool bufferPool = new BufferPool();
+        private final DiskStorage storage;
+        private final WriteAheadLog wal;
+
+        Node(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            storage = new DiskStorage(directory.resolve("data.db").toString());
+            wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage, CONFIG);
+            wal.recover();
+        }
+
+        void close() {
+            wal.close();
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures write and read latency of both storage engines at different table sizes. The table is loaded once, then
+ * random keys are updated in batches of 1000 that end with a flush, like the writes of a checkpoint, and random keys
+ * are read back. The score is microseconds per operation. For updates the secondary results count the bytes the
+ * engine wrote, compactions included, and the bytes of the updated keys and values; their ratio is the write
+ * amplification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBench {
+    private static final String TABLE = "bench";
+    private static final int UPDATES_PER_FLUSH = 1_000;
+
+    @Param({"1000", "1000000"})
+    public int keys;
+
+    @Param({"page", "lsm"})
+    public String engine;
+
+    private Path directory;
+    private StorageEngine storage;
+    private final Random random = new Random(42);
+    private long lsn;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long engineBytes;
+        public long logicalBytes;
+        private long engineBytesBefore;
+
+        @Setup(Level.Iteration)
+        public void reset(StorageBench bench) {
+            engineBytes = 0;
+            logicalBytes = 0;
+            engineBytesBefore = bench.storage.getBytesWritten();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-storage");
+        storage = StorageEngine.open(engine, directory.toString());
+        for (int i = 0; i < keys; i++) {
+            storage.writePageToDisk(TABLE, "key" + i, "value-" + i, ++lsn);
+        }
+        storage.flush();
+        awaitCompaction();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        storage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void update(Bytes bytes) {
+        String key = "key" + random.nextInt(keys);
+        String value = "updated-" + lsn;
+        storage.writePageToDisk(TABLE, key, value, ++lsn);
+        if (lsn % UPDATES_PER_FLUSH == 0) {
+            storage.flush();
+        }
+        bytes.logicalBytes += key.length() + value.length();
+        bytes.engineBytes = storage.getBytesWritten() - bytes.engineBytesBefore;
+    }
+
+    @Benchmark
+    public String read() {
+        return storage.readFromDisk(TABLE, "key" + random.nextInt(keys));
+    }
+
+    private void awaitCompaction() throws InterruptedException {
+        if (storage instanceof LSMStorage) {
+            ((LSMStorage) storage).awaitCompaction();
+        }
+    }
+}
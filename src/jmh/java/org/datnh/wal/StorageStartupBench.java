@@ -0,0 +1,96 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening a page data file and the first read through a {@link BufferPool} that reads through to the
+ * storage on a miss, with the persistent key index of {@link DiskStorage} and with the page scan that rebuilds the
+ * index in memory. The data file is written once per trial, with a flush every 2M rows like checkpoints would do. The
+ * page scan mode deletes the index files before every open, its storage writes them again when it is closed. The
+ * score is milliseconds to open the file and read one random row.
+ * <br/> The page scan keeps every key in memory, it needs about 150 bytes of heap per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StorageStartupBench {
+    private static final String TABLE = "bench";
+    private static final int FLUSH_ROWS = 2_000_000;
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"index", "scan"})
+    public String open;
+
+    private Path directory;
+    private Path dataFile;
+    private DiskStorage storage;
+    private final Random random = new Random(7);
+
+    @Setup(Level.Trial)
+    public void build() throws Exception {
+        directory = Files.createTempDirectory("jmh-startup");
+        dataFile = directory.resolve("data.db");
+        DiskStorage writer = new DiskStorage(dataFile.toString());
+        for (int i = 0; i < rows; i++) {
+            writer.writePageToDisk(TABLE, key(i), "value-" + i);
+            if ((i + 1) % FLUSH_ROWS == 0) {
+                writer.flush();
+            }
+        }
+        writer.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void dropIndex() throws Exception {
+        if (open.equals("scan")) {
+            DiskStorage.deleteKeyIndex(dataFile);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        storage.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String openAndRead() {
+        storage = new DiskStorage(dataFile.toString());
+        String value = new BufferPool(storage).get(TABLE, key(random.nextInt(rows)));
+        if (value == null) {
+            throw new IllegalStateException("Row missing in " + dataFile);
+        }
+        return value;
+    }
+
+    private static String key(int i) {
+        String digits = Integer.toString(i);
+        return "key" + "0".repeat(10 - digits.length()) + digits;
+    }
+}
@@ -0,0 +1,98 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the transaction rate of one thread. Every transaction reads and updates 4 rows of a preloaded table. Mode
+ * {@code rollback} rolls it back, which measures the write set alone, {@code commit} commits it with
+ * {@link Durability#ASYNC}, so the WAL writer forces the log on its own thread and the measured thread only buffers,
+ * logs and applies the changes. Every mode runs with a new {@link Transaction} object per transaction and with one
+ * object recycled by {@link Transaction#begin()}. The score is transactions per second, run with {@code -prof gc} for
+ * the bytes allocated per transaction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionAllocationBench {
+    private static final String TABLE = "bench";
+    private static final int KEYS = 10_000;
+    private static final int ROWS = 4;
+
+    @Param({"rollback", "commit"})
+    public String mode;
+
+    @Param({"new", "recycled"})
+    public String object;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+    private final String[] keys = new String[KEYS];
+    private final String[] values = new String[KEYS];
+    private Transaction txn;
+    private int next;
+    private int transactions;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-txn-alloc");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage,
+                new WALConfig().checkpointIntervalMillis(0));
+        Transaction load = new Transaction(wal, bufferPool);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            values[i] = "value" + i;
+            load.insert(TABLE, keys[i], values[i]);
+        }
+        load.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int transaction() {
+        int t = transactions++;
+        txn = object.equals("recycled") && txn != null ? txn.begin()
+                : new Transaction(wal, bufferPool, Durability.ASYNC);
+        for (int r = 0; r < ROWS; r++) {
+            // Consecutive transactions touch different rows, so they never conflict
+            int i = next;
+            next = (next + 7919) % KEYS;
+            txn.read(TABLE, keys[i]);
+            txn.update(TABLE, keys[i], null, values[(i + t) % KEYS]);
+        }
+        if (mode.equals("commit")) {
+            txn.commit();
+        } else {
+            txn.rollback();
+        }
+        return t;
+    }
+}
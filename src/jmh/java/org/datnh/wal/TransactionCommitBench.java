@@ -0,0 +1,93 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link Transaction#commit()} throughput for 1, 10 and 100 entries per transaction, from one and from 8
+ * committing threads, with and without group commit. The score is transactions per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionCommitBench {
+    private static final int KEYS_PER_THREAD = 10_000;
+
+    @Param({"1", "10", "100"})
+    public int entriesPerTransaction;
+
+    @Param({"true", "false"})
+    public boolean groupCommit;
+
+    private Path directory;
+    private BufferPool bufferPool;
+    private DiskStorage diskStorage;
+    private WriteAheadLog wal;
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        // Every thread updates its own keys, so transactions of different threads do not touch the same rows
+        private final String prefix = "t" + threadIds.incrementAndGet() + "-";
+        private long next;
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        directory = Files.createTempDirectory("jmh-commit");
+        bufferPool = new BufferPool();
+        diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+        // The default background checkpoints keep the dirty pages and the WAL bounded during long runs
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage,
+                new WALConfig().groupCommit(groupCommit));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        wal.close();
+        diskStorage.close();
+        BenchSupport.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long commitOneThread(Keys keys) {
+        return commit(keys);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long commitEightThreads(Keys keys) {
+        return commit(keys);
+    }
+
+    private long commit(Keys keys) {
+        Transaction txn = new Transaction(wal, bufferPool);
+        for (int i = 0; i < entriesPerTransaction; i++) {
+            txn.insert("bench", keys.prefix + (keys.next++ % KEYS_PER_THREAD), "value");
+        }
+        txn.commit();
+        return keys.next;
+    }
+}
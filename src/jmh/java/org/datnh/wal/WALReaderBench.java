@@ -0,0 +1,166 @@
+package org.datnh.wal;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how fast a {@link WALReader} consumes the log.
+ * <br/> Catch-up: a generated log is read from its first LSN, through the reader and through a plain
+ * {@link LogRecordDecoder} over each segment file as a baseline. The score is milliseconds for the whole log. Tail: 7
+ * committing threads write while a reader follows the log with {@link WALReader#poll(long, TimeUnit)}. The score is
+ * commits and records read per second, the secondary results sum the lag of the reader in records over its polls.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WALReaderBench {
+
+    @State(Scope.Benchmark)
+    public static class GeneratedLog {
+        @Param({"1000000"})
+        public long logEntries;
+
+        @Param({"decoder", "reader"})
+        public String source;
+
+        private Path directory;
+        private Path walDirectory;
+        private DiskStorage diskStorage;
+        private WriteAheadLog wal;
+
+        @Setup(Level.Trial)
+        public void generate() throws Exception {
+            directory = Files.createTempDirectory("jmh-reader");
+            walDirectory = directory.resolve("wal");
+            BenchSupport.generateLog(walDirectory, logEntries, 1_000_000);
+            if (source.equals("reader")) {
+                // No checkpoint may run, it would release the generated segments
+                diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+                wal = new WriteAheadLog(walDirectory.toString(), new BufferPool(), diskStorage,
+                        new WALConfig().checkpointIntervalMillis(0));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            if (wal != null) {
+                wal.close();
+                diskStorage.close();
+            }
+            BenchSupport.deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LiveLog {
+        private Path directory;
+        private BufferPool bufferPool;
+        private DiskStorage diskStorage;
+        private WriteAheadLog wal;
+        private WALReader reader;
+
+        @Setup(Level.Trial)
+        public void open() throws Exception {
+            directory = Files.createTempDirectory("jmh-reader-tail");
+            bufferPool = new BufferPool();
+            diskStorage = new DiskStorage(directory.resolve("data.db").toString());
+            wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, diskStorage);
+            wal.recover();
+            reader = wal.openReader(wal.getDurableLSN() + 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            reader.close();
+            wal.close();
+            diskStorage.close();
+            BenchSupport.deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger threadIds = new AtomicInteger();
+
+        private final int threadId = threadIds.getAndIncrement();
+        private long next;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Lag {
+        public long polls;
+        public long lagRecords;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            polls = 0;
+            lagRecords = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long catchUp(GeneratedLog log) throws IOException {
+        long records = 0;
+        if (log.source.equals("decoder")) {
+            SegmentedLog segments = new SegmentedLog(log.walDirectory, new WALConfig().getSegmentSize(), 0);
+            for (WALSegment segment : segments.getSegments()) {
+                LogRecordDecoder decoder = segment.openDecoder();
+                while (decoder.next() != null) {
+                    records++;
+                }
+            }
+            segments.close();
+        } else {
+            try (WALReader reader = log.wal.openReader(1)) {
+                while (reader.next() != null) {
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    @Benchmark
+    @Group("tail")
+    @GroupThreads(7)
+    public void commit(LiveLog log, Client client) {
+        Transaction txn = new Transaction(log.wal, log.bufferPool);
+        txn.insert("bench", client.threadId + "-" + (client.next++ % 10_000), "value");
+        txn.commit();
+    }
+
+    @Benchmark
+    @Group("tail")
+    @GroupThreads(1)
+    public long poll(LiveLog log, Lag lag) throws Exception {
+        LogEntry entry = log.reader.poll(100, TimeUnit.MILLISECONDS);
+        lag.polls++;
+        lag.lagRecords += log.reader.getLag();
+        return entry != null ? entry.getLsn() : 0;
+    }
+}
@@ -0,0 +1,90 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class represents a bloom filter over string keys, used to skip sorted runs and key index files that cannot
+ * hold a key.
+ * <br/> The bit positions are derived from one 64-bit FNV-1a hash of the key with double hashing.
+ */
+class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final LongBuffer words;
+    private final int hashCount;
+
+    private BloomFilter(LongBuffer words, int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+    }
+
+    static BloomFilter create(long expectedKeys) {
+        long bits = Math.max(64, expectedKeys * BITS_PER_KEY);
+        return new BloomFilter(LongBuffer.wrap(new long[(int) ((bits + 63) / 64)]), HASH_COUNT);
+    }
+
+    static BloomFilter read(ByteBuffer buffer) {
+        int hashCount = buffer.getInt();
+        long[] words = new long[buffer.getInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(LongBuffer.wrap(words), hashCount);
+    }
+
+    /**
+     * Use a serialized filter in place, for a filter in a memory-mapped file whose bits are only paged in when tested.
+     */
+    static BloomFilter wrap(ByteBuffer buffer) {
+        int hashCount = buffer.getInt();
+        int wordCount = buffer.getInt();
+        LongBuffer words = buffer.slice(buffer.position(), wordCount * 8).asLongBuffer();
+        buffer.position(buffer.position() + wordCount * 8);
+        return new BloomFilter(words, hashCount);
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        long bits = (long) words.capacity() * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bits);
+            int word = (int) (bit >>> 6);
+            words.put(word, words.get(word) | 1L << bit);
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        long bits = (long) words.capacity() * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSerializedSize() {
+        return 8 + words.capacity() * 8;
+    }
+
+    public void write(ByteBuffer buffer) {
+        buffer.putInt(hashCount).putInt(words.capacity());
+        for (int i = 0; i < words.capacity(); i++) {
+            buffer.putLong(words.get(i));
+        }
+    }
+
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -1,50 +1,960 @@
 package org.datnh.wal;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 
 /**
  * This class represents a buffer pool that holds data in memory.
  * Any read or write operations will need to go through this buffer pool to make sure it populate on latest data.
+ * <br/> A buffer pool created with a memory budget and a storage engine evicts pages once the budget is exceeded and
+ * faults them back in from storage on a miss. Victims are chosen with the 2Q policy, an O(1) approximation of LRU-2:
+ * a page read for the first time enters a FIFO probation queue, and only a page faulted in again shortly after it was
+ * evicted from probation is admitted to the main LRU queue. A scan touches every page once, so it only cycles through
+ * probation and does not push the hot pages out.
+ * <br/> Dirty victims are written back (steal), but only after the WAL is durable up to the LSN of their last change.
+ * Both happen after the lock is released: the victim stays resident and pinned until it is written, so a fault-in of
+ * it finds the frame instead of the stale row on storage. Commits never wait for pages to be written (no-force).
+ * <br/> Without a memory budget nothing is evicted, and pages are read and changed without the lock.
+ * <br/> Besides the page map for point lookups, the resident pages of every table are kept in a concurrent skip list
+ * ordered by key, which range scans iterate without taking the lock.
+ * <br/> Increments of a row are added to striped cells of its frame without the lock, so transactions incrementing
+ * the same counter do not contend on it. Concurrent increments are applied in any order, so a counter row may miss
+ * an increment with a lower LSN than one it holds. It is never written back: the frame is pinned until a checkpoint
+ * has written the row as of an LSN all increments up to are applied, see {@link #markCounterClean}.
+ * <br/> A buffer pool created with {@link #offHeap()} keeps every row outside the Java heap instead, see
+ * {@link OffHeapRowStore}. It does not evict, increments are added to the stored value holding the lock, and a range
+ * scan visits every row of the store and copies the sorted range.
  */
 class BufferPool {
-    // Maps table names to their key-value pairs
-    private final Map<String, Map<String, String>> tables = new ConcurrentHashMap<>();
+    // Share of the memory budget for the probation queue
+    private static final double PROBATION_SHARE = 0.25;
+    // Rough per-row overhead of the frame, the map entries and the skip list node, on top of the characters of table,
+    // key and value
+    private static final int FRAME_OVERHEAD_BYTES = 144;
+    // Rows a range scan of a bounded buffer pool reads from storage, and copies from the resident pages, at a time
+    private static final int SCAN_CHUNK_ROWS = 1024;
+    // Optimistic attempts at reading a chunk of a range before a scan reads it holding the lock
+    private static final int SCAN_CHUNK_ATTEMPTS = 3;
+
+    private final long capacityBytes;
+    private final StorageEngine storage;
+    // Set in off-heap mode, which replaces the frames, the queues and the dirty page map
+    private final OffHeapRowStore offHeapRows;
+    // Forces the WAL up to the given LSN before a dirty page is written back
+    private volatile LongConsumer walFlusher = lsn -> { };
+
+    // Resident pages, every frame is in exactly one of the two queues unless it is pinned
+    private final ConcurrentHashMap<String, Frame> frames = new ConcurrentHashMap<>();
+    // The same frames by table, ordered by key for range scans, read without the lock
+    private final Map<String, ConcurrentSkipListMap<String, Frame>> tables = new ConcurrentHashMap<>();
+    // Pages referenced once, oldest first
+    private final LinkedHashMap<String, Frame> probation = new LinkedHashMap<>();
+    // Pages referenced again after they were evicted from probation, least recently used first
+    private final LinkedHashMap<String, Frame> main = new LinkedHashMap<>(16, 0.75f, true);
+    // Ids of pages recently evicted from probation, oldest first
+    private final LinkedHashMap<String, Boolean> ghosts = new LinkedHashMap<>();
+    private final LongAdder usedBytes = new LongAdder();
+    private long probationBytes;
+    // Bytes of the pinned victims being written back, they leave once written
+    private long writeBackBytes;
+    // Incremented by every change, so a fault-in can tell whether the row it read from storage may be stale
+    private long changeCount;
 
     // changed data not yet written to disk, in the real world, it will be written to disk later when the buffer is full or at checkpoint
-    private final Set<String> dirtyPages = ConcurrentHashMap.newKeySet();
+    // Maps each dirty page to its dirty state, which is replaced whenever the page is modified again
+    private final Map<String, DirtyPage> dirtyPages = new ConcurrentHashMap<>();
+    // Pinned frames of the rows increments are applied to, their dirty state is kept by their counter
+    private final Map<String, Frame> counters = new ConcurrentHashMap<>();
+
+    // Committed versions of recently changed rows, read by transactions for snapshot isolation
+    private final VersionStore versions = new VersionStore(this);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong writeBacks = new AtomicLong();
+
+    /**
+     * Create a buffer pool that keeps every page in memory.
+     */
+    public BufferPool() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Create a buffer pool that reads rows through from storage on a miss and keeps every row it read or changed in
+     * memory.
+     */
+    public BufferPool(StorageEngine storage) {
+        this(Long.MAX_VALUE, storage, false);
+    }
+
+    /**
+     * Create a buffer pool that keeps at most about the given number of bytes in memory.
+     *
+     * @param storage storage engine pages are faulted in from and dirty victims are written back to
+     */
+    public BufferPool(long capacityBytes, StorageEngine storage) {
+        this(capacityBytes, storage, false);
+    }
+
+    /**
+     * Create a buffer pool that keeps every row as bytes in direct memory, out of reach of the garbage collector.
+     */
+    public static BufferPool offHeap() {
+        return new BufferPool(Long.MAX_VALUE, null, true);
+    }
+
+    private BufferPool(long capacityBytes, StorageEngine storage, boolean offHeap) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be positive: " + capacityBytes);
+        }
+        if (capacityBytes != Long.MAX_VALUE && storage == null) {
+            throw new IllegalArgumentException("A bounded buffer pool needs a storage engine");
+        }
+        this.capacityBytes = capacityBytes;
+        this.storage = storage;
+        this.offHeapRows = offHeap ? new OffHeapRowStore() : null;
+    }
+
+    /**
+     * Set the callback that makes the WAL durable up to an LSN, called before a dirty page is written back.
+     */
+    void setWalFlusher(LongConsumer walFlusher) {
+        this.walFlusher = walFlusher;
+    }
+
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * @return true if pages are read from storage on a miss and evicted once the memory budget, if any, is exceeded
+     */
+    public boolean isBounded() {
+        return storage != null;
+    }
 
     public void put(String table, String key, String value) {
-        tables.computeIfAbsent(table, k -> new ConcurrentHashMap<>()).put(key, value);
-        dirtyPages.add(table + ":" + key);
-        System.out.println("  [BUFFER] Updated " + table + "." + key + " = " + value + " (in memory)");
+        put(table, key, value, 0);
+    }
+
+    /**
+     * @param lsn LSN of the change, 0 if the change is not logged
+     */
+    public void put(String table, String key, String value, long lsn) {
+        String page = table + ":" + key;
+        if (offHeapRows != null) {
+            synchronized (this) {
+                offHeapRows.put(table, key, value, lsn, true);
+            }
+        } else if (!evicts()) {
+            // Dirty first, a checkpoint that sees the page dirty but not its new value keeps it dirty
+            dirtyPages.put(page, new DirtyPage(lsn));
+            install(page, table, key, value);
+        } else {
+            List<WriteBack> victims;
+            synchronized (this) {
+                install(page, table, key, value);
+                dirtyPages.put(page, new DirtyPage(lsn));
+                changeCount++;
+                victims = evictIfNeeded();
+            }
+            writeBack(victims);
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("  [BUFFER] Updated " + table + "." + key + " = " + value + " (in memory)");
+        }
+    }
+
+    /**
+     * Load a row that is already persisted on disk, the page stays clean.
+     */
+    public void load(String table, String key, String value) {
+        String page = table + ":" + key;
+        if (offHeapRows != null) {
+            synchronized (this) {
+                if (offHeapRows.get(table, key) == null) {
+                    offHeapRows.put(table, key, value, 0, false);
+                }
+            }
+        } else if (!evicts()) {
+            installIfAbsent(page, table, key, value);
+        } else {
+            List<WriteBack> victims = null;
+            synchronized (this) {
+                if (!frames.containsKey(page)) {
+                    installIfAbsent(page, table, key, value);
+                    victims = evictIfNeeded();
+                }
+            }
+            writeBack(victims);
+        }
     }
 
     public String get(String table, String key) {
-        return tables.getOrDefault(table, Collections.emptyMap()).get(key);
+        if (offHeapRows != null) {
+            synchronized (this) {
+                String value = offHeapRows.get(table, key);
+                (value != null ? hits : misses).increment();
+                return value;
+            }
+        }
+        String page = table + ":" + key;
+        if (!evicts()) {
+            Frame frame = frames.get(page);
+            if (frame != null) {
+                hits.increment();
+                return frame.value();
+            }
+            misses.increment();
+            // Nothing leaves the pool, a change that installs the page meanwhile is newer and wins
+            String value = storage != null ? storage.readFromDisk(table, key) : null;
+            return value == null ? null : installIfAbsent(page, table, key, value).value();
+        }
+        while (true) {
+            long changesBefore;
+            synchronized (this) {
+                Frame frame = frames.get(page);
+                if (frame != null) {
+                    hits.increment();
+                    // Looking the page up moves it to the most recently used end of the main queue
+                    main.get(page);
+                    return frame.value();
+                }
+                changesBefore = changeCount;
+            }
+            misses.increment();
+
+            // Read outside the lock so misses do not block hits
+            String value = storage.readFromDisk(table, key);
+            List<WriteBack> victims;
+            synchronized (this) {
+                Frame frame = frames.get(page);
+                if (frame != null) {
+                    return frame.value();
+                }
+                if (changeCount != changesBefore) {
+                    // A change applied and written back meanwhile may be newer than the row read from storage
+                    misses.decrement();
+                    continue;
+                }
+                if (value == null) {
+                    return null;
+                }
+                installIfAbsent(page, table, key, value);
+                victims = evictIfNeeded();
+            }
+            writeBack(victims);
+            return value;
+        }
+    }
+
+    /**
+     * @return the value of a resident page without faulting it in or counting a reference, null if it is not resident
+     */
+    public String peek(String table, String key) {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                return offHeapRows.get(table, key);
+            }
+        }
+        Frame frame = frames.get(table + ":" + key);
+        return frame == null ? null : frame.value();
+    }
+
+    /**
+     * Add a number to the value of a row, a row without a value counts as 0.
+     * <br/> Increments of a resident counter row go to striped cells without the lock. The caller must keep the row
+     * from being written in the meantime, a committing transaction claims it in the version store.
+     *
+     * @param lsn LSN of the increment
+     */
+    public void increment(String table, String key, long delta, long lsn) {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                offHeapRows.increment(table, key, delta, lsn);
+            }
+        } else {
+            // A frame with a counter is pinned, it is neither evicted nor replaced while the row is claimed
+            ConcurrentSkipListMap<String, Frame> rows = tables.get(table);
+            Frame frame = rows == null ? null : rows.get(key);
+            Counter counter = frame == null ? null : frame.counter;
+            if (counter == null) {
+                counter = counterOf(table, key);
+            }
+            counter.lsn.accumulate(lsn);
+            counter.delta.add(delta);
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("  [BUFFER] Incremented " + table + "." + key + " by " + delta + " (in memory)");
+        }
+    }
+
+    // Fault the row in if needed and pin its frame with a counter, a page that was dirty stays dirty in the counter
+    private Counter counterOf(String table, String key) {
+        String page = table + ":" + key;
+        while (true) {
+            long changesBefore;
+            boolean resident;
+            synchronized (this) {
+                changesBefore = changeCount;
+                resident = frames.containsKey(page);
+            }
+            // Read outside the lock so a miss does not block the other rows
+            String value = resident || storage == null ? null : storage.readFromDisk(table, key);
+            Counter counter = pin(page, table, key, value, changesBefore);
+            if (counter != null) {
+                return counter;
+            }
+        }
+    }
+
+    // Returns null if the page is not resident and a change applied and written back since changesBefore may be newer
+    // than the value read from storage
+    private Counter pin(String page, String table, String key, String value, long changesBefore) {
+        Counter counter;
+        List<WriteBack> victims = null;
+        synchronized (this) {
+            Frame frame = frames.get(page);
+            if (frame == null) {
+                if (evicts() && changeCount != changesBefore) {
+                    return null;
+                }
+                frame = installIfAbsent(page, table, key, value != null ? value : "0");
+            }
+            if (frame.counter == null) {
+                if (probation.remove(page) != null) {
+                    probationBytes -= frame.size;
+                } else {
+                    main.remove(page);
+                }
+                // Out of both queues, counted like a page of the main queue
+                frame.inMain = true;
+                DirtyPage dirty = dirtyPages.remove(page);
+                frame.counter = new Counter(frame.value, dirty != null ? dirty.getLsn() : 0);
+                counters.put(page, frame);
+                changeCount++;
+                victims = evictIfNeeded();
+            }
+            counter = frame.counter;
+        }
+        writeBack(victims);
+        return counter;
+    }
+
+    /**
+     * @return true if the row is resident and changed since it was last written to storage, used by the redo of
+     * increments
+     */
+    public synchronized boolean isDirty(String table, String key) {
+        if (offHeapRows != null) {
+            return offHeapRows.isDirty(table, key);
+        }
+        String page = table + ":" + key;
+        Frame frame = counters.get(page);
+        return frame != null ? frame.counter.isDirty() : dirtyPages.containsKey(page);
+    }
+
+    /**
+     * Record that a counter row was written to storage as of the given LSN, all its increments up to that LSN were
+     * applied. Its frame is unpinned once no committing transaction claims the row, the value is exact then.
+     */
+    public void markCounterClean(String table, String key, long lsn) {
+        String page = table + ":" + key;
+        List<WriteBack> victims;
+        synchronized (this) {
+            Frame frame = counters.get(page);
+            if (frame == null) {
+                return;
+            }
+            frame.counter.cleanLsn = Math.max(frame.counter.cleanLsn, lsn);
+            if (!versions.whenUnclaimed(table, key, () -> fold(page, frame))) {
+                return;
+            }
+            victims = evictIfNeeded();
+        }
+        writeBack(victims);
+    }
+
+    // Add the increments to the value of the frame and unpin it, the row must not be incremented meanwhile
+    private void fold(String page, Frame frame) {
+        Counter counter = frame.counter;
+        String value = frame.value();
+        adjustSize(frame, frameSize(frame.table, frame.key, value));
+        frame.value = value;
+        unpin(page, frame);
+        if (counter.isDirty()) {
+            dirtyPages.put(page, new DirtyPage(counter.lsn.get()));
+        }
+    }
+
+    private void unpin(String page, Frame frame) {
+        frame.counter = null;
+        counters.remove(page);
+        // A victim being written back goes back to a queue once it is written, if it stays
+        if (evicts() && !frame.writingBack) {
+            main.put(page, frame);
+        }
+    }
+
+    /**
+     * @return true if a row of the table is resident, or stored when the buffer pool reads through to storage
+     */
+    public boolean hasRows(String table) {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                boolean[] found = new boolean[1];
+                offHeapRows.forEachRow((slab, offset) -> found[0] |= table.equals(OffHeapRowStore.table(slab, offset)));
+                return found[0];
+            }
+        }
+        return scan(table, "", null).hasNext();
+    }
+
+    /**
+     * Iterate over the latest committed rows of a table with a key from fromKey inclusive to toKey exclusive, in key
+     * order.
+     * <br/> Resident rows are read lazily from the ordered index without the lock. A bounded buffer pool merges them
+     * with the rows of the range on storage, read in chunks, where a resident row wins as it may be newer. Pages read by
+     * a scan are not faulted in, so a scan does not push the working set out. Rows changed during the scan may show
+     * their old or their new value, transactions resolve them with the version store.
+     *
+     * @param toKey null to read to the end of the table
+     */
+    public Iterator<Map.Entry<String, String>> scan(String table, String fromKey, String toKey) {
+        if (toKey != null && fromKey.compareTo(toKey) >= 0) {
+            return Collections.emptyIterator();
+        }
+        if (offHeapRows != null) {
+            synchronized (this) {
+                return offHeapRows.range(table, fromKey, toKey).iterator();
+            }
+        }
+        if (!isBounded()) {
+            Iterator<Map.Entry<String, Frame>> rows = resident(table, fromKey, toKey).entrySet().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return rows.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    Map.Entry<String, Frame> row = rows.next();
+                    return Map.entry(row.getKey(), row.getValue().value());
+                }
+            };
+        }
+        return new ChunkedScan(table, fromKey, toKey);
+    }
+
+    private NavigableMap<String, Frame> resident(String table, String fromKey, String toKey) {
+        ConcurrentSkipListMap<String, Frame> rows = tables.get(table);
+        if (rows == null) {
+            return Collections.emptyNavigableMap();
+        }
+        return toKey == null ? rows.tailMap(fromKey, true) : rows.subMap(fromKey, true, toKey, false);
+    }
+
+    /**
+     * @return a snapshot of the dirty pages, mapped to their dirty state
+     */
+    public synchronized Map<String, DirtyPage> getDirtyPages() {
+        if (offHeapRows != null) {
+            return offHeapRows.getDirtyPages();
+        }
+        Map<String, DirtyPage> pages = new HashMap<>(dirtyPages);
+        for (Map.Entry<String, Frame> frame : counters.entrySet()) {
+            // Without a memory budget a write replaces the counter without the lock
+            Counter counter = frame.getValue().counter;
+            if (counter != null && counter.isDirty()) {
+                pages.put(frame.getKey(), DirtyPage.counter(counter.lsn.get()));
+            }
+        }
+        return pages;
+    }
+
+    public int getDirtyPageCount() {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                return offHeapRows.getDirtyCount();
+            }
+        }
+        int count = dirtyPages.size();
+        for (Frame frame : counters.values()) {
+            Counter counter = frame.counter;
+            if (counter != null && counter.isDirty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Mark a page clean after it was written to disk.
+     * Nothing changes if the page was modified again since the given dirty state was taken.
+     */
+    public void markClean(String page, DirtyPage dirtyPage) {
+        if (offHeapRows != null) {
+            String[] parts = page.split(":", 2);
+            synchronized (this) {
+                offHeapRows.markClean(parts[0], parts[1], dirtyPage.getVersion());
+            }
+            return;
+        }
+        dirtyPages.remove(page, dirtyPage);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
     }
 
-    public Set<String> getDirtyPages() {
-        return new HashSet<>(dirtyPages);
+    public long getEvictionCount() {
+        return evictions.get();
     }
 
-    public void markClean(String page) {
-        dirtyPages.remove(page);
+    /**
+     * @return number of dirty pages written back to storage when they were evicted
+     */
+    public long getWriteBackCount() {
+        return writeBacks.get();
     }
 
-    public void displayContents() {
+    public int getResidentPageCount() {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                return offHeapRows.getRowCount();
+            }
+        }
+        return frames.size();
+    }
+
+    /**
+     * @return estimated heap bytes of the resident pages, or the direct memory allocated in off-heap mode
+     */
+    public long getUsedBytes() {
+        if (offHeapRows != null) {
+            synchronized (this) {
+                return offHeapRows.getAllocatedBytes();
+            }
+        }
+        return usedBytes.sum();
+    }
+
+    // Only a buffer pool with a memory budget evicts, keeps the queues and changes pages holding the lock
+    private boolean evicts() {
+        return capacityBytes != Long.MAX_VALUE;
+    }
+
+    // Insert or replace a page, atomically for the page as a pool without a memory budget does so without the lock
+    private void install(String page, String table, String key, String value) {
+        frames.compute(page, (p, frame) -> {
+            if (frame == null) {
+                return newFrame(page, table, key, value);
+            }
+            adjustSize(frame, frameSize(table, key, value));
+            frame.value = value;
+            if (frame.counter != null) {
+                // A value written to the row replaces its increments, none is applied concurrently
+                unpin(page, frame);
+            }
+            if (evicts()) {
+                main.get(page);
+            }
+            return frame;
+        });
+    }
+
+    // Insert a page read from storage unless a change installed it first, returns the resident frame
+    private Frame installIfAbsent(String page, String table, String key, String value) {
+        return frames.computeIfAbsent(page, p -> newFrame(page, table, key, value));
+    }
+
+    // A new page enters main directly if it was evicted from probation recently
+    private Frame newFrame(String page, String table, String key, String value) {
+        Frame frame = new Frame(table, key, value, frameSize(table, key, value));
+        tables.computeIfAbsent(table, t -> new ConcurrentSkipListMap<>()).put(key, frame);
+        usedBytes.add(frame.size);
+        if (!evicts()) {
+            return frame; // nothing is evicted, the queues are not needed
+        }
+        if (ghosts.remove(page) != null) {
+            frame.inMain = true;
+            main.put(page, frame);
+        } else {
+            probation.put(page, frame);
+            probationBytes += frame.size;
+        }
+        return frame;
+    }
+
+    private void adjustSize(Frame frame, int size) {
+        usedBytes.add(size - frame.size);
+        if (!frame.inMain && evicts()) {
+            probationBytes += size - frame.size;
+        }
+        frame.size = size;
+    }
+
+    // Evict until the budget is met. A clean victim leaves at once, a dirty one is pinned and returned, the caller
+    // writes it back with writeBack() once it released the lock
+    private List<WriteBack> evictIfNeeded() {
+        List<WriteBack> victims = null;
+        // Pinned frames are in neither queue
+        while (usedBytes.sum() - writeBackBytes > capacityBytes && frames.size() > 1
+                && !(probation.isEmpty() && main.isEmpty())) {
+            boolean fromProbation = !probation.isEmpty()
+                    && (probationBytes > capacityBytes * PROBATION_SHARE || main.isEmpty());
+            Iterator<Map.Entry<String, Frame>> oldest = (fromProbation ? probation : main).entrySet().iterator();
+            Map.Entry<String, Frame> victim = oldest.next();
+            String page = victim.getKey();
+            Frame frame = victim.getValue();
+            oldest.remove();
+            if (fromProbation) {
+                probationBytes -= frame.size;
+            }
+
+            DirtyPage dirty = dirtyPages.get(page);
+            if (dirty == null) {
+                unlink(page, frame, fromProbation);
+                continue;
+            }
+            // Out of both queues, counted like a page of the main queue
+            frame.inMain = true;
+            frame.writingBack = true;
+            writeBackBytes += frame.size;
+            if (victims == null) {
+                victims = new ArrayList<>();
+            }
+            victims.add(new WriteBack(page, frame, dirty, fromProbation));
+        }
+        return victims;
+    }
+
+    private void unlink(String page, Frame frame, boolean fromProbation) {
+        frames.remove(page);
+        usedBytes.add(-frame.size);
+        if (fromProbation) {
+            rememberGhost(page);
+        }
+        // Counted before the page leaves the ordered index, a scan that misses it sees the eviction
+        evictions.incrementAndGet();
+        tables.get(frame.table).remove(frame.key, frame);
+    }
+
+    // Write-ahead rule: the log records of a change must be durable before the changed page reaches storage.
+    // Called without the lock, every victim is finished even if writing one of them fails
+    private void writeBack(List<WriteBack> victims) {
+        if (victims == null) {
+            return;
+        }
+        RuntimeException failure = null;
+        for (WriteBack victim : victims) {
+            boolean written = false;
+            try {
+                if (victim.dirty.getLsn() > 0) {
+                    walFlusher.accept(victim.dirty.getLsn());
+                }
+                storage.writePageToDisk(victim.frame.table, victim.frame.key, victim.value, victim.dirty.getLsn());
+                writeBacks.incrementAndGet();
+                written = true;
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                synchronized (this) {
+                    finishWriteBack(victim, written);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // The victim leaves unless it was changed meanwhile or could not be written, then it stays in the main queue
+    private void finishWriteBack(WriteBack victim, boolean written) {
+        Frame frame = victim.frame;
+        frame.writingBack = false;
+        writeBackBytes -= victim.size;
+        if (written) {
+            dirtyPages.remove(victim.page, victim.dirty);
+        }
+        if (frame.counter != null) {
+            return; // pinned by its increments now
+        }
+        if (dirtyPages.containsKey(victim.page)) {
+            main.put(victim.page, frame);
+        } else {
+            unlink(victim.page, frame, victim.fromProbation);
+        }
+    }
+
+    private void rememberGhost(String page) {
+        ghosts.put(page, Boolean.TRUE);
+        // Remember about as many evicted pages as there are resident ones
+        Iterator<String> oldest = ghosts.keySet().iterator();
+        while (ghosts.size() > Math.max(1024, frames.size())) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static int frameSize(String table, String key, String value) {
+        return 2 * (table.length() + key.length() + value.length()) + FRAME_OVERHEAD_BYTES;
+    }
+
+    public synchronized void displayContents() {
         System.out.println("\n=== BUFFER POOL CONTENTS ===");
-        for (Map.Entry<String, Map<String, String>> tableEntry : tables.entrySet()) {
+        if (offHeapRows != null) {
+            Map<String, List<String>> rows = new HashMap<>();
+            offHeapRows.forEachRow((slab, offset) -> {
+                String status = OffHeapRowStore.isDirty(slab, offset) ? " (DIRTY)" : " (CLEAN)";
+                rows.computeIfAbsent(OffHeapRowStore.table(slab, offset), k -> new ArrayList<>()).add("  "
+                        + OffHeapRowStore.key(slab, offset) + " = " + OffHeapRowStore.value(slab, offset) + status);
+            });
+            for (Map.Entry<String, List<String>> tableEntry : rows.entrySet()) {
+                System.out.println("Table: " + tableEntry.getKey());
+                tableEntry.getValue().forEach(System.out::println);
+            }
+            System.out.println();
+            return;
+        }
+        Map<String, List<Frame>> tables = new HashMap<>();
+        for (Frame frame : frames.values()) {
+            tables.computeIfAbsent(frame.table, k -> new ArrayList<>()).add(frame);
+        }
+        for (Map.Entry<String, List<Frame>> tableEntry : tables.entrySet()) {
             System.out.println("Table: " + tableEntry.getKey());
-            for (Map.Entry<String, String> row : tableEntry.getValue().entrySet()) {
-                String pageKey = tableEntry.getKey() + ":" + row.getKey();
-                String status = dirtyPages.contains(pageKey) ? " (DIRTY)" : " (CLEAN)";
-                System.out.println("  " + row.getKey() + " = " + row.getValue() + status);
+            for (Frame frame : tableEntry.getValue()) {
+                String pageKey = tableEntry.getKey() + ":" + frame.key;
+                boolean dirty = frame.counter != null ? frame.counter.isDirty() : dirtyPages.containsKey(pageKey);
+                String status = dirty ? " (DIRTY)" : " (CLEAN)";
+                System.out.println("  " + frame.key + " = " + frame.value() + status);
             }
         }
+        if (isBounded()) {
+            System.out.println("Resident pages: " + frames.size() + ", " + usedBytes.sum() + " of " + capacityBytes
+                    + " bytes, hits " + hits.sum() + ", misses " + misses.sum() + ", evictions " + evictions.get());
+        }
         System.out.println();
     }
-}
\ No newline at end of file
+
+    // Range scan of a bounded buffer pool, merging the resident rows with the rows on storage chunk by chunk
+    private final class ChunkedScan implements Iterator<Map.Entry<String, String>> {
+        private final String table;
+        private final String toKey;
+        // First key of the next chunk, null once the range is read
+        private String nextKey;
+        private Iterator<Map.Entry<String, String>> chunk = Collections.emptyIterator();
+
+        ChunkedScan(String table, String fromKey, String toKey) {
+            this.table = table;
+            this.nextKey = fromKey;
+            this.toKey = toKey;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!chunk.hasNext() && nextKey != null) {
+                chunk = readChunk().iterator();
+            }
+            return chunk.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.next();
+        }
+
+        // A page evicted between reading storage and reading the resident rows would be missed by both, so a chunk is
+        // read again if a page was evicted meanwhile, and read holding the lock if that keeps happening
+        private List<Map.Entry<String, String>> readChunk() {
+            for (int attempt = 0; attempt < SCAN_CHUNK_ATTEMPTS; attempt++) {
+                String fromKey = nextKey;
+                long evictionsBefore = evictions.get();
+                List<Map.Entry<String, String>> rows = mergeChunk();
+                if (evictions.get() == evictionsBefore) {
+                    return rows;
+                }
+                nextKey = fromKey;
+            }
+            synchronized (BufferPool.this) {
+                return mergeChunk();
+            }
+        }
+
+        private List<Map.Entry<String, String>> mergeChunk() {
+            List<Map.Entry<String, String>> stored = storage.readRange(table, nextKey, toKey, SCAN_CHUNK_ROWS);
+            // A full chunk from storage ends the chunk at its last key, resident rows after it belong to the next one
+            String lastKey = stored.size() == SCAN_CHUNK_ROWS ? stored.get(stored.size() - 1).getKey() : null;
+            NavigableMap<String, Frame> range = resident(table, nextKey, toKey);
+            if (lastKey != null) {
+                range = range.headMap(lastKey, true);
+            }
+            List<Map.Entry<String, String>> rows = new ArrayList<>();
+            Iterator<Map.Entry<String, String>> storedRows = stored.iterator();
+            Map.Entry<String, String> storedRow = storedRows.hasNext() ? storedRows.next() : null;
+            int residentCount = 0;
+            for (Map.Entry<String, Frame> resident : range.entrySet()) {
+                if (residentCount++ == SCAN_CHUNK_ROWS) {
+                    // Too many resident rows, the chunk ends at the last row merged so far
+                    lastKey = rows.get(rows.size() - 1).getKey();
+                    storedRow = null;
+                    break;
+                }
+                while (storedRow != null && storedRow.getKey().compareTo(resident.getKey()) < 0) {
+                    rows.add(storedRow);
+                    storedRow = storedRows.hasNext() ? storedRows.next() : null;
+                }
+                if (storedRow != null && storedRow.getKey().equals(resident.getKey())) {
+                    storedRow = storedRows.hasNext() ? storedRows.next() : null;
+                }
+                rows.add(Map.entry(resident.getKey(), resident.getValue().value()));
+            }
+            while (storedRow != null) {
+                rows.add(storedRow);
+                storedRow = storedRows.hasNext() ? storedRows.next() : null;
+            }
+
+            // The key right after the last one, no key sorts between them
+            nextKey = lastKey == null ? null : lastKey + '\u0000';
+            if (nextKey != null && toKey != null && nextKey.compareTo(toKey) >= 0) {
+                nextKey = null;
+            }
+            return rows;
+        }
+    }
+
+    // A resident page
+    private static final class Frame {
+        private final String table;
+        private final String key;
+        // Read by range scans without the lock
+        private volatile String value;
+        // Increments added to the value since the row became a counter, null for other rows
+        private volatile Counter counter;
+        private int size;
+        private boolean inMain;
+        // Pinned while it is written back as an eviction victim, changed holding the lock
+        private boolean writingBack;
+
+        Frame(String table, String key, String value, int size) {
+            this.table = table;
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+        String value() {
+            Counter counter = this.counter;
+            return counter == null ? value : LogEntry.increment(counter.base, counter.delta.sum());
+        }
+    }
+
+    // Increments of a counter row, striped over cells so concurrent increments do not contend
+    private static final class Counter {
+        // Value of the row when it became a counter, so a reader never adds the increments to a folded value
+        private final String base;
+        private final LongAdder delta = new LongAdder();
+        // Highest LSN of an increment applied, or of the change that left the page dirty before
+        private final LongAccumulator lsn = new LongAccumulator(Math::max, 0);
+        // The row is stored as of this LSN, changed holding the lock
+        private volatile long cleanLsn;
+
+        Counter(String base, long dirtyLsn) {
+            this.base = base;
+            lsn.accumulate(dirtyLsn);
+        }
+
+        boolean isDirty() {
+            return lsn.get() > cleanLsn;
+        }
+    }
+
+    // A dirty eviction victim, pinned until its value as of the dirty state is written
+    private static final class WriteBack {
+        private final String page;
+        private final Frame frame;
+        private final DirtyPage dirty;
+        private final String value;
+        // Size of the frame when it was pinned, counted in writeBackBytes
+        private final int size;
+        private final boolean fromProbation;
+
+        WriteBack(String page, Frame frame, DirtyPage dirty, boolean fromProbation) {
+            this.page = page;
+            this.frame = frame;
+            this.dirty = dirty;
+            this.value = frame.value();
+            this.size = frame.size;
+            this.fromProbation = fromProbation;
+        }
+    }
+
+    /**
+     * The state of a dirty page: the LSN of the last change applied to it.
+     * Compared by identity, so a page modified again never matches an older state even if the LSN is the same.
+     * In off-heap mode rows have no objects to compare, the version of the change is compared instead.
+     */
+    static final class DirtyPage {
+        private final long lsn;
+        private final long version;
+        private final boolean counter;
+
+        DirtyPage(long lsn) {
+            this(lsn, 0);
+        }
+
+        DirtyPage(long lsn, long version) {
+            this(lsn, version, false);
+        }
+
+        private DirtyPage(long lsn, long version, boolean counter) {
+            this.lsn = lsn;
+            this.version = version;
+            this.counter = counter;
+        }
+
+        /**
+         * The state of a counter row, marked clean with {@link #markCounterClean} instead.
+         */
+        static DirtyPage counter(long lsn) {
+            return new DirtyPage(lsn, 0, true);
+        }
+
+        public boolean isCounter() {
+            return counter;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
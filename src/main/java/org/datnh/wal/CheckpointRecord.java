@@ -0,0 +1,90 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * This class persists the last completed checkpoint in a small control file next to the WAL segments.
+ * <br/> A checkpoint is fuzzy: pages may be changed again while it runs. It therefore remembers the redo LSN captured
+ * when it began (every change up to it is in the data files once the checkpoint ends) together with the LSNs of its
+ * begin and end records in the WAL. Recovery skips every record at or below the redo LSN.
+ * The file is replaced atomically, so a crash while writing it leaves the previous checkpoint in place.
+ * <pre>
+ * magic (4 bytes "CKPT") | version (1 byte) | redo LSN (int64) | begin LSN (int64) | end LSN (int64)
+ * | CRC32C of the preceding bytes (int32)
+ * </pre>
+ */
+class CheckpointRecord {
+    static final String FILE_NAME = "checkpoint";
+    static final CheckpointRecord NONE = new CheckpointRecord(0, 0, 0);
+
+    private static final int MAGIC = 0x434B5054; // "CKPT"
+    private static final byte VERSION = 2;
+    private static final int SIZE = 33;
+
+    private final long redoLsn;
+    private final long beginLsn;
+    private final long endLsn;
+
+    CheckpointRecord(long redoLsn, long beginLsn, long endLsn) {
+        this.redoLsn = redoLsn;
+        this.beginLsn = beginLsn;
+        this.endLsn = endLsn;
+    }
+
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    public long getBeginLsn() {
+        return beginLsn;
+    }
+
+    public long getEndLsn() {
+        return endLsn;
+    }
+
+    /**
+     * @return the persisted checkpoint, or {@link #NONE} if no checkpoint has completed yet
+     */
+    static CheckpointRecord read(Path directory) throws IOException {
+        Path file = directory.resolve(FILE_NAME);
+        if (!Files.exists(file)) {
+            return NONE;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() != SIZE || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            throw new IOException("Invalid checkpoint record in " + file);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, SIZE - 4);
+        if ((int) crc.getValue() != buffer.getInt(SIZE - 4)) {
+            throw new IOException("Checkpoint record checksum mismatch in " + file);
+        }
+        return new CheckpointRecord(buffer.getLong(5), buffer.getLong(13), buffer.getLong(21));
+    }
+
+    void write(Path directory) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC).put(VERSION).putLong(redoLsn).putLong(beginLsn).putLong(endLsn);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, SIZE - 4);
+        buffer.putInt((int) crc.getValue()).flip();
+
+        Path temp = directory.resolve(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
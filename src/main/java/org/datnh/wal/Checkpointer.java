@@ -0,0 +1,88 @@
+package org.datnh.wal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs fuzzy checkpoints in the background so that committers never wait for dirty pages to be written.
+ * <br/> A checkpoint is triggered when the configured interval has passed since the last one, when the number of dirty
+ * pages reaches a threshold, or when enough WAL has been written since the last checkpoint. Page writes are paced to
+ * the configured rate so the checkpoint does not compete with committers for I/O.
+ */
+class Checkpointer {
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final WriteAheadLog wal;
+    private final BufferPool bufferPool;
+    private final long intervalNanos;
+    private final int dirtyPagesThreshold;
+    private final long walBytesThreshold;
+    private final int pagesPerSecond;
+    private final ScheduledExecutorService executor;
+
+    private long lastCheckpointNanos = System.nanoTime();
+    private long walBytesAtLastCheckpoint;
+
+    public Checkpointer(WriteAheadLog wal, BufferPool bufferPool, WALConfig config) {
+        this.wal = wal;
+        this.bufferPool = bufferPool;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getCheckpointIntervalMillis());
+        this.dirtyPagesThreshold = config.getCheckpointDirtyPages();
+        this.walBytesThreshold = config.getCheckpointWalBytes();
+        this.pagesPerSecond = config.getCheckpointPagesPerSecond();
+        this.walBytesAtLastCheckpoint = wal.getAppendedBytes();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        String reason = dueReason();
+        if (reason == null) {
+            return;
+        }
+        try {
+            if (WALTrace.ENABLED) {
+                System.out.println("[CHECKPOINTER] Triggered by " + reason);
+            }
+            lastCheckpointNanos = System.nanoTime();
+            walBytesAtLastCheckpoint = wal.getAppendedBytes();
+            wal.checkpoint(pagesPerSecond);
+        } catch (RuntimeException e) {
+            // Keep the checkpointer alive, the next trigger retries
+            System.err.println("Background checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    private String dueReason() {
+        if (intervalNanos > 0 && System.nanoTime() - lastCheckpointNanos >= intervalNanos) {
+            return "interval";
+        }
+        if (dirtyPagesThreshold > 0 && bufferPool.getDirtyPageCount() >= dirtyPagesThreshold) {
+            return "dirty page count";
+        }
+        if (walBytesThreshold > 0 && wal.getAppendedBytes() - walBytesAtLastCheckpoint >= walBytesThreshold) {
+            return "WAL size";
+        }
+        return null;
+    }
+
+    /**
+     * Stop triggering checkpoints and wait for a running checkpoint to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
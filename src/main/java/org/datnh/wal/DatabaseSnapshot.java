@@ -0,0 +1,262 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * This class describes an online snapshot of a database, a directory holding pages of the data file and the WAL tail
+ * needed to bring them to the snapshot LSN, see {@link WriteAheadLog#snapshot(Path, Path)}.
+ * <br/> A snapshot starts with a checkpoint, so every change up to its redo LSN is in the data file. The pages are then
+ * copied while transactions keep committing, a page may already hold later changes like in a fuzzy checkpoint. Last the
+ * log is forced and the segments holding the records after the redo LSN are copied, cut right after the snapshot LSN.
+ * Recovery of a restored snapshot replays that tail on top of the pages, only committed transactions, so the restored
+ * database holds exactly the transactions committed up to the snapshot LSN.
+ * <br/> An incremental snapshot only copies the pages with a page LSN above the redo LSN of its base snapshot, the base
+ * copied every page after all changes up to that LSN were written. A restore follows the chain of bases and writes every
+ * page from the newest snapshot holding it.
+ * <pre>
+ * manifest: magic (4 bytes "SNAP") | version (int32) | snapshot LSN (int64) | redo LSN (int64) | page count (int32)
+ *           | copied pages (int32) | base path length (uint16) | base path (UTF-8) | CRC32C of the preceding bytes (int32)
+ * pages:    per copied page, in page order: page number (int32) | page
+ * wal/:     the checkpoint record and the WAL segments of the tail
+ * </pre>
+ */
+class DatabaseSnapshot {
+    static final String MANIFEST = "snapshot";
+    static final String PAGES = "pages";
+    static final String WAL = "wal";
+
+    private static final int MAGIC = 0x534E4150; // "SNAP"
+    private static final int VERSION = 1;
+    // Manifest bytes without the base path
+    private static final int MANIFEST_SIZE = 38;
+    // Pages a restore reads from a snapshot at a time
+    private static final int RESTORE_CHUNK_PAGES = 128;
+
+    private final Path directory;
+    private final long snapshotLsn;
+    private final long redoLsn;
+    private final int pageCount;
+    private final int copiedPages;
+    // Null for a full snapshot
+    private final Path base;
+
+    DatabaseSnapshot(Path directory, long snapshotLsn, long redoLsn, int pageCount, int copiedPages, Path base) {
+        this.directory = directory;
+        this.snapshotLsn = snapshotLsn;
+        this.redoLsn = redoLsn;
+        this.pageCount = pageCount;
+        this.copiedPages = copiedPages;
+        this.base = base;
+    }
+
+    /**
+     * Copy the first pages of the data file that changed since the base snapshot, all of them without a base.
+     *
+     * @return number of pages copied
+     */
+    static int copyPages(DiskStorage storage, int pageCount, DatabaseSnapshot base, Path directory)
+            throws IOException {
+        try (FileChannel pages = FileChannel.open(directory.resolve(PAGES), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            int copied = storage.copyPages(pageCount, base == null ? -1 : base.redoLsn, pages);
+            pages.force(true);
+            return copied;
+        }
+    }
+
+    /**
+     * Copy the segments holding the records after the redo LSN up to the snapshot LSN, and the checkpoint record.
+     *
+     * @return LSN of the last record copied, the snapshot LSN
+     */
+    static long copyLogTail(List<WALSegment> segments, CheckpointRecord checkpoint, long toLsn, Path directory)
+            throws IOException {
+        Path wal = directory.resolve(WAL);
+        Files.createDirectories(wal);
+        long lastLsn = checkpoint.getRedoLsn();
+        for (WALSegment segment : segments) {
+            if (segment.getLastLsn() <= checkpoint.getRedoLsn()) {
+                continue;
+            }
+            if (segment.getBaseLsn() >= toLsn) {
+                break;
+            }
+            lastLsn = segment.copyTo(wal.resolve(segment.getPath().getFileName()), toLsn);
+        }
+        checkpoint.write(wal);
+        return lastLsn;
+    }
+
+    void write() throws IOException {
+        byte[] basePath = base == null ? new byte[0] : base.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(MANIFEST_SIZE + basePath.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotLsn).putLong(redoLsn).putInt(pageCount)
+                .putInt(copiedPages).putChar((char) basePath.length).put(basePath);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue()).flip();
+        try (FileChannel manifest = FileChannel.open(directory.resolve(MANIFEST), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                manifest.write(buffer);
+            }
+            manifest.force(true);
+        }
+    }
+
+    static DatabaseSnapshot read(Path directory) throws IOException {
+        Path file = directory.resolve(MANIFEST);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < MANIFEST_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a snapshot: " + directory);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.limit() - 4);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+            throw new IOException("Snapshot manifest checksum mismatch in " + file);
+        }
+        long snapshotLsn = buffer.getLong();
+        long redoLsn = buffer.getLong();
+        int pageCount = buffer.getInt();
+        int copiedPages = buffer.getInt();
+        byte[] basePath = new byte[buffer.getChar()];
+        buffer.get(basePath);
+        Path base = basePath.length == 0 ? null : Path.of(new String(basePath, StandardCharsets.UTF_8));
+        return new DatabaseSnapshot(directory, snapshotLsn, redoLsn, pageCount, copiedPages, base);
+    }
+
+    /**
+     * Restore a snapshot and the chain of its bases into a new data file and an empty WAL directory. Recovering a WAL
+     * opened on them afterwards replays the log tail of the snapshot.
+     * <br/> The pages of every snapshot are read sequentially in large chunks and written in page order, the newest
+     * snapshot holding a page wins.
+     *
+     * @return the restored snapshot
+     */
+    static DatabaseSnapshot restore(Path snapshot, Path dataFile, Path walDirectory) throws IOException {
+        if (Files.isDirectory(walDirectory)) {
+            try (Stream<Path> files = Files.list(walDirectory)) {
+                if (files.findAny().isPresent()) {
+                    throw new IOException("WAL directory " + walDirectory + " is not empty");
+                }
+            }
+        }
+        List<DatabaseSnapshot> chain = new ArrayList<>();
+        for (Path directory = snapshot; directory != null; directory = chain.get(chain.size() - 1).base) {
+            chain.add(read(directory));
+        }
+
+        DatabaseSnapshot newest = chain.get(0);
+        Path dataDirectory = dataFile.toAbsolutePath().getParent();
+        if (dataDirectory != null) {
+            Files.createDirectories(dataDirectory);
+        }
+        BitSet written = new BitSet(newest.pageCount);
+        try (FileChannel data = FileChannel.open(dataFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(RESTORE_CHUNK_PAGES * (4 + DiskStorage.PAGE_SIZE));
+            for (DatabaseSnapshot link : chain) {
+                try (FileChannel pages = FileChannel.open(link.directory.resolve(PAGES), StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = pages.size();
+                    while (position < size) {
+                        chunk.clear().limit((int) Math.min(chunk.capacity(), size - position));
+                        while (chunk.hasRemaining()) {
+                            position += pages.read(chunk, position);
+                        }
+                        chunk.flip();
+                        while (chunk.remaining() >= 4 + DiskStorage.PAGE_SIZE) {
+                            int pageNumber = chunk.getInt();
+                            ByteBuffer page = chunk.slice(chunk.position(), DiskStorage.PAGE_SIZE);
+                            chunk.position(chunk.position() + DiskStorage.PAGE_SIZE);
+                            if (pageNumber < newest.pageCount && !written.get(pageNumber)) {
+                                long offset = (long) pageNumber * DiskStorage.PAGE_SIZE;
+                                while (page.hasRemaining()) {
+                                    offset += data.write(page, offset);
+                                }
+                                written.set(pageNumber);
+                            }
+                        }
+                    }
+                }
+            }
+            if (written.cardinality() != newest.pageCount) {
+                throw new IOException("Snapshot chain of " + snapshot + " misses page " + written.nextClearBit(0));
+            }
+            data.force(true);
+        }
+        // Index files left next to the data file do not describe the restored pages
+        DiskStorage.deleteKeyIndex(dataFile);
+
+        Files.createDirectories(walDirectory);
+        try (Stream<Path> files = Files.list(newest.directory.resolve(WAL))) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.copy(file, walDirectory.resolve(file.getFileName()));
+            }
+        }
+        return newest;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return LSN of the last record in the snapshot, every transaction committed up to it is restored
+     */
+    public long getSnapshotLsn() {
+        return snapshotLsn;
+    }
+
+    /**
+     * @return redo LSN of the checkpoint the snapshot started with, recovery of a restore replays the records after it
+     */
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    /**
+     * @return number of pages of the data file when the snapshot was taken
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return number of pages copied, all of them for a full snapshot
+     */
+    public int getCopiedPages() {
+        return copiedPages;
+    }
+
+    /**
+     * @return the snapshot this one is based on, null for a full snapshot
+     */
+    public Path getBase() {
+        return base;
+    }
+
+    /**
+     * @return bytes of the pages and the log tail in the snapshot directory
+     */
+    public long getSize() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            long size = 0;
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+}
@@ -1,83 +1,1164 @@
 package org.datnh.wal;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 /**
  * This class represents a disk storage that holds data persistently.
- * It simulates writing and reading data to/from disk, with a simple file format.
+ * <br/> Rows are stored in a single file of fixed-size slotted pages (see {@link SlottedPage}), each page belonging to
+ * one table. An index maps every key to the page and slot holding its row, so a write only touches the page of that
+ * row: it is updated in place, or the row moves to a page with room when it grew. The index is ordered by key, range
+ * reads look up a chunk of keys and read the pages they need in file order, coalescing neighbouring pages into one
+ * read. Changed pages are kept in a
+ * small page cache and written back with positional writes by {@link #flush()}, instead of rewriting the whole file.
+ * <br/> The index is persisted next to the data file (see {@link KeyIndexFile}), so opening the data file only reads
+ * its header and the footers of the index files, and a row is looked up on disk when it is first read. A base index
+ * file holds the rows up to some flush, delta files the rows written or moved since, and the rows changed since the
+ * last flush are kept in memory. Every flush writes them to a new delta, merged with the newest deltas that are not
+ * much larger, and merges all deltas into a new base once they hold more than half as many rows as the base. A
+ * location read from an index file is only used once the slot it names is live and holds the key, locations gone stale
+ * by a crash after the last flush are redone by the WAL replay. Without usable index files, opening the data file
+ * reads every page to rebuild the index in memory.
+ * <br/> A bulk load writes the rows of an empty table straight to new pages at the end of the file, which stay pending
+ * until the WAL record committing the load is durable, see {@link #stageBulkLoad}.
+ * <br/> The first page of the file is the header, holding the names of the tables in the order of their ids and the
+ * pending bulk loads. Headers of version 1 have no pending bulk loads.
+ * <pre>
+ * header page: magic (4 bytes "PAGE") | version (int32) | page size (int32) | table count (int32)
+ *              | per table: name length (uint16) | name (UTF-8)
+ *              | pending bulk load count (int32) | per load: load id (int64) | table id (int32) | first page (int32)
+ *              | page count (int32, -1 while its pages are written)
+ * </pre>
  */
-class DiskStorage {
-    private final String dataFile;
-    private final Map<String, Map<String, String>> persistentData = new HashMap<>();
+class DiskStorage implements StorageEngine {
+    static final int PAGE_SIZE = 8192;
+
+    private static final int MAGIC = 0x50414745; // "PAGE"
+    private static final int VERSION = 2;
+    private static final int CACHE_PAGES = 4096;
+    // Most pages a range read reads with a single positional read
+    private static final int PREFETCH_PAGES = 32;
+    static final String INDEX_SUFFIX = ".index";
+    // Followed by the sequence number of the delta
+    static final String DELTA_SUFFIX = ".index-delta-";
+    // The deltas are merged into a new base once they hold more than this share of the rows of the base
+    private static final double DELTA_MERGE_RATIO = 0.5;
+    // Pages a bulk load writes with a single positional write
+    private static final int LOAD_WRITE_PAGES = 64;
+    // Rows of a bulk load sorted at a time, every chunk becomes a delta of the key index
+    private static final int LOAD_INDEX_ROWS = 1 << 20;
+
+    private final Path dataFile;
+    private final FileChannel channel;
+    private final Path indexFile;
+    // Null while the data file has no index files
+    private KeyIndexFile baseIndex;
+    // Delta files of the base, newest first
+    private final List<KeyIndexFile> deltaIndexes = new ArrayList<>();
+
+    // Table names by table id - 1, and the reverse mapping
+    private final List<String> tableNames = new ArrayList<>();
+    private final Map<String, Integer> tableIds = new HashMap<>();
+    // Maps table names to the location of each of their rows written or moved since the index files were written, in
+    // key order, see location(). It wins over the index files
+    private final Map<String, NavigableMap<String, Long>> changedRows = new HashMap<>();
+    // The page new rows of a table are added to, by table id
+    private final Map<Integer, Integer> insertPages = new HashMap<>();
+    // Table id of every page, page 0 is the header
+    private int[] pageTables = new int[16];
+    private int pageCount;
+    // Bulk loads whose pages are written but not attached to their table yet, by load id, listed in the header
+    private final Map<Long, BulkLoad> pendingLoads = new LinkedHashMap<>();
+    private boolean headerDirty;
+    private long bytesWritten;
+
+    // Recently used pages, dirty pages are written back when they are evicted
+    private final LinkedHashMap<Integer, SlottedPage> cache = new LinkedHashMap<>(CACHE_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, SlottedPage> eldest) {
+            if (size() <= CACHE_PAGES) {
+                return false;
+            }
+            if (eldest.getValue().isDirty()) {
+                try {
+                    writePage(eldest.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to write back page " + eldest.getKey(), e);
+                }
+            }
+            return true;
+        }
+    };
 
     public DiskStorage(String dataFile) {
-        this.dataFile = dataFile;
-        loadFromDisk();
+        this.dataFile = Paths.get(dataFile);
+        this.indexFile = Paths.get(dataFile + INDEX_SUFFIX);
+        try {
+            this.channel = FileChannel.open(this.dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            loadFromDisk();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open data file " + dataFile, e);
+        }
     }
 
-    public synchronized void writePageToDisk(String table, String key, String value) {
-        persistentData.computeIfAbsent(table, k -> new HashMap<>()).put(key, value);
-        saveToDisk();
-        System.out.println("  [DISK] Wrote " + table + "." + key + " = " + value + " to persistent storage");
+    /**
+     * Write a row into its page. The page is written to the data file when it is evicted from the page cache or on the
+     * next {@link #flush()}.
+     * <br/> Nothing is written if the row on disk already holds a change with the given LSN or a later one.
+     *
+     * @param lsn LSN of the change the value belongs to, 0 if unknown
+     */
+    @Override
+    public synchronized void writePageToDisk(String table, String key, String value, long lsn) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length + valueBytes.length > SlottedPage.maxCellPayload(PAGE_SIZE)) {
+            throw new IllegalArgumentException("Row " + table + "." + key + " does not fit into a page");
+        }
+
+        Map<String, Long> rows = changedRows.computeIfAbsent(table, k -> new TreeMap<>());
+        long location = locate(table, key);
+        if (location >= 0) {
+            SlottedPage page = page(pageOf(location));
+            int slot = slotOf(location);
+            if (lsn > 0 && page.getLsn(slot) >= lsn) {
+                return; // already up to date
+            }
+            if (!page.update(slot, keyBytes, valueBytes, lsn)) {
+                // The row grew, move it to another slot, preferably in the same page
+                page.delete(slot);
+                slot = page.insert(keyBytes, valueBytes, lsn);
+                if (slot < 0) {
+                    rows.put(key, insert(tableId(table), keyBytes, valueBytes, lsn));
+                } else {
+                    rows.put(key, location(page.getPageNumber(), slot));
+                }
+            }
+        } else {
+            rows.put(key, insert(tableId(table), keyBytes, valueBytes, lsn));
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("  [DISK] Wrote " + table + "." + key + " = " + value + " to persistent storage");
+        }
+    }
 
-        // Simulate disk write latency
+    @Override
+    public synchronized String readFromDisk(String table, String key) {
         try {
-            Thread.sleep(10); // 10ms per write to simulate disk latency
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            long location = locate(table, key);
+            return location < 0 ? null : page(pageOf(location)).getValue(slotOf(location));
+        } catch (UncheckedIOException e) {
+            System.err.println("Error reading data from disk: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long getPageLSN(String table, String key) {
+        long location = locate(table, key);
+        return location < 0 ? 0 : page(pageOf(location)).getLsn(slotOf(location));
+    }
+
+    @Override
+    public synchronized Set<String> getTables() {
+        return new HashSet<>(tableNames);
+    }
+
+    @Override
+    public synchronized Map<String, String> readTable(String table) {
+        Map<String, String> rows = new HashMap<>();
+        Integer tableId = tableIds.get(table);
+        if (tableId == null) {
+            return rows;
+        }
+        // A row moved to another page is live in both pages if only one of them was written back before a crash
+        List<String> duplicates = new ArrayList<>();
+        // Scan the pages of the table in file order, without pushing them all through the page cache
+        for (int pageNumber = 1; pageNumber < pageCount; pageNumber++) {
+            if (pageTables[pageNumber] != tableId) {
+                continue;
+            }
+            SlottedPage page = cache.get(pageNumber);
+            if (page == null) {
+                page = readPage(pageNumber);
+            }
+            for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                if (page.isLive(slot)) {
+                    String key = page.getKey(slot);
+                    if (rows.put(key, page.getValue(slot)) != null) {
+                        duplicates.add(key);
+                    }
+                }
+            }
+        }
+        // Only the index knows which copy is the row, looking up every row instead would read the index files
+        for (String key : duplicates) {
+            long location = locate(table, key);
+            if (location < 0) {
+                rows.remove(key);
+            } else {
+                rows.put(key, page(pageOf(location)).getValue(slotOf(location)));
+            }
         }
+        return rows;
     }
 
-    public String readFromDisk(String table, String key) {
-        return persistentData.getOrDefault(table, Collections.emptyMap()).get(key);
+    /**
+     * Pages not in the page cache are read in file order, runs of neighbouring pages with a single read, and are not
+     * added to the page cache, so a long scan does not evict the pages of point reads.
+     * <br/> The keys come from the rows changed since the last flush merged with the index files in key order, a key
+     * held by several of them has the location of the newest one, falling back to the older ones if it is stale.
+     */
+    @Override
+    public synchronized List<Map.Entry<String, String>> readRange(String table, String fromKey, String toKey,
+                                                                  int limit) {
+        Integer tableId = tableIds.get(table);
+        if (tableId == null) {
+            return Collections.emptyList();
+        }
+        MergedRows rows = mergedRows(table, fromKey, toKey);
+        List<Map.Entry<String, String>> result = new ArrayList<>();
+        while (result.size() < limit && rows.hasNext()) {
+            // Stale locations are skipped, so read further chunks until the limit is reached
+            List<Map.Entry<String, long[]>> locations = new ArrayList<>();
+            TreeMap<Integer, SlottedPage> pages = new TreeMap<>();
+            while (locations.size() < limit - result.size() && rows.hasNext()) {
+                Map.Entry<String, long[]> row = rows.next();
+                locations.add(row);
+                int pageNumber = pageOf(row.getValue()[0]);
+                if (pageNumber > 0 && pageNumber < pageCount) {
+                    pages.put(pageNumber, cache.get(pageNumber));
+                }
+            }
+            try {
+                prefetch(pages);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read a range of table " + table, e);
+            }
+            for (Map.Entry<String, long[]> row : locations) {
+                for (long location : row.getValue()) {
+                    // Older locations of a key were not prefetched, they are only read when the newest one is stale
+                    SlottedPage page = pages.get(pageOf(location));
+                    if (page == null ? holds(tableId, row.getKey(), location)
+                            : holds(page, tableId, row.getKey(), slotOf(location))) {
+                        page = page == null ? page(pageOf(location)) : page;
+                        result.add(Map.entry(row.getKey(), page.getValue(slotOf(location))));
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Rows of a key range from the changed rows and the index files, newest first
+    private MergedRows mergedRows(String table, String fromKey, String toKey) {
+        List<Iterator<Map.Entry<String, Long>>> sources = new ArrayList<>();
+        NavigableMap<String, Long> changed = changedRows.get(table);
+        if (changed != null) {
+            sources.add((toKey == null ? changed.tailMap(fromKey, true) : changed.subMap(fromKey, toKey))
+                    .entrySet().iterator());
+        }
+        for (KeyIndexFile file : indexFiles()) {
+            sources.add(file.iterator(table, fromKey));
+        }
+        return new MergedRows(sources, toKey);
+    }
+
+    /**
+     * This class merges sources of row locations sorted by key into one sequence, every key with the locations the
+     * sources hold for it, in the order of the sources.
+     */
+    private static final class MergedRows implements Iterator<Map.Entry<String, long[]>> {
+        private final List<Iterator<Map.Entry<String, Long>>> sources;
+        private final List<Map.Entry<String, Long>> heads = new ArrayList<>();
+        private final String toKey;
+
+        MergedRows(List<Iterator<Map.Entry<String, Long>>> sources, String toKey) {
+            this.sources = sources;
+            this.toKey = toKey;
+            for (Iterator<Map.Entry<String, Long>> source : sources) {
+                heads.add(source.hasNext() ? source.next() : null);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            String key = firstKey();
+            return key != null && (toKey == null || key.compareTo(toKey) < 0);
+        }
+
+        @Override
+        public Map.Entry<String, long[]> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String key = firstKey();
+            long[] locations = new long[0];
+            for (int i = 0; i < heads.size(); i++) {
+                Map.Entry<String, Long> head = heads.get(i);
+                if (head != null && head.getKey().equals(key)) {
+                    locations = Arrays.copyOf(locations, locations.length + 1);
+                    locations[locations.length - 1] = head.getValue();
+                    heads.set(i, sources.get(i).hasNext() ? sources.get(i).next() : null);
+                }
+            }
+            return Map.entry(key, locations);
+        }
+
+        private String firstKey() {
+            String first = null;
+            for (Map.Entry<String, Long> head : heads) {
+                if (head != null && (first == null || head.getKey().compareTo(first) < 0)) {
+                    first = head.getKey();
+                }
+            }
+            return first;
+        }
     }
 
-    private void loadFromDisk() {
+    // Read the pages mapped to null, each run of neighbouring pages with one read
+    private void prefetch(TreeMap<Integer, SlottedPage> pages) throws IOException {
+        Integer first = firstMissing(pages, 0);
+        while (first != null) {
+            int count = 1;
+            while (count < PREFETCH_PAGES && pages.containsKey(first + count) && pages.get(first + count) == null) {
+                count++;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(count * PAGE_SIZE);
+            readFully(buffer, (long) first * PAGE_SIZE);
+            for (int i = 0; i < count; i++) {
+                // Every page needs a buffer of its own, pages address the backing array from offset 0
+                byte[] bytes = Arrays.copyOfRange(buffer.array(), i * PAGE_SIZE, (i + 1) * PAGE_SIZE);
+                SlottedPage page = SlottedPage.wrap(first + i, ByteBuffer.wrap(bytes));
+                if (page == null) {
+                    throw new IOException("Checksum mismatch in page " + (first + i) + " of " + dataFile);
+                }
+                pages.put(first + i, page);
+            }
+            first = firstMissing(pages, first + count);
+        }
+    }
+
+    private static Integer firstMissing(TreeMap<Integer, SlottedPage> pages, int from) {
+        for (Map.Entry<Integer, SlottedPage> page : pages.tailMap(from, true).entrySet()) {
+            if (page.getValue() == null) {
+                return page.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of complete pages in the data file, pages allocated since the last flush are not counted
+     */
+    synchronized int getDataFilePageCount() throws IOException {
+        return (int) (channel.size() / PAGE_SIZE);
+    }
+
+    /**
+     * Copy the pages of the data file with a page LSN above the given LSN to a channel, each preceded by its page
+     * number. Pages are read from the file in runs, each run holding the lock so no page is copied half written, and
+     * commits keep changing pages in between. The header page is always copied.
+     *
+     * @param pageCount number of pages to look at, from the start of the file
+     * @return number of pages copied
+     */
+    int copyPages(int pageCount, long afterLsn, FileChannel target) throws IOException {
+        ByteBuffer pages = ByteBuffer.allocate(PREFETCH_PAGES * PAGE_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(PREFETCH_PAGES * (4 + PAGE_SIZE));
+        int copied = 0;
+        for (int first = 0; first < pageCount; first += PREFETCH_PAGES) {
+            int count = Math.min(PREFETCH_PAGES, pageCount - first);
+            pages.clear().limit(count * PAGE_SIZE);
+            synchronized (this) {
+                readFully(pages, (long) first * PAGE_SIZE);
+            }
+            output.clear();
+            for (int i = 0; i < count; i++) {
+                if (first + i == 0 || SlottedPage.readPageLsn(pages, i * PAGE_SIZE) > afterLsn) {
+                    output.putInt(first + i).put(pages.array(), i * PAGE_SIZE, PAGE_SIZE);
+                    copied++;
+                }
+            }
+            output.flip();
+            while (output.hasRemaining()) {
+                target.write(output);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * This class describes a bulk load whose pages were written to the data file, see {@link #stageBulkLoad}.
+     */
+    static final class BulkLoad {
+        private final long id;
+        private final int tableId;
+        private final int firstPage;
+        // -1 while the pages are written
+        private int pageCount = -1;
+        // Only known to the storage that wrote the pages
+        private long rowCount;
+        private long checksum;
+
+        private BulkLoad(long id, int tableId, int firstPage) {
+            this.id = id;
+            this.tableId = tableId;
+            this.firstPage = firstPage;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @return CRC32C of key length (uint16), key and value of every row, in load order
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Write the rows of a bulk load to new pages at the end of the data file, see {@link WriteAheadLog#bulkLoad}.
+     * <br/> The pages bypass the page cache and are written in runs, each with one positional write. The header lists
+     * the load before its first page is written, and again with its page count once all pages are, forced together
+     * with them. Lookups, scans and opening the data file ignore the pages of a pending load until
+     * {@link #attachBulkLoad} makes them part of the table. The pages of a load cut short by a crash are cut off when
+     * the data file is opened, the ones of a load that is never attached are dropped by {@link #abandonBulkLoads()}.
+     * <br/> The storage stays locked while the pages are written.
+     *
+     * @param loadId id of the load, never used again for another load of this data file
+     * @param lsn    LSN the rows are written with
+     * @return the load, with the number of rows written and their checksum
+     * @throws IllegalStateException if the table already holds rows
+     */
+    synchronized BulkLoad stageBulkLoad(long loadId, String table, Iterator<Map.Entry<String, String>> rows,
+                                        long lsn) {
+        if (hasRows(table)) {
+            throw new IllegalStateException("Table " + table + " already holds rows");
+        }
+        BulkLoad load = new BulkLoad(loadId, tableId(table), pageCount);
+        pendingLoads.put(loadId, load);
         try {
-            if (Files.exists(Paths.get(dataFile))) {
-                List<String> lines = Files.readAllLines(Paths.get(dataFile));
-                for (String line : lines) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length == 3) {
-                        persistentData.computeIfAbsent(parts[0], k -> new HashMap<>()).put(parts[1], parts[2]);
+            // No page of the load may reach the disk before the header lists it, or opening the file would take it in
+            writeHeader();
+            channel.force(false);
+            CRC32C checksum = new CRC32C();
+            ByteBuffer pages = ByteBuffer.allocate(LOAD_WRITE_PAGES * PAGE_SIZE);
+            SlottedPage page = null;
+            while (rows.hasNext()) {
+                Map.Entry<String, String> row = rows.next();
+                byte[] key = row.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = row.getValue().getBytes(StandardCharsets.UTF_8);
+                if (key.length + value.length > SlottedPage.maxCellPayload(PAGE_SIZE)) {
+                    throw new IllegalArgumentException("Row " + table + "." + row.getKey() + " does not fit into a page");
+                }
+                int slot = page == null ? -1 : page.append(key, value, lsn);
+                if (slot < 0) {
+                    if (page != null) {
+                        addLoadPage(page, pages);
                     }
+                    page = SlottedPage.create(pageCount, PAGE_SIZE, load.tableId);
+                    slot = page.append(key, value, lsn);
                 }
+                page.checksumRow(slot, checksum);
+                load.rowCount++;
             }
+            if (page != null) {
+                addLoadPage(page, pages);
+            }
+            writeLoadPages(pages);
+            load.pageCount = pageCount - load.firstPage;
+            load.checksum = checksum.getValue();
+            writeHeader();
+            channel.force(false);
+            System.out.println("  [DISK] Wrote " + load.rowCount + " row(s) of bulk load " + loadId + " to "
+                    + load.pageCount + " page(s) of " + dataFile.getFileName());
+            return load;
+        } catch (IOException | RuntimeException e) {
+            try {
+                abandon(load);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof IOException) {
+                throw new UncheckedIOException("Failed to write bulk load " + loadId + " to " + dataFile,
+                        (IOException) e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    // Give the page the next page number, it belongs to no table until its load is attached
+    private void addLoadPage(SlottedPage page, ByteBuffer pages) throws IOException {
+        int pageNumber = pageCount++;
+        if (pageNumber == pageTables.length) {
+            pageTables = Arrays.copyOf(pageTables, pageTables.length * 2);
+        }
+        pageTables[pageNumber] = 0;
+        pages.put(page.seal());
+        if (!pages.hasRemaining()) {
+            writeLoadPages(pages);
+        }
+    }
+
+    // Write the pages collected in the buffer, they are the last pages of the data file
+    private void writeLoadPages(ByteBuffer pages) throws IOException {
+        pages.flip();
+        long position = (long) (pageCount - pages.limit() / PAGE_SIZE) * PAGE_SIZE;
+        while (pages.hasRemaining()) {
+            position += channel.write(pages, position);
+        }
+        bytesWritten += pages.limit();
+        pages.clear();
+    }
+
+    /**
+     * Make the pages of a pending bulk load part of its table, once the record committing the load is durable.
+     * <br/> The pages are read back in runs and checked against the number of rows and the checksum of the record. The
+     * locations of their rows are sorted by key in chunks, each chunk written as a delta of the key index after a flush,
+     * so the deltas never hide a row changed before. A key loaded more than once keeps its last row. The header stops
+     * listing the load once its deltas are durable, a crash before leaves the load pending for the WAL replay.
+     *
+     * @return false if the load is not pending, it was attached before
+     * @throws IllegalStateException if the pages do not hold the rows of the record
+     */
+    synchronized boolean attachBulkLoad(long loadId, long rowCount, long checksum) {
+        BulkLoad load = pendingLoads.get(loadId);
+        if (load == null) {
+            return false;
+        }
+        try {
+            flush();
+            String table = tableNames.get(load.tableId - 1);
+            CRC32C crc = new CRC32C();
+            long rows = 0;
+            List<Map.Entry<String, Long>> chunk = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.allocate(LOAD_WRITE_PAGES * PAGE_SIZE);
+            int endPage = load.firstPage + load.pageCount;
+            for (int first = load.firstPage; first < endPage; first += LOAD_WRITE_PAGES) {
+                int count = Math.min(LOAD_WRITE_PAGES, endPage - first);
+                buffer.clear().limit(count * PAGE_SIZE);
+                readFully(buffer, (long) first * PAGE_SIZE);
+                for (int i = 0; i < count; i++) {
+                    byte[] bytes = Arrays.copyOfRange(buffer.array(), i * PAGE_SIZE, (i + 1) * PAGE_SIZE);
+                    SlottedPage page = SlottedPage.wrap(first + i, ByteBuffer.wrap(bytes));
+                    if (page == null || page.getTableId() != load.tableId) {
+                        throw new IOException("Page " + (first + i) + " of bulk load " + loadId + " is damaged");
+                    }
+                    for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                        page.checksumRow(slot, crc);
+                        chunk.add(Map.entry(page.getKey(slot), location(first + i, slot)));
+                        rows++;
+                    }
+                }
+                if (chunk.size() >= LOAD_INDEX_ROWS) {
+                    writeLoadIndex(table, chunk);
+                    chunk.clear();
+                }
+            }
+            if (rows != rowCount || crc.getValue() != checksum) {
+                throw new IllegalStateException("Bulk load " + loadId + " holds " + rows + " row(s) with checksum "
+                        + Long.toHexString(crc.getValue()) + ", its log record names " + rowCount + " with "
+                        + Long.toHexString(checksum));
+            }
+            // The newest index file names the table of every page, the deltas of the earlier chunks still left the
+            // pages of the load to no table
+            Arrays.fill(pageTables, load.firstPage, endPage, load.tableId);
+            if (!chunk.isEmpty()) {
+                writeLoadIndex(table, chunk);
+            }
+            pendingLoads.remove(loadId);
+            writeHeader();
+            channel.force(false);
+            System.out.println("  [DISK] Attached bulk load " + loadId + " with " + rows + " row(s) to table " + table);
+            return true;
         } catch (IOException e) {
-            System.err.println("Error loading data from disk: " + e.getMessage());
+            Arrays.fill(pageTables, load.firstPage, load.firstPage + load.pageCount, 0);
+            throw new UncheckedIOException("Failed to attach bulk load " + loadId + " of " + dataFile, e);
         }
     }
 
-    private void saveToDisk() {
+    // Write the locations of a chunk of loaded rows to a new delta of the key index, or to the base if there is none
+    private void writeLoadIndex(String table, List<Map.Entry<String, Long>> chunk) throws IOException {
+        // Stable, so the rows of a key stay in load order, and linear for rows loaded in key order
+        chunk.sort(Map.Entry.comparingByKey());
+        List<Map.Entry<String, Long>> rows = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i + 1 == chunk.size() || !chunk.get(i).getKey().equals(chunk.get(i + 1).getKey())) {
+                rows.add(chunk.get(i));
+            }
+        }
+        boolean base = baseIndex == null;
+        long generation = base || deltaIndexes.isEmpty() ? 1 : deltaIndexes.get(0).getGeneration() + 1;
+        Path path = base ? indexFile : Paths.get(dataFile + DELTA_SUFFIX + generation);
+        try (KeyIndexFile.Writer writer = new KeyIndexFile.Writer(path)) {
+            writer.writeTable(table, -1, rows.size(), rows.iterator());
+            writer.finish(generation, base ? 0 : baseIndex.getGeneration(), pageCount, pageTables);
+        }
+        bytesWritten += Files.size(path);
+        if (base) {
+            baseIndex = KeyIndexFile.open(path);
+        } else {
+            deltaIndexes.add(0, KeyIndexFile.open(path));
+        }
+    }
+
+    /**
+     * Drop the pages of a pending bulk load whose record could not be logged.
+     */
+    synchronized void abandonBulkLoad(long loadId) {
+        BulkLoad load = pendingLoads.get(loadId);
         try {
-            List<String> lines = new ArrayList<>();
-            for (Map.Entry<String, Map<String, String>> tableEntry : persistentData.entrySet()) {
-                for (Map.Entry<String, String> row : tableEntry.getValue().entrySet()) {
-                    lines.add(tableEntry.getKey() + "|" + row.getKey() + "|" + row.getValue());
+            if (load != null) {
+                abandon(load);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to drop bulk load " + loadId + " of " + dataFile, e);
+        }
+    }
+
+    /**
+     * Drop the pages of every pending bulk load, called once recovery attached the loads committed in the WAL.
+     *
+     * @return number of loads dropped
+     */
+    synchronized int abandonBulkLoads() {
+        int abandoned = 0;
+        for (BulkLoad load : new ArrayList<>(pendingLoads.values())) {
+            abandonBulkLoad(load.id);
+            abandoned++;
+        }
+        return abandoned;
+    }
+
+    // Cut the pages of a load off the data file if they end it, or replace them with empty pages of the table
+    private void abandon(BulkLoad load) throws IOException {
+        int endPage = load.pageCount < 0 ? Integer.MAX_VALUE : load.firstPage + load.pageCount;
+        if (endPage >= pageCount) {
+            if (load.firstPage < pageCount) {
+                channel.truncate((long) load.firstPage * PAGE_SIZE);
+                pageCount = load.firstPage;
+            }
+        } else {
+            ByteBuffer pages = ByteBuffer.allocate(LOAD_WRITE_PAGES * PAGE_SIZE);
+            for (int first = load.firstPage; first < endPage; first += LOAD_WRITE_PAGES) {
+                int count = Math.min(LOAD_WRITE_PAGES, endPage - first);
+                for (int i = 0; i < count; i++) {
+                    pages.put(SlottedPage.create(first + i, PAGE_SIZE, load.tableId).seal());
+                    pageTables[first + i] = load.tableId;
                 }
+                pages.flip();
+                long position = (long) first * PAGE_SIZE;
+                while (pages.hasRemaining()) {
+                    position += channel.write(pages, position);
+                }
+                bytesWritten += pages.limit();
+                pages.clear();
             }
-            Files.write(Paths.get(dataFile), lines);
+        }
+        pendingLoads.remove(load.id);
+        writeHeader();
+        channel.force(false);
+        System.out.println("  [DISK] Dropped bulk load " + load.id + " of " + dataFile.getFileName());
+    }
+
+    // True if the table holds a row, every row is either changed since the last flush or in an index file
+    private boolean hasRows(String table) {
+        NavigableMap<String, Long> changed = changedRows.get(table);
+        if (changed != null && !changed.isEmpty()) {
+            return true;
+        }
+        for (KeyIndexFile file : indexFiles()) {
+            if (file.getRowCount(table) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPending(int pageNumber) {
+        for (BulkLoad load : pendingLoads.values()) {
+            if (pageNumber >= load.firstPage && pageNumber < load.firstPage + load.pageCount) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write all changed pages to the data file and force them to disk, then persist the locations of the rows written
+     * or moved since the last flush to the index files.
+     * Pages are written in file order, so neighbouring pages end up in sequential writes.
+     */
+    @Override
+    public synchronized void flush() {
+        try {
+            List<SlottedPage> dirtyPages = new ArrayList<>();
+            for (SlottedPage page : cache.values()) {
+                if (page.isDirty()) {
+                    dirtyPages.add(page);
+                }
+            }
+            dirtyPages.sort(Comparator.comparingInt(SlottedPage::getPageNumber));
+            for (SlottedPage page : dirtyPages) {
+                writePage(page);
+            }
+            if (headerDirty) {
+                writeHeader();
+            }
+            channel.force(false);
+            if (WALTrace.ENABLED && !dirtyPages.isEmpty()) {
+                System.out.println("  [DISK] Flushed " + dirtyPages.size() + " page(s) to " + dataFile.getFileName());
+            }
+            // The index files may only name locations that are on disk
+            writeKeyIndex();
         } catch (IOException e) {
-            System.err.println("Error saving data to disk: " + e.getMessage());
+            throw new UncheckedIOException("Failed to flush data file " + dataFile, e);
         }
     }
 
-    public void displayContents() {
-        System.out.println("\n=== DISK STORAGE CONTENTS ===");
-        if (persistentData.isEmpty()) {
-            System.out.println("(No data on disk)");
+    private void writeKeyIndex() throws IOException {
+        long changed = 0;
+        for (NavigableMap<String, Long> rows : changedRows.values()) {
+            changed += rows.size();
+        }
+        if (changed == 0) {
+            return;
+        }
+        long deltaRows = 0;
+        for (KeyIndexFile delta : deltaIndexes) {
+            deltaRows += delta.getRowCount();
+        }
+        if (baseIndex == null || deltaRows + changed > baseIndex.getRowCount() * DELTA_MERGE_RATIO) {
+            long generation = baseIndex == null ? 1 : baseIndex.getGeneration() + 1;
+            writeKeyIndex(indexFile, generation, 0, indexFiles());
+            // Deltas left behind by a crash right here name the previous generation and are ignored
+            for (KeyIndexFile delta : deltaIndexes) {
+                Files.deleteIfExists(delta.getPath());
+            }
+            deltaIndexes.clear();
+            baseIndex = KeyIndexFile.open(indexFile);
         } else {
-            for (Map.Entry<String, Map<String, String>> tableEntry : persistentData.entrySet()) {
-                System.out.println("Table: " + tableEntry.getKey());
-                for (Map.Entry<String, String> row : tableEntry.getValue().entrySet()) {
-                    System.out.println("  " + row.getKey() + " = " + row.getValue());
+            // Like the runs of a log-structured merge tree, a new delta absorbs the newest deltas that are not much
+            // larger than it, so a row is rewritten a logarithmic number of times until the next base
+            List<KeyIndexFile> merged = new ArrayList<>();
+            long rows = changed;
+            while (merged.size() < deltaIndexes.size() && deltaIndexes.get(merged.size()).getRowCount() <= rows * 2) {
+                rows += deltaIndexes.get(merged.size()).getRowCount();
+                merged.add(deltaIndexes.get(merged.size()));
+            }
+            long sequence = deltaIndexes.isEmpty() ? 1 : deltaIndexes.get(0).getGeneration() + 1;
+            Path path = Paths.get(dataFile + DELTA_SUFFIX + sequence);
+            writeKeyIndex(path, sequence, baseIndex.getGeneration(), merged);
+            // Merged deltas left behind by a crash right here are older than the new delta, which wins over them
+            for (KeyIndexFile delta : merged) {
+                Files.delete(delta.getPath());
+            }
+            deltaIndexes.subList(0, merged.size()).clear();
+            deltaIndexes.add(0, KeyIndexFile.open(path));
+        }
+        changedRows.clear();
+    }
+
+    // Write the changed rows merged with the given index files, newest first, to a new index file
+    private void writeKeyIndex(Path path, long generation, long baseGeneration, List<KeyIndexFile> merged)
+            throws IOException {
+        try (KeyIndexFile.Writer writer = new KeyIndexFile.Writer(path)) {
+            for (String table : tableNames) {
+                NavigableMap<String, Long> changed = changedRows.getOrDefault(table, Collections.emptyNavigableMap());
+                long expectedRows = changed.size();
+                for (KeyIndexFile file : merged) {
+                    expectedRows += file.getRowCount(table);
                 }
+                if (expectedRows == 0) {
+                    continue;
+                }
+                List<Iterator<Map.Entry<String, Long>>> sources = new ArrayList<>();
+                sources.add(changed.entrySet().iterator());
+                for (KeyIndexFile file : merged) {
+                    sources.add(file.iterator(table, ""));
+                }
+                MergedRows rows = new MergedRows(sources, null);
+                Integer insertPage = insertPages.get(tableIds.get(table));
+                writer.writeTable(table, insertPage == null ? -1 : insertPage, expectedRows, new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return rows.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Long> next() {
+                        Map.Entry<String, long[]> row = rows.next();
+                        return Map.entry(row.getKey(), row.getValue()[0]);
+                    }
+                });
             }
+            writer.finish(generation, baseGeneration, pageCount, pageTables);
         }
-        System.out.println();
+        bytesWritten += Files.size(path);
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing data file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return size of the data file in bytes, including pages not yet written back
+     */
+    @Override
+    public synchronized long getFileSize() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private long insert(int tableId, byte[] key, byte[] value, long lsn) {
+        Integer insertPage = insertPages.get(tableId);
+        if (insertPage != null) {
+            SlottedPage page = page(insertPage);
+            int slot = page.insert(key, value, lsn);
+            if (slot >= 0) {
+                return location(insertPage, slot);
+            }
+        }
+        SlottedPage page = allocatePage(tableId);
+        insertPages.put(tableId, page.getPageNumber());
+        return location(page.getPageNumber(), page.insert(key, value, lsn));
+    }
+
+    private SlottedPage allocatePage(int tableId) {
+        int pageNumber = pageCount++;
+        if (pageNumber == pageTables.length) {
+            pageTables = Arrays.copyOf(pageTables, pageTables.length * 2);
+        }
+        pageTables[pageNumber] = tableId;
+        SlottedPage page = SlottedPage.create(pageNumber, PAGE_SIZE, tableId);
+        cache.put(pageNumber, page);
+        return page;
+    }
+
+    private int tableId(String table) {
+        Integer tableId = tableIds.get(table);
+        if (tableId != null) {
+            return tableId;
+        }
+        tableNames.add(table);
+        tableIds.put(table, tableNames.size());
+        headerDirty = true;
+        return tableNames.size();
+    }
+
+    // Location of the row, -1 if the table holds no such row
+    private long locate(String table, String key) {
+        NavigableMap<String, Long> rows = changedRows.get(table);
+        Long location = rows == null ? null : rows.get(key);
+        if (location != null) {
+            return location;
+        }
+        Integer tableId = tableIds.get(table);
+        if (tableId == null) {
+            return -1;
+        }
+        for (KeyIndexFile file : deltaIndexes) {
+            long indexed = file.find(table, key);
+            if (indexed >= 0 && holds(tableId, key, indexed)) {
+                return indexed;
+            }
+        }
+        long indexed = baseIndex == null ? -1 : baseIndex.find(table, key);
+        return indexed >= 0 && holds(tableId, key, indexed) ? indexed : -1;
+    }
+
+    // The index files newest first, the deltas and then the base
+    private List<KeyIndexFile> indexFiles() {
+        List<KeyIndexFile> files = new ArrayList<>(deltaIndexes);
+        if (baseIndex != null) {
+            files.add(baseIndex);
+        }
+        return files;
+    }
+
+    // True if the location read from an index file still holds the row
+    private boolean holds(int tableId, String key, long location) {
+        int pageNumber = pageOf(location);
+        return pageNumber > 0 && pageNumber < pageCount && pageTables[pageNumber] == tableId
+                && holds(page(pageNumber), tableId, key, slotOf(location));
+    }
+
+    private static boolean holds(SlottedPage page, int tableId, String key, int slot) {
+        return page.getTableId() == tableId && slot < page.getSlotCount() && page.isLive(slot)
+                && page.getKey(slot).equals(key);
+    }
+
+    private SlottedPage page(int pageNumber) {
+        SlottedPage page = cache.get(pageNumber);
+        if (page == null) {
+            page = readPage(pageNumber);
+            cache.put(pageNumber, page);
+        }
+        return page;
     }
-}
 
+    private SlottedPage readPage(int pageNumber) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+            readFully(buffer, (long) pageNumber * PAGE_SIZE);
+            SlottedPage page = SlottedPage.wrap(pageNumber, buffer);
+            if (page == null) {
+                throw new IOException("Checksum mismatch in page " + pageNumber + " of " + dataFile);
+            }
+            return page;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read page " + pageNumber, e);
+        }
+    }
+
+    private void writePage(SlottedPage page) throws IOException {
+        // The header must name the table of every page on disk
+        if (headerDirty) {
+            writeHeader();
+        }
+        ByteBuffer buffer = page.seal();
+        long position = (long) page.getPageNumber() * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        bytesWritten += PAGE_SIZE;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + dataFile + " at " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void loadFromDisk() throws IOException {
+        if (channel.size() < PAGE_SIZE) {
+            deleteKeyIndex(dataFile);
+            pageCount = 1;
+            writeHeader();
+            channel.force(true);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        readFully(header, 0);
+        int magic = header.getInt();
+        int version = header.getInt();
+        if (magic != MAGIC || version < 1 || version > VERSION || header.getInt() != PAGE_SIZE) {
+            throw new IOException("Not a page file: " + dataFile);
+        }
+        int tableCount = header.getInt();
+        for (int i = 0; i < tableCount; i++) {
+            byte[] name = new byte[header.getChar()];
+            header.get(name);
+            String table = new String(name, StandardCharsets.UTF_8);
+            tableNames.add(table);
+            tableIds.put(table, tableNames.size());
+        }
+        int loadCount = version >= 2 ? header.getInt() : 0;
+        for (int i = 0; i < loadCount; i++) {
+            BulkLoad load = new BulkLoad(header.getLong(), header.getInt(), header.getInt());
+            load.pageCount = header.getInt();
+            pendingLoads.put(load.id, load);
+        }
+
+        // A trailing partial page was never completely written, it holds no rows
+        pageCount = (int) (channel.size() / PAGE_SIZE);
+        pageTables = Arrays.copyOf(pageTables, Math.max(pageTables.length, pageCount));
+        for (BulkLoad load : new ArrayList<>(pendingLoads.values())) {
+            // Writing the pages was cut short, so the load was never logged
+            if (load.pageCount < 0 || load.firstPage + load.pageCount > pageCount) {
+                abandon(load);
+            }
+        }
+        int indexedPages = openKeyIndex();
+        for (BulkLoad load : pendingLoads.values()) {
+            Arrays.fill(pageTables, load.firstPage, load.firstPage + load.pageCount, 0);
+        }
+        // Only the pages added since the index files were written are read
+        for (int pageNumber = indexedPages; pageNumber < pageCount; pageNumber++) {
+            if (isPending(pageNumber)) {
+                continue;
+            }
+            SlottedPage page = readPage(pageNumber);
+            int tableId = page.getTableId();
+            pageTables[pageNumber] = tableId;
+            String table = tableNames.get(tableId - 1);
+            Map<String, Long> rows = changedRows.computeIfAbsent(table, k -> new TreeMap<>());
+            for (int slot = 0; slot < page.getSlotCount(); slot++) {
+                if (page.isLive(slot)) {
+                    // A row that moved to another page is live in both pages if only one of them was written back
+                    // before a crash, the copy with the later LSN wins
+                    String key = page.getKey(slot);
+                    long other = locate(table, key);
+                    if (other < 0 || readPage(pageOf(other)).getLsn(slotOf(other)) <= page.getLsn(slot)) {
+                        rows.put(key, location(pageNumber, slot));
+                    }
+                }
+            }
+            insertPages.put(tableId, pageNumber);
+        }
+    }
+
+    /**
+     * Map the index files of the data file and take the table of every page and the insert pages from them.
+     * Invalid index files, or ones naming pages the data file does not hold, are deleted.
+     *
+     * @return number of pages the index files cover, 1 if there are none
+     */
+    private int openKeyIndex() {
+        try {
+            if (!Files.exists(indexFile)) {
+                deleteKeyIndex(dataFile);
+                return 1;
+            }
+            KeyIndexFile base = KeyIndexFile.open(indexFile);
+            List<KeyIndexFile> deltas = new ArrayList<>();
+            for (Path path : keyIndexFiles(dataFile)) {
+                if (!path.equals(indexFile)) {
+                    KeyIndexFile delta = KeyIndexFile.open(path);
+                    if (delta.getBaseGeneration() == base.getGeneration()) {
+                        deltas.add(delta);
+                    } else {
+                        Files.delete(path);
+                    }
+                }
+            }
+            deltas.sort((a, b) -> Long.compare(b.getGeneration(), a.getGeneration()));
+            baseIndex = base;
+            deltaIndexes.addAll(deltas);
+            List<KeyIndexFile> files = indexFiles();
+            int indexedPages = files.get(0).getPageCount();
+            for (KeyIndexFile file : files) {
+                if (file.getPageCount() > indexedPages || indexedPages > pageCount) {
+                    throw new IOException(file.getPath().getFileName() + " covers " + file.getPageCount()
+                            + " pages, the data file holds " + pageCount);
+                }
+            }
+            System.arraycopy(files.get(0).getPageTables(), 1, pageTables, 1, indexedPages - 1);
+            for (String table : tableNames) {
+                // The newest file holding rows of a table knows its insert page
+                for (KeyIndexFile file : files) {
+                    int insertPage = file.getInsertPage(table);
+                    if (insertPage > 0) {
+                        insertPages.put(tableIds.get(table), insertPage);
+                        break;
+                    }
+                }
+            }
+            return indexedPages;
+        } catch (IOException e) {
+            System.err.println("Ignoring the key index of " + dataFile + ": " + e.getMessage());
+            baseIndex = null;
+            deltaIndexes.clear();
+            deleteKeyIndex(dataFile);
+            return 1;
+        }
+    }
+
+    /**
+     * @return the index files of a data file, the base followed by the deltas in no particular order
+     */
+    static List<Path> keyIndexFiles(Path dataFile) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path base = Paths.get(dataFile + INDEX_SUFFIX);
+        if (Files.exists(base)) {
+            files.add(base);
+        }
+        Path directory = dataFile.toAbsolutePath().getParent();
+        String prefix = dataFile.getFileName() + DELTA_SUFFIX;
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit);
+            }).forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Delete the index files of a data file, it is read page by page when it is opened next.
+     */
+    static void deleteKeyIndex(Path dataFile) {
+        try {
+            for (Path file : keyIndexFiles(dataFile)) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to delete the key index of " + dataFile, e);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(PAGE_SIZE).putInt(tableNames.size());
+        for (String table : tableNames) {
+            byte[] name = table.getBytes(StandardCharsets.UTF_8);
+            if (header.remaining() < 2 + name.length) {
+                throw new IOException("Too many tables for the header page of " + dataFile);
+            }
+            header.putChar((char) name.length).put(name);
+        }
+        if (header.remaining() < 4 + pendingLoads.size() * 20) {
+            throw new IOException("Too many pending bulk loads for the header page of " + dataFile);
+        }
+        header.putInt(pendingLoads.size());
+        for (BulkLoad load : pendingLoads.values()) {
+            header.putLong(load.id).putInt(load.tableId).putInt(load.firstPage).putInt(load.pageCount);
+        }
+        header.clear();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        bytesWritten += PAGE_SIZE;
+        headerDirty = false;
+    }
+
+    // A row location packs the page number into the upper and the slot into the lower bits
+    private static long location(int pageNumber, int slot) {
+        return ((long) pageNumber << 16) | slot;
+    }
+
+    private static int pageOf(long location) {
+        return (int) (location >>> 16);
+    }
+
+    private static int slotOf(long location) {
+        return (int) (location & 0xFFFF);
+    }
+}
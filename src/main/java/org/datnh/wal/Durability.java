@@ -0,0 +1,19 @@
+package org.datnh.wal;
+
+/**
+ * How long a committing transaction waits for its log records to reach the disk.
+ */
+enum Durability {
+    /**
+     * The commit waits until its records are forced to disk. Its changes only become visible to other transactions
+     * once they are durable.
+     */
+    SYNC,
+
+    /**
+     * The commit returns once its records are in the log buffer and its changes become visible right away. The records
+     * are forced by the background WAL writer within the async commit window, so a crash can lose the transactions
+     * committed during the last window.
+     */
+    ASYNC
+}
@@ -0,0 +1,144 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class batches concurrent commits into one write and one fsync (group commit).
+ * <br/> Every committing thread copies its transaction log batch into the log buffer of its stream without any lock.
+ * The first thread that then finds its batch not yet durable and no flush in progress becomes the leader: it drains
+ * the log buffer to the segments in one go and issues one force(). All committers whose batches were drained by that
+ * flush are then woken up together.
+ * <br/> Every stream of the WAL has its own group committer, so the groups of different streams are forced in
+ * parallel.
+ */
+class GroupCommitter {
+    private final WriteAheadLog wal;
+    private final LogStream stream;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    // Null when metrics are disabled
+    private final WALMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a group has been forced to disk
+    private final Condition flushed = lock.newCondition();
+    // Signalled when a waiting leader has collected enough batches
+    private final Condition batchFull = lock.newCondition();
+
+    // Batches appended to the log buffer that wait for the next flush
+    private int pending = 0;
+    private boolean leaderActive = false;
+    private long durableLsn = 0;
+    private IOException failure;
+
+    // Statistics of flushed groups
+    private long groupCount = 0;
+    private long batchCount = 0;
+
+    public GroupCommitter(WriteAheadLog wal, LogStream stream, WALConfig config) {
+        this.wal = wal;
+        this.stream = stream;
+        this.maxBatchSize = config.getMaxBatchSize();
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(config.getMaxWaitMicros());
+        this.metrics = wal.getMetricsCollector();
+    }
+
+    /**
+     * Block until the records of the stream up to the given LSN are durable on disk, joining the next group or leading
+     * it. The records of the committing transaction must already be in the log buffer of the stream.
+     */
+    public void awaitDurable(long lastLsn) {
+        lock.lock();
+        try {
+            checkFailure();
+            if (durableLsn >= lastLsn) {
+                return;
+            }
+            pending++;
+            if (leaderActive && pending >= maxBatchSize) {
+                batchFull.signal();
+            }
+
+            while (durableLsn < lastLsn) {
+                checkFailure();
+                if (!leaderActive) {
+                    lead(lastLsn);
+                } else {
+                    flushed.awaitUninterruptibly();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called while holding the lock. The lock is released during the disk I/O.
+    private void lead(long lsn) {
+        leaderActive = true;
+        try {
+            waitForFollowers();
+            int group = pending;
+            pending = 0;
+
+            lock.unlock();
+            long flushedLsn = 0;
+            IOException error = null;
+            try {
+                flushedLsn = wal.flushLog(lsn, stream);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.lock();
+            }
+
+            if (error != null) {
+                failure = error;
+                return;
+            }
+            durableLsn = Math.max(durableLsn, flushedLsn);
+            groupCount++;
+            batchCount += group;
+            if (metrics != null) {
+                metrics.groupCommitted(group);
+            }
+            if (WALTrace.ENABLED) {
+                System.out.println("  [WAL] GROUP COMMIT - " + group + " transaction(s) written with one fsync");
+            }
+        } finally {
+            leaderActive = false;
+            flushed.signalAll();
+        }
+    }
+
+    private void waitForFollowers() {
+        long remaining = maxWaitNanos;
+        try {
+            while (remaining > 0 && pending < maxBatchSize) {
+                remaining = batchFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Failed to write WAL entry", failure);
+        }
+    }
+
+    /**
+     * @return average number of transactions written per fsync
+     */
+    public double getAverageGroupSize() {
+        lock.lock();
+        try {
+            return groupCount == 0 ? 0 : (double) batchCount / groupCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
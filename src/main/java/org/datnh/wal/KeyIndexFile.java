@@ -0,0 +1,442 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * This class represents an immutable file mapping the keys of a {@link DiskStorage} to the locations of their rows,
+ * so opening the data file does not read every page to rebuild the index.
+ * <br/> The keys of every table are stored in key order in fixed-size blocks, followed by a bloom filter of the table.
+ * The file is memory-mapped when opened and only the footer is read, a lookup tests the bloom filter and binary
+ * searches the first keys of the blocks, so only the parts of the file it touches are paged in.
+ * <br/> A data file has a base index file and delta files holding the rows written since the base, see
+ * {@link DiskStorage}. A delta names the generation of the base it belongs to.
+ * <pre>
+ * block:  row count (uint16) | per row: key length (uint16) | key (UTF-8) | location (int64)
+ * footer: magic (4 bytes "KIDX") | version (int32) | generation (int64) | base generation (int64)
+ *         | page count (int32) | table count (int32)
+ *         | per table: name length (uint16) | name (UTF-8) | row count (int64) | insert page (int32)
+ *         | first block offset (int64) | block count (int32) | bloom offset (int64) | bloom size (int32)
+ *         | per page after the header page: table id (int32)
+ * trailer: footer offset (int64) | footer length (int32) | CRC32C of the footer (int32) | magic (4 bytes "KIDX")
+ * </pre>
+ */
+class KeyIndexFile {
+    private static final int MAGIC = 0x4B494458; // "KIDX"
+    private static final int VERSION = 1;
+    private static final int TRAILER_SIZE = 20;
+    // Large enough for a row of the largest key a data page holds
+    static final int BLOCK_SIZE = 16384;
+    // Blocks per memory mapping, a single mapping is limited to 2GB
+    private static final int BLOCKS_PER_MAPPING = 1 << 16;
+
+    private final Path path;
+    private final long generation;
+    private final long baseGeneration;
+    private final int pageCount;
+    private final int[] pageTables;
+    private final Map<String, Table> tables;
+
+    private KeyIndexFile(Path path, long generation, long baseGeneration, int pageCount, int[] pageTables,
+                         Map<String, Table> tables) {
+        this.path = path;
+        this.generation = generation;
+        this.baseGeneration = baseGeneration;
+        this.pageCount = pageCount;
+        this.pageTables = pageTables;
+        this.tables = tables;
+    }
+
+    // The rows of one table in the file
+    private static final class Table {
+        private final long rowCount;
+        private final int insertPage;
+        private final int blockCount;
+        private final MappedByteBuffer[] mappings;
+        private final BloomFilter bloomFilter;
+
+        Table(long rowCount, int insertPage, int blockCount, MappedByteBuffer[] mappings, BloomFilter bloomFilter) {
+            this.rowCount = rowCount;
+            this.insertPage = insertPage;
+            this.blockCount = blockCount;
+            this.mappings = mappings;
+            this.bloomFilter = bloomFilter;
+        }
+
+        ByteBuffer block(int block) {
+            int offset = (block % BLOCKS_PER_MAPPING) * BLOCK_SIZE;
+            return mappings[block / BLOCKS_PER_MAPPING].slice(offset, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * This class writes an index file table by table, it only appears under its final name once it is complete.
+     */
+    static final class Writer implements AutoCloseable {
+        private final Path path;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final List<byte[]> tableEntries = new ArrayList<>();
+        private long position;
+
+        Writer(Path path) throws IOException {
+            this.path = path;
+            this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Write the rows of a table, in key order.
+         *
+         * @param expectedRows most rows the iterator returns, used to size the bloom filter
+         * @param insertPage   page new rows of the table are added to, -1 if none
+         */
+        void writeTable(String name, int insertPage, long expectedRows, Iterator<Map.Entry<String, Long>> rows)
+                throws IOException {
+            BloomFilter bloomFilter = BloomFilter.create(expectedRows);
+            long firstBlock = position;
+            int blockCount = 0;
+            long rowCount = 0;
+            block.clear().putChar((char) 0);
+            int blockRows = 0;
+            while (rows.hasNext()) {
+                Map.Entry<String, Long> row = rows.next();
+                byte[] key = row.getKey().getBytes(StandardCharsets.UTF_8);
+                if (block.remaining() < 2 + key.length + 8) {
+                    writeBlock(blockRows);
+                    blockCount++;
+                    blockRows = 0;
+                }
+                block.putChar((char) key.length).put(key).putLong(row.getValue());
+                blockRows++;
+                bloomFilter.add(row.getKey());
+                rowCount++;
+            }
+            if (blockRows > 0) {
+                writeBlock(blockRows);
+                blockCount++;
+            }
+            long bloomOffset = position;
+            ByteBuffer bloom = ByteBuffer.allocate(bloomFilter.getSerializedSize());
+            bloomFilter.write(bloom);
+            write(bloom.flip());
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(2 + nameBytes.length + 36);
+            entry.putChar((char) nameBytes.length).put(nameBytes).putLong(rowCount).putInt(insertPage)
+                    .putLong(firstBlock).putInt(blockCount).putLong(bloomOffset).putInt(bloom.limit());
+            tableEntries.add(entry.array());
+        }
+
+        /**
+         * Write the footer, force the file to disk and move it to its final name.
+         *
+         * @param pageTables table id of every page, the entry of the header page is not used
+         */
+        void finish(long generation, long baseGeneration, int pageCount, int[] pageTables) throws IOException {
+            int tablesSize = 0;
+            for (byte[] entry : tableEntries) {
+                tablesSize += entry.length;
+            }
+            ByteBuffer footer = ByteBuffer.allocate(32 + tablesSize + 4 * Math.max(0, pageCount - 1));
+            footer.putInt(MAGIC).putInt(VERSION).putLong(generation).putLong(baseGeneration).putInt(pageCount)
+                    .putInt(tableEntries.size());
+            for (byte[] entry : tableEntries) {
+                footer.put(entry);
+            }
+            for (int page = 1; page < pageCount; page++) {
+                footer.putInt(pageTables[page]);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(footer.array(), 0, footer.position());
+            long footerOffset = position;
+            write(footer.flip());
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(footerOffset).putInt(footer.limit()).putInt((int) crc.getValue()).putInt(MAGIC);
+            write(trailer.flip());
+            channel.force(true);
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // A block is padded to its full size, so block i of a table starts at a fixed offset
+        private void writeBlock(int rows) throws IOException {
+            block.putChar(0, (char) rows);
+            Arrays.fill(block.array(), block.position(), BLOCK_SIZE, (byte) 0);
+            write(block.clear());
+            block.clear().putChar((char) 0);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Map an index file, only its footer is read.
+     *
+     * @throws IOException if the file is not a complete index file
+     */
+    static KeyIndexFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw new IOException("Key index " + path + " is too short");
+            }
+            ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long footerOffset = trailer.getLong();
+            int footerLength = trailer.getInt();
+            int checksum = trailer.getInt();
+            if (trailer.getInt() != MAGIC || footerOffset < 0 || footerOffset + footerLength > size - TRAILER_SIZE) {
+                throw new IOException("Not a key index: " + path);
+            }
+            ByteBuffer footer = readFully(channel, footerOffset, footerLength);
+            CRC32C crc = new CRC32C();
+            crc.update(footer.array(), 0, footer.limit());
+            if ((int) crc.getValue() != checksum || footer.getInt() != MAGIC || footer.getInt() != VERSION) {
+                throw new IOException("Checksum mismatch in the footer of key index " + path);
+            }
+            long generation = footer.getLong();
+            long baseGeneration = footer.getLong();
+            int pageCount = footer.getInt();
+            int tableCount = footer.getInt();
+            Map<String, Table> tables = new HashMap<>();
+            for (int i = 0; i < tableCount; i++) {
+                byte[] name = new byte[footer.getChar()];
+                footer.get(name);
+                long rowCount = footer.getLong();
+                int insertPage = footer.getInt();
+                long firstBlock = footer.getLong();
+                int blockCount = footer.getInt();
+                long bloomOffset = footer.getLong();
+                int bloomSize = footer.getInt();
+                MappedByteBuffer[] mappings = new MappedByteBuffer[(blockCount + BLOCKS_PER_MAPPING - 1)
+                        / BLOCKS_PER_MAPPING];
+                for (int m = 0; m < mappings.length; m++) {
+                    int blocks = Math.min(BLOCKS_PER_MAPPING, blockCount - m * BLOCKS_PER_MAPPING);
+                    mappings[m] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            firstBlock + (long) m * BLOCKS_PER_MAPPING * BLOCK_SIZE, (long) blocks * BLOCK_SIZE);
+                }
+                BloomFilter bloomFilter = BloomFilter.wrap(channel.map(FileChannel.MapMode.READ_ONLY, bloomOffset,
+                        bloomSize));
+                tables.put(new String(name, StandardCharsets.UTF_8),
+                        new Table(rowCount, insertPage, blockCount, mappings, bloomFilter));
+            }
+            int[] pageTables = new int[Math.max(1, pageCount)];
+            for (int page = 1; page < pageCount; page++) {
+                pageTables[page] = footer.getInt();
+            }
+            // The mappings stay valid once the channel is closed
+            return new KeyIndexFile(path, generation, baseGeneration, pageCount, pageTables, tables);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of key index");
+            }
+        }
+        return buffer.flip();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return generation of a base, increased by every base written for the same data file, or sequence number of a
+     * delta, increased by every delta written for the same base
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return generation of the base a delta belongs to, 0 for a base
+     */
+    public long getBaseGeneration() {
+        return baseGeneration;
+    }
+
+    /**
+     * @return number of pages the data file had when the index was written
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return table id of every page the index knows, by page number
+     */
+    int[] getPageTables() {
+        return pageTables;
+    }
+
+    public Set<String> getTables() {
+        return tables.keySet();
+    }
+
+    public long getRowCount() {
+        long rows = 0;
+        for (Table table : tables.values()) {
+            rows += table.rowCount;
+        }
+        return rows;
+    }
+
+    public long getRowCount(String table) {
+        Table rows = tables.get(table);
+        return rows == null ? 0 : rows.rowCount;
+    }
+
+    /**
+     * @return the page new rows of the table were added to, -1 if the file does not know one
+     */
+    public int getInsertPage(String table) {
+        Table rows = tables.get(table);
+        return rows == null ? -1 : rows.insertPage;
+    }
+
+    /**
+     * @return the location the file holds for the row, -1 if it holds none
+     */
+    public long find(String table, String key) {
+        Table rows = tables.get(table);
+        if (rows == null || !rows.bloomFilter.mightContain(key)) {
+            return -1;
+        }
+        int block = floorBlock(rows, key);
+        if (block < 0) {
+            return -1;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = rows.block(block);
+        int count = buffer.getChar(0);
+        for (int i = 0, position = 2; i < count; i++) {
+            int length = buffer.getChar(position);
+            if (length == keyBytes.length && equals(buffer, position + 2, keyBytes)) {
+                return buffer.getLong(position + 2 + length);
+            }
+            position += 2 + length + 8;
+        }
+        return -1;
+    }
+
+    // Compare in place, without copying the key out of the mapped block
+    private static boolean equals(ByteBuffer buffer, int offset, byte[] key) {
+        for (int i = key.length - 1; i >= 0; i--) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the rows of a table in key order with their locations, starting at the first key not less than the given
+     * key
+     */
+    public Iterator<Map.Entry<String, Long>> iterator(String table, String fromKey) {
+        Table rows = tables.get(table);
+        if (rows == null || rows.blockCount == 0) {
+            return Collections.emptyIterator();
+        }
+        int firstBlock = Math.max(0, floorBlock(rows, fromKey));
+        return new Iterator<>() {
+            private int block = firstBlock;
+            private ByteBuffer buffer;
+            private int remaining;
+            private Map.Entry<String, Long> next = advance();
+
+            private Map.Entry<String, Long> advance() {
+                while (true) {
+                    if (remaining == 0) {
+                        if (block >= rows.blockCount) {
+                            return null;
+                        }
+                        buffer = rows.block(block++);
+                        remaining = buffer.getChar();
+                        continue;
+                    }
+                    remaining--;
+                    Map.Entry<String, Long> row = readRow(buffer);
+                    if (row.getKey().compareTo(fromKey) >= 0) {
+                        return row;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, Long> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Long> row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+
+    // Index of the last block whose first key is not greater than the key, -1 if the key is before the first block
+    private static int floorBlock(Table rows, String key) {
+        int low = 0;
+        int high = rows.blockCount - 1;
+        int floor = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            ByteBuffer buffer = rows.block(middle);
+            buffer.getChar();
+            if (readRow(buffer).getKey().compareTo(key) <= 0) {
+                floor = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return floor;
+    }
+
+    private static Map.Entry<String, Long> readRow(ByteBuffer buffer) {
+        byte[] key = new byte[buffer.getChar()];
+        buffer.get(key);
+        return Map.entry(new String(key, StandardCharsets.UTF_8), buffer.getLong());
+    }
+}
@@ -0,0 +1,499 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * This class represents a storage engine built as a log-structured merge tree.
+ * <br/> Rows written by checkpoints go into a sorted in-memory memtable. A flush writes the memtable as a new
+ * immutable sorted run (see {@link SortedRun}), so checkpoints only ever write files sequentially. A read looks at the
+ * memtable and then at the runs from newest to oldest, the bloom filter of a run lets most lookups skip it.
+ * <br/> Runs are compacted in the background with a size-tiered policy: flushes create runs on level 0, and once a
+ * level holds {@value #COMPACTION_FANOUT} runs they are merged into a single run on the next level, keeping only the
+ * newest version of every row.
+ * <br/> The manifest lists the live runs and the table names. It is replaced atomically after every flush and
+ * compaction, run files it does not reference are left over from a crash and deleted on startup.
+ * <pre>
+ * manifest: magic (4 bytes "LSMM") | version (int32) | table count (int32) | per table: name length (uint16)
+ *           | name (UTF-8) | run count (int32) | per run: id (int64) | level (int32) | sequence (int64)
+ *           | CRC32C of the preceding bytes (int32)
+ * </pre>
+ */
+class LSMStorage implements StorageEngine {
+    static final int COMPACTION_FANOUT = 4;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final int MAGIC = 0x4C534D4D; // "LSMM"
+    private static final int VERSION = 1;
+    private static final long MEMTABLE_BYTES = 4 * 1024 * 1024;
+    // Table and key are joined into one run key, so the rows of a table are adjacent in every run
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final Path directory;
+    private final Set<String> tables = new HashSet<>();
+    private TreeMap<String, SortedRun.Row> memtable = new TreeMap<>();
+    private long memtableBytes;
+    // Live runs, newest first
+    private final List<SortedRun> runs = new ArrayList<>();
+    private long nextRunId = 1;
+    private long bytesWritten;
+
+    private final ExecutorService compactor;
+    private boolean compactionScheduled;
+    private long compactedBytes;
+    private long compactionNanos;
+
+    public LSMStorage(String directory) {
+        this.directory = Paths.get(directory);
+        try {
+            Files.createDirectories(this.directory);
+            loadManifest();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open LSM storage " + directory, e);
+        }
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lsm-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Write a row into the memtable. The memtable is written as a new sorted run on the next {@link #flush()} or once
+     * it has grown too large.
+     * <br/> Unlike the page engine, the row on disk is not read to check its LSN, that would turn every write into a
+     * read. Only a newer row in the memtable is kept.
+     */
+    @Override
+    public synchronized void writePageToDisk(String table, String key, String value, long lsn) {
+        String runKey = runKey(table, key);
+        SortedRun.Row previous = memtable.get(runKey);
+        if (lsn > 0 && previous != null && previous.getLsn() >= lsn) {
+            return; // already up to date
+        }
+        memtable.put(runKey, new SortedRun.Row(runKey, value, lsn));
+        memtableBytes += runKey.length() + value.length() + 64;
+        if (previous != null) {
+            memtableBytes -= runKey.length() + previous.getValue().length() + 64;
+        }
+        // A new table becomes durable with the manifest written by the next flush
+        tables.add(table);
+        if (WALTrace.ENABLED) {
+            System.out.println("  [DISK] Wrote " + table + "." + key + " = " + value + " to memtable");
+        }
+        if (memtableBytes >= MEMTABLE_BYTES) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized String readFromDisk(String table, String key) {
+        try {
+            SortedRun.Row row = find(runKey(table, key));
+            return row == null ? null : row.getValue();
+        } catch (IOException e) {
+            System.err.println("Error reading data from disk: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long getPageLSN(String table, String key) {
+        try {
+            SortedRun.Row row = find(runKey(table, key));
+            return row == null ? 0 : row.getLsn();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read row " + table + "." + key, e);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> getTables() {
+        return new HashSet<>(tables);
+    }
+
+    @Override
+    public synchronized Map<String, String> readTable(String table) {
+        String prefix = table + KEY_SEPARATOR;
+        Map<String, String> rows = new HashMap<>();
+        // Oldest first, so newer versions of a row replace older ones
+        for (int i = runs.size() - 1; i >= 0; i--) {
+            Iterator<SortedRun.Row> iterator = runs.get(i).iterator(prefix);
+            while (iterator.hasNext()) {
+                SortedRun.Row row = iterator.next();
+                if (!row.getKey().startsWith(prefix)) {
+                    break;
+                }
+                rows.put(row.getKey().substring(prefix.length()), row.getValue());
+            }
+        }
+        for (SortedRun.Row row : memtable.tailMap(prefix).values()) {
+            if (!row.getKey().startsWith(prefix)) {
+                break;
+            }
+            rows.put(row.getKey().substring(prefix.length()), row.getValue());
+        }
+        return rows;
+    }
+
+    /**
+     * The memtable and the runs are merged lazily from the first key, every run reads only the blocks of the range.
+     */
+    @Override
+    public synchronized List<Map.Entry<String, String>> readRange(String table, String fromKey, String toKey,
+                                                                  int limit) {
+        String from = runKey(table, fromKey);
+        // The separator sorts before every character, so the next character ends the rows of the table
+        String to = toKey != null ? runKey(table, toKey) : table + (char) (KEY_SEPARATOR + 1);
+        List<Iterator<SortedRun.Row>> inputs = new ArrayList<>();
+        inputs.add(memtable.subMap(from, to).values().iterator());
+        for (SortedRun run : runs) {
+            inputs.add(run.iterator(from));
+        }
+        List<Map.Entry<String, String>> rows = new ArrayList<>();
+        Iterator<SortedRun.Row> merged = merge(inputs);
+        while (rows.size() < limit && merged.hasNext()) {
+            SortedRun.Row row = merged.next();
+            if (row.getKey().compareTo(to) >= 0) {
+                break;
+            }
+            rows.add(Map.entry(row.getKey().substring(table.length() + 1), row.getValue()));
+        }
+        return rows;
+    }
+
+    /**
+     * Write the memtable as a new level 0 run and schedule a compaction if a level has filled up.
+     */
+    @Override
+    public synchronized void flush() {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        try {
+            long id = nextRunId++;
+            SortedRun run = SortedRun.write(directory, id, 0, id, memtable.values().iterator(), memtable.size());
+            runs.add(0, run);
+            writeManifest();
+            bytesWritten += run.getSize();
+            if (WALTrace.ENABLED) {
+                System.out.println("  [DISK] Flushed " + memtable.size() + " row(s) to run "
+                        + run.getPath().getFileName());
+            }
+            memtable = new TreeMap<>();
+            memtableBytes = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to flush memtable to " + directory, e);
+        }
+        scheduleCompaction();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (SortedRun run : runs) {
+                try {
+                    run.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing sorted run: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized long getFileSize() {
+        long size = 0;
+        for (SortedRun run : runs) {
+            size += run.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return total size of the runs written by compactions
+     */
+    public synchronized long getCompactedBytes() {
+        return compactedBytes;
+    }
+
+    /**
+     * @return total time spent merging runs
+     */
+    public synchronized long getCompactionNanos() {
+        return compactionNanos;
+    }
+
+    public synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Wait until no compaction is scheduled or running.
+     */
+    public void awaitCompaction() throws InterruptedException {
+        synchronized (this) {
+            while (compactionScheduled) {
+                wait();
+            }
+        }
+    }
+
+    private SortedRun.Row find(String runKey) throws IOException {
+        SortedRun.Row row = memtable.get(runKey);
+        if (row != null) {
+            return row;
+        }
+        for (SortedRun run : runs) {
+            row = run.get(runKey);
+            if (row != null) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled && compactionLevel() >= 0) {
+            compactionScheduled = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    // Lowest level holding enough runs to be merged, -1 if there is none
+    private int compactionLevel() {
+        Map<Integer, Integer> runsPerLevel = new TreeMap<>();
+        for (SortedRun run : runs) {
+            runsPerLevel.merge(run.getLevel(), 1, Integer::sum);
+        }
+        for (Map.Entry<Integer, Integer> level : runsPerLevel.entrySet()) {
+            if (level.getValue() >= COMPACTION_FANOUT) {
+                return level.getKey();
+            }
+        }
+        return -1;
+    }
+
+    private void compact() {
+        try {
+            while (true) {
+                List<SortedRun> inputs = new ArrayList<>();
+                long id;
+                int level;
+                synchronized (this) {
+                    level = compactionLevel();
+                    if (level < 0) {
+                        return;
+                    }
+                    for (SortedRun run : runs) {
+                        if (run.getLevel() == level) {
+                            inputs.add(run);
+                        }
+                    }
+                    id = nextRunId++;
+                }
+
+                // Runs are immutable, so they are merged without holding the lock
+                long start = System.nanoTime();
+                long rowCount = 0;
+                for (SortedRun run : inputs) {
+                    rowCount += run.getRowCount();
+                }
+                List<Iterator<SortedRun.Row>> iterators = new ArrayList<>();
+                for (SortedRun run : inputs) {
+                    iterators.add(run.iterator(""));
+                }
+                SortedRun output = SortedRun.write(directory, id, level + 1, inputs.get(0).getSequence(),
+                        merge(iterators), rowCount);
+                long nanos = System.nanoTime() - start;
+
+                synchronized (this) {
+                    // Runs flushed meanwhile are newer and stay in front of the merged run
+                    int position = runs.indexOf(inputs.get(0));
+                    runs.removeAll(inputs);
+                    runs.add(position, output);
+                    writeManifest();
+                    bytesWritten += output.getSize();
+                    compactedBytes += output.getSize();
+                    compactionNanos += nanos;
+                }
+                for (SortedRun run : inputs) {
+                    run.close();
+                    Files.deleteIfExists(run.getPath());
+                }
+                if (WALTrace.ENABLED) {
+                    System.out.println("  [DISK] Compacted " + inputs.size() + " run(s) of level " + level + " into "
+                            + output.getPath().getFileName() + " in " + nanos / 1_000_000 + " ms");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The inputs stay live, the next flush schedules the compaction again
+            System.err.println("Error compacting sorted runs: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                compactionScheduled = false;
+                notifyAll();
+            }
+        }
+    }
+
+    // Merge rows of runs given newest first into one iterator in key order, keeping the newest version of each row
+    private static Iterator<SortedRun.Row> merge(List<Iterator<SortedRun.Row>> inputs) {
+        PriorityQueue<MergeSource> queue = new PriorityQueue<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Iterator<SortedRun.Row> iterator = inputs.get(i);
+            if (iterator.hasNext()) {
+                queue.add(new MergeSource(iterator, i));
+            }
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public SortedRun.Row next() {
+                MergeSource newest = queue.poll();
+                if (newest == null) {
+                    throw new NoSuchElementException();
+                }
+                SortedRun.Row row = newest.current;
+                newest.advanceInto(queue);
+                // Older versions of the same row sort right behind it
+                while (!queue.isEmpty() && queue.peek().current.getKey().equals(row.getKey())) {
+                    queue.poll().advanceInto(queue);
+                }
+                return row;
+            }
+        };
+    }
+
+    private static final class MergeSource implements Comparable<MergeSource> {
+        private final Iterator<SortedRun.Row> iterator;
+        // Position of the run in the newest first input list
+        private final int age;
+        private SortedRun.Row current;
+
+        MergeSource(Iterator<SortedRun.Row> iterator, int age) {
+            this.iterator = iterator;
+            this.age = age;
+            this.current = iterator.next();
+        }
+
+        void advanceInto(PriorityQueue<MergeSource> queue) {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+                queue.add(this);
+            }
+        }
+
+        @Override
+        public int compareTo(MergeSource other) {
+            int comparison = current.getKey().compareTo(other.current.getKey());
+            return comparison != 0 ? comparison : Integer.compare(age, other.age);
+        }
+    }
+
+    private static String runKey(String table, String key) {
+        return table + KEY_SEPARATOR + key;
+    }
+
+    private void loadManifest() throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        Set<String> liveFiles = new HashSet<>();
+        if (Files.exists(manifest)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(manifest));
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, buffer.limit() - 4);
+            if (buffer.limit() < 16 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || (int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Invalid manifest in " + directory);
+            }
+            int tableCount = buffer.getInt();
+            for (int i = 0; i < tableCount; i++) {
+                byte[] name = new byte[buffer.getChar()];
+                buffer.get(name);
+                tables.add(new String(name, StandardCharsets.UTF_8));
+            }
+            int runCount = buffer.getInt();
+            for (int i = 0; i < runCount; i++) {
+                long id = buffer.getLong();
+                int level = buffer.getInt();
+                long sequence = buffer.getLong();
+                runs.add(SortedRun.open(directory.resolve(SortedRun.fileName(id)), id, level, sequence));
+                liveFiles.add(SortedRun.fileName(id));
+                nextRunId = Math.max(nextRunId, id + 1);
+            }
+            runs.sort(Comparator.comparingLong(SortedRun::getSequence).reversed());
+        }
+
+        // Runs written by a flush or compaction that did not reach the manifest before a crash
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.run*")) {
+            for (Path file : files) {
+                if (!liveFiles.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        int size = 4 + 4 + 4 + 4 + runs.size() * 20 + 4;
+        for (String table : tables) {
+            byte[] name = table.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += 2 + name.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(names.size());
+        for (byte[] name : names) {
+            buffer.putChar((char) name.length).put(name);
+        }
+        buffer.putInt(runs.size());
+        for (SortedRun run : runs) {
+            buffer.putLong(run.getId()).putInt(run.getLevel()).putLong(run.getSequence());
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue()).flip();
+
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        bytesWritten += size;
+    }
+}
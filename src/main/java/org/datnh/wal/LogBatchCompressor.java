@@ -0,0 +1,195 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses a batch of log entries drained from the log buffer into one batch record, see
+ * {@link LogRecordFormat}.
+ * <br/> The entries are first written in a compact form: every table name of the batch is stored once in a dictionary
+ * and referenced by its index, LSNs and timestamps are stored as deltas from the previous entry. The compact form is
+ * then compressed with {@link Deflater} at the configured level, level 0 only applies the compact form.
+ * <br/> A compressor instance is not thread-safe, the log buffer only uses it while holding its drain lock.
+ */
+class LogBatchCompressor {
+    // Raw records compressed into one batch at most, a larger drain is split into several batches
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final Deflater deflater;
+    private final CRC32C crc = new CRC32C();
+    private final Map<String, Integer> tableIndexes = new HashMap<>();
+    private final List<String> tables = new ArrayList<>();
+    private ByteBuffer payload = ByteBuffer.allocate(MAX_BATCH_BYTES);
+    private byte[] compressed = new byte[MAX_BATCH_BYTES];
+
+    LogBatchCompressor(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compress log entries with consecutive LSNs into one framed batch record.
+     *
+     * @param rawBytes size of the entries as individual framed records
+     * @return a buffer ready to be written, or null if the batch record would not be smaller than the raw records
+     */
+    public ByteBuffer compress(List<LogEntry> entries, int rawBytes) {
+        encodePayload(entries);
+        int payloadSize = payload.position();
+
+        deflater.reset();
+        deflater.setInput(payload.array(), 0, payloadSize);
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished()) {
+            if (compressedSize == compressed.length) {
+                if (compressedSize >= rawBytes) {
+                    return null;
+                }
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+        }
+
+        long firstLsn = entries.get(0).getLsn();
+        int bodySize = 1 + LogRecordFormat.varLongSize(firstLsn) + LogRecordFormat.varLongSize(entries.size())
+                + LogRecordFormat.varLongSize(payloadSize) + compressedSize;
+        if (LogRecordFormat.RECORD_HEADER_SIZE + bodySize >= rawBytes) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(LogRecordFormat.RECORD_HEADER_SIZE + bodySize);
+        record.putInt(bodySize).putInt(0);
+        record.put(LogRecordFormat.OP_BATCH);
+        LogRecordFormat.putVarLong(record, firstLsn);
+        LogRecordFormat.putVarLong(record, entries.size());
+        LogRecordFormat.putVarLong(record, payloadSize);
+        record.put(compressed, 0, compressedSize);
+        crc.reset();
+        crc.update(record.array(), LogRecordFormat.RECORD_HEADER_SIZE, bodySize);
+        record.putInt(4, (int) crc.getValue());
+        return record.flip();
+    }
+
+    private void encodePayload(List<LogEntry> entries) {
+        tables.clear();
+        tableIndexes.clear();
+        for (LogEntry entry : entries) {
+            if (entry.getTable() != null && !tableIndexes.containsKey(entry.getTable())) {
+                tableIndexes.put(entry.getTable(), tables.size());
+                tables.add(entry.getTable());
+            }
+        }
+
+        payload.clear();
+        ensureCapacity(LogRecordFormat.varLongSize(tables.size()));
+        LogRecordFormat.putVarLong(payload, tables.size());
+        for (String table : tables) {
+            byte[] name = LogRecordEncoder.utf8(table);
+            ensureCapacity(LogRecordFormat.varLongSize(name.length + 1L) + name.length);
+            LogRecordEncoder.putString(payload, name);
+        }
+        long previousLsn = entries.get(0).getLsn() - 1;
+        long previousTimestamp = 0;
+        for (LogEntry entry : entries) {
+            // Never larger than the framed record, which holds the full LSN and table name plus the record header
+            ensureCapacity(LogRecordEncoder.encodedSize(entry, entry.getLsn()) + 10);
+            payload.put(LogRecordFormat.opCode(entry.getOperation()));
+            LogRecordFormat.putVarLong(payload, entry.getLsn() - previousLsn);
+            LogRecordFormat.putVarLong(payload, entry.getTransactionId());
+            LogRecordFormat.putVarLong(payload, zigZag(entry.getTimestamp() - previousTimestamp));
+            LogRecordFormat.putVarLong(payload, entry.getTable() == null ? 0 : tableIndexes.get(entry.getTable()) + 1L);
+            LogRecordEncoder.putString(payload, entry.getKey());
+            LogRecordEncoder.putString(payload, entry.getOldValue());
+            LogRecordEncoder.putNewValue(payload, entry);
+            previousLsn = entry.getLsn();
+            previousTimestamp = entry.getTimestamp();
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (payload.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + bytes));
+            payload.flip();
+            payload = larger.put(payload);
+        }
+    }
+
+    /**
+     * Decode the entries of a batch record whose CRC has already been checked.
+     *
+     * @param body     batch record body, positioned after the op code
+     * @param inflater reused between batches
+     * @throws IllegalArgumentException if the batch is malformed
+     */
+    static List<LogEntry> decompress(ByteBuffer body, Inflater inflater) {
+        long firstLsn = LogRecordFormat.getVarLong(body);
+        long count = LogRecordFormat.getVarLong(body);
+        long payloadSize = LogRecordFormat.getVarLong(body);
+        if (payloadSize > LogRecordFormat.MAX_RECORD_SIZE || count > payloadSize) {
+            throw new IllegalArgumentException("Malformed WAL batch header");
+        }
+
+        byte[] payload = new byte[(int) payloadSize];
+        inflater.reset();
+        inflater.setInput(body.duplicate());
+        try {
+            int inflated = 0;
+            while (inflated < payload.length && !inflater.finished()) {
+                int read = inflater.inflate(payload, inflated, payload.length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (inflated != payload.length) {
+                throw new IllegalArgumentException("WAL batch is shorter than its header says");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed WAL batch", e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        long tableCount = LogRecordFormat.getVarLong(buffer);
+        if (tableCount > payloadSize) {
+            throw new IllegalArgumentException("Malformed WAL batch dictionary");
+        }
+        List<String> tables = new ArrayList<>((int) tableCount);
+        for (long i = 0; i < tableCount; i++) {
+            tables.add(LogRecordDecoder.getString(buffer));
+        }
+        List<LogEntry> entries = new ArrayList<>((int) count);
+        long lsn = firstLsn - 1;
+        long timestamp = 0;
+        for (long i = 0; i < count; i++) {
+            String operation = LogRecordFormat.operation(buffer.get());
+            lsn += LogRecordFormat.getVarLong(buffer);
+            long transactionId = LogRecordFormat.getVarLong(buffer);
+            timestamp += unZigZag(LogRecordFormat.getVarLong(buffer));
+            long tableIndex = LogRecordFormat.getVarLong(buffer);
+            if (tableIndex > tables.size()) {
+                throw new IllegalArgumentException("Unknown table in WAL batch: " + tableIndex);
+            }
+            String table = tableIndex == 0 ? null : tables.get((int) tableIndex - 1);
+            String key = LogRecordDecoder.getString(buffer);
+            String oldValue = LogRecordDecoder.getString(buffer);
+            String newValue = LogRecordDecoder.getString(buffer);
+            entries.add(new LogEntry(lsn, transactionId, operation, table, key, oldValue, newValue, timestamp));
+        }
+        return entries;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
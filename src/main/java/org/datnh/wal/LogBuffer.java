@@ -0,0 +1,426 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the in-memory log buffer between committing threads and the segmented log.
+ * <br/> An appending thread reserves the space and the LSNs of all records of a transaction with a single CAS on the
+ * tail of the buffer, so the order of records in the buffer always matches their LSN order. It then encodes its records
+ * straight into the reserved range, in parallel with other appending threads, and marks the range completed. Only the
+ * contiguous prefix of completed ranges is published: a range completed early waits for the ranges reserved before it.
+ * <br/> {@link #drain()} writes the published prefix to the segmented log and frees its space for new reservations,
+ * it never forces the log. The buffer is one direct buffer used as a ring, positions are byte offsets counted from the
+ * creation of the buffer and wrap around the ring. A transaction larger than the ring is written record by record once
+ * everything reserved before it is published.
+ * <br/> With WAL compression the drained records are compressed in batches of up to
+ * {@link LogBatchCompressor#MAX_BATCH_BYTES}, each batch is appended to the segmented log as one record.
+ * <br/> The buffers of a WAL with several streams take their LSNs from one shared sequence instead, see
+ * {@link LogStream}. The LSNs and the space of a reservation then come from a short lock, so the order of records in
+ * the buffer still matches their LSN order, the records are copied without it.
+ */
+class LogBuffer {
+    private final SegmentedLog log;
+    private final ByteBuffer ring;
+    private final int capacity;
+    // Largest record the segmented log takes, a larger one could never be drained
+    private final int maxRecordSize;
+    // Null when metrics are disabled
+    private final WALMetrics metrics;
+
+    // Next free position and last reserved LSN, always replaced together
+    private final AtomicReference<Tail> tail;
+    // Every reservation below this position is completely written to the ring
+    private final AtomicLong published = new AtomicLong();
+    // Completed reservations above the published position, start position mapped to end position
+    private final ConcurrentHashMap<Long, Long> completed = new ConcurrentHashMap<>();
+    // Everything below this position is appended to the segmented log, its ring space can be reused
+    private volatile long drainedPosition;
+    private volatile long drainedLsn;
+    // Only one thread drains at a time, appending threads never take this lock unless the ring is full
+    private final ReentrantLock drainLock = new ReentrantLock();
+    // LSNs shared with the buffers of the other streams, null when this buffer assigns consecutive LSNs itself
+    private final AtomicLong sequence;
+    private final ReentrantLock reserveLock = new ReentrantLock();
+    // Lower bound of the LSNs a thread is taking from the shared sequence before they are part of the tail,
+    // Long.MAX_VALUE while no thread is
+    private volatile long reservingLsn = Long.MAX_VALUE;
+    // Only used while holding the drain lock
+    private final ByteBuffer drainView;
+    private ByteBuffer drainScratch = ByteBuffer.allocate(1024);
+    // Null when WAL compression is disabled, only used while holding the drain lock
+    private final LogBatchCompressor compressor;
+    private final List<LogEntry> batch = new ArrayList<>();
+
+    // Encoder, view of the ring and scratch buffer of every appending thread
+    private final ThreadLocal<Writer> writers;
+
+    LogBuffer(SegmentedLog log, int capacity, long lastLsn, WALMetrics metrics) {
+        this(log, capacity, lastLsn, metrics, null);
+    }
+
+    LogBuffer(SegmentedLog log, int capacity, long lastLsn, WALMetrics metrics, LogBatchCompressor compressor) {
+        this(log, capacity, lastLsn, metrics, compressor, null);
+    }
+
+    /**
+     * @param lastLsn  LSN of the last record already in the segmented log
+     * @param sequence LSNs shared by the buffers of all streams of a WAL, null to assign consecutive LSNs
+     */
+    LogBuffer(SegmentedLog log, int capacity, long lastLsn, WALMetrics metrics, LogBatchCompressor compressor,
+              AtomicLong sequence) {
+        this.log = log;
+        this.sequence = sequence;
+        this.compressor = compressor;
+        this.capacity = capacity;
+        this.maxRecordSize = log.getMaxRecordSize();
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.metrics = metrics;
+        this.tail = new AtomicReference<>(new Tail(0, lastLsn));
+        this.drainedLsn = lastLsn;
+        this.drainView = ring.duplicate();
+        this.writers = ThreadLocal.withInitial(() -> new Writer(ring.duplicate()));
+    }
+
+    /**
+     * @return the LSN of the last reserved record
+     */
+    long getCurrentLsn() {
+        return tail.get().lsn;
+    }
+
+    /**
+     * @return with a shared sequence, a lower bound of the LSNs a thread is reserving right now that are not covered by
+     * {@link #getCurrentLsn()} yet, otherwise {@link Long#MAX_VALUE}
+     */
+    long getReservingLsn() {
+        return reservingLsn;
+    }
+
+    /**
+     * Make sure new LSNs continue after the given LSN, used by recovery before anything is appended.
+     */
+    void advanceLsn(long lsn) {
+        while (true) {
+            Tail current = tail.get();
+            if (current.lsn >= lsn || tail.compareAndSet(current, new Tail(current.position, lsn))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Assign consecutive LSNs to the records of one transaction and copy them into the buffer.
+     * Returns once the records are written to the ring, they are not necessarily published or drained yet.
+     *
+     * @return the LSN of the last record
+     * @throws IOException if a record is larger than a segment, nothing is appended then
+     */
+    long append(List<LogEntry> records) throws IOException {
+        if (sequence != null) {
+            return appendSequenced(records);
+        }
+        Tail reserved;
+        Tail next;
+        while (true) {
+            reserved = tail.get();
+            long lsn = reserved.lsn;
+            long bytes = 0;
+            for (LogEntry record : records) {
+                bytes += checkSize(LogRecordEncoder.encodedSize(record, ++lsn));
+            }
+            next = new Tail(reserved.position + bytes, lsn);
+            if (bytes <= capacity && next.position - drainedPosition > capacity) {
+                awaitSpace();
+            } else if (tail.compareAndSet(reserved, next)) {
+                break;
+            }
+        }
+
+        copy(records, reserved.lsn, reserved.position, next.position);
+        return next.lsn;
+    }
+
+    // Take the LSNs of the records from the shared sequence, the space is only waited for after the reservation
+    private long appendSequenced(List<LogEntry> records) throws IOException {
+        // Checked before the LSNs are taken, with the size of the largest LSN
+        for (LogEntry record : records) {
+            checkSize(LogRecordEncoder.encodedSize(record, Long.MAX_VALUE));
+        }
+        long start;
+        long end;
+        long lsnBefore;
+        reserveLock.lock();
+        try {
+            Tail reserved = tail.get();
+            reservingLsn = sequence.get() + 1;
+            lsnBefore = sequence.getAndAdd(records.size());
+            long lsn = lsnBefore;
+            long bytes = 0;
+            for (LogEntry record : records) {
+                bytes += LogRecordEncoder.encodedSize(record, ++lsn);
+            }
+            start = reserved.position;
+            end = start + bytes;
+            tail.set(new Tail(end, lsn));
+        } finally {
+            reservingLsn = Long.MAX_VALUE;
+            reserveLock.unlock();
+        }
+        // The reservations before this one never wait for it, so the drained position reaches its start
+        while (end - start <= capacity && end - drainedPosition > capacity) {
+            awaitSpace();
+        }
+        copy(records, lsnBefore, start, end);
+        return lsnBefore + records.size();
+    }
+
+    private int checkSize(int size) throws IOException {
+        if (size > maxRecordSize) {
+            throw new IOException("WAL record of " + size + " bytes exceeds segment size " + log.getSegmentSize());
+        }
+        return size;
+    }
+
+    // Assign the LSNs following the given one and copy the records into a reserved range of the ring
+    private void copy(List<LogEntry> records, long lsnBefore, long start, long end) throws IOException {
+        long lsn = lsnBefore;
+        for (LogEntry record : records) {
+            record.assignLsn(++lsn);
+        }
+        Writer writer = writers.get();
+        if (end - start <= capacity) {
+            long position = start;
+            for (LogEntry record : records) {
+                position += write(writer, record, position);
+            }
+            completed.put(start, end);
+        } else {
+            appendOversized(writer, records, start);
+        }
+        advancePublished();
+    }
+
+    // Write a transaction that does not fit in the ring, the reservation ahead of every other one streams its records
+    private void appendOversized(Writer writer, List<LogEntry> records, long start) throws IOException {
+        while (published.get() != start) {
+            Thread.yield();
+        }
+        long position = start;
+        for (LogEntry record : records) {
+            int size = LogRecordEncoder.encodedSize(record, record.getLsn());
+            if (size <= capacity) {
+                while (position + size - drainedPosition > capacity) {
+                    awaitSpace();
+                }
+                write(writer, record, position);
+            } else {
+                // Not even the record fits in the ring, it goes to the segmented log directly once the ring is drained
+                drainLock.lock();
+                try {
+                    drainLocked();
+                    log.append(writer.encoder.encode(record), record.getLsn());
+                    if (metrics != null) {
+                        metrics.entryAppended(size);
+                    }
+                    drainedLsn = record.getLsn();
+                    drainedPosition = position + size;
+                } finally {
+                    drainLock.unlock();
+                }
+            }
+            position += size;
+            // No other thread moves the published position while it is inside this reservation
+            published.set(position);
+        }
+    }
+
+    // Encode one record at the given position of the ring
+    private int write(Writer writer, LogEntry record, long position) {
+        int size = LogRecordEncoder.encodedSize(record, record.getLsn());
+        int offset = (int) (position % capacity);
+        if (offset + size <= capacity) {
+            writer.ring.position(offset);
+            writer.encoder.encode(record, writer.ring);
+        } else {
+            ByteBuffer scratch = writer.scratch(size);
+            writer.encoder.encode(record, scratch);
+            int first = capacity - offset;
+            writer.ring.put(offset, scratch, 0, first);
+            writer.ring.put(0, scratch, first, size - first);
+        }
+        if (metrics != null) {
+            metrics.entryAppended(size);
+        }
+        return size;
+    }
+
+    // Move the published position over every completed reservation that directly follows it
+    private void advancePublished() {
+        while (true) {
+            // A reservation is removed exactly once, only by the thread that then moves the published position past it
+            Long end = completed.remove(published.get());
+            if (end == null) {
+                return;
+            }
+            published.set(end);
+        }
+    }
+
+    private void awaitSpace() throws IOException {
+        if (published.get() > drainedPosition) {
+            drain();
+        } else {
+            // Reservations ahead are still being copied
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Append the published records to the segmented log without forcing it.
+     *
+     * @return the LSN of the last record appended to the segmented log so far
+     */
+    long drain() throws IOException {
+        drainLock.lock();
+        try {
+            return drainLocked();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Drain the buffer until every record up to the given LSN is appended to the segmented log, waiting for the records
+     * still being copied.
+     *
+     * @return the LSN of the last record appended to the segmented log so far
+     */
+    long drainTo(long lsn) throws IOException {
+        long target = Math.min(lsn, getCurrentLsn());
+        long drained = drain();
+        while (drained < target) {
+            Thread.yield();
+            drained = drain();
+        }
+        return drained;
+    }
+
+    private long drainLocked() throws IOException {
+        long end = published.get();
+        long position = drainedPosition;
+        long lsn = drainedLsn;
+        while (position < end) {
+            if (compressor != null) {
+                position = appendBatch(position, end);
+                lsn = batch.get(batch.size() - 1).getLsn();
+                continue;
+            }
+            int size = LogRecordFormat.RECORD_HEADER_SIZE + intAt(position);
+            lsn = lsnAt(position);
+            log.append(recordAt(position, size), lsn);
+            position += size;
+        }
+        drainedLsn = lsn;
+        drainedPosition = position;
+        return lsn;
+    }
+
+    // Compress the records from the given position into one batch record, returns the position after the batch
+    private long appendBatch(long start, long end) throws IOException {
+        batch.clear();
+        long position = start;
+        while (position < end && position - start < LogBatchCompressor.MAX_BATCH_BYTES) {
+            int size = LogRecordFormat.RECORD_HEADER_SIZE + intAt(position);
+            ByteBuffer record = recordAt(position, size);
+            batch.add(LogRecordDecoder.decodeBody(record.position(record.position() + LogRecordFormat.RECORD_HEADER_SIZE)));
+            position += size;
+        }
+        ByteBuffer compressed = compressor.compress(batch, (int) (position - start));
+        if (compressed != null) {
+            log.append(compressed, batch.get(0).getLsn(), batch.get(batch.size() - 1).getLsn());
+            return position;
+        }
+        // Incompressible, the records are appended as they are
+        for (long next = start; next < position; ) {
+            int size = LogRecordFormat.RECORD_HEADER_SIZE + intAt(next);
+            log.append(recordAt(next, size), lsnAt(next));
+            next += size;
+        }
+        return position;
+    }
+
+    private ByteBuffer recordAt(long position, int size) {
+        int offset = (int) (position % capacity);
+        if (offset + size <= capacity) {
+            return drainView.limit(offset + size).position(offset);
+        }
+        if (drainScratch.capacity() < size) {
+            drainScratch = ByteBuffer.allocate(Math.max(size, drainScratch.capacity() * 2));
+        }
+        int first = capacity - offset;
+        drainScratch.clear();
+        drainScratch.put(0, ring, offset, first);
+        drainScratch.put(first, ring, 0, size - first);
+        return drainScratch.limit(size);
+    }
+
+    private int intAt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (byteAt(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    // The LSN is the varint following the op code at the start of the body
+    private long lsnAt(long position) {
+        long address = position + LogRecordFormat.RECORD_HEADER_SIZE + 1;
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = byteAt(address++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private byte byteAt(long position) {
+        return ring.get((int) (position % capacity));
+    }
+
+    private static final class Tail {
+        private final long position;
+        private final long lsn;
+
+        private Tail(long position, long lsn) {
+            this.position = position;
+            this.lsn = lsn;
+        }
+    }
+
+    private static final class Writer {
+        private final LogRecordEncoder encoder = new LogRecordEncoder();
+        private final ByteBuffer ring;
+        // Holds a record that wraps around the end of the ring
+        private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+        private Writer(ByteBuffer ring) {
+            this.ring = ring;
+        }
+
+        private ByteBuffer scratch(int size) {
+            if (scratch.capacity() < size) {
+                scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+            }
+            return scratch.clear();
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package org.datnh.wal;
 
-// Represents a single log entry in the WAL
+// Represents a single log entry in the WAL, the entries of a transaction's write set are reused, see WriteSet
 class LogEntry {
-    private final long lsn; // Log Sequence Number
-    private final long transactionId;
-    private final String operation; // INSERT, UPDATE, DELETE
-    private final String table;
-    private final String key;
-    private final String oldValue;
-    private final String newValue;
-    private final long timestamp;
+    private long lsn; // Log Sequence Number, assigned when the entry is appended to the WAL
+    private long transactionId;
+    private String operation; // INSERT, UPDATE, DELETE, INCREMENT, COMMIT, CHECKPOINT_BEGIN, CHECKPOINT_END, BULK_LOAD
+    private String table;
+    private String key;
+    private String oldValue;
+    private String newValue;
+    // Number an INCREMENT entry adds to the row, a write set keeps it as a number and leaves the new value null
+    private long delta;
+    private long timestamp;
+    // table:key, the row the version store keys this entry by, built on first use
+    private String rowKey;
 
     public LogEntry(long lsn, long transactionId, String operation, String table,
                     String key, String oldValue, String newValue) {
+        this(lsn, transactionId, operation, table, key, oldValue, newValue, System.currentTimeMillis());
+    }
+
+    // Used when an entry is decoded from the WAL and keeps its original timestamp
+    LogEntry(long lsn, long transactionId, String operation, String table,
+             String key, String oldValue, String newValue, long timestamp) {
         this.lsn = lsn;
         this.transactionId = transactionId;
         this.operation = operation;
@@ -20,7 +30,150 @@ class LogEntry {
         this.key = key;
         this.oldValue = oldValue;
         this.newValue = newValue;
-        this.timestamp = System.currentTimeMillis();
+        this.timestamp = timestamp;
+        if (isIncrement()) {
+            this.delta = Long.parseLong(newValue);
+        }
+    }
+
+    public LogEntry(long transactionId, String operation, String table,
+                    String key, String oldValue, String newValue) {
+        this(0, transactionId, operation, table, key, oldValue, newValue);
+    }
+
+    /**
+     * Create the record that marks the end of a committed transaction in the WAL.
+     */
+    static LogEntry commitRecord(long transactionId) {
+        return new LogEntry(transactionId, "COMMIT", null, null, null, null);
+    }
+
+    /**
+     * Create the record that ends one part of a transaction written to several log streams, its new value holds the
+     * number of parts. The transaction is committed once the commit records of all parts are in the log.
+     */
+    static LogEntry commitRecord(long transactionId, int parts) {
+        return new LogEntry(transactionId, "COMMIT", null, null, null, parts > 1 ? String.valueOf(parts) : null);
+    }
+
+    public boolean isCommitRecord() {
+        return "COMMIT".equals(operation);
+    }
+
+    /**
+     * @return number of log streams holding a part of the transaction this commit record ends
+     */
+    int getCommitParts() {
+        return newValue == null ? 1 : Integer.parseInt(newValue);
+    }
+
+    /**
+     * Create the record that marks the beginning of a checkpoint, recovery of that checkpoint starts after the redo LSN.
+     */
+    static LogEntry checkpointBeginRecord(long redoLsn) {
+        return new LogEntry(0, "CHECKPOINT_BEGIN", null, null, null, String.valueOf(redoLsn));
+    }
+
+    /**
+     * Create the record that marks the end of the checkpoint that began at the given LSN.
+     */
+    static LogEntry checkpointEndRecord(long beginLsn) {
+        return new LogEntry(0, "CHECKPOINT_END", null, null, null, String.valueOf(beginLsn));
+    }
+
+    public boolean isCheckpointRecord() {
+        return "CHECKPOINT_BEGIN".equals(operation) || "CHECKPOINT_END".equals(operation);
+    }
+
+    /**
+     * Create the record that commits a bulk load of a table, see {@link WriteAheadLog#bulkLoad}. Its key holds the id of
+     * the load and its new value the number of rows and their checksum.
+     */
+    static LogEntry bulkLoadRecord(long transactionId, String table, long loadId, long rows, long checksum) {
+        return new LogEntry(transactionId, "BULK_LOAD", table, String.valueOf(loadId), null,
+                rows + ":" + Long.toHexString(checksum));
+    }
+
+    public boolean isBulkLoadRecord() {
+        return "BULK_LOAD".equals(operation);
+    }
+
+    long getBulkLoadId() {
+        return Long.parseLong(key);
+    }
+
+    long getBulkLoadRows() {
+        return Long.parseLong(newValue.substring(0, newValue.indexOf(':')));
+    }
+
+    long getBulkLoadChecksum() {
+        return Long.parseLong(newValue.substring(newValue.indexOf(':') + 1), 16);
+    }
+
+    /**
+     * @return true if the entry adds its delta to the value of the row instead of replacing it
+     */
+    public boolean isIncrement() {
+        return "INCREMENT".equals(operation);
+    }
+
+    /**
+     * @return the number an INCREMENT entry adds to the row, its new value in decimal
+     */
+    long getDelta() {
+        return delta;
+    }
+
+    /**
+     * Add a delta to the value of a counter row, a row without a value counts as 0.
+     *
+     * @throws NumberFormatException if the value is not a decimal number
+     */
+    static String increment(String value, long delta) {
+        return Long.toString((value == null ? 0 : Long.parseLong(value)) + delta);
+    }
+
+    /**
+     * Turn this entry into a new change before it is appended to the WAL, used by a write set to reuse the entries of
+     * a finished transaction.
+     */
+    LogEntry reset(long transactionId, String operation, String table, String key, String oldValue, String newValue,
+                   long timestamp) {
+        if (!table.equals(this.table) || !key.equals(this.key)) {
+            this.rowKey = null;
+        }
+        this.lsn = 0;
+        this.transactionId = transactionId;
+        this.operation = operation;
+        this.table = table;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.delta = 0;
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    /**
+     * Turn this entry into an increment like {@link #reset}. The delta is kept as a number, the encoder writes its
+     * digits and only {@link #getNewValue()} formats it.
+     */
+    LogEntry resetIncrement(long transactionId, String table, String key, long delta, long timestamp) {
+        reset(transactionId, "INCREMENT", table, key, null, null, timestamp);
+        this.delta = delta;
+        return this;
+    }
+
+    void assignLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public long getTransactionId() {
+        return transactionId;
     }
 
     public String getOperation() {
@@ -35,13 +188,31 @@ class LogEntry {
         return key;
     }
 
+    /**
+     * @return table and key of the changed row as {@code table:key}
+     */
+    String getRowKey() {
+        if (rowKey == null) {
+            rowKey = table + ":" + key;
+        }
+        return rowKey;
+    }
+
+    public String getOldValue() {
+        return oldValue;
+    }
+
     public String getNewValue() {
-        return newValue;
+        return newValue == null && isIncrement() ? Long.toString(delta) : newValue;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
     }
 
     @Override
     public String toString() {
         return String.format("LSN:%d|TXN:%d|%s|%s|%s|%s->%s|%d",
-                lsn, transactionId, operation, table, key, oldValue, newValue, timestamp);
+                lsn, transactionId, operation, table, key, oldValue, getNewValue(), timestamp);
     }
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
+
+/**
+ * This class streams log entries out of a binary WAL segment written by {@link LogRecordEncoder}.
+ * <br/> Records are read through a fixed-size buffer, so memory use does not depend on the size of the log. A decoder
+ * can also read straight from the memory mapping of a segment, without any file reads.
+ * Reading stops at the end of the written part of the segment, or at the first record that is incomplete or fails its
+ * CRC check (a torn tail left by a crash). {@link #getValidPosition()} then tells where the last intact record ends.
+ * <br/> Batch records written with WAL compression are decompressed transparently, their entries are returned one by one.
+ */
+class LogRecordDecoder {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // Null when decoding a memory-mapped segment
+    private final FileChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private final long segmentId;
+    private final long baseLsn;
+    private long lastLsn;
+    private ByteBuffer buffer;
+    // Copy of the current record body when the buffer is a memory mapping
+    private ByteBuffer bodyScratch;
+    private long readPosition;
+    private long validPosition;
+    private boolean tornTail = false;
+    private boolean finished = false;
+    // Entries of the last batch record that have not been returned yet
+    private final ArrayDeque<LogEntry> batch = new ArrayDeque<>();
+    // Created on the first batch record
+    private Inflater inflater;
+
+    /**
+     * @param channel an open WAL segment, reading starts after the segment header
+     * @throws IOException if the segment header does not belong to a supported binary WAL
+     */
+    public LogRecordDecoder(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE).flip();
+        if (!fill(LogRecordFormat.SEGMENT_HEADER_SIZE)) {
+            throw new IOException("WAL segment header is truncated");
+        }
+        checkHeader(buffer);
+        segmentId = buffer.getLong();
+        baseLsn = buffer.getLong();
+        lastLsn = baseLsn;
+        validPosition = LogRecordFormat.SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Decode the records of a segment straight from its memory mapping, starting at a record boundary.
+     *
+     * @param segment  view of the whole segment file, owned by the decoder
+     * @param position file offset of the first record to read, the end of a record returned by an earlier decoder
+     * @param lastLsn  LSN of the record that ends at that position, or the base LSN at the start of the segment
+     * @throws IOException if the segment header does not belong to a supported binary WAL
+     */
+    LogRecordDecoder(ByteBuffer segment, int position, long lastLsn) throws IOException {
+        this.channel = null;
+        if (segment.limit() < LogRecordFormat.SEGMENT_HEADER_SIZE) {
+            throw new IOException("WAL segment header is truncated");
+        }
+        checkHeader(segment.position(0));
+        segmentId = segment.getLong();
+        baseLsn = segment.getLong();
+        this.lastLsn = lastLsn;
+        this.buffer = segment.position(position);
+        validPosition = position;
+    }
+
+    private static void checkHeader(ByteBuffer header) throws IOException {
+        if (header.getInt() != LogRecordFormat.MAGIC) {
+            throw new IOException("Not a binary WAL file (bad magic)");
+        }
+        byte version = header.get();
+        if (version < LogRecordFormat.MIN_READABLE_VERSION || version > LogRecordFormat.VERSION) {
+            throw new IOException("Unsupported WAL format version: " + version);
+        }
+        header.position(header.position() + 3);
+    }
+
+    /**
+     * @return the next intact log entry, or null when the end of the log (or a torn tail) has been reached
+     */
+    public LogEntry next() throws IOException {
+        if (!batch.isEmpty()) {
+            LogEntry entry = batch.poll();
+            lastLsn = entry.getLsn();
+            return entry;
+        }
+        if (finished) {
+            return null;
+        }
+
+        if (!fill(LogRecordFormat.RECORD_HEADER_SIZE)) {
+            // The end of a preallocated segment is a clean end, a partial record header is not
+            return stop(buffer.hasRemaining() && !isZero(buffer));
+        }
+        int bodySize = buffer.getInt(buffer.position());
+        int checksum = buffer.getInt(buffer.position() + 4);
+        if (bodySize == 0) {
+            return stop(false);
+        }
+        if (bodySize < 0 || bodySize > LogRecordFormat.MAX_RECORD_SIZE) {
+            return stop(true);
+        }
+        if (!fill(LogRecordFormat.RECORD_HEADER_SIZE + bodySize)) {
+            return stop(true);
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(buffer.position() + LogRecordFormat.RECORD_HEADER_SIZE);
+        body.limit(body.position() + bodySize);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return stop(true);
+        }
+
+        if (!body.hasArray()) {
+            // Decoding field by field is cheaper from a heap buffer, one bulk copy of the body pays for itself
+            if (bodyScratch == null || bodyScratch.capacity() < bodySize) {
+                bodyScratch = ByteBuffer.allocate(Math.max(bodySize, 1024));
+            }
+            bodyScratch.clear().put(0, body, body.position(), bodySize).limit(bodySize);
+            body = bodyScratch;
+        }
+        LogEntry entry;
+        try {
+            if (body.get(body.position()) == LogRecordFormat.OP_BATCH) {
+                if (inflater == null) {
+                    inflater = new Inflater(true);
+                }
+                body.get();
+                batch.addAll(LogBatchCompressor.decompress(body, inflater));
+                entry = batch.poll();
+            } else {
+                entry = decodeBody(body);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            batch.clear();
+            return stop(true);
+        }
+        if (entry == null || entry.getLsn() <= lastLsn) {
+            // Intact record left over from an earlier use of a recycled segment
+            batch.clear();
+            return stop(false);
+        }
+        lastLsn = entry.getLsn();
+        buffer.position(buffer.position() + LogRecordFormat.RECORD_HEADER_SIZE + bodySize);
+        validPosition += LogRecordFormat.RECORD_HEADER_SIZE + bodySize;
+        return entry;
+    }
+
+    /**
+     * @return file offset just past the last intact record returned by {@link #next()}
+     */
+    public long getValidPosition() {
+        return validPosition;
+    }
+
+    public long getSegmentId() {
+        return segmentId;
+    }
+
+    public long getBaseLsn() {
+        return baseLsn;
+    }
+
+    /**
+     * @return LSN of the last intact record returned by {@link #next()}, or the base LSN if there was none
+     */
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * @return true if reading stopped at an incomplete or corrupt record rather than at the clean end of the log
+     */
+    public boolean isTornTail() {
+        return tornTail;
+    }
+
+    static LogEntry decodeBody(ByteBuffer body) {
+        String operation = LogRecordFormat.operation(body.get());
+        long lsn = LogRecordFormat.getVarLong(body);
+        long transactionId = LogRecordFormat.getVarLong(body);
+        long timestamp = LogRecordFormat.getVarLong(body);
+        String table = getString(body);
+        String key = getString(body);
+        String oldValue = getString(body);
+        String newValue = getString(body);
+        return new LogEntry(lsn, transactionId, operation, table, key, oldValue, newValue, timestamp);
+    }
+
+    static String getString(ByteBuffer body) {
+        long length = LogRecordFormat.getVarLong(body) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > body.remaining()) {
+            throw new IllegalArgumentException("String length exceeds WAL record");
+        }
+        String value;
+        if (body.hasArray()) {
+            value = new String(body.array(), body.arrayOffset() + body.position(), (int) length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[(int) length];
+            body.get(body.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        body.position(body.position() + (int) length);
+        return value;
+    }
+
+    private static boolean isZero(ByteBuffer bytes) {
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            if (bytes.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private LogEntry stop(boolean torn) {
+        finished = true;
+        tornTail = torn;
+        if (inflater != null) {
+            inflater.end();
+        }
+        return null;
+    }
+
+    // Make sure at least the given number of bytes is buffered, returns false if the file ends before that
+    private boolean fill(int required) throws IOException {
+        if (buffer.remaining() >= required || channel == null) {
+            return buffer.remaining() >= required;
+        }
+        if (buffer.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < required) {
+            int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                break;
+            }
+            readPosition += read;
+        }
+        buffer.flip();
+        return buffer.remaining() >= required;
+    }
+}
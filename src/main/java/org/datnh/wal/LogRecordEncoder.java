@@ -0,0 +1,182 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * This class encodes log entries into the binary WAL record format described in {@link LogRecordFormat}.
+ * An encoder instance is not thread-safe, callers must make sure only one thread uses it at a time.
+ */
+class LogRecordEncoder {
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Encode a log entry into a new buffer holding exactly one framed record.
+     *
+     * @param entry the log entry to encode
+     * @return a buffer ready to be written, positioned at the start of the record
+     */
+    public ByteBuffer encode(LogEntry entry) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(entry, entry.getLsn()));
+        encode(entry, buffer);
+        return buffer.flip();
+    }
+
+    /**
+     * Encode a log entry as one framed record at the position of the given buffer, advancing it past the record.
+     * The buffer must have room for {@link #encodedSize(LogEntry, long)} bytes.
+     */
+    public void encode(LogEntry entry, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(0); // body length and CRC placeholders, filled in once the body is written
+        buffer.putInt(0);
+        buffer.put(LogRecordFormat.opCode(entry.getOperation()));
+        LogRecordFormat.putVarLong(buffer, entry.getLsn());
+        LogRecordFormat.putVarLong(buffer, entry.getTransactionId());
+        LogRecordFormat.putVarLong(buffer, entry.getTimestamp());
+        putString(buffer, entry.getTable());
+        putString(buffer, entry.getKey());
+        putString(buffer, entry.getOldValue());
+        putNewValue(buffer, entry);
+
+        int bodyStart = start + LogRecordFormat.RECORD_HEADER_SIZE;
+        int bodySize = buffer.position() - bodyStart;
+        crc.reset();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + bodyStart, bodySize);
+        } else {
+            // Checksummed in place rather than through a duplicate, the update moves the position back to the end
+            int limit = buffer.limit();
+            crc.update(buffer.position(bodyStart).limit(bodyStart + bodySize));
+            buffer.limit(limit);
+        }
+        buffer.putInt(start, bodySize);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Size of the framed record of a log entry once it is assigned the given LSN, computed without encoding it.
+     */
+    static int encodedSize(LogEntry entry, long lsn) {
+        return LogRecordFormat.RECORD_HEADER_SIZE + 1
+                + LogRecordFormat.varLongSize(lsn)
+                + LogRecordFormat.varLongSize(entry.getTransactionId())
+                + LogRecordFormat.varLongSize(entry.getTimestamp())
+                + stringSize(entry.getTable()) + stringSize(entry.getKey())
+                + stringSize(entry.getOldValue()) + newValueSize(entry);
+    }
+
+    /**
+     * Write the new value of an entry. The one of an INCREMENT entry is its delta in decimal, its digits are written
+     * from the number without formatting a string.
+     */
+    static void putNewValue(ByteBuffer buffer, LogEntry entry) {
+        if (!entry.isIncrement()) {
+            putString(buffer, entry.getNewValue());
+            return;
+        }
+        long delta = entry.getDelta();
+        int length = decimalLength(delta);
+        LogRecordFormat.putVarLong(buffer, length + 1L);
+        int end = buffer.position() + length;
+        // Digits from the last one, of the negated number so that Long.MIN_VALUE needs no special case
+        long rest = delta > 0 ? -delta : delta;
+        int position = end;
+        do {
+            buffer.put(--position, (byte) ('0' - rest % 10));
+            rest /= 10;
+        } while (rest != 0);
+        if (delta < 0) {
+            buffer.put(--position, (byte) '-');
+        }
+        buffer.position(end);
+    }
+
+    private static int newValueSize(LogEntry entry) {
+        if (!entry.isIncrement()) {
+            return stringSize(entry.getNewValue());
+        }
+        int length = decimalLength(entry.getDelta());
+        return LogRecordFormat.varLongSize(length + 1L) + length;
+    }
+
+    private static int decimalLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long rest = value > 0 ? -value : value; rest <= -10; rest /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int stringSize(String value) {
+        if (value == null) {
+            return 1;
+        }
+        int length = utf8Length(value);
+        return LogRecordFormat.varLongSize(length + 1L) + length;
+    }
+
+    // Same length as String.getBytes(UTF_8), which writes '?' for an unpaired surrogate
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a string like {@link #putString(ByteBuffer, byte[])}. ASCII strings, the common case for tables, keys and
+     * values, are copied char by char without encoding them into a temporary array first.
+     */
+    static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            LogRecordFormat.putVarLong(buffer, 0);
+            return;
+        }
+        int length = utf8Length(value);
+        LogRecordFormat.putVarLong(buffer, length + 1L);
+        int start = buffer.position();
+        if (length == value.length()) {
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    // An unpaired surrogate, encoded as '?'
+                    buffer.position(start);
+                    buffer.put(value.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buffer.put((byte) c);
+            }
+        } else {
+            buffer.put(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            LogRecordFormat.putVarLong(buffer, 0);
+        } else {
+            LogRecordFormat.putVarLong(buffer, value.length + 1L);
+            buffer.put(value);
+        }
+    }
+}
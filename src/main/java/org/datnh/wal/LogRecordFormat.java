@@ -0,0 +1,138 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers of the binary WAL record format.
+ * <pre>
+ * segment header : magic (4 bytes "WALB") | version (1 byte) | reserved (3 bytes) | segment id (int64)
+ *                  | base LSN (int64, LSN of the last record before this segment)
+ * record         : body length (int32) | CRC32C of body (int32) | body
+ * body           : op code (1 byte) | LSN (varint) | transaction id (varint) | timestamp (varint)
+ *                  | table | key | old value | new value
+ * string         : varint (UTF-8 length + 1, 0 means null) | UTF-8 bytes
+ * batch body     : op code (1 byte, {@link #OP_BATCH}) | first LSN (varint) | record count (varint)
+ *                  | payload length (varint) | payload compressed with raw deflate
+ * batch payload  : table count (varint) | table names (string each) | compact record for every record of the batch
+ * compact record : op code (1 byte) | LSN delta from the previous record (varint) | transaction id (varint)
+ *                  | timestamp delta from the previous record (zigzag varint) | table index + 1 (varint, 0 means null)
+ *                  | key | old value | new value
+ * </pre>
+ * Batch records are only written when WAL compression is enabled, see {@link LogBatchCompressor}. A segment may mix
+ * batch records and plain records.
+ * <br/> Segments are preallocated, so a body length of 0 marks the end of the written part of a segment.
+ * Recycled segments may still hold records of their previous use after that point, those are recognized because LSNs
+ * must be strictly increasing within a segment, starting after the base LSN.
+ */
+final class LogRecordFormat {
+    static final int MAGIC = 0x57414C42; // "WALB"
+    static final byte VERSION = 3;
+    // Segments of version 2 hold the same records without batches and stay readable
+    static final byte MIN_READABLE_VERSION = 2;
+    static final int SEGMENT_HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    // Upper bound of a single record body, anything larger is treated as corruption
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    static final byte OP_INSERT = 1;
+    static final byte OP_UPDATE = 2;
+    static final byte OP_DELETE = 3;
+    // Written after the last change of a transaction, recovery only replays transactions that have one
+    static final byte OP_COMMIT = 4;
+    // Written when a checkpoint begins (new value holds its redo LSN) and ends (new value holds the begin LSN)
+    static final byte OP_CHECKPOINT_BEGIN = 5;
+    static final byte OP_CHECKPOINT_END = 6;
+    // Holds several compressed records, never returned as a log entry itself
+    static final byte OP_BATCH = 7;
+    // Commits a bulk load whose rows were written straight to the data file (key holds the load id, new value the
+    // number of rows and their checksum)
+    static final byte OP_BULK_LOAD = 8;
+    // Adds a number to the value of a row (new value holds only the delta), see Transaction#increment
+    static final byte OP_INCREMENT = 9;
+
+    private LogRecordFormat() {
+    }
+
+    static byte opCode(String operation) {
+        switch (operation) {
+            case "INSERT":
+                return OP_INSERT;
+            case "UPDATE":
+                return OP_UPDATE;
+            case "DELETE":
+                return OP_DELETE;
+            case "COMMIT":
+                return OP_COMMIT;
+            case "CHECKPOINT_BEGIN":
+                return OP_CHECKPOINT_BEGIN;
+            case "CHECKPOINT_END":
+                return OP_CHECKPOINT_END;
+            case "BULK_LOAD":
+                return OP_BULK_LOAD;
+            case "INCREMENT":
+                return OP_INCREMENT;
+            default:
+                throw new IllegalArgumentException("Unknown WAL operation: " + operation);
+        }
+    }
+
+    static String operation(byte opCode) {
+        switch (opCode) {
+            case OP_INSERT:
+                return "INSERT";
+            case OP_UPDATE:
+                return "UPDATE";
+            case OP_DELETE:
+                return "DELETE";
+            case OP_COMMIT:
+                return "COMMIT";
+            case OP_CHECKPOINT_BEGIN:
+                return "CHECKPOINT_BEGIN";
+            case OP_CHECKPOINT_END:
+                return "CHECKPOINT_END";
+            case OP_BULK_LOAD:
+                return "BULK_LOAD";
+            case OP_INCREMENT:
+                return "INCREMENT";
+            default:
+                throw new IllegalArgumentException("Unknown WAL op code: " + opCode);
+        }
+    }
+
+    static ByteBuffer segmentHeader(long segmentId, long baseLsn) {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC).put(VERSION).put((byte) 0).put((byte) 0).put((byte) 0);
+        header.putLong(segmentId).putLong(baseLsn);
+        return header.flip();
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in WAL record");
+    }
+}
@@ -0,0 +1,117 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class is one stream of the WAL: a directory of segments, the log buffer committing threads copy its records
+ * into and, in group commit mode, the group committer that shares its forces.
+ * <br/> A WAL has a single stream in its directory unless {@link WALConfig#logStreams(int)} asks for more, the other
+ * streams are kept in the subdirectories {@code stream-1, stream-2, ...}. Streams append, drain and force independently
+ * of each other, while their LSNs come from one shared sequence, so LSNs stay one global order for snapshots, page
+ * LSNs and checkpoints. All changes of a row go to the same stream.
+ * <br/> A transaction changing rows of several streams writes a part to each of them, every part ending with a commit
+ * record that counts the parts. Recovery merges the streams in LSN order and only replays a transaction once the commit
+ * records of all its parts were read, so a crash between the forces of two streams never leaves half a transaction.
+ */
+class LogStream {
+    static final String DIRECTORY_PREFIX = "stream-";
+
+    private final SegmentedLog log;
+    private final LogBuffer buffer;
+    // Null when group commit is disabled
+    private final GroupCommitter groupCommitter;
+    // Every record of this stream up to this LSN is forced to disk
+    private final AtomicLong durableLsn;
+
+    /**
+     * @param sequence LSNs shared by all streams of the WAL, null for the only stream of a WAL
+     */
+    LogStream(WriteAheadLog wal, Path directory, WALConfig config, WALMetrics metrics, AtomicLong sequence)
+            throws IOException {
+        this.log = new SegmentedLog(directory, config.getSegmentSize(), config.getMaxSpareSegments());
+        List<WALSegmentInfo> segments = log.listSegments();
+        long lastLsn = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getLastLsn();
+        this.durableLsn = new AtomicLong(lastLsn);
+        LogBatchCompressor compressor = config.isCompression() ? new LogBatchCompressor(config.getCompressionLevel()) : null;
+        this.buffer = new LogBuffer(log, config.getLogBufferSize(), lastLsn, metrics, compressor, sequence);
+        this.groupCommitter = config.isGroupCommit() ? new GroupCommitter(wal, this, config) : null;
+    }
+
+    /**
+     * @return directory of the stream with the given id, the WAL directory itself for the first stream
+     */
+    static Path directory(Path walDirectory, int id) {
+        return id == 0 ? walDirectory : walDirectory.resolve(DIRECTORY_PREFIX + id);
+    }
+
+    /**
+     * @return number of streams a WAL directory already holds, 1 for a new or single-stream WAL
+     */
+    static int countStreams(Path walDirectory) throws IOException {
+        if (!Files.isDirectory(walDirectory)) {
+            return 1;
+        }
+        try (Stream<Path> files = Files.list(walDirectory)) {
+            int streams = 1;
+            for (Path file : files.filter(Files::isDirectory).collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(DIRECTORY_PREFIX)) {
+                    streams = Math.max(streams, Integer.parseInt(name.substring(DIRECTORY_PREFIX.length())) + 1);
+                }
+            }
+            return streams;
+        }
+    }
+
+    SegmentedLog getLog() {
+        return log;
+    }
+
+    LogBuffer getBuffer() {
+        return buffer;
+    }
+
+    GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    /**
+     * @return LSN of the last record reserved in this stream
+     */
+    long getCurrentLsn() {
+        return buffer.getCurrentLsn();
+    }
+
+    long getDurableLsn() {
+        return durableLsn.get();
+    }
+
+    void durable(long lsn) {
+        durableLsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    /**
+     * @return an LSN up to which every record of this stream is durable, {@link Long#MAX_VALUE} when none is waiting
+     * to be forced
+     */
+    long getDurableBound() {
+        // Read before the tail, a reservation that completes in between is then part of the tail
+        long reservingLsn = buffer.getReservingLsn();
+        long durable = durableLsn.get();
+        long bound = durable < buffer.getCurrentLsn() ? durable : Long.MAX_VALUE;
+        return Math.min(bound, reservingLsn - 1);
+    }
+
+    /**
+     * @return true if a record of this stream up to the given LSN is not durable yet
+     */
+    boolean isPending(long lsn) {
+        return durableLsn.get() < Math.min(lsn, buffer.getCurrentLsn());
+    }
+}
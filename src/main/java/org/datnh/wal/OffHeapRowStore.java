@@ -0,0 +1,416 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * This class keeps the rows of the buffer pool outside the Java heap, so tens of millions of rows do not add to the
+ * work of the garbage collector.
+ * <br/> Rows are appended to direct byte buffer slabs of 64MB. A row that is updated with a value that fits into the
+ * space reserved for its old value is changed in place, otherwise it is appended again and the old copy becomes
+ * garbage. The slabs are compacted once they hold more garbage than live rows.
+ * <br/> The index is an open-addressing hash table with linear probing, also in a direct buffer, that maps the hash of
+ * table and key to the address of the row. Whether a row is dirty is a bit in the row header.
+ * <pre>
+ * row: flags (1 byte: dirty, dead) | padding (3 bytes) | hash (int32) | LSN (int64) | dirty version (int64)
+ *      | table length (uint16) | key length (uint16) | value length (int32) | value capacity (int32)
+ *      | table (UTF-8) | key (UTF-8) | value (UTF-8), padded to 8 bytes
+ * </pre>
+ * Not thread-safe, the buffer pool calls it while holding its lock.
+ */
+class OffHeapRowStore {
+    private static final int SLAB_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 36;
+    private static final byte DIRTY = 1;
+    private static final byte DEAD = 2;
+    private static final int MAX_INDEX_SLOTS = 1 << 27;
+
+    private static final int FLAGS = 0;
+    private static final int HASH = 4;
+    private static final int LSN = 8;
+    private static final int VERSION = 16;
+    private static final int TABLE_LENGTH = 24;
+    private static final int KEY_LENGTH = 26;
+    private static final int VALUE_LENGTH = 28;
+    private static final int VALUE_CAPACITY = 32;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    // Next free offset in the last slab, offset 0 is never used so that address 0 can mark an empty index slot
+    private int slabPosition;
+    private ByteBuffer index;
+    private int indexMask;
+    private int rowCount;
+    private int dirtyCount;
+    private long liveBytes;
+    private long deadBytes;
+    private long dirtyVersionCounter;
+
+    OffHeapRowStore() {
+        slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        slabPosition = 8;
+        index = ByteBuffer.allocateDirect(1024 * 8);
+        indexMask = 1023;
+    }
+
+    /**
+     * Insert or replace a row.
+     *
+     * @param dirty true to mark the row dirty with the given LSN, false to keep it clean
+     */
+    public void put(String table, String key, String value, long lsn, boolean dirty) {
+        byte[] tableBytes = table.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(tableBytes, keyBytes);
+        int slot = findSlot(hash, tableBytes, keyBytes);
+        long address = index.getLong(slot * 8);
+
+        if (address != 0) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            if (valueBytes.length <= slab.getInt(offset + VALUE_CAPACITY)) {
+                int valueOffset = offset + HEADER_SIZE + tableBytes.length + keyBytes.length;
+                slab.put(valueOffset, valueBytes);
+                slab.putInt(offset + VALUE_LENGTH, valueBytes.length);
+                markDirty(slab, offset, lsn, dirty);
+                return;
+            }
+            // The value grew, the row is appended again and the old copy becomes garbage
+            boolean wasDirty = isDirty(slab, offset);
+            slab.put(offset + FLAGS, DEAD);
+            int size = rowSize(tableBytes.length, keyBytes.length, slab.getInt(offset + VALUE_CAPACITY));
+            liveBytes -= size;
+            deadBytes += size;
+            rowCount--;
+            if (wasDirty) {
+                dirtyCount--;
+            }
+        }
+
+        long newAddress = append(hash, tableBytes, keyBytes, valueBytes);
+        index.putLong(slot * 8, newAddress);
+        rowCount++;
+        markDirty(slab(newAddress), offset(newAddress), lsn, dirty);
+        if (address == 0 && rowCount > (indexMask + 1) * 0.7) {
+            growIndex();
+        }
+        if (deadBytes > SLAB_SIZE && deadBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * @return the value of the row, or null if there is no such row
+     */
+    public String get(String table, String key) {
+        long address = find(table, key);
+        return address == 0 ? null : value(slab(address), offset(address));
+    }
+
+    /**
+     * Add a number to the value of a row, a row without a value counts as 0. Increments of a row may be applied out of
+     * LSN order, a dirty row keeps the highest LSN so a checkpoint does not take it for clean too early.
+     */
+    public void increment(String table, String key, long delta, long lsn) {
+        long address = find(table, key);
+        String value = null;
+        if (address != 0) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            value = value(slab, offset);
+            if (isDirty(slab, offset)) {
+                lsn = Math.max(lsn, slab.getLong(offset + LSN));
+            }
+        }
+        put(table, key, LogEntry.increment(value, delta), lsn, true);
+    }
+
+    /**
+     * @return true if the row exists and changed since it was last marked clean
+     */
+    public boolean isDirty(String table, String key) {
+        long address = find(table, key);
+        return address != 0 && isDirty(slab(address), offset(address));
+    }
+
+    /**
+     * @return the rows of a table with a key from fromKey inclusive to toKey exclusive, in key order. The index is not
+     * ordered, so every row of the store is visited
+     */
+    public List<Map.Entry<String, String>> range(String table, String fromKey, String toKey) {
+        byte[] tableBytes = table.getBytes(StandardCharsets.UTF_8);
+        List<Map.Entry<String, String>> rows = new ArrayList<>();
+        forEachRow((slab, offset) -> {
+            if (!isTable(slab, offset, tableBytes)) {
+                return;
+            }
+            String key = key(slab, offset);
+            if (key.compareTo(fromKey) >= 0 && (toKey == null || key.compareTo(toKey) < 0)) {
+                rows.add(Map.entry(key, value(slab, offset)));
+            }
+        });
+        rows.sort(Map.Entry.comparingByKey());
+        return rows;
+    }
+
+    /**
+     * Clear the dirty bit of a row, unless it was changed again since the given dirty version was taken.
+     */
+    public void markClean(String table, String key, long dirtyVersion) {
+        long address = find(table, key);
+        if (address == 0) {
+            return;
+        }
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte flags = slab.get(offset + FLAGS);
+        if ((flags & DIRTY) != 0 && slab.getLong(offset + VERSION) == dirtyVersion) {
+            slab.put(offset + FLAGS, (byte) (flags & ~DIRTY));
+            dirtyCount--;
+        }
+    }
+
+    /**
+     * @return the dirty rows, by page id {@code table:key}
+     */
+    public Map<String, BufferPool.DirtyPage> getDirtyPages() {
+        Map<String, BufferPool.DirtyPage> dirtyPages = new HashMap<>();
+        forEachRow((slab, offset) -> {
+            if (isDirty(slab, offset)) {
+                dirtyPages.put(table(slab, offset) + ":" + key(slab, offset),
+                        new BufferPool.DirtyPage(slab.getLong(offset + LSN), slab.getLong(offset + VERSION)));
+            }
+        });
+        return dirtyPages;
+    }
+
+    /**
+     * Call the action for every live row with the slab and the offset of the row.
+     */
+    public void forEachRow(BiConsumer<ByteBuffer, Integer> action) {
+        for (int slot = 0; slot <= indexMask; slot++) {
+            long address = index.getLong(slot * 8);
+            if (address != 0) {
+                action.accept(slab(address), offset(address));
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @return off-heap bytes held by the slabs and the index
+     */
+    public long getAllocatedBytes() {
+        return (long) slabs.size() * SLAB_SIZE + index.capacity();
+    }
+
+    static String table(ByteBuffer slab, int offset) {
+        return string(slab, offset + HEADER_SIZE, slab.getChar(offset + TABLE_LENGTH));
+    }
+
+    static String key(ByteBuffer slab, int offset) {
+        return string(slab, offset + HEADER_SIZE + slab.getChar(offset + TABLE_LENGTH), slab.getChar(offset + KEY_LENGTH));
+    }
+
+    static String value(ByteBuffer slab, int offset) {
+        int valueOffset = offset + HEADER_SIZE + slab.getChar(offset + TABLE_LENGTH) + slab.getChar(offset + KEY_LENGTH);
+        return string(slab, valueOffset, slab.getInt(offset + VALUE_LENGTH));
+    }
+
+    static boolean isDirty(ByteBuffer slab, int offset) {
+        return (slab.get(offset + FLAGS) & DIRTY) != 0;
+    }
+
+    private static String string(ByteBuffer slab, int position, int length) {
+        byte[] bytes = new byte[length];
+        slab.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void markDirty(ByteBuffer slab, int offset, long lsn, boolean dirty) {
+        if (!dirty) {
+            return;
+        }
+        byte flags = slab.get(offset + FLAGS);
+        if ((flags & DIRTY) == 0) {
+            slab.put(offset + FLAGS, (byte) (flags | DIRTY));
+            dirtyCount++;
+        }
+        slab.putLong(offset + LSN, lsn);
+        slab.putLong(offset + VERSION, ++dirtyVersionCounter);
+    }
+
+    private long find(String table, String key) {
+        byte[] tableBytes = table.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return index.getLong(findSlot(hash(tableBytes, keyBytes), tableBytes, keyBytes) * 8);
+    }
+
+    // Slot holding the row, or the empty slot where it would be inserted
+    private int findSlot(int hash, byte[] table, byte[] key) {
+        int slot = hash & indexMask;
+        while (true) {
+            long address = index.getLong(slot * 8);
+            if (address == 0 || matches(address, hash, table, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    // Compares the table of a row without decoding it
+    private static boolean isTable(ByteBuffer slab, int offset, byte[] table) {
+        if (slab.getChar(offset + TABLE_LENGTH) != table.length) {
+            return false;
+        }
+        int position = offset + HEADER_SIZE;
+        for (byte b : table) {
+            if (slab.get(position++) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(long address, int hash, byte[] table, byte[] key) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        if (slab.getInt(offset + HASH) != hash || slab.getChar(offset + TABLE_LENGTH) != table.length
+                || slab.getChar(offset + KEY_LENGTH) != key.length) {
+            return false;
+        }
+        int position = offset + HEADER_SIZE;
+        for (byte b : table) {
+            if (slab.get(position++) != b) {
+                return false;
+            }
+        }
+        for (byte b : key) {
+            if (slab.get(position++) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(int hash, byte[] table, byte[] key, byte[] value) {
+        int size = rowSize(table.length, key.length, value.length);
+        if (size > SLAB_SIZE - 8) {
+            throw new IllegalArgumentException("Row is larger than a slab: " + size + " bytes");
+        }
+        if (slabPosition + size > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            slabPosition = 8;
+        }
+        ByteBuffer slab = slabs.get(slabs.size() - 1);
+        int offset = slabPosition;
+        slab.put(offset + FLAGS, (byte) 0);
+        slab.putInt(offset + HASH, hash);
+        slab.putLong(offset + LSN, 0);
+        slab.putLong(offset + VERSION, 0);
+        slab.putChar(offset + TABLE_LENGTH, (char) table.length);
+        slab.putChar(offset + KEY_LENGTH, (char) key.length);
+        slab.putInt(offset + VALUE_LENGTH, value.length);
+        slab.putInt(offset + VALUE_CAPACITY, size - HEADER_SIZE - table.length - key.length);
+        slab.put(offset + HEADER_SIZE, table);
+        slab.put(offset + HEADER_SIZE + table.length, key);
+        slab.put(offset + HEADER_SIZE + table.length + key.length, value);
+        slabPosition += size;
+        liveBytes += size;
+        return address(slabs.size() - 1, offset);
+    }
+
+    private void growIndex() {
+        int slots = (indexMask + 1) * 2;
+        if (slots > MAX_INDEX_SLOTS) {
+            throw new IllegalStateException("Off-heap index is full with " + rowCount + " rows");
+        }
+        ByteBuffer oldIndex = index;
+        int oldMask = indexMask;
+        index = ByteBuffer.allocateDirect(slots * 8);
+        indexMask = slots - 1;
+        for (int slot = 0; slot <= oldMask; slot++) {
+            long address = oldIndex.getLong(slot * 8);
+            if (address != 0) {
+                reinsert(address);
+            }
+        }
+    }
+
+    private void reinsert(long address) {
+        int slot = slab(address).getInt(offset(address) + HASH) & indexMask;
+        while (index.getLong(slot * 8) != 0) {
+            slot = (slot + 1) & indexMask;
+        }
+        index.putLong(slot * 8, address);
+    }
+
+    // Copy the live rows into new slabs, the index slots are updated in place
+    private void compact() {
+        List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+        slabs.clear();
+        slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+        slabPosition = 8;
+        liveBytes = 0;
+        deadBytes = 0;
+        for (int slot = 0; slot <= indexMask; slot++) {
+            long address = index.getLong(slot * 8);
+            if (address == 0) {
+                continue;
+            }
+            ByteBuffer oldSlab = oldSlabs.get((int) (address >>> 32));
+            int offset = offset(address);
+            int size = rowSize(oldSlab.getChar(offset + TABLE_LENGTH), oldSlab.getChar(offset + KEY_LENGTH),
+                    oldSlab.getInt(offset + VALUE_CAPACITY));
+            if (slabPosition + size > SLAB_SIZE) {
+                slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+                slabPosition = 8;
+            }
+            slabs.get(slabs.size() - 1).put(slabPosition, oldSlab, offset, size);
+            index.putLong(slot * 8, address(slabs.size() - 1, slabPosition));
+            slabPosition += size;
+            liveBytes += size;
+        }
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int rowSize(int tableLength, int keyLength, int valueCapacity) {
+        return (HEADER_SIZE + tableLength + keyLength + valueCapacity + 7) & ~7;
+    }
+
+    private static int hash(byte[] table, byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : table) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash = (hash ^ ':') * 0x01000193;
+        for (byte b : key) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        // Spread the bits so the low bits used for the slot depend on the whole key
+        return hash ^ (hash >>> 16);
+    }
+}
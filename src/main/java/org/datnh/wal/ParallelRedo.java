@@ -0,0 +1,137 @@
+package org.datnh.wal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class applies the changes of committed transactions to the buffer pool during recovery, spread over several
+ * threads.
+ * <br/> Changes are partitioned by the hash of table and key. All changes to one key go to the same partition and
+ * each partition is applied by a single worker in the order the changes were submitted, so per-key LSN order is kept.
+ * With a single partition the changes are applied directly by the submitting thread.
+ */
+class ParallelRedo {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final List<LogEntry> END_OF_REDO = Collections.emptyList();
+
+    private final WriteAheadLog wal;
+    private final int partitions;
+    private final ForkJoinPool pool;
+    private final List<BlockingQueue<List<LogEntry>>> queues = new ArrayList<>();
+    private final List<ForkJoinTask<?>> workers = new ArrayList<>();
+    private final List<List<LogEntry>> pendingChunks = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long applied = 0;
+
+    public ParallelRedo(WriteAheadLog wal, int partitions) {
+        this.wal = wal;
+        this.partitions = partitions;
+        if (partitions <= 1) {
+            this.pool = null;
+            return;
+        }
+
+        this.pool = new ForkJoinPool(partitions);
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<List<LogEntry>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            pendingChunks.add(new ArrayList<>(CHUNK_SIZE));
+            workers.add(pool.submit(() -> drain(queue)));
+        }
+    }
+
+    /**
+     * Submit the changes of one committed transaction, in LSN order.
+     */
+    public void submit(List<LogEntry> changes) throws InterruptedException {
+        checkFailure();
+        if (pool == null) {
+            for (LogEntry entry : changes) {
+                wal.redo(entry);
+            }
+            applied += changes.size();
+            return;
+        }
+
+        for (LogEntry entry : changes) {
+            int partition = partitionOf(entry);
+            List<LogEntry> chunk = pendingChunks.get(partition);
+            chunk.add(entry);
+            if (chunk.size() == CHUNK_SIZE) {
+                queues.get(partition).put(chunk);
+                pendingChunks.set(partition, new ArrayList<>(CHUNK_SIZE));
+            }
+        }
+        applied += changes.size();
+    }
+
+    /**
+     * Wait until all submitted changes are applied and stop the workers.
+     *
+     * @return number of changes applied
+     */
+    public long finish() throws InterruptedException {
+        if (pool != null) {
+            try {
+                for (int i = 0; i < partitions; i++) {
+                    if (!pendingChunks.get(i).isEmpty()) {
+                        queues.get(i).put(pendingChunks.get(i));
+                    }
+                    queues.get(i).put(END_OF_REDO);
+                }
+                for (ForkJoinTask<?> worker : workers) {
+                    worker.join();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        checkFailure();
+        return applied;
+    }
+
+    private int partitionOf(LogEntry entry) {
+        int hash = 31 * entry.getTable().hashCode() + entry.getKey().hashCode();
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+
+    private void drain(BlockingQueue<List<LogEntry>> queue) {
+        try {
+            while (true) {
+                List<LogEntry> chunk = queue.take();
+                if (chunk == END_OF_REDO) {
+                    return;
+                }
+                for (LogEntry entry : chunk) {
+                    wal.redo(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            // keep draining until the end marker so the submitter does not block on a full queue
+            try {
+                while (queue.take() != END_OF_REDO) {
+                    // discard
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new RuntimeException("Redo failed during recovery", error);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.datnh.wal;
+
+/**
+ * How long a committing transaction waits for a hot standby when the primary ships its log, see {@link WALSender}.
+ * Every mode first waits for the local disk as usual. A commit with {@link Durability#ASYNC} never waits for the standby.
+ */
+enum ReplicationMode {
+    /**
+     * The commit does not wait for the standby. A failover loses the commits the standby had not received yet.
+     */
+    ASYNC,
+
+    /**
+     * The commit waits until the standby has received its records. A failover only loses them if the standby fails too
+     * before it forces them.
+     */
+    SEMI_SYNC,
+
+    /**
+     * The commit waits until the standby has forced its records and applied them, so a read on the standby right
+     * after the commit sees its changes.
+     */
+    SYNC
+}
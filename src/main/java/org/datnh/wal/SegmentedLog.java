@@ -0,0 +1,174 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class stores the WAL as a sequence of fixed-size segment files in one directory.
+ * <br/> Records are appended to the active segment, when it is full a new segment is started (rotation).
+ * Segments that only hold records below the last checkpoint are no longer needed for recovery, they are either kept
+ * as spare files to be recycled by a later rotation or deleted.
+ */
+class SegmentedLog {
+    private static final String SPARE_SUFFIX = ".spare";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSpareSegments;
+
+    private final List<WALSegment> segments = new ArrayList<>();
+    private final Deque<Path> spareSegments = new ArrayDeque<>();
+    // Segments with appended records that have not been forced yet
+    private final List<WALSegment> unflushed = new ArrayList<>();
+    private long nextSpareId = 0;
+    // Total number of bytes appended since the log was opened
+    private volatile long appendedBytes = 0;
+
+    public SegmentedLog(Path directory, int segmentSize, int maxSpareSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSpareSegments = maxSpareSegments;
+        Files.createDirectories(directory);
+
+        List<Path> segmentFiles = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted().collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(WALSegment.SUFFIX)) {
+                    segmentFiles.add(file);
+                } else if (name.endsWith(SPARE_SUFFIX)) {
+                    spareSegments.add(file);
+                    nextSpareId++;
+                } else if (name.endsWith(".tmp")) {
+                    // Left over from an interrupted preallocation
+                    Files.delete(file);
+                }
+            }
+        }
+
+        // Only the last segment is scanned, earlier segments end where the next one begins
+        for (int i = 0; i < segmentFiles.size(); i++) {
+            boolean last = i == segmentFiles.size() - 1;
+            long nextBaseLsn = last ? -1 : WALSegment.readBaseLsn(segmentFiles.get(i + 1));
+            segments.add(WALSegment.open(segmentFiles.get(i), nextBaseLsn));
+        }
+    }
+
+    /**
+     * Append a framed record to the active segment, rotating to a new segment if it does not fit.
+     */
+    public void append(ByteBuffer record, long lsn) throws IOException {
+        append(record, lsn, lsn);
+    }
+
+    /**
+     * Append a framed record holding the records from the first to the last LSN, such as a compressed batch.
+     */
+    public synchronized void append(ByteBuffer record, long firstLsn, long lastLsn) throws IOException {
+        int length = record.remaining();
+        WALSegment active = getActiveSegment();
+        if (active == null || !active.append(record, lastLsn)) {
+            active = rotate(firstLsn - 1);
+            if (!active.append(record, lastLsn)) {
+                throw new IOException("WAL record of " + record.remaining() + " bytes exceeds segment size " + segmentSize);
+            }
+        }
+        if (unflushed.isEmpty() || unflushed.get(unflushed.size() - 1) != active) {
+            unflushed.add(active);
+        }
+        appendedBytes += length;
+    }
+
+    /**
+     * @return the size of the largest framed record that fits into an empty segment
+     */
+    public int getMaxRecordSize() {
+        return segmentSize - LogRecordFormat.SEGMENT_HEADER_SIZE;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    /**
+     * Force all records appended since the previous force to disk.
+     */
+    public synchronized void force() {
+        for (WALSegment segment : unflushed) {
+            segment.force();
+        }
+        unflushed.clear();
+    }
+
+    private WALSegment rotate(long baseLsn) throws IOException {
+        long id = segments.isEmpty() ? 1 : getActiveSegment().getId() + 1;
+        WALSegment segment = WALSegment.create(directory, id, baseLsn, segmentSize, spareSegments.poll());
+        segments.add(segment);
+        if (WALTrace.ENABLED) {
+            System.out.println("  [WAL] Rotated to segment " + segment.getPath().getFileName());
+        }
+        return segment;
+    }
+
+    private WALSegment getActiveSegment() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Recycle or delete every segment whose records all have an LSN at or below the given LSN.
+     * The active segment is always kept.
+     *
+     * @param lsn LSN up to which all changes are persisted in the data files
+     * @return number of segments released
+     */
+    public synchronized int releaseSegmentsUpTo(long lsn) throws IOException {
+        int released = 0;
+        while (segments.size() > 1 && segments.get(0).getLastLsn() <= lsn) {
+            WALSegment segment = segments.remove(0);
+            segment.close();
+            if (spareSegments.size() < maxSpareSegments) {
+                Path spare = directory.resolve(String.format("%020d%s", nextSpareId++, SPARE_SUFFIX));
+                Files.move(segment.getPath(), spare);
+                spareSegments.add(spare);
+            } else {
+                Files.delete(segment.getPath());
+            }
+            released++;
+        }
+        return released;
+    }
+
+    /**
+     * @return the segments in log order
+     */
+    public synchronized List<WALSegment> getSegments() {
+        return new ArrayList<>(segments);
+    }
+
+    public synchronized List<WALSegmentInfo> listSegments() {
+        List<WALSegmentInfo> infos = new ArrayList<>(segments.size());
+        for (WALSegment segment : segments) {
+            infos.add(new WALSegmentInfo(segment));
+        }
+        return infos;
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        for (WALSegment segment : segments) {
+            segment.close();
+        }
+    }
+}
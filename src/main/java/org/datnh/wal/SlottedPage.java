@@ -0,0 +1,276 @@
+package org.datnh.wal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * This class represents one fixed-size page of the data file, holding rows of a single table in a slotted layout.
+ * <br/> The slot directory grows from the front of the page and the cells grow from the back, so rows of different
+ * lengths can be added, resized and removed without moving the other slots. A row keeps its slot for its whole
+ * lifetime in the page, deleting a row only clears the length of its slot so the slot can be reused.
+ * <br/> Every cell carries the LSN of the change it was written for, the page LSN is the highest of them.
+ * <pre>
+ * header: page LSN (int64) | CRC32C of the rest of the page (int32) | table id (int32) | slot count (uint16)
+ *         | start of the cell area (uint16) | reserved (int32)
+ * slot:   cell offset (uint16) | cell length (uint16), a length of 0 marks a free slot
+ * cell:   LSN (int64) | key length (uint16) | key (UTF-8) | value (UTF-8)
+ * </pre>
+ */
+class SlottedPage {
+    static final int HEADER_SIZE = 24;
+    static final int SLOT_SIZE = 4;
+    static final int CELL_HEADER_SIZE = 10;
+
+    private static final int PAGE_LSN_OFFSET = 0;
+    private static final int CHECKSUM_OFFSET = 8;
+    private static final int TABLE_ID_OFFSET = 12;
+    private static final int SLOT_COUNT_OFFSET = 16;
+    private static final int CELL_START_OFFSET = 18;
+
+    private final int pageNumber;
+    private final ByteBuffer buffer;
+    private boolean dirty;
+
+    private SlottedPage(int pageNumber, ByteBuffer buffer) {
+        this.pageNumber = pageNumber;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Create an empty page for the given table.
+     */
+    static SlottedPage create(int pageNumber, int pageSize, int tableId) {
+        SlottedPage page = new SlottedPage(pageNumber, ByteBuffer.allocate(pageSize));
+        page.buffer.putInt(TABLE_ID_OFFSET, tableId);
+        page.buffer.putChar(CELL_START_OFFSET, (char) pageSize);
+        page.dirty = true;
+        return page;
+    }
+
+    /**
+     * Wrap a page read from the data file.
+     *
+     * @return the page, or null if its checksum does not match its content
+     */
+    static SlottedPage wrap(int pageNumber, ByteBuffer buffer) {
+        SlottedPage page = new SlottedPage(pageNumber, buffer);
+        return page.checksum() == buffer.getInt(CHECKSUM_OFFSET) ? page : null;
+    }
+
+    /**
+     * @return the largest key and value, in encoded bytes, that fit into an empty page
+     */
+    static int maxCellPayload(int pageSize) {
+        return pageSize - HEADER_SIZE - SLOT_SIZE - CELL_HEADER_SIZE;
+    }
+
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    public int getTableId() {
+        return buffer.getInt(TABLE_ID_OFFSET);
+    }
+
+    /**
+     * @return the page LSN of a page image at the given offset of a buffer, without wrapping it
+     */
+    static long readPageLsn(ByteBuffer pages, int offset) {
+        return pages.getLong(offset + PAGE_LSN_OFFSET);
+    }
+
+    public long getPageLsn() {
+        return buffer.getLong(PAGE_LSN_OFFSET);
+    }
+
+    public int getSlotCount() {
+        return buffer.getChar(SLOT_COUNT_OFFSET);
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public boolean isLive(int slot) {
+        return cellLength(slot) > 0;
+    }
+
+    public long getLsn(int slot) {
+        return buffer.getLong(cellOffset(slot));
+    }
+
+    public String getKey(int slot) {
+        int offset = cellOffset(slot);
+        int keyLength = buffer.getChar(offset + 8);
+        return new String(buffer.array(), offset + CELL_HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+    }
+
+    public String getValue(int slot) {
+        int offset = cellOffset(slot);
+        int keyLength = buffer.getChar(offset + 8);
+        int valueOffset = offset + CELL_HEADER_SIZE + keyLength;
+        return new String(buffer.array(), valueOffset, offset + cellLength(slot) - valueOffset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add a row to the page, compacting the cell area first if the free space is fragmented.
+     *
+     * @return the slot of the row, or -1 if the page does not have enough room
+     */
+    public int insert(byte[] key, byte[] value, long lsn) {
+        int cellLength = CELL_HEADER_SIZE + key.length + value.length;
+        int slot = findFreeSlot();
+        int slotBytes = slot == getSlotCount() ? SLOT_SIZE : 0;
+        if (contiguousFreeSpace() < cellLength + slotBytes) {
+            if (totalFreeSpace() < cellLength + slotBytes) {
+                return -1;
+            }
+            compact();
+        }
+
+        int cellStart = buffer.getChar(CELL_START_OFFSET) - cellLength;
+        writeCell(cellStart, key, value, lsn);
+        buffer.putChar(CELL_START_OFFSET, (char) cellStart);
+        if (slot == getSlotCount()) {
+            buffer.putChar(SLOT_COUNT_OFFSET, (char) (slot + 1));
+        }
+        setSlot(slot, cellStart, cellLength);
+        touch(lsn);
+        return slot;
+    }
+
+    /**
+     * Add a row to a page that never had a row deleted, as pages built by a bulk load, without looking for a free slot.
+     *
+     * @return the slot of the row, or -1 if the page does not have enough room
+     */
+    public int append(byte[] key, byte[] value, long lsn) {
+        int cellLength = CELL_HEADER_SIZE + key.length + value.length;
+        int slot = getSlotCount();
+        if (contiguousFreeSpace() < cellLength + SLOT_SIZE) {
+            return -1;
+        }
+        int cellStart = buffer.getChar(CELL_START_OFFSET) - cellLength;
+        writeCell(cellStart, key, value, lsn);
+        buffer.putChar(CELL_START_OFFSET, (char) cellStart);
+        buffer.putChar(SLOT_COUNT_OFFSET, (char) (slot + 1));
+        setSlot(slot, cellStart, cellLength);
+        touch(lsn);
+        return slot;
+    }
+
+    /**
+     * Add the bytes of a row that follow the LSN of its cell, key length, key and value, to a checksum.
+     */
+    void checksumRow(int slot, Checksum checksum) {
+        checksum.update(buffer.array(), cellOffset(slot) + 8, cellLength(slot) - 8);
+    }
+
+    /**
+     * Replace the value of a row in place.
+     *
+     * @return false if the new value does not fit into the cell of the row, nothing is changed then
+     */
+    public boolean update(int slot, byte[] key, byte[] value, long lsn) {
+        int cellLength = CELL_HEADER_SIZE + key.length + value.length;
+        if (cellLength > cellLength(slot)) {
+            return false;
+        }
+        int offset = cellOffset(slot);
+        writeCell(offset, key, value, lsn);
+        // The unused tail of the old cell is reclaimed by the next compaction
+        setSlot(slot, offset, cellLength);
+        touch(lsn);
+        return true;
+    }
+
+    public void delete(int slot) {
+        setSlot(slot, 0, 0);
+        dirty = true;
+    }
+
+    /**
+     * Fill in the checksum and return the page content to be written to the data file.
+     */
+    public ByteBuffer seal() {
+        buffer.putInt(CHECKSUM_OFFSET, checksum());
+        dirty = false;
+        return buffer.duplicate().clear();
+    }
+
+    private void writeCell(int offset, byte[] key, byte[] value, long lsn) {
+        buffer.putLong(offset, lsn);
+        buffer.putChar(offset + 8, (char) key.length);
+        System.arraycopy(key, 0, buffer.array(), offset + CELL_HEADER_SIZE, key.length);
+        System.arraycopy(value, 0, buffer.array(), offset + CELL_HEADER_SIZE + key.length, value.length);
+    }
+
+    private void touch(long lsn) {
+        if (lsn > getPageLsn()) {
+            buffer.putLong(PAGE_LSN_OFFSET, lsn);
+        }
+        dirty = true;
+    }
+
+    private int findFreeSlot() {
+        int slotCount = getSlotCount();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!isLive(slot)) {
+                return slot;
+            }
+        }
+        return slotCount;
+    }
+
+    private int contiguousFreeSpace() {
+        return buffer.getChar(CELL_START_OFFSET) - HEADER_SIZE - getSlotCount() * SLOT_SIZE;
+    }
+
+    private int totalFreeSpace() {
+        int used = 0;
+        int slotCount = getSlotCount();
+        for (int slot = 0; slot < slotCount; slot++) {
+            used += cellLength(slot);
+        }
+        return buffer.capacity() - HEADER_SIZE - slotCount * SLOT_SIZE - used;
+    }
+
+    // Move all live cells to the end of the page so the free space becomes one block, slot numbers do not change
+    private void compact() {
+        byte[] page = buffer.array();
+        byte[] copy = page.clone();
+        int cellStart = buffer.capacity();
+        int slotCount = getSlotCount();
+        for (int slot = 0; slot < slotCount; slot++) {
+            int length = cellLength(slot);
+            if (length > 0) {
+                cellStart -= length;
+                System.arraycopy(copy, cellOffset(slot), page, cellStart, length);
+                setSlot(slot, cellStart, length);
+            }
+        }
+        buffer.putChar(CELL_START_OFFSET, (char) cellStart);
+    }
+
+    private int cellOffset(int slot) {
+        return buffer.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int cellLength(int slot) {
+        return buffer.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        buffer.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char) offset);
+        buffer.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char) length);
+    }
+
+    private int checksum() {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), TABLE_ID_OFFSET, buffer.capacity() - TABLE_ID_OFFSET);
+        crc.update(buffer.array(), PAGE_LSN_OFFSET, CHECKSUM_OFFSET);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,375 @@
+package org.datnh.wal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * This class represents an immutable file of rows sorted by key, written by a memtable flush or by a compaction of
+ * the LSM storage.
+ * <br/> Rows are grouped into blocks of about 4KB. The sparse index holds the first key of every block and the bloom
+ * filter holds every key, both are kept in memory so a lookup reads at most one block from the file.
+ * <pre>
+ * block:  per row: key length (uint16) | key (UTF-8) | LSN (int64) | value length (int32) | value (UTF-8)
+ * index:  block count (int32) | per block: offset (int64) | length (int32) | CRC32C (int32)
+ *         | first key length (uint16) | first key (UTF-8)
+ * bloom:  see {@link BloomFilter}
+ * footer: index offset (int64) | bloom offset (int64) | row count (int64) | CRC32C of index and bloom (int32)
+ *         | magic (4 bytes "SRUN")
+ * </pre>
+ */
+class SortedRun {
+    private static final int MAGIC = 0x5352554E; // "SRUN"
+    private static final int FOOTER_SIZE = 32;
+    private static final int BLOCK_SIZE = 4096;
+
+    private final long id;
+    private final int level;
+    // Runs with a higher sequence hold newer rows, a compacted run takes the highest sequence of its inputs
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] blockChecksums;
+    private final String[] firstKeys;
+    private final BloomFilter bloomFilter;
+    private final long rowCount;
+    private final long size;
+
+    private SortedRun(long id, int level, long sequence, Path path, FileChannel channel, long[] blockOffsets,
+                      int[] blockLengths, int[] blockChecksums, String[] firstKeys, BloomFilter bloomFilter,
+                      long rowCount, long size) {
+        this.id = id;
+        this.level = level;
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.blockChecksums = blockChecksums;
+        this.firstKeys = firstKeys;
+        this.bloomFilter = bloomFilter;
+        this.rowCount = rowCount;
+        this.size = size;
+    }
+
+    /**
+     * A row of a sorted run, keyed by table and key.
+     */
+    static final class Row {
+        private final String key;
+        private final String value;
+        private final long lsn;
+
+        Row(String key, String value, long lsn) {
+            this.key = key;
+            this.value = value;
+            this.lsn = lsn;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+    }
+
+    static String fileName(long id) {
+        return String.format("%020d.run", id);
+    }
+
+    /**
+     * Write rows in key order to a new run file and force it to disk. The file only appears under its final name once
+     * it is complete.
+     *
+     * @param rowCount expected number of rows, used to size the bloom filter
+     */
+    static SortedRun write(Path directory, long id, int level, long sequence, Iterator<Row> rows, long rowCount)
+            throws IOException {
+        Path path = directory.resolve(fileName(id));
+        Path temp = directory.resolve(fileName(id) + ".tmp");
+        BloomFilter bloomFilter = BloomFilter.create(rowCount);
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        List<Integer> checksums = new ArrayList<>();
+        List<String> firstKeys = new ArrayList<>();
+        long written = 0;
+        long count = 0;
+
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                byte[] key = row.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = row.getValue().getBytes(StandardCharsets.UTF_8);
+                int rowSize = 2 + key.length + 8 + 4 + value.length;
+                if (block.position() > 0 && block.position() + rowSize > BLOCK_SIZE) {
+                    written += writeBlock(out, block, written, offsets, lengths, checksums);
+                }
+                if (block.remaining() < rowSize) {
+                    block = ByteBuffer.allocate(rowSize); // a single row larger than a block
+                }
+                if (block.position() == 0) {
+                    firstKeys.add(row.getKey());
+                }
+                block.putChar((char) key.length).put(key).putLong(row.getLsn()).putInt(value.length).put(value);
+                bloomFilter.add(row.getKey());
+                count++;
+            }
+            if (block.position() > 0) {
+                written += writeBlock(out, block, written, offsets, lengths, checksums);
+            }
+
+            int indexSize = 4;
+            for (String firstKey : firstKeys) {
+                indexSize += 8 + 4 + 4 + 2 + firstKey.getBytes(StandardCharsets.UTF_8).length;
+            }
+            ByteBuffer meta = ByteBuffer.allocate(indexSize + bloomFilter.getSerializedSize());
+            meta.putInt(firstKeys.size());
+            for (int i = 0; i < firstKeys.size(); i++) {
+                byte[] firstKey = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                meta.putLong(offsets.get(i)).putInt(lengths.get(i)).putInt(checksums.get(i))
+                        .putChar((char) firstKey.length).put(firstKey);
+            }
+            bloomFilter.write(meta);
+            CRC32C crc = new CRC32C();
+            crc.update(meta.array(), 0, meta.position());
+            out.write(meta.array(), 0, meta.position());
+            out.writeLong(written);
+            out.writeLong(written + indexSize);
+            out.writeLong(count);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(MAGIC);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, id, level, sequence);
+    }
+
+    private static int writeBlock(DataOutputStream out, ByteBuffer block, long offset, List<Long> offsets,
+                                  List<Integer> lengths, List<Integer> checksums) throws IOException {
+        int length = block.position();
+        CRC32C crc = new CRC32C();
+        crc.update(block.array(), 0, length);
+        out.write(block.array(), 0, length);
+        offsets.add(offset);
+        lengths.add(length);
+        checksums.add((int) crc.getValue());
+        block.clear();
+        return length;
+    }
+
+    static SortedRun open(Path path, long id, int level, long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Sorted run " + path + " is too short");
+            }
+            ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long rowCount = footer.getLong();
+            int checksum = footer.getInt();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a sorted run: " + path);
+            }
+
+            ByteBuffer meta = readFully(channel, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            CRC32C crc = new CRC32C();
+            crc.update(meta.array(), 0, meta.limit());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Checksum mismatch in the index of " + path);
+            }
+            int blockCount = meta.getInt();
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] checksums = new int[blockCount];
+            String[] firstKeys = new String[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = meta.getLong();
+                lengths[i] = meta.getInt();
+                checksums[i] = meta.getInt();
+                byte[] firstKey = new byte[meta.getChar()];
+                meta.get(firstKey);
+                firstKeys[i] = new String(firstKey, StandardCharsets.UTF_8);
+            }
+            meta.position((int) (bloomOffset - indexOffset));
+            BloomFilter bloomFilter = BloomFilter.read(meta);
+            return new SortedRun(id, level, sequence, path, channel, offsets, lengths, checksums, firstKeys,
+                    bloomFilter, rowCount, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the row with the given key, or null if this run does not hold it
+     */
+    public Row get(String key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = floorBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer buffer = readBlock(block);
+        while (buffer.hasRemaining()) {
+            Row row = readRow(buffer);
+            int comparison = row.getKey().compareTo(key);
+            if (comparison == 0) {
+                return row;
+            }
+            if (comparison > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rows of this run in key order, starting at the first key not less than the given key
+     */
+    public Iterator<Row> iterator(String fromKey) {
+        int firstBlock = Math.max(0, floorBlock(fromKey));
+        return new Iterator<>() {
+            private int block = firstBlock;
+            private ByteBuffer buffer;
+            private Row next = advance();
+
+            private Row advance() {
+                try {
+                    while (true) {
+                        if (buffer == null || !buffer.hasRemaining()) {
+                            if (block >= blockOffsets.length) {
+                                return null;
+                            }
+                            buffer = readBlock(block++);
+                        }
+                        Row row = readRow(buffer);
+                        if (row.getKey().compareTo(fromKey) >= 0) {
+                            return row;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read sorted run " + path, e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Row next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Row row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Index of the last block whose first key is not greater than the key, -1 if the key is before the first block
+    private int floorBlock(String key) {
+        int low = 0;
+        int high = firstKeys.length - 1;
+        int floor = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstKeys[middle].compareTo(key) <= 0) {
+                floor = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return floor;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        ByteBuffer buffer = readFully(channel, blockOffsets[block], blockLengths[block]);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.limit());
+        if ((int) crc.getValue() != blockChecksums[block]) {
+            throw new IOException("Checksum mismatch in block " + block + " of " + path);
+        }
+        return buffer;
+    }
+
+    private static Row readRow(ByteBuffer buffer) {
+        byte[] key = new byte[buffer.getChar()];
+        buffer.get(key);
+        long lsn = buffer.getLong();
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        return new Row(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8), lsn);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of sorted run at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,247 @@
+package org.datnh.wal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This class runs a hot standby. It receives the log of a primary from its {@link WALSender}, appends it to its own WAL
+ * with the same LSNs, and applies every committed transaction to its own buffer pool, where read-only transactions see
+ * it.
+ * <br/> The records of a frame are appended as whole transactions, then the standby log is forced and the frame
+ * acknowledged as applied. Frames that arrived in the meantime are applied together and forced once. Every frame is
+ * also acknowledged as soon as it arrives. When the primary completes a
+ * checkpoint, the standby writes its own dirty pages and releases its own segments (a restartpoint). It never logs
+ * records of its own while it is a standby.
+ * <br/> On failover {@link #promote()} stops receiving and makes the WAL writable. The standby's buffer pool already
+ * holds every applied transaction, so nothing has to be recovered. A restarted standby recovers its own log first, then
+ * asks the primary for the records that follow it.
+ * <br/> Usage: {@code StandbyReplica --primary port --dir path}
+ */
+public class StandbyReplica implements AutoCloseable {
+    private final BufferPool bufferPool;
+    private final DiskStorage storage;
+    private final WriteAheadLog wal;
+    private Socket socket;
+    private Thread receiver;
+    private volatile boolean running;
+
+    // Last durable LSN of the primary it reported, and the LSNs of the standby that were received and applied
+    private volatile long primaryDurableLsn;
+    private volatile long receivedLsn;
+    private volatile long appliedLsn;
+
+    StandbyReplica(Path directory, WALConfig config) throws IOException {
+        config.replica(true).validate();
+        Files.createDirectories(directory);
+        this.bufferPool = new BufferPool();
+        this.storage = new DiskStorage(directory.resolve("data.db").toString());
+        this.wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage, config);
+        wal.recover();
+        this.appliedLsn = wal.getCurrentLSN();
+        this.receivedLsn = appliedLsn;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4 || !args[0].equals("--primary") || !args[2].equals("--dir")) {
+            System.err.println("Usage: StandbyReplica --primary port --dir path");
+            System.exit(2);
+        }
+        StandbyReplica standby = new StandbyReplica(Paths.get(args[3]), new WALConfig());
+        standby.connect(Integer.parseInt(args[1]));
+        while (standby.isConnected()) {
+            Thread.sleep(1000);
+            System.err.printf("applied LSN %d, lag %d records%n", standby.getAppliedLsn(), standby.getLagLsn());
+        }
+        standby.close();
+    }
+
+    /**
+     * Connect to the WAL sender of a primary on the loopback interface and start applying its log.
+     */
+    public synchronized void connect(int port) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Standby is already connected");
+        }
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeLong(wal.getCurrentLSN() + 1);
+        out.flush();
+        running = true;
+        receiver = new Thread(() -> receive(out), "wal-receiver");
+        receiver.start();
+    }
+
+    private void receive(DataOutputStream out) {
+        CRC32C crc = new CRC32C();
+        byte[] frame = new byte[WALSender.MAX_FRAME_BYTES];
+        // Records of a transaction whose commit record is in a later frame
+        List<LogEntry> transaction = new ArrayList<>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (running) {
+                // Frames that arrived while the previous ones were forced are applied together and forced once
+                boolean appended = false;
+                boolean checkpointEnded = false;
+                do {
+                    byte type = in.readByte();
+                    primaryDurableLsn = in.readLong();
+                    if (type == WALSender.FRAME_HEARTBEAT) {
+                        continue;
+                    }
+                    if (type != WALSender.FRAME_RECORDS) {
+                        throw new IOException("Unexpected frame type " + type);
+                    }
+                    int count = in.readInt();
+                    int length = in.readInt();
+                    if (frame.length < length) {
+                        frame = new byte[length];
+                    }
+                    in.readFully(frame, 0, length);
+                    List<LogEntry> records = decode(ByteBuffer.wrap(frame, 0, length), count, crc);
+                    receivedLsn = records.get(records.size() - 1).getLsn();
+                    acknowledge(out);
+
+                    for (LogEntry record : records) {
+                        if (record.isCheckpointRecord()) {
+                            wal.applyReplicated(List.of(record));
+                            checkpointEnded |= "CHECKPOINT_END".equals(record.getOperation());
+                        } else {
+                            transaction.add(record);
+                            if (record.isCommitRecord()) {
+                                wal.applyReplicated(transaction);
+                                transaction = new ArrayList<>();
+                            }
+                        }
+                    }
+                    appended = true;
+                } while (in.available() > 0);
+
+                if (appended) {
+                    wal.flushTo(wal.getCurrentLSN());
+                    appliedLsn = wal.getCurrentLSN();
+                    acknowledge(out);
+                }
+                if (checkpointEnded) {
+                    wal.restartpoint();
+                }
+            }
+        } catch (EOFException e) {
+            if (running) {
+                System.err.println("Standby lost the primary: it closed the connection");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (running) {
+                System.err.println("Standby lost the primary: " + e.getMessage());
+            }
+        } finally {
+            running = false;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static List<LogEntry> decode(ByteBuffer frame, int count, CRC32C crc) throws IOException {
+        List<LogEntry> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int bodySize = frame.getInt();
+            int checksum = frame.getInt();
+            ByteBuffer body = frame.slice(frame.position(), bodySize);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Shipped WAL record fails its CRC check");
+            }
+            records.add(LogRecordDecoder.decodeBody(body));
+            frame.position(frame.position() + bodySize);
+        }
+        return records;
+    }
+
+    private void acknowledge(DataOutputStream out) throws IOException {
+        out.writeByte(WALSender.FRAME_ACK);
+        out.writeLong(receivedLsn);
+        out.writeLong(appliedLsn);
+        out.flush();
+    }
+
+    /**
+     * Stop receiving the log and make this standby the primary.
+     *
+     * @return the WAL of the new primary, it accepts commits right away
+     */
+    public WriteAheadLog promote() throws InterruptedException {
+        disconnect();
+        wal.promote();
+        return wal;
+    }
+
+    private void disconnect() throws InterruptedException {
+        running = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            receiver.join();
+        }
+    }
+
+    /**
+     * @return a transaction reading the changes applied so far, it must not write while this is a standby
+     */
+    public Transaction begin() {
+        return new Transaction(wal, bufferPool);
+    }
+
+    public boolean isConnected() {
+        return running;
+    }
+
+    public long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * @return number of records the primary reported durable that are not applied here yet
+     */
+    public long getLagLsn() {
+        return Math.max(0, primaryDurableLsn - appliedLsn);
+    }
+
+    WriteAheadLog getWal() {
+        return wal;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            disconnect();
+        } catch (InterruptedException e) {
+            // Closing anyway, the receiver stops on the closed socket
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+        storage.close();
+    }
+}
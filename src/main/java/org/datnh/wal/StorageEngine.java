@@ -0,0 +1,100 @@
+package org.datnh.wal;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This interface represents the persistent storage that checkpoints write the buffer pool to.
+ * <br/> Two engines are available: {@code page}, a file of slotted pages updated in place ({@link DiskStorage}), and
+ * {@code lsm}, a log-structured merge tree that turns page writes into sequential run files ({@link LSMStorage}).
+ */
+interface StorageEngine {
+
+    /**
+     * Open the storage engine with the given name in a directory.
+     *
+     * @param engine {@code page} or {@code lsm}
+     */
+    static StorageEngine open(String engine, String directory) {
+        switch (engine) {
+            case "page":
+                return new DiskStorage(Paths.get(directory, "data.db").toString());
+            case "lsm":
+                return new LSMStorage(Paths.get(directory, "data.lsm").toString());
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+    }
+
+    default void writePageToDisk(String table, String key, String value) {
+        writePageToDisk(table, key, value, 0);
+    }
+
+    /**
+     * Write a row. It is durable once {@link #flush()} returns.
+     *
+     * @param lsn LSN of the change the value belongs to, 0 if unknown
+     */
+    void writePageToDisk(String table, String key, String value, long lsn);
+
+    String readFromDisk(String table, String key);
+
+    /**
+     * @return the LSN of the last change written to the row, 0 if the row is not stored or was written without an LSN
+     */
+    long getPageLSN(String table, String key);
+
+    Set<String> getTables();
+
+    /**
+     * @return a copy of all rows of the table
+     */
+    Map<String, String> readTable(String table);
+
+    /**
+     * Read a chunk of a key range in key order, a range scan reads the next chunk from right after the last key.
+     *
+     * @param fromKey first key of the range, inclusive
+     * @param toKey   end of the range, exclusive, null to read to the end of the table
+     * @return up to limit rows of the range, in key order
+     */
+    List<Map.Entry<String, String>> readRange(String table, String fromKey, String toKey, int limit);
+
+    /**
+     * Make all rows written so far durable.
+     */
+    void flush();
+
+    /**
+     * Flush all rows and release the files of the engine.
+     */
+    void close();
+
+    /**
+     * @return total number of bytes written to the data files since the engine was opened
+     */
+    long getBytesWritten();
+
+    /**
+     * @return size of the data files in bytes
+     */
+    long getFileSize();
+
+    default void displayContents() {
+        System.out.println("\n=== DISK STORAGE CONTENTS ===");
+        Set<String> tables = getTables();
+        if (tables.isEmpty()) {
+            System.out.println("(No data on disk)");
+        } else {
+            for (String table : tables) {
+                System.out.println("Table: " + table);
+                for (Map.Entry<String, String> row : readTable(table).entrySet()) {
+                    System.out.println("  " + row.getKey() + " = " + row.getValue());
+                }
+            }
+        }
+        System.out.println();
+    }
+}
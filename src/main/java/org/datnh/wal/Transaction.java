@@ -1,30 +1,95 @@
 package org.datnh.wal;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents a transaction in the database system, manage uncommitted changes and ensure durability and isolation.
  * It provides methods to perform read, update, insert, commit and rollback operations
+ * <br/> Transactions run under snapshot isolation: a transaction reads the rows as they were committed when it started,
+ * plus its own changes, and its commit fails with a {@link WriteConflictException} if another transaction committed a
+ * row it changed in the meantime. Every transaction must end with {@link #commit()} or {@link #rollback()}, an open
+ * snapshot keeps old row versions from being vacuumed.
+ * <br/> The {@link Durability} of a transaction decides whether its commit waits for the disk before its changes become
+ * visible. {@link #commitAsync()} hands the commit off and reports durability through a future instead of blocking.
+ * <br/> Once a transaction ended, {@link #begin()} starts the next one on the same object and reuses its
+ * {@link WriteSet}, so a thread running transactions one after another does not allocate a write set for each of them.
  */
 class Transaction {
     private static final AtomicLong transactionIdCounter = new AtomicLong(0);
-    private final long transactionId;
+    private long transactionId;
     private final WriteAheadLog wal;
-    private final BufferPool bufferPool;
+    private final VersionStore versions;
+    // Only commits with a commit LSN up to this timestamp are visible to the transaction
+    private long snapshotTimestamp;
+    // Timestamp of the log entries of the transaction, the clock is read once when it starts
+    private long startMillis;
+    private final Durability durability;
 
-    // Transaction log represents all changes made during this transaction
-    private final List<LogEntry> transactionLog = new ArrayList<>();
-
-    // Transaction-local buffer to hold uncommitted changes
-    private final Map<String, Map<String, String>> transactionBuffer = new HashMap<>();
+    // All changes made during this transaction, in order for the log and by row for its own reads
+    private WriteSet writeSet = new WriteSet();
+    // Commit that still applies the entries of the write set once they are durable, null when none is pending
+    private CompletableFuture<Long> pendingCommit;
+    // Durability of the last commit() with ASYNC durability, null when the transaction did not commit that way
+    private CompletableFuture<Long> asyncCommit;
     private boolean committed = false;
 
+    /**
+     * Make sure new transaction ids do not repeat the ids of transactions found in the WAL during recovery.
+     */
+    static void advanceTransactionIds(long recoveredTransactionId) {
+        transactionIdCounter.accumulateAndGet(recoveredTransactionId, Math::max);
+    }
+
+    /**
+     * @return a new transaction id for changes logged without a transaction, such as a bulk load
+     */
+    static long nextTransactionId() {
+        return transactionIdCounter.incrementAndGet();
+    }
+
     public Transaction(WriteAheadLog wal, BufferPool bufferPool) {
-        this.transactionId = transactionIdCounter.incrementAndGet();
+        this(wal, bufferPool, Durability.SYNC);
+    }
+
+    public Transaction(WriteAheadLog wal, BufferPool bufferPool, Durability durability) {
+        this.durability = durability;
         this.wal = wal;
-        this.bufferPool = bufferPool;
-        System.out.println("\n[TXN-" + transactionId + "] Transaction started");
+        this.versions = bufferPool.getVersionStore();
+        start();
+    }
+
+    /**
+     * Start a new transaction on this object after the previous one committed or rolled back. It gets a new id and
+     * snapshot, and reuses the write set of the previous transaction unless a {@link #commitAsync()} still needs it.
+     *
+     * @return this transaction
+     */
+    public Transaction begin() {
+        if (!committed) {
+            throw new IllegalStateException("Transaction " + transactionId + " has not ended yet");
+        }
+        if (pendingCommit != null && !pendingCommit.isDone()) {
+            writeSet = new WriteSet();
+        } else {
+            writeSet.clear();
+        }
+        pendingCommit = null;
+        asyncCommit = null;
+        committed = false;
+        start();
+        return this;
+    }
+
+    private void start() {
+        transactionId = nextTransactionId();
+        snapshotTimestamp = versions.beginSnapshot();
+        startMillis = System.currentTimeMillis();
+        if (WALTrace.ENABLED) {
+            System.out.println("\n[TXN-" + transactionId + "] Transaction started at snapshot " + snapshotTimestamp);
+        }
     }
 
     /**
@@ -41,21 +106,19 @@ class Transaction {
             throw new IllegalStateException("Transaction already committed");
         }
 
-        // Get the current value as seen by this transaction (could be from transaction buffer or buffer pool)
+        // Get the current value as seen by this transaction (could be from transaction buffer or its snapshot)
         String actualOldValue = read(table, key);
         if (actualOldValue == null) {
             actualOldValue = oldValue; // Use provided old value if record doesn't exist
         }
 
-        // Create log entry but don't write to WAL yet - just buffer it
-        long lsn = wal.getNextLSN();
-        LogEntry entry = new LogEntry(lsn, transactionId, "UPDATE", table, key, actualOldValue, newValue);
-        transactionLog.add(entry);
+        // Record the change in the write set but don't write to WAL yet, so this transaction can see its own changes.
+        // The LSN is assigned when it is appended to the WAL
+        writeSet.add(transactionId, "UPDATE", table, key, actualOldValue, newValue, startMillis);
 
-        // Update transaction-local buffer so this transaction can see its own changes
-        transactionBuffer.computeIfAbsent(table, k -> new HashMap<>()).put(key, newValue);
-
-        System.out.println("[TXN-" + transactionId + "] Buffered UPDATE " + table + "." + key + " = " + newValue + " (visible to this transaction only)");
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] Buffered UPDATE " + table + "." + key + " = " + newValue + " (visible to this transaction only)");
+        }
     }
 
     /**
@@ -71,21 +134,63 @@ class Transaction {
             throw new IllegalStateException("Transaction already committed");
         }
 
-        // Create log entry but don't write to WAL yet - just buffer it
-        long lsn = wal.getNextLSN();
-        LogEntry entry = new LogEntry(lsn, transactionId, "INSERT", table, key, null, value);
-        transactionLog.add(entry);
+        // Record the change in the write set but don't write to WAL yet, so this transaction can see its own changes.
+        // The LSN is assigned when it is appended to the WAL
+        writeSet.add(transactionId, "INSERT", table, key, null, value, startMillis);
+
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] Buffered INSERT " + table + "." + key + " = " + value + " (visible to this transaction only)");
+        }
+    }
+
+    /**
+     * Add a number to the value of a row, a row without a value counts as 0.
+     * <br/> Only the delta is logged, and it is added to the value the row has when the transaction commits, not to the
+     * value of its snapshot. So transactions incrementing the same row commit without conflicting with each other,
+     * they only conflict with a transaction writing a value to the row. Reads of the row within this transaction see
+     * its snapshot value plus the increments.
+     *
+     * @throws IllegalArgumentException if the row, as this transaction sees it, holds a value that is not a number
+     */
+    public void increment(String table, String key, long delta) {
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+
+        // Checked once, later increments of the row add to the delta buffered for it
+        if (writeSet.get(table, key) == null) {
+            String value = versions.read(table, key, snapshotTimestamp);
+            if (value != null && !isNumber(value)) {
+                throw new IllegalArgumentException("Cannot increment " + table + "." + key + ", its value " + value
+                        + " is not a number");
+            }
+        }
+        try {
+            writeSet.increment(transactionId, table, key, delta, startMillis);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cannot increment " + table + "." + key + ", its value is not a number",
+                    e);
+        }
 
-        // Update transaction-local buffer so this transaction can see its own changes
-        transactionBuffer.computeIfAbsent(table, k -> new HashMap<>()).put(key, value);
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] Buffered INCREMENT " + table + "." + key + " by " + delta + " (visible to this transaction only)");
+        }
+    }
 
-        System.out.println("[TXN-" + transactionId + "] Buffered INSERT " + table + "." + key + " = " + value + " (visible to this transaction only)");
+    private static boolean isNumber(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     /**
      * read the value associated with the kye in given table.
      * First this method read value from transaction local buffer to make sure have lastest value.
-     * If value is not found the transaction local buffer, it will read from buffer pool.
+     * If value is not found the transaction local buffer, it will read the version visible to the snapshot of this
+     * transaction, without blocking on concurrent commits.
      * @param table name of the table to read from
      * @param key the key to read
      * @return the value associated with the given key in the table, or null if not found.
@@ -95,50 +200,185 @@ class Transaction {
             throw new IllegalStateException("Transaction already committed");
         }
 
-        // First check transaction-local buffer (uncommitted changes)
-        String value = transactionBuffer.getOrDefault(table, Collections.emptyMap()).get(key);
-        if (value != null) {
-            System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = " + value + " (from transaction buffer)");
-            return value;
+        // First check the write set (uncommitted changes)
+        LogEntry change = writeSet.get(table, key);
+        if (change != null && !change.isIncrement() && change.getNewValue() != null) {
+            if (WALTrace.ENABLED) {
+                System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = " + change.getNewValue() + " (from transaction buffer)");
+            }
+            return change.getNewValue();
         }
 
-        // Fall back to buffer pool (committed data)
-        value = bufferPool.get(table, key);
-        if (value != null) {
-            System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = " + value + " (from buffer pool)");
-        } else {
-            System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = NULL (not found)");
+        // Fall back to the data committed before this transaction started
+        String value = versions.read(table, key, snapshotTimestamp);
+        if (change != null && change.isIncrement()) {
+            value = LogEntry.increment(value, change.getDelta());
+            if (WALTrace.ENABLED) {
+                System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = " + value + " (from snapshot plus buffered increment)");
+            }
+            return value;
+        }
+        if (WALTrace.ENABLED) {
+            if (value != null) {
+                System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = " + value + " (from snapshot)");
+            } else {
+                System.out.println("[TXN-" + transactionId + "] READ " + table + "." + key + " = NULL (not found)");
+            }
         }
         return value;
     }
 
+    /**
+     * Iterate over the rows of a table with a key from fromKey inclusive to toKey exclusive in key order, as this
+     * transaction sees them: its own changes merged with the rows committed before its snapshot.
+     * <br/> Committed rows are read while iterating, the range is never copied as a whole, only the rows this
+     * transaction changed in it are. The iterator must be used before the transaction ends and does not see changes
+     * the transaction makes meanwhile.
+     *
+     * @param fromKey first key of the range, null to start at the first key of the table
+     * @param toKey   end of the range, exclusive, null to read to the end of the table
+     * @param limit   most rows returned
+     */
+    public Iterator<Map.Entry<String, String>> scan(String table, String fromKey, String toKey, int limit) {
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        String from = fromKey == null ? "" : fromKey;
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] SCAN " + table + " [" + from + ", "
+                    + (toKey == null ? "end" : toKey) + ") limit " + limit);
+        }
+        if (toKey != null && from.compareTo(toKey) >= 0) {
+            return Collections.emptyIterator();
+        }
+        return new ScanIterator(writeSet.scan(table, from, toKey, this::valueOf).iterator(),
+                versions.scan(table, from, toKey, snapshotTimestamp), limit);
+    }
+
+    // Value of a row after its newest change in this transaction
+    private String valueOf(LogEntry change) {
+        if (!change.isIncrement()) {
+            return change.getNewValue();
+        }
+        String committed = versions.read(change.getTable(), change.getKey(), snapshotTimestamp);
+        return LogEntry.increment(committed, change.getDelta());
+    }
+
     /**
      * Commit the transaction to make change durable.
      * <br/> This method will write all buffered WAL log entries associated with this transaction to the Write-Ahead Log (WAL)
      * and apply changes to the buffer pool to make it visible to other transactions
+     * <br/> With {@link Durability#ASYNC} this method returns once the entries are in the log buffer, a crash within the
+     * async commit window can lose the transaction. If the WAL writer fails to force them later, the failure is logged
+     * and {@link #isFailed()} returns true.
+     *
+     * @throws WriteConflictException if another transaction committed a row changed by this one after this transaction
+     *                                started, the transaction is rolled back
+     * @throws RuntimeException       if the entries could not be written to the log, or with {@link Durability#ASYNC}
+     *                                if the WAL writer already failed to force the log
      */
     public void commit() {
         if (committed) {
             throw new IllegalStateException("Transaction already committed");
         }
 
-        System.out.println("[TXN-" + transactionId + "] COMMIT - Writing " + transactionLog.size() + " log entries to WAL...");
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] COMMIT - Writing " + writeSet.size() + " log entries to WAL...");
+        }
 
-        // Now write all buffered log entries to WAL atomically
-        for (LogEntry entry : transactionLog) {
-            wal.writeLogEntryToDisk(entry);
+        // Now write all buffered log entries to WAL and force them to disk (synchronous commit) to ensure durability.
+        // With group commit enabled, this shares a single write and fsync with other concurrently committing transactions.
+        // Only after WAL is safely on disk, the changes are applied to buffer pool to make it visible to other transactions.
+        try {
+            if (durability == Durability.SYNC) {
+                wal.commit(writeSet.entries(), snapshotTimestamp);
+            } else {
+                asyncCommit = wal.commitAsync(writeSet.entries(), snapshotTimestamp, durability);
+                watchAsyncCommit();
+            }
+        } catch (WriteConflictException e) {
+            if (WALTrace.ENABLED) {
+                System.out.println("[TXN-" + transactionId + "] COMMIT failed - " + e.getMessage() + ", rolled back");
+            }
+            throw e;
+        } finally {
+            committed = true;
+            versions.endSnapshot(snapshotTimestamp);
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] COMMIT successful - All changes are durable and visible to other transactions");
         }
+    }
 
-        // Force WAL to disk (synchronous commit) to ensure durability
-        wal.forceWALToDisk();
+    // Surfaces a failure of the commit now if it is already known, and logs it if it happens once commit() returned
+    private void watchAsyncCommit() {
+        if (asyncCommit.isCompletedExceptionally()) {
+            try {
+                asyncCommit.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        long id = transactionId;
+        asyncCommit.whenComplete((lsn, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                System.err.println("[TXN-" + id + "] Async commit is not durable: " + cause.getMessage()
+                        + (cause.getCause() != null ? ": " + cause.getCause().getMessage() : ""));
+            }
+        });
+    }
 
-        // Only after WAL is safely on disk, apply changes to buffer pool to make it visible to other transactions.
-        for (LogEntry entry : transactionLog) {
-            wal.applyToBufferPool(entry);
+    /**
+     * @return true if the last {@link #commit()} of this transaction returned with {@link Durability#ASYNC} but its
+     * entries could not be forced to disk afterwards, its changes were visible but are lost in a crash
+     */
+    public boolean isFailed() {
+        return asyncCommit != null && asyncCommit.isCompletedExceptionally();
+    }
+
+    /**
+     * Commit the transaction without waiting for the disk.
+     * <br/> With {@link Durability#SYNC} the changes become visible to other transactions only once they are durable,
+     * right before the returned future completes. With {@link Durability#ASYNC} they are visible when this method
+     * returns. Either way the future completes with the commit LSN once the transaction is durable, compare it with
+     * {@link WriteAheadLog#getDurableLSN()} to check durability without waiting.
+     *
+     * @return a future completed with the LSN of the commit record once it is durable, or completed exceptionally
+     * with a {@link WriteConflictException} if another transaction committed a row changed by this one after this
+     * transaction started, the transaction is then rolled back
+     */
+    public CompletableFuture<Long> commitAsync() {
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
         }
 
-        committed = true;
-        System.out.println("[TXN-" + transactionId + "] COMMIT successful - All changes are durable and visible to other transactions");
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] COMMIT ASYNC - Writing " + writeSet.size() + " log entries to WAL...");
+        }
+        try {
+            CompletableFuture<Long> commit = wal.commitAsync(writeSet.entries(), snapshotTimestamp, durability);
+            // With ASYNC durability the changes are applied before the future is returned
+            if (durability == Durability.SYNC) {
+                pendingCommit = commit;
+            }
+            return commit;
+        } catch (WriteConflictException e) {
+            if (WALTrace.ENABLED) {
+                System.out.println("[TXN-" + transactionId + "] COMMIT failed - " + e.getMessage() + ", rolled back");
+            }
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            committed = true;
+            versions.endSnapshot(snapshotTimestamp);
+        }
     }
 
     public void rollback() {
@@ -146,10 +386,67 @@ class Transaction {
             throw new IllegalStateException("Cannot rollback committed transaction");
         }
 
-        System.out.println("[TXN-" + transactionId + "] ROLLBACK - Discarding " + transactionLog.size() + " buffered changes");
-        transactionLog.clear();
-        transactionBuffer.clear();
+        if (WALTrace.ENABLED) {
+            System.out.println("[TXN-" + transactionId + "] ROLLBACK - Discarding " + writeSet.size() + " buffered changes");
+        }
+        writeSet.clear();
         committed = true; // Mark as finished
+        versions.endSnapshot(snapshotTimestamp);
     }
-}
 
+    // Merges the changes of this transaction with the committed rows of its snapshot, its own change of a row wins
+    private final class ScanIterator implements Iterator<Map.Entry<String, String>> {
+        // The transaction the iterator belongs to, the object may have begun another one since
+        private final long transactionId = Transaction.this.transactionId;
+        private final Iterator<Map.Entry<String, String>> local;
+        private final Iterator<Map.Entry<String, String>> snapshot;
+        private Map.Entry<String, String> nextLocal;
+        private Map.Entry<String, String> nextSnapshot;
+        private int remaining;
+
+        ScanIterator(Iterator<Map.Entry<String, String>> local, Iterator<Map.Entry<String, String>> snapshot,
+                     int limit) {
+            this.local = local;
+            this.snapshot = snapshot;
+            this.remaining = limit;
+            if (limit > 0) {
+                nextLocal = advance(local);
+                nextSnapshot = advance(snapshot);
+            }
+        }
+
+        private Map.Entry<String, String> advance(Iterator<Map.Entry<String, String>> rows) {
+            return rows.hasNext() ? rows.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (committed || transactionId != Transaction.this.transactionId) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            return remaining > 0 && (nextLocal != null || nextSnapshot != null);
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int comparison = nextLocal == null ? 1 : nextSnapshot == null ? -1
+                    : nextLocal.getKey().compareTo(nextSnapshot.getKey());
+            Map.Entry<String, String> row;
+            if (comparison <= 0) {
+                row = nextLocal;
+                nextLocal = advance(local);
+                if (comparison == 0) {
+                    nextSnapshot = advance(snapshot);
+                }
+            } else {
+                row = nextSnapshot;
+                nextSnapshot = advance(snapshot);
+            }
+            remaining--;
+            return row;
+        }
+    }
+}
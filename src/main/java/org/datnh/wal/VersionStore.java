@@ -0,0 +1,430 @@
+package org.datnh.wal;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * This class keeps the committed versions of recently changed rows for snapshot isolation (MVCC).
+ * <br/> Every committed change adds a version stamped with its commit timestamp, the LSN of the commit record, in
+ * front of the older versions of the row. A transaction takes a snapshot timestamp when it starts and reads the newest
+ * version committed at or before it, so it never sees commits that happen while it runs. Reads of versioned rows only
+ * follow volatile references and never lock or wait. Rows without versions are read from the buffer pool, which
+ * holds the latest committed value of every row.
+ * <br/> Commits use first-committer-wins: a transaction fails with a {@link WriteConflictException} if a row it
+ * wrote was committed by another transaction after its snapshot was taken, or is being committed right now.
+ * Increments commute, so a row is claimed by any number of incrementing transactions at once, and an increment only
+ * conflicts with values written to the row. An increment is kept as a version holding its delta, inserted into the
+ * versions of the row in commit order, and a read adds up the deltas down to the newest value visible to it.
+ * <br/> Vacuum drops versions that no active snapshot can see any more. A row whose newest version is visible to every
+ * snapshot is dropped completely and read from the buffer pool again.
+ */
+class VersionStore {
+    private final BufferPool bufferPool;
+    // Newest version of every versioned row, keyed by table:key
+    private final Map<String, RowVersion> rows = new ConcurrentHashMap<>();
+    // Rows validated by a committing transaction but not yet installed, mapped to the transaction id
+    private final Map<String, Long> claims = new ConcurrentHashMap<>();
+    // Rows claimed by committing transactions that only increment them, mapped to the number of those transactions
+    private final Map<String, Integer> incrementClaims = new ConcurrentHashMap<>();
+    // Snapshot timestamps of the active transactions, with the number of transactions sharing each one
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    // Every commit up to this timestamp is installed, set by the WAL, without a WAL every version is visible
+    private volatile LongSupplier visibleTimestamp = () -> Long.MAX_VALUE;
+    private ScheduledExecutorService vacuumExecutor;
+
+    VersionStore(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    void setVisibleTimestamp(LongSupplier visibleTimestamp) {
+        this.visibleTimestamp = visibleTimestamp;
+    }
+
+    /**
+     * Take a snapshot of all commits installed so far. The snapshot keeps its versions from being vacuumed until
+     * {@link #endSnapshot(long)} is called.
+     *
+     * @return the snapshot timestamp
+     */
+    public long beginSnapshot() {
+        synchronized (snapshots) {
+            long timestamp = visibleTimestamp.getAsLong();
+            snapshots.merge(timestamp, 1, Integer::sum);
+            return timestamp;
+        }
+    }
+
+    public void endSnapshot(long timestamp) {
+        synchronized (snapshots) {
+            snapshots.computeIfPresent(timestamp, (t, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // Versions committed at or before this timestamp are visible to every active and future snapshot
+    private long horizon() {
+        synchronized (snapshots) {
+            long visible = visibleTimestamp.getAsLong();
+            return snapshots.isEmpty() ? visible : Math.min(snapshots.firstKey(), visible);
+        }
+    }
+
+    /**
+     * @return the value of the row as of the snapshot, null if the row did not exist or was deleted
+     */
+    public String read(String table, String key, long snapshotTimestamp) {
+        return read(table, key, snapshotTimestamp, true);
+    }
+
+    /**
+     * Read the row as of the snapshot like {@link #read}, but without faulting it into the buffer pool.
+     *
+     * @return null if the row did not exist then, or has no versions and is not resident
+     */
+    String peek(String table, String key, long snapshotTimestamp) {
+        return read(table, key, snapshotTimestamp, false);
+    }
+
+    private String read(String table, String key, long snapshotTimestamp, boolean faultIn) {
+        String page = table + ":" + key;
+        RowVersion version = rows.get(page);
+        if (version == null) {
+            String value = faultIn ? bufferPool.get(table, key) : bufferPool.peek(table, key);
+            // A commit installs its versions before it changes the buffer pool, so if the value read is too new the
+            // row is versioned by now
+            version = rows.get(page);
+            if (version == null) {
+                return value;
+            }
+        }
+        return visible(version, snapshotTimestamp);
+    }
+
+    /**
+     * Iterate over the rows of a table in a key range as of the snapshot, in key order. The rows are read lazily from
+     * the buffer pool, a row changed after the snapshot is read from its versions instead.
+     *
+     * @param toKey null to read to the end of the table
+     */
+    public Iterator<Map.Entry<String, String>> scan(String table, String fromKey, String toKey,
+                                                    long snapshotTimestamp) {
+        Iterator<Map.Entry<String, String>> latest = bufferPool.scan(table, fromKey, toKey);
+        return new Iterator<>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (latest.hasNext()) {
+                    Map.Entry<String, String> row = latest.next();
+                    // As in read(), a value too new for the snapshot belongs to a row that is versioned by now
+                    RowVersion version = rows.isEmpty() ? null : rows.get(table + ":" + row.getKey());
+                    if (version == null) {
+                        return row;
+                    }
+                    String value = visible(version, snapshotTimestamp);
+                    if (value != null) {
+                        return Map.entry(row.getKey(), value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> row = next;
+                next = advance();
+                return row;
+            }
+        };
+    }
+
+    // Newest value committed at or before the snapshot plus the increments committed after it up to the snapshot,
+    // null if the row did not exist then
+    private static String visible(RowVersion newest, long snapshotTimestamp) {
+        long delta = 0;
+        boolean incremented = false;
+        for (RowVersion version = newest; version != null; version = version.older) {
+            if (version.commitTimestamp > snapshotTimestamp) {
+                continue;
+            }
+            if (!version.increment) {
+                return incremented ? LogEntry.increment(version.value, delta) : version.value;
+            }
+            delta += version.delta;
+            incremented = true;
+        }
+        return incremented ? LogEntry.increment(null, delta) : null;
+    }
+
+    /**
+     * Check that no row written by the transaction was committed after its snapshot and claim the rows until the
+     * transaction installs or releases them. A row the transaction only increments may have been incremented since,
+     * and may be claimed by other transactions incrementing it.
+     *
+     * @param snapshotTimestamp snapshot of the transaction, {@link Long#MAX_VALUE} to only check the claims
+     * @throws WriteConflictException if another transaction committed or is committing one of the rows
+     */
+    public void claim(long transactionId, List<LogEntry> entries, long snapshotTimestamp) {
+        synchronized (claims) {
+            for (LogEntry entry : entries) {
+                String page = entry.getRowKey();
+                Long owner = claims.get(page);
+                RowVersion newest = rows.get(page);
+                boolean conflict;
+                if (entry.isIncrement()) {
+                    conflict = (owner != null && owner != transactionId)
+                            || writtenAfter(newest, snapshotTimestamp);
+                } else {
+                    conflict = (owner != null && owner != transactionId) || incrementClaims.containsKey(page)
+                            || (newest != null && newest.commitTimestamp > snapshotTimestamp);
+                }
+                if (conflict) {
+                    throw new WriteConflictException("Transaction " + transactionId + " conflicts on " + page
+                            + " with a transaction committed after its snapshot");
+                }
+            }
+            Long owner = transactionId;
+            for (LogEntry entry : entries) {
+                if (entry.isIncrement()) {
+                    incrementClaims.merge(entry.getRowKey(), 1, Integer::sum);
+                } else {
+                    claims.put(entry.getRowKey(), owner);
+                }
+            }
+        }
+    }
+
+    // True if a value, not an increment, was committed to the row after the snapshot
+    private static boolean writtenAfter(RowVersion newest, long snapshotTimestamp) {
+        for (RowVersion version = newest; version != null && version.commitTimestamp > snapshotTimestamp;
+             version = version.older) {
+            if (!version.increment) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run an action while no committing transaction claims the row, so no increment of the row is applied meanwhile.
+     *
+     * @return false if the row is claimed, the action did not run
+     */
+    boolean whenUnclaimed(String table, String key, Runnable action) {
+        String page = table + ":" + key;
+        synchronized (claims) {
+            if (claims.containsKey(page) || incrementClaims.containsKey(page)) {
+                return false;
+            }
+            action.run();
+            return true;
+        }
+    }
+
+    /**
+     * Add the committed changes of a claimed transaction as new versions. Must be called before the changes are
+     * applied to the buffer pool.
+     */
+    public void install(List<LogEntry> entries, long commitTimestamp) {
+        for (LogEntry entry : entries) {
+            String page = entry.getRowKey();
+            if (entry.isIncrement()) {
+                installIncrement(entry, commitTimestamp);
+                continue;
+            }
+            String value = "DELETE".equals(entry.getOperation()) ? null : entry.getNewValue();
+            // Retried if vacuum drops the row meanwhile
+            while (true) {
+                RowVersion newest = rows.get(page);
+                if (newest != null) {
+                    if (rows.replace(page, newest, new RowVersion(value, commitTimestamp, newest))) {
+                        break;
+                    }
+                } else {
+                    // The claim keeps the row unchanged, so the buffer pool still holds the value before this commit
+                    RowVersion previous = new RowVersion(bufferPool.get(entry.getTable(), entry.getKey()), 0, null);
+                    if (rows.putIfAbsent(page, new RowVersion(value, commitTimestamp, previous)) == null) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Increments of a row commit concurrently and are installed in any order, the delta is inserted below the newer
+    // versions so the versions stay in commit order
+    private void installIncrement(LogEntry entry, long commitTimestamp) {
+        rows.compute(entry.getRowKey(), (page, newest) -> {
+            if (newest == null) {
+                // No increment of the row is applied to the buffer pool before it is installed, and vacuum keeps the
+                // versions of all increments that are not visible to every snapshot yet
+                newest = new RowVersion(bufferPool.get(entry.getTable(), entry.getKey()), 0, null);
+            }
+            if (newest.commitTimestamp <= commitTimestamp) {
+                return new RowVersion(entry.getDelta(), commitTimestamp, newest);
+            }
+            RowVersion newer = newest;
+            while (newer.older != null && newer.older.commitTimestamp > commitTimestamp) {
+                newer = newer.older;
+            }
+            newer.older = new RowVersion(entry.getDelta(), commitTimestamp, newer.older);
+            return newest;
+        });
+    }
+
+    public void release(long transactionId, List<LogEntry> entries) {
+        Long owner = transactionId;
+        for (LogEntry entry : entries) {
+            if (entry.isIncrement()) {
+                incrementClaims.computeIfPresent(entry.getRowKey(), (page, count) -> count > 1 ? count - 1 : null);
+            } else {
+                claims.remove(entry.getRowKey(), owner);
+            }
+        }
+    }
+
+    /**
+     * Drop the versions no active snapshot can see.
+     *
+     * @return number of versions dropped
+     */
+    public long vacuum() {
+        long horizon = horizon();
+        long dropped = 0;
+        for (Map.Entry<String, RowVersion> row : rows.entrySet()) {
+            RowVersion newest = row.getValue();
+            if (newest.commitTimestamp <= horizon) {
+                // Every snapshot sees the newest version, the buffer pool holds the same value
+                if (rows.remove(row.getKey(), newest)) {
+                    dropped += newest.chainLength();
+                }
+                continue;
+            }
+            for (RowVersion version = newest; version != null; version = version.older) {
+                if (version.commitTimestamp <= horizon) {
+                    if (version.increment) {
+                        dropped += collapse(row.getKey(), version, horizon);
+                    } else if (version.older != null) {
+                        dropped += version.older.chainLength();
+                        version.older = null;
+                    }
+                    break;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    // Replace an increment every snapshot sees, and the versions below it, by the value they add up to
+    private long collapse(String page, RowVersion increment, long horizon) {
+        RowVersion value = new RowVersion(visible(increment, horizon), increment.commitTimestamp, null);
+        long[] dropped = new long[1];
+        // Serialized with the installs of increments, which insert versions above it
+        rows.computeIfPresent(page, (p, newest) -> {
+            for (RowVersion newer = newest; newer != null; newer = newer.older) {
+                if (newer.older == increment) {
+                    newer.older = value;
+                    dropped[0] = increment.chainLength() - 1;
+                    break;
+                }
+            }
+            return newest;
+        });
+        return dropped[0];
+    }
+
+    /**
+     * Vacuum in the background at a fixed interval until {@link #shutdown()} is called.
+     */
+    public synchronized void startVacuum(long intervalMillis) {
+        if (vacuumExecutor != null) {
+            return;
+        }
+        vacuumExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mvcc-vacuum");
+            thread.setDaemon(true);
+            return thread;
+        });
+        vacuumExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                vacuum();
+            } catch (RuntimeException e) {
+                System.err.println("Error during vacuum: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (vacuumExecutor != null) {
+            vacuumExecutor.shutdownNow();
+            vacuumExecutor = null;
+        }
+    }
+
+    /**
+     * @return number of rows that currently have versions
+     */
+    public int getVersionedRowCount() {
+        return rows.size();
+    }
+
+    /**
+     * @return number of versions of all rows, including the value each row had before its first versioned commit
+     */
+    public long getVersionCount() {
+        long count = 0;
+        for (RowVersion newest : rows.values()) {
+            count += newest.chainLength();
+        }
+        return count;
+    }
+
+    // A committed value or increment of a row, linked to the next older one
+    private static final class RowVersion {
+        private final String value;
+        // Number added to the older versions, for an increment
+        private final long delta;
+        private final boolean increment;
+        private final long commitTimestamp;
+        // Cut by vacuum and changed when an increment is inserted, read without locks
+        private volatile RowVersion older;
+
+        RowVersion(String value, long commitTimestamp, RowVersion older) {
+            this.value = value;
+            this.delta = 0;
+            this.increment = false;
+            this.commitTimestamp = commitTimestamp;
+            this.older = older;
+        }
+
+        RowVersion(long delta, long commitTimestamp, RowVersion older) {
+            this.value = null;
+            this.delta = delta;
+            this.increment = true;
+            this.commitTimestamp = commitTimestamp;
+            this.older = older;
+        }
+
+        int chainLength() {
+            int length = 0;
+            for (RowVersion version = this; version != null; version = version.older) {
+                length++;
+            }
+            return length;
+        }
+    }
+}
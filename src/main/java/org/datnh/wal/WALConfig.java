@@ -0,0 +1,317 @@
+package org.datnh.wal;
+
+/**
+ * Tunable settings of the Write-Ahead Log.
+ * Setters return this config so options can be chained, e.g. {@code new WALConfig().groupCommit(true).maxBatchSize(64)}.
+ */
+class WALConfig {
+    // When enabled, concurrent commits are batched into a single write and a single fsync
+    private boolean groupCommit = true;
+
+    // Maximum number of transaction batches a group commit leader drains into one write
+    private int maxBatchSize = 256;
+
+    // How long a leader waits for more committers to join before flushing, 0 means flush immediately
+    private long maxWaitMicros = 0;
+
+    // How often the WAL writer forces the records of async commits, a crash loses about this window plus one fsync
+    private long asyncCommitWindowMillis = 10;
+
+    // Size of the in-memory ring committing threads copy their records into before they are written to the segments
+    private int logBufferSize = 4 * 1024 * 1024;
+
+    // Independent streams the log is split into, each with its own segments, log buffer and group commit, rows are
+    // routed to a stream by the hash of table and key. Readers, replication and snapshots need a single stream
+    private int logStreams = 1;
+
+    // When enabled, the records drained from the log buffer are compressed in batches, see LogBatchCompressor
+    private boolean compression = false;
+
+    // Deflate level of compressed batches from 0 to 9, 0 only applies the compact encoding and table dictionary
+    private int compressionLevel = 1;
+
+    // Size of each preallocated WAL segment file
+    private int segmentSize = 16 * 1024 * 1024;
+
+    // Released segments kept around to be recycled instead of preallocating new files
+    private int maxSpareSegments = 2;
+
+    // Number of threads redoing committed changes during recovery
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    // Background checkpoint triggers, a value of 0 disables the trigger
+    private long checkpointIntervalMillis = 10_000;
+    private int checkpointDirtyPages = 0;
+    private long checkpointWalBytes = 0;
+
+    // Upper bound of pages written per second by the background checkpointer, 0 means unlimited
+    private int checkpointPagesPerSecond = 0;
+
+    // How often versions no snapshot can see any more are dropped, 0 disables the background vacuum
+    private long vacuumIntervalMillis = 1_000;
+
+    // What a commit waits for from the standby when the log is shipped, see WriteAheadLog#startReplication
+    private ReplicationMode replicationMode = ReplicationMode.ASYNC;
+
+    // How long a commit waits for the standby before replication falls back to async until the standby catches up
+    private long replicationTimeoutMillis = 1_000;
+
+    // When enabled, the log only receives records shipped by a primary and transactions are read-only until promotion
+    private boolean replica = false;
+
+    // When enabled, the WAL records latency histograms and counters and emits JFR events, see WALMetrics
+    private boolean metricsEnabled = false;
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public WALConfig groupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public WALConfig maxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+    public WALConfig maxWaitMicros(long maxWaitMicros) {
+        if (maxWaitMicros < 0) {
+            throw new IllegalArgumentException("maxWaitMicros must not be negative: " + maxWaitMicros);
+        }
+        this.maxWaitMicros = maxWaitMicros;
+        return this;
+    }
+
+    public long getAsyncCommitWindowMillis() {
+        return asyncCommitWindowMillis;
+    }
+
+    public WALConfig asyncCommitWindowMillis(long asyncCommitWindowMillis) {
+        if (asyncCommitWindowMillis < 1) {
+            throw new IllegalArgumentException("asyncCommitWindowMillis must be positive: " + asyncCommitWindowMillis);
+        }
+        this.asyncCommitWindowMillis = asyncCommitWindowMillis;
+        return this;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public WALConfig logBufferSize(int logBufferSize) {
+        if (logBufferSize < 64 * 1024) {
+            throw new IllegalArgumentException("logBufferSize must be at least 64KB: " + logBufferSize);
+        }
+        this.logBufferSize = logBufferSize;
+        return this;
+    }
+
+    public int getLogStreams() {
+        return logStreams;
+    }
+
+    public WALConfig logStreams(int logStreams) {
+        if (logStreams < 1) {
+            throw new IllegalArgumentException("logStreams must be positive: " + logStreams);
+        }
+        this.logStreams = logStreams;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public WALConfig compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public WALConfig compressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 0 and 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public WALConfig segmentSize(int segmentSize) {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 64KB: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public int getMaxSpareSegments() {
+        return maxSpareSegments;
+    }
+
+    public WALConfig maxSpareSegments(int maxSpareSegments) {
+        if (maxSpareSegments < 0) {
+            throw new IllegalArgumentException("maxSpareSegments must not be negative: " + maxSpareSegments);
+        }
+        this.maxSpareSegments = maxSpareSegments;
+        return this;
+    }
+
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    public WALConfig recoveryThreads(int recoveryThreads) {
+        if (recoveryThreads < 1) {
+            throw new IllegalArgumentException("recoveryThreads must be positive: " + recoveryThreads);
+        }
+        this.recoveryThreads = recoveryThreads;
+        return this;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    public WALConfig checkpointIntervalMillis(long checkpointIntervalMillis) {
+        if (checkpointIntervalMillis < 0) {
+            throw new IllegalArgumentException("checkpointIntervalMillis must not be negative: " + checkpointIntervalMillis);
+        }
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    public int getCheckpointDirtyPages() {
+        return checkpointDirtyPages;
+    }
+
+    public WALConfig checkpointDirtyPages(int checkpointDirtyPages) {
+        if (checkpointDirtyPages < 0) {
+            throw new IllegalArgumentException("checkpointDirtyPages must not be negative: " + checkpointDirtyPages);
+        }
+        this.checkpointDirtyPages = checkpointDirtyPages;
+        return this;
+    }
+
+    public long getCheckpointWalBytes() {
+        return checkpointWalBytes;
+    }
+
+    public WALConfig checkpointWalBytes(long checkpointWalBytes) {
+        if (checkpointWalBytes < 0) {
+            throw new IllegalArgumentException("checkpointWalBytes must not be negative: " + checkpointWalBytes);
+        }
+        this.checkpointWalBytes = checkpointWalBytes;
+        return this;
+    }
+
+    public int getCheckpointPagesPerSecond() {
+        return checkpointPagesPerSecond;
+    }
+
+    public WALConfig checkpointPagesPerSecond(int checkpointPagesPerSecond) {
+        if (checkpointPagesPerSecond < 0) {
+            throw new IllegalArgumentException("checkpointPagesPerSecond must not be negative: " + checkpointPagesPerSecond);
+        }
+        this.checkpointPagesPerSecond = checkpointPagesPerSecond;
+        return this;
+    }
+
+    public long getVacuumIntervalMillis() {
+        return vacuumIntervalMillis;
+    }
+
+    public WALConfig vacuumIntervalMillis(long vacuumIntervalMillis) {
+        if (vacuumIntervalMillis < 0) {
+            throw new IllegalArgumentException("vacuumIntervalMillis must not be negative: " + vacuumIntervalMillis);
+        }
+        this.vacuumIntervalMillis = vacuumIntervalMillis;
+        return this;
+    }
+
+    public ReplicationMode getReplicationMode() {
+        return replicationMode;
+    }
+
+    public WALConfig replicationMode(ReplicationMode replicationMode) {
+        if (replicationMode == null) {
+            throw new IllegalArgumentException("replicationMode must not be null");
+        }
+        this.replicationMode = replicationMode;
+        return this;
+    }
+
+    public long getReplicationTimeoutMillis() {
+        return replicationTimeoutMillis;
+    }
+
+    public WALConfig replicationTimeoutMillis(long replicationTimeoutMillis) {
+        if (replicationTimeoutMillis < 1) {
+            throw new IllegalArgumentException("replicationTimeoutMillis must be positive: " + replicationTimeoutMillis);
+        }
+        this.replicationTimeoutMillis = replicationTimeoutMillis;
+        return this;
+    }
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    public WALConfig replica(boolean replica) {
+        this.replica = replica;
+        return this;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public WALConfig metricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+        return this;
+    }
+
+    /**
+     * Check the options that depend on each other, called when a WAL is opened with this config.
+     * <br/> Records are shipped, read and snapshotted from a single log stream, the streams are not merged in LSN order
+     * while the log is written. Several streams therefore cannot be combined with a standby or with a replication mode
+     * that makes commits wait for one.
+     *
+     * @throws IllegalArgumentException if the options cannot be combined
+     */
+    void validate() {
+        if (logStreams > 1 && replica) {
+            throw new IllegalArgumentException("A standby needs a single log stream, logStreams is " + logStreams);
+        }
+        if (logStreams > 1 && replicationMode != ReplicationMode.ASYNC) {
+            throw new IllegalArgumentException("replicationMode " + replicationMode
+                    + " needs a single log stream, logStreams is " + logStreams);
+        }
+    }
+
+    /**
+     * @return true if any background checkpoint trigger is enabled
+     */
+    public boolean isBackgroundCheckpointEnabled() {
+        return checkpointIntervalMillis > 0 || checkpointDirtyPages > 0 || checkpointWalBytes > 0;
+    }
+}
@@ -0,0 +1,127 @@
+package org.datnh.wal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This class holds the custom JDK Flight Recorder events emitted by the WAL when metrics are enabled, e.g. record them
+ * with {@code java -XX:StartFlightRecording:filename=wal.jfr ...} and open the file in JDK Mission Control.
+ * <br/> Events are created when their operation has ended and carry its latency as a field, so nothing is allocated
+ * unless a recording has the event enabled.
+ */
+final class WALEvents {
+    static final EventType COMMIT = EventType.getEventType(Commit.class);
+    static final EventType FSYNC = EventType.getEventType(Fsync.class);
+    static final EventType CHECKPOINT = EventType.getEventType(Checkpoint.class);
+    static final EventType RECOVERY = EventType.getEventType(Recovery.class);
+
+    private WALEvents() {
+    }
+
+    @Name("org.datnh.wal.Commit")
+    @Label("WAL Commit")
+    @Category({"WAL"})
+    @StackTrace(false)
+    static final class Commit extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+
+        @Label("Entries")
+        int entries;
+
+        @Label("Commit LSN")
+        long lsn;
+    }
+
+    @Name("org.datnh.wal.Fsync")
+    @Label("WAL Fsync")
+    @Category({"WAL"})
+    @StackTrace(false)
+    static final class Fsync extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+
+        @Label("Durable LSN")
+        long lsn;
+    }
+
+    @Name("org.datnh.wal.Checkpoint")
+    @Label("WAL Checkpoint")
+    @Category({"WAL"})
+    @StackTrace(false)
+    static final class Checkpoint extends Event {
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long checkpointDuration;
+
+        @Label("Pages Written")
+        long pages;
+
+        @Label("Redo LSN")
+        long redoLsn;
+    }
+
+    @Name("org.datnh.wal.Recovery")
+    @Label("WAL Recovery")
+    @Category({"WAL"})
+    @StackTrace(false)
+    static final class Recovery extends Event {
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long recoveryDuration;
+
+        @Label("Segments Read")
+        long segments;
+
+        @Label("Entries Replayed")
+        long replayed;
+
+        @Label("Entries Skipped")
+        @Description("Entries before the redo LSN of the last checkpoint")
+        long skipped;
+
+        @Label("Entries Discarded")
+        @Description("Entries of transactions without a commit record")
+        long discarded;
+    }
+
+    /**
+     * Emitted every second while a recording has it enabled, with the totals of the WAL at that time.
+     */
+    @Name("org.datnh.wal.Statistics")
+    @Label("WAL Statistics")
+    @Category({"WAL"})
+    @Period("1 s")
+    @StackTrace(false)
+    static final class Statistics extends Event {
+        @Label("Appended Entries")
+        long appendedEntries;
+
+        @Label("Appended Bytes")
+        @DataAmount
+        long appendedBytes;
+
+        @Label("Durable LSN")
+        long durableLsn;
+
+        @Label("Max Reader Lag")
+        @Description("Durable records the slowest WAL reader has not read yet")
+        long maxReaderLag;
+
+        @Label("Dirty Pages")
+        long dirtyPages;
+
+        @Label("Average Group Size")
+        double averageGroupSize;
+    }
+}
@@ -0,0 +1,255 @@
+package org.datnh.wal;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the metrics of a Write-Ahead Log: latency histograms of commits, fsyncs and checkpoints, WAL
+ * append counters, group commit sizes and recovery progress.
+ * <br/> Metrics are opt-in, see {@link WALConfig#metricsEnabled(boolean)}. When they are disabled the WAL holds no
+ * metrics object and the hot path skips even reading the clock. When enabled, every record call is a few atomic
+ * increments, and a matching JFR event (see {@link WALEvents}) is only created while a recording has it enabled.
+ * <br/> {@link #snapshot(int)} can be called from any thread at any time, e.g. to watch recovery progress.
+ */
+class WALMetrics {
+    private final long createdNanos = System.nanoTime();
+
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+    private final LatencyHistogram groupSizes = new LatencyHistogram();
+    private final LatencyHistogram checkpointDuration = new LatencyHistogram();
+    private final LongAdder appendedEntries = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+    private final LongAdder checkpointPages = new LongAdder();
+
+    // Recovery progress, written by the recovering thread only
+    private volatile boolean recovering;
+    private volatile long recoverySegmentsTotal;
+    private volatile long recoverySegmentsRead;
+    private volatile long recoveryEntriesRead;
+    private volatile long recoveryEntriesReplayed;
+    private volatile long recoveryNanos;
+
+    void commitCompleted(long startNanos, int entries, long lsn) {
+        long latency = System.nanoTime() - startNanos;
+        commitLatency.record(latency);
+        if (WALEvents.COMMIT.isEnabled()) {
+            WALEvents.Commit event = new WALEvents.Commit();
+            event.latency = latency;
+            event.entries = entries;
+            event.lsn = lsn;
+            event.commit();
+        }
+    }
+
+    void fsyncCompleted(long startNanos, long lsn) {
+        long latency = System.nanoTime() - startNanos;
+        fsyncLatency.record(latency);
+        if (WALEvents.FSYNC.isEnabled()) {
+            WALEvents.Fsync event = new WALEvents.Fsync();
+            event.latency = latency;
+            event.lsn = lsn;
+            event.commit();
+        }
+    }
+
+    void entryAppended(int bytes) {
+        appendedEntries.increment();
+        appendedBytes.add(bytes);
+    }
+
+    void groupCommitted(int transactions) {
+        groupSizes.record(transactions);
+    }
+
+    void checkpointCompleted(long startNanos, long pages, long redoLsn) {
+        long duration = System.nanoTime() - startNanos;
+        checkpointDuration.record(duration);
+        checkpointPages.add(pages);
+        if (WALEvents.CHECKPOINT.isEnabled()) {
+            WALEvents.Checkpoint event = new WALEvents.Checkpoint();
+            event.checkpointDuration = duration;
+            event.pages = pages;
+            event.redoLsn = redoLsn;
+            event.commit();
+        }
+    }
+
+    void recoveryStarted(long segments) {
+        recoverySegmentsTotal = segments;
+        recoverySegmentsRead = 0;
+        recoveryEntriesRead = 0;
+        recoveryEntriesReplayed = 0;
+        recovering = true;
+    }
+
+    void recoverySegmentRead(long entries) {
+        recoverySegmentsRead++;
+        recoveryEntriesRead += entries;
+    }
+
+    void recoveryCompleted(long startNanos, long replayed, long skipped, long discarded) {
+        recoveryNanos = System.nanoTime() - startNanos;
+        recoveryEntriesReplayed = replayed;
+        recovering = false;
+        if (WALEvents.RECOVERY.isEnabled()) {
+            WALEvents.Recovery event = new WALEvents.Recovery();
+            event.recoveryDuration = recoveryNanos;
+            event.segments = recoverySegmentsRead;
+            event.replayed = replayed;
+            event.skipped = skipped;
+            event.discarded = discarded;
+            event.commit();
+        }
+    }
+
+    long getAppendedEntries() {
+        return appendedEntries.sum();
+    }
+
+    long getAppendedBytes() {
+        return appendedBytes.sum();
+    }
+
+    /**
+     * @param dirtyPages current number of dirty pages in the buffer pool
+     */
+    public Snapshot snapshot(int dirtyPages) {
+        double seconds = Math.max(System.nanoTime() - createdNanos, 1) / 1e9;
+        long entries = appendedEntries.sum();
+        long bytes = appendedBytes.sum();
+        return new Snapshot(commitLatency.snapshot(), fsyncLatency.snapshot(), groupSizes.snapshot(),
+                checkpointDuration.snapshot(), entries, bytes, entries / seconds, bytes / seconds,
+                checkpointPages.sum(), dirtyPages, recovering, recoverySegmentsRead, recoverySegmentsTotal,
+                recoveryEntriesRead, recoveryEntriesReplayed, recoveryNanos);
+    }
+
+    /**
+     * Metrics of a WAL at one point in time. Latencies and durations are in nanoseconds, rates are averages since the
+     * WAL was opened.
+     */
+    static final class Snapshot {
+        private final LatencyHistogram.Snapshot commitLatency;
+        private final LatencyHistogram.Snapshot fsyncLatency;
+        private final LatencyHistogram.Snapshot groupSizes;
+        private final LatencyHistogram.Snapshot checkpointDuration;
+        private final long appendedEntries;
+        private final long appendedBytes;
+        private final double entriesPerSecond;
+        private final double bytesPerSecond;
+        private final long checkpointPages;
+        private final int dirtyPages;
+        private final boolean recovering;
+        private final long recoverySegmentsRead;
+        private final long recoverySegmentsTotal;
+        private final long recoveryEntriesRead;
+        private final long recoveryEntriesReplayed;
+        private final long recoveryNanos;
+
+        Snapshot(LatencyHistogram.Snapshot commitLatency, LatencyHistogram.Snapshot fsyncLatency,
+                 LatencyHistogram.Snapshot groupSizes, LatencyHistogram.Snapshot checkpointDuration,
+                 long appendedEntries, long appendedBytes, double entriesPerSecond, double bytesPerSecond,
+                 long checkpointPages, int dirtyPages, boolean recovering, long recoverySegmentsRead,
+                 long recoverySegmentsTotal, long recoveryEntriesRead, long recoveryEntriesReplayed,
+                 long recoveryNanos) {
+            this.commitLatency = commitLatency;
+            this.fsyncLatency = fsyncLatency;
+            this.groupSizes = groupSizes;
+            this.checkpointDuration = checkpointDuration;
+            this.appendedEntries = appendedEntries;
+            this.appendedBytes = appendedBytes;
+            this.entriesPerSecond = entriesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.checkpointPages = checkpointPages;
+            this.dirtyPages = dirtyPages;
+            this.recovering = recovering;
+            this.recoverySegmentsRead = recoverySegmentsRead;
+            this.recoverySegmentsTotal = recoverySegmentsTotal;
+            this.recoveryEntriesRead = recoveryEntriesRead;
+            this.recoveryEntriesReplayed = recoveryEntriesReplayed;
+            this.recoveryNanos = recoveryNanos;
+        }
+
+        public LatencyHistogram.Snapshot getCommitLatency() {
+            return commitLatency;
+        }
+
+        public LatencyHistogram.Snapshot getFsyncLatency() {
+            return fsyncLatency;
+        }
+
+        /**
+         * @return number of transactions written per group commit fsync
+         */
+        public LatencyHistogram.Snapshot getGroupSizes() {
+            return groupSizes;
+        }
+
+        public LatencyHistogram.Snapshot getCheckpointDuration() {
+            return checkpointDuration;
+        }
+
+        public long getAppendedEntries() {
+            return appendedEntries;
+        }
+
+        public long getAppendedBytes() {
+            return appendedBytes;
+        }
+
+        public double getEntriesPerSecond() {
+            return entriesPerSecond;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public long getCheckpointPages() {
+            return checkpointPages;
+        }
+
+        public int getDirtyPages() {
+            return dirtyPages;
+        }
+
+        public boolean isRecovering() {
+            return recovering;
+        }
+
+        public long getRecoverySegmentsRead() {
+            return recoverySegmentsRead;
+        }
+
+        public long getRecoverySegmentsTotal() {
+            return recoverySegmentsTotal;
+        }
+
+        public long getRecoveryEntriesRead() {
+            return recoveryEntriesRead;
+        }
+
+        public long getRecoveryEntriesReplayed() {
+            return recoveryEntriesReplayed;
+        }
+
+        public long getRecoveryNanos() {
+            return recoveryNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "commit latency (ns):      " + commitLatency + "\n"
+                    + "fsync latency (ns):       " + fsyncLatency + "\n"
+                    + "group size:               " + groupSizes + "\n"
+                    + "checkpoint duration (ns): " + checkpointDuration + "\n"
+                    + String.format("appended:                 %d entries, %d bytes (%.0f entries/s, %.0f bytes/s)%n",
+                    appendedEntries, appendedBytes, entriesPerSecond, bytesPerSecond)
+                    + "checkpointed pages:       " + checkpointPages + "\n"
+                    + "dirty pages:              " + dirtyPages + "\n"
+                    + "recovery:                 " + (recovering ? "in progress, " : "")
+                    + recoverySegmentsRead + " of " + recoverySegmentsTotal + " segment(s), "
+                    + recoveryEntriesRead + " entries read, " + recoveryEntriesReplayed + " replayed in "
+                    + recoveryNanos / 1_000_000 + " ms";
+        }
+    }
+}
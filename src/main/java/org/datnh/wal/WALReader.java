@@ -0,0 +1,164 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class streams the durable records of the WAL in LSN order, from any LSN the log still holds, to consumers of
+ * committed changes such as cache invalidators or search indexers.
+ * <br/> Records are read from the memory mapping of each segment rather than through its file channel, which an
+ * interrupted consumer thread would close for the WAL as well. Memory use depends neither on the size of the log nor on
+ * how far the reader is behind. Only records up to the durable LSN are returned, a consumer never sees a change that a
+ * crash could still take back. The changes of a transaction are followed by its commit record, checkpoint records are
+ * skipped.
+ * <br/> {@link #next()} returns null once the reader has caught up, {@link #poll(long, TimeUnit)} follows the tail of
+ * the log and parks until the next record is durable. While a reader is open, checkpoints keep every segment it has not
+ * read yet. A reader is not thread-safe, every consumer opens its own with {@link WriteAheadLog#openReader(long)}.
+ */
+class WALReader implements AutoCloseable {
+    private final WriteAheadLog wal;
+    private final SegmentedLog log;
+    // The WAL sender ships checkpoint records too, so the standby log keeps the LSNs of the primary
+    private final boolean checkpointRecords;
+
+    // LSN of the last record returned or skipped, read by checkpoints to decide which segments to keep
+    private volatile long lastLsn;
+    private WALSegment segment;
+    // Null when the reader has to locate the segment of the next record, or resume in the current one
+    private LogRecordDecoder decoder;
+    // File offset in the current segment right after the last record consumed
+    private int resumePosition;
+    // Decoded record that is not durable yet
+    private LogEntry pending;
+    private long recordsRead;
+    private volatile boolean closed;
+
+    WALReader(WriteAheadLog wal, SegmentedLog log, long fromLsn, boolean checkpointRecords) {
+        this.wal = wal;
+        this.log = log;
+        this.checkpointRecords = checkpointRecords;
+        this.lastLsn = Math.max(fromLsn, 1) - 1;
+    }
+
+    /**
+     * @return the next durable record, or null if every durable record has been read
+     * @throws IllegalStateException if the next record is no longer in the log
+     */
+    public LogEntry next() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("WAL reader is closed");
+        }
+        long durableLsn = wal.getDurableLSN();
+        while (true) {
+            if (pending != null) {
+                if (pending.getLsn() > durableLsn) {
+                    return null;
+                }
+                LogEntry entry = pending;
+                pending = null;
+                resumePosition = (int) decoder.getValidPosition();
+                lastLsn = entry.getLsn();
+                if (entry.isCheckpointRecord() && !checkpointRecords) {
+                    continue;
+                }
+                recordsRead++;
+                return entry;
+            }
+            if (lastLsn >= durableLsn) {
+                return null;
+            }
+            if (decoder == null) {
+                openDecoder();
+            }
+
+            LogEntry entry = decoder.next();
+            if (entry == null) {
+                // End of what is written to this segment so far, the next record may be in a newer segment
+                decoder = null;
+                if (locate(lastLsn + 1) == segment) {
+                    return null;
+                }
+            } else if (entry.getLsn() > lastLsn) {
+                if (entry.getLsn() != lastLsn + 1) {
+                    throw new IllegalStateException("WAL reader expected LSN " + (lastLsn + 1) + " but found "
+                            + entry.getLsn() + ", the records in between were released");
+                }
+                pending = entry;
+            }
+        }
+    }
+
+    /**
+     * Wait for the next durable record, following the tail of the log.
+     *
+     * @return the next durable record, or null if none became durable within the timeout
+     */
+    public LogEntry poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            LogEntry entry = next();
+            if (entry != null) {
+                return entry;
+            }
+            if (!wal.awaitDurable(lastLsn, deadline)) {
+                return null;
+            }
+        }
+    }
+
+    // Open a decoder at the next record, resuming in the current segment if it still holds the next record
+    private void openDecoder() throws IOException {
+        WALSegment next = locate(lastLsn + 1);
+        if (next == null) {
+            throw new IllegalStateException("WAL records after LSN " + lastLsn + " were released");
+        }
+        if (next != segment) {
+            segment = next;
+            resumePosition = LogRecordFormat.SEGMENT_HEADER_SIZE;
+            decoder = segment.openMappedDecoder(resumePosition, segment.getBaseLsn());
+        } else {
+            // Records returned by an earlier decoder of this segment are not decoded again
+            decoder = segment.openMappedDecoder(resumePosition, resumePosition == LogRecordFormat.SEGMENT_HEADER_SIZE
+                    ? segment.getBaseLsn() : lastLsn);
+        }
+    }
+
+    // The last segment starting before the given LSN, null if the segment holding it was released
+    private WALSegment locate(long lsn) {
+        List<WALSegment> segments = log.getSegments();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).getBaseLsn() < lsn) {
+                return segments.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return LSN of the last record returned or skipped
+     */
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * @return number of durable records not read yet, the lag of the consumer
+     */
+    public long getLag() {
+        return Math.max(0, wal.getDurableLSN() - lastLsn);
+    }
+
+    /**
+     * @return number of records returned so far
+     */
+    public long getRecordsRead() {
+        return recordsRead;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        wal.readerClosed(this);
+    }
+}
@@ -0,0 +1,237 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class represents one fixed-size, preallocated WAL segment file.
+ * <br/> The whole file is memory-mapped and records are copied straight into the mapping, so appending never grows the
+ * file and forcing a segment only has to flush the range written since the previous force.
+ */
+class WALSegment {
+    static final String SUFFIX = ".seg";
+    private static final int ZERO_CHUNK_SIZE = 1024 * 1024;
+
+    private final long id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long baseLsn;
+
+    private int writePosition;
+    private int flushedPosition;
+    private volatile long lastLsn;
+
+    private WALSegment(long id, Path path, FileChannel channel, long baseLsn, int writePosition, long lastLsn)
+            throws IOException {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        this.baseLsn = baseLsn;
+        this.writePosition = writePosition;
+        this.flushedPosition = writePosition;
+        this.lastLsn = lastLsn;
+    }
+
+    /**
+     * Create a new segment, reusing a recycled segment file when one is given.
+     *
+     * @param directory WAL directory
+     * @param id        segment id, segments are replayed in id order
+     * @param baseLsn   LSN of the last record before this segment
+     * @param size      segment size in bytes
+     * @param recycled  an obsolete segment file to reuse instead of preallocating a new one, may be null
+     */
+    static WALSegment create(Path directory, long id, long baseLsn, int size, Path recycled) throws IOException {
+        Path path = directory.resolve(fileName(id));
+        if (recycled != null) {
+            Files.move(recycled, path, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            preallocate(path, size);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        WALSegment segment = new WALSegment(id, path, channel, baseLsn, LogRecordFormat.SEGMENT_HEADER_SIZE, baseLsn);
+        // Records of the previous use of a recycled file stay behind the end marker and have lower LSNs
+        segment.buffer.put(0, LogRecordFormat.segmentHeader(id, baseLsn), 0, LogRecordFormat.SEGMENT_HEADER_SIZE);
+        segment.writeEndMarker();
+        segment.buffer.force(0, LogRecordFormat.SEGMENT_HEADER_SIZE + LogRecordFormat.RECORD_HEADER_SIZE);
+        return segment;
+    }
+
+    /**
+     * Open an existing segment.
+     * The active segment is scanned so that appends continue after its last intact record, a sealed segment is not
+     * scanned and ends right before the base LSN of the segment that follows it.
+     *
+     * @param path       segment file
+     * @param nextBaseLsn base LSN of the following segment, or -1 if this is the active segment
+     */
+    static WALSegment open(Path path, long nextBaseLsn) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            if (nextBaseLsn >= 0) {
+                return new WALSegment(decoder.getSegmentId(), path, channel, decoder.getBaseLsn(), (int) channel.size(),
+                        nextBaseLsn);
+            }
+            while (decoder.next() != null) {
+                // Scan to the end of the written part
+            }
+            WALSegment segment = new WALSegment(decoder.getSegmentId(), path, channel, decoder.getBaseLsn(),
+                    (int) decoder.getValidPosition(), decoder.getLastLsn());
+            if (decoder.isTornTail()) {
+                // Make the torn record unreadable so that appends start from a clean end of the log
+                System.out.println("  [WAL] Torn record found in " + path.getFileName() + " at offset "
+                        + segment.writePosition + ", discarded");
+                segment.writeEndMarker();
+                segment.buffer.force(segment.writePosition,
+                        Math.min(LogRecordFormat.RECORD_HEADER_SIZE, segment.getSize() - segment.writePosition));
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void preallocate(Path path, int size) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocateDirect(Math.min(ZERO_CHUNK_SIZE, size));
+            long written = 0;
+            while (written < size) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), size - written));
+                written += channel.write(zeros, written);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the base LSN from the header of a segment file without opening it for writing.
+     */
+    static long readBaseLsn(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new LogRecordDecoder(channel).getBaseLsn();
+        }
+    }
+
+    static String fileName(long id) {
+        return String.format("%020d%s", id, SUFFIX);
+    }
+
+    /**
+     * Copy a framed record into the segment.
+     *
+     * @return false if the record does not fit into the remaining space, the segment is then left unchanged
+     */
+    boolean append(ByteBuffer record, long lsn) {
+        int length = record.remaining();
+        if (writePosition + length > buffer.capacity()) {
+            return false;
+        }
+        buffer.put(writePosition, record, record.position(), length);
+        writePosition += length;
+        writeEndMarker();
+        lastLsn = lsn;
+        return true;
+    }
+
+    // A zero body length after the last record marks the end of the log within the segment
+    private void writeEndMarker() {
+        int end = Math.min(writePosition + LogRecordFormat.RECORD_HEADER_SIZE, buffer.capacity());
+        for (int i = writePosition; i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Flush everything appended since the previous force to disk.
+     */
+    void force() {
+        if (writePosition > flushedPosition) {
+            int end = Math.min(writePosition + LogRecordFormat.RECORD_HEADER_SIZE, buffer.capacity());
+            buffer.force(flushedPosition, end - flushedPosition);
+            flushedPosition = writePosition;
+        }
+    }
+
+    LogRecordDecoder openDecoder() throws IOException {
+        return new LogRecordDecoder(channel);
+    }
+
+    /**
+     * Decode the records of the segment in place from its memory mapping, starting at a record boundary.
+     * The mapping stays valid after the segment is closed.
+     */
+    LogRecordDecoder openMappedDecoder(int position, long lastLsn) throws IOException {
+        return new LogRecordDecoder(buffer.duplicate(), position, lastLsn);
+    }
+
+    /**
+     * Copy the records of this segment into a new file, the segment holding the given LSN is cut right after the
+     * record holding it, or the batch holding it, and the copy ends with an end marker.
+     *
+     * @return LSN of the last record copied
+     */
+    long copyTo(Path target, long toLsn) throws IOException {
+        if (lastLsn < toLsn) {
+            // Sealed before the LSN, nothing is appended to it any more
+            Files.copy(path, target);
+            return lastLsn;
+        }
+        LogRecordDecoder decoder = openMappedDecoder(LogRecordFormat.SEGMENT_HEADER_SIZE, baseLsn);
+        LogEntry entry;
+        while ((entry = decoder.next()) != null && entry.getLsn() < toLsn) {
+            // Skip to the record holding the LSN
+        }
+        int end = (int) decoder.getValidPosition();
+        try (FileChannel copy = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer records = buffer.duplicate().position(0).limit(end);
+            while (records.hasRemaining()) {
+                copy.write(records);
+            }
+            copy.write(ByteBuffer.allocate(LogRecordFormat.RECORD_HEADER_SIZE), end);
+            copy.force(true);
+        }
+        return decoder.getLastLsn();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getBaseLsn() {
+        return baseLsn;
+    }
+
+    long getLastLsn() {
+        return lastLsn;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    int getSize() {
+        return buffer.capacity();
+    }
+}
@@ -0,0 +1,56 @@
+package org.datnh.wal;
+
+/**
+ * Read-only description of a WAL segment: its file and the range of LSNs it holds.
+ */
+class WALSegmentInfo {
+    private final long segmentId;
+    private final String fileName;
+    private final long firstLsn;
+    private final long lastLsn;
+    private final int bytesUsed;
+    private final int size;
+
+    WALSegmentInfo(WALSegment segment) {
+        this.segmentId = segment.getId();
+        this.fileName = segment.getPath().getFileName().toString();
+        this.firstLsn = segment.getBaseLsn() + 1;
+        this.lastLsn = segment.getLastLsn();
+        this.bytesUsed = segment.getWritePosition();
+        this.size = segment.getSize();
+    }
+
+    public long getSegmentId() {
+        return segmentId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFirstLsn() {
+        return firstLsn;
+    }
+
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    public boolean isEmpty() {
+        return lastLsn < firstLsn;
+    }
+
+    public int getBytesUsed() {
+        return bytesUsed;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        String range = isEmpty() ? "(empty)" : "LSN " + firstLsn + " - " + lastLsn;
+        return String.format("%s %s, %d/%d bytes used", fileName, range, bytesUsed, size);
+    }
+}
@@ -0,0 +1,47 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command line tool that lists the segments of a WAL directory with the LSN range each segment holds.
+ * The directory is only read, so the tool can be pointed at the WAL of a running database.
+ * <br/> Usage: {@code WALSegmentTool [wal directory]}
+ */
+public class WALSegmentTool {
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "wal");
+        if (!Files.isDirectory(directory)) {
+            System.out.println("No WAL directory found at " + directory);
+            return;
+        }
+
+        List<Path> segmentFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            segmentFiles = files.filter(file -> file.getFileName().toString().endsWith(WALSegment.SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        System.out.printf("%-26s %12s %12s %10s %12s %12s%n", "segment", "first LSN", "last LSN", "records", "bytes used", "size");
+        for (Path file : segmentFiles) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                LogRecordDecoder decoder = new LogRecordDecoder(channel);
+                long records = 0;
+                while (decoder.next() != null) {
+                    records++;
+                }
+                System.out.printf("%-26s %12d %12d %10d %12d %12d%s%n", file.getFileName(), decoder.getBaseLsn() + 1,
+                        decoder.getLastLsn(), records, decoder.getValidPosition(), channel.size(),
+                        decoder.isTornTail() ? "  (torn tail)" : "");
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.datnh.wal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class ships the durable records of the primary's WAL over TCP to hot standbys, see {@link StandbyReplica}.
+ * <br/> Every standby connection has a sender thread. It follows the log with a {@link WALReader} from the LSN the standby
+ * asks for, and sends the records in frames of up to 64KB in the binary WAL record format. While idle it sends a
+ * heartbeat every 100 ms. The open reader keeps every segment the standby still needs.
+ * <br/> The standby acknowledges every frame twice: once when it arrives, and again once it is forced and applied.
+ * Commits wait for the acknowledgement their {@link ReplicationMode} asks for, from any standby. A commit that waits
+ * longer than the replication timeout falls back to async. Later commits do not wait either until a standby has caught
+ * up with the log, so a slow or lost standby cannot stall the primary.
+ * <pre>
+ * standby : start LSN (int64), then for every ack 'A' | received LSN (int64) | applied LSN (int64)
+ * primary : 'W' | durable LSN (int64) | record count (int32) | length (int32) | records
+ *           'H' | durable LSN (int64)
+ * </pre>
+ */
+class WALSender {
+    static final byte FRAME_RECORDS = 'W';
+    static final byte FRAME_HEARTBEAT = 'H';
+    static final byte FRAME_ACK = 'A';
+    static final int MAX_FRAME_BYTES = 64 * 1024;
+    private static final long HEARTBEAT_MILLIS = 100;
+
+    private final WriteAheadLog wal;
+    private final ReplicationMode mode;
+    private final long timeoutMillis;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    // Commits waiting for a standby by LSN
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Long>> waiters = new ConcurrentSkipListMap<>();
+    // Highest LSN any standby acknowledged the way the replication mode asks for
+    private final AtomicLong acknowledgedLsn = new AtomicLong();
+    // Set when a commit timed out, commits do not wait for standbys until one of them has caught up
+    private volatile boolean degraded;
+    private volatile boolean running = true;
+
+    /**
+     * Listen for standbys on the loopback interface.
+     *
+     * @param port TCP port, 0 picks a free port
+     */
+    WALSender(WriteAheadLog wal, WALConfig config, int port) throws IOException {
+        this.wal = wal;
+        this.mode = config.getReplicationMode();
+        this.timeoutMillis = config.getReplicationTimeoutMillis();
+        this.serverSocket = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::accept, "wal-sender-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connection.sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting standby connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a future completed once a standby acknowledged the given LSN, or right away when the commit does not
+     * have to wait for a standby
+     */
+    CompletableFuture<Long> whenReplicated(long lsn) {
+        if (mode == ReplicationMode.ASYNC || degraded || connections.isEmpty() || acknowledgedLsn.get() >= lsn) {
+            return CompletableFuture.completedFuture(lsn);
+        }
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        waiters.put(lsn, future);
+        // An acknowledgement or the last disconnect may have happened before the waiter was registered
+        if (acknowledgedLsn.get() >= lsn || connections.isEmpty()) {
+            completeUpTo(connections.isEmpty() ? Long.MAX_VALUE : acknowledgedLsn.get());
+        }
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (waiters.remove(lsn, future) && future.complete(lsn) && !degraded) {
+                degraded = true;
+                System.err.println("No standby acknowledged LSN " + lsn + " within " + timeoutMillis
+                        + " ms, replication falls back to async until a standby catches up");
+            }
+        });
+        return future;
+    }
+
+    private void completeUpTo(long lsn) {
+        for (Map.Entry<Long, CompletableFuture<Long>> waiter : waiters.headMap(lsn, true).entrySet()) {
+            if (waiters.remove(waiter.getKey(), waiter.getValue())) {
+                waiter.getValue().complete(waiter.getKey());
+            }
+        }
+    }
+
+    private void acknowledged(Connection connection, long receivedLsn, long appliedLsn) {
+        connection.receivedLsn = receivedLsn;
+        connection.appliedLsn = appliedLsn;
+        while (!connection.inFlight.isEmpty() && connection.inFlight.peekFirst()[0] <= appliedLsn) {
+            connection.inFlight.pollFirst();
+        }
+        long lsn = acknowledgedLsn.accumulateAndGet(mode == ReplicationMode.SYNC ? appliedLsn : receivedLsn, Math::max);
+        completeUpTo(lsn);
+        if (degraded && appliedLsn >= wal.getDurableLSN()) {
+            degraded = false;
+            System.err.println("Standby caught up at LSN " + appliedLsn + ", commits wait for it again");
+        }
+    }
+
+    /**
+     * @return number of durable records the most up-to-date standby has not applied yet, -1 without a standby
+     */
+    long getLagLsn() {
+        long lag = -1;
+        long durableLsn = wal.getDurableLSN();
+        for (Connection connection : connections) {
+            long connectionLag = Math.max(0, durableLsn - connection.appliedLsn);
+            lag = lag < 0 ? connectionLag : Math.min(lag, connectionLag);
+        }
+        return lag;
+    }
+
+    /**
+     * @return how long ago the oldest frame the most up-to-date standby has not applied yet was sent, in milliseconds,
+     * -1 without a standby
+     */
+    long getLagMillis() {
+        long lag = -1;
+        long now = System.nanoTime();
+        for (Connection connection : connections) {
+            long[] oldest = connection.inFlight.peekFirst();
+            long connectionLag = oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest[1]);
+            lag = lag < 0 ? connectionLag : Math.min(lag, connectionLag);
+        }
+        return lag;
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        for (Connection connection : connections) {
+            try {
+                connection.sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private final class Connection {
+        private final Socket socket;
+        private final Thread sender;
+        private volatile long receivedLsn;
+        private volatile long appliedLsn;
+        // Last LSN and send time of every frame that is not applied yet, oldest first
+        private final ConcurrentLinkedDeque<long[]> inFlight = new ConcurrentLinkedDeque<>();
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+            this.sender = new Thread(this::send, "wal-sender-" + socket.getPort());
+            sender.setDaemon(true);
+        }
+
+        private void send() {
+            try (WALReader reader = openReader()) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                        MAX_FRAME_BYTES + 64));
+                LogRecordEncoder encoder = new LogRecordEncoder();
+                ByteBuffer records = ByteBuffer.allocate(MAX_FRAME_BYTES);
+                // Read but did not fit into the previous frame
+                LogEntry carried = null;
+                while (running) {
+                    LogEntry entry = carried != null ? carried : reader.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    carried = null;
+                    if (entry == null) {
+                        out.writeByte(FRAME_HEARTBEAT);
+                        out.writeLong(wal.getDurableLSN());
+                        out.flush();
+                        continue;
+                    }
+
+                    records.clear();
+                    int count = 0;
+                    long lastLsn = 0;
+                    do {
+                        int size = LogRecordEncoder.encodedSize(entry, entry.getLsn());
+                        if (count > 0 && records.position() + size > MAX_FRAME_BYTES) {
+                            carried = entry;
+                            break;
+                        }
+                        if (records.remaining() < size) {
+                            // A single record larger than a frame
+                            records = ByteBuffer.allocate(size).put(records.flip());
+                        }
+                        encoder.encode(entry, records);
+                        count++;
+                        lastLsn = entry.getLsn();
+                    } while ((entry = reader.next()) != null);
+
+                    out.writeByte(FRAME_RECORDS);
+                    out.writeLong(wal.getDurableLSN());
+                    out.writeInt(count);
+                    out.writeInt(records.position());
+                    out.write(records.array(), 0, records.position());
+                    out.flush();
+                    inFlight.addLast(new long[]{lastLsn, System.nanoTime()});
+                    if (records.capacity() > MAX_FRAME_BYTES) {
+                        records = ByteBuffer.allocate(MAX_FRAME_BYTES);
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                if (running && !socket.isClosed()) {
+                    System.err.println("Standby " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        // Reads the start LSN the standby asks for and starts reading its acknowledgements
+        private WALReader openReader() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            long startLsn = in.readLong();
+            WALReader reader = wal.openReader(startLsn, true);
+            receivedLsn = startLsn - 1;
+            appliedLsn = startLsn - 1;
+            Thread ackReader = new Thread(() -> readAcknowledgements(in), sender.getName() + "-ack");
+            ackReader.setDaemon(true);
+            ackReader.start();
+            System.out.println("Standby " + socket.getRemoteSocketAddress() + " connected from LSN " + startLsn);
+            return reader;
+        }
+
+        private void readAcknowledgements(DataInputStream in) {
+            try {
+                while (true) {
+                    if (in.readByte() != FRAME_ACK) {
+                        throw new IOException("Unexpected frame from standby");
+                    }
+                    acknowledged(this, in.readLong(), in.readLong());
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            if (connections.remove(this) && connections.isEmpty()) {
+                // Nobody left to acknowledge, commits stop waiting
+                completeUpTo(Long.MAX_VALUE);
+            }
+        }
+    }
+}
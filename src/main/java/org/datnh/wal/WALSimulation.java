@@ -2,15 +2,32 @@ package org.datnh.wal;
 
 import java.util.Objects;
 
-// Main simulation class
+/**
+ * Main simulation class.
+ * <br/> Runs the multi-client {@link WorkloadGenerator} with the given options. With {@code --demo} it instead narrates
+ * a few hand-written transactions that show snapshot isolation and a write conflict.
+ */
 public class WALSimulation {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--demo")) {
+            runDemo();
+        } else {
+            WorkloadGenerator.main(args);
+        }
+    }
+
+    private static void runDemo() {
+        // The simulation narrates every operation, the switch is read when the first WAL class is loaded
+        if (System.getProperty("wal.trace") == null) {
+            System.setProperty("wal.trace", "true");
+        }
         System.out.println("=== WAL (Write-Ahead Log) Simulation ===\n");
 
         // Initialize components
         BufferPool bufferPool = new BufferPool();
-        DiskStorage diskStorage = new DiskStorage("data.txt");
-        WriteAheadLog wal = new WriteAheadLog("wal.log", bufferPool, diskStorage);
+        // Pick the storage engine with -Dstorage=page or -Dstorage=lsm
+        StorageEngine diskStorage = StorageEngine.open(System.getProperty("storage", "page"), ".");
+        WriteAheadLog wal = new WriteAheadLog("wal", bufferPool, diskStorage);
 
         // Show initial state
         System.out.println("Initial state:");
@@ -23,23 +40,19 @@ public class WALSimulation {
             // Simulate some transactions
 //            simulateTransactions(wal, bufferPool, diskStorage);
             simulateTransactionIsolation(wal, bufferPool, diskStorage);
+            simulateIncrements(wal, bufferPool);
 
-            // Wait a bit to see checkpoint in action
-            Thread.sleep(12000);
-
-            // Show final state
+            // Show final state, the shutdown checkpoint then writes the changes to disk
             System.out.println("Final state:");
             bufferPool.displayContents();
             diskStorage.displayContents();
-
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         } finally {
             wal.shutdown();
+            diskStorage.close();
         }
     }
 
-    private static void simulateTransactionIsolation(WriteAheadLog wal, BufferPool bufferPool, DiskStorage diskStorage) {
+    private static void simulateTransactionIsolation(WriteAheadLog wal, BufferPool bufferPool, StorageEngine diskStorage) {
         bufferPool.put("accounts", "alice", "1000");
         bufferPool.put("accounts", "bob", "500");
 
@@ -66,11 +79,49 @@ public class WALSimulation {
         System.out.println("Read Alice's balance in TXN-2: " + aliceBalanceFromTx2);
 
         txn1.commit();
-        txn2.update("accounts", "bob", "500", "1500");
-        txn2.commit();
+
+        // txn2 started before txn1 committed, so its snapshot still shows the old balance: 1000
+        aliceBalanceFromTx2 = txn2.read("accounts", "alice");
+        System.out.println("Read Alice's balance in TXN-2 after TXN-1 committed: " + aliceBalanceFromTx2);
+
+        // Writing Alice from the stale snapshot would overwrite the committed 1200, so the commit of txn2 fails
+        txn2.update("accounts", "alice", aliceBalanceFromTx2, "900");
+        txn2.update("accounts", "bob", "500", "600");
+        try {
+            txn2.commit();
+        } catch (WriteConflictException e) {
+            System.out.println("TXN-2 rolled back: " + e.getMessage());
+
+            // Retry on a new snapshot that sees the balance committed by txn1
+            Transaction retry = new Transaction(wal, bufferPool);
+            String aliceBalance = retry.read("accounts", "alice");
+            String newBalance = String.valueOf(Integer.parseInt(aliceBalance) - 100);
+            retry.update("accounts", "alice", aliceBalance, newBalance);
+            retry.update("accounts", "bob", "500", "600");
+            retry.commit();
+            System.out.println("Retried transfer committed, Alice's balance is now " + newBalance);
+        }
+    }
+
+    private static void simulateIncrements(WriteAheadLog wal, BufferPool bufferPool) {
+        // Both transactions change Alice's balance from the same snapshot, but only log the amount they add
+        Transaction deposit = new Transaction(wal, bufferPool);
+        Transaction interest = new Transaction(wal, bufferPool);
+        deposit.increment("accounts", "alice", 50);
+        interest.increment("accounts", "alice", 12);
+        System.out.println("Alice's balance with the deposit, as seen by its transaction: "
+                + deposit.read("accounts", "alice"));
+
+        // Increments commute, so the second commit does not conflict with the first
+        deposit.commit();
+        interest.commit();
+
+        Transaction check = new Transaction(wal, bufferPool);
+        System.out.println("Alice's balance after both increments committed: " + check.read("accounts", "alice"));
+        check.commit();
     }
 
-    private static void simulateTransactions(WriteAheadLog wal, BufferPool bufferPool, DiskStorage diskStorage) {
+    private static void simulateTransactions(WriteAheadLog wal, BufferPool bufferPool, StorageEngine diskStorage) {
         // Transaction 1: Bank account operations that read their own changes
         Transaction txn1 = new Transaction(wal, bufferPool);
 
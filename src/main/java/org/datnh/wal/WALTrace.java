@@ -0,0 +1,15 @@
+package org.datnh.wal;
+
+/**
+ * This class holds the switch for the console trace of individual operations: transaction reads and writes, WAL
+ * appends, fsyncs and segment rotations, buffer pool updates, storage writes and flushes, and checkpoints.
+ * <br/> The trace is off unless the JVM is started with {@code -Dwal.trace=true}. The switch is a static final
+ * constant, so every trace statement is guarded by {@code if (WALTrace.ENABLED)} and the JIT removes it entirely when
+ * the trace is off: the hot path neither builds the message nor writes it. Use {@link WALMetrics} for monitoring.
+ */
+final class WALTrace {
+    static final boolean ENABLED = Boolean.getBoolean("wal.trace");
+
+    private WALTrace() {
+    }
+}
@@ -0,0 +1,145 @@
+package org.datnh.wal;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class forces the log in the background for commits that do not wait for their own fsync.
+ * <br/> Asynchronous commits register a future for the LSN of their commit record instead of blocking a thread. The
+ * writer drains the log buffer, forces it and completes the futures of every commit that is now durable, in LSN order.
+ * Commits that wait for durability wake the writer right away, so all of them share the next fsync. Without such a
+ * request the writer still forces the log once per async commit window, which bounds what a crash can lose.
+ */
+class WALWriter {
+    private final WriteAheadLog wal;
+    private final long windowNanos;
+    private final Thread thread;
+
+    // Futures of commits that are not durable yet, keyed by the LSN of their commit record
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Long>> waiters = new ConcurrentSkipListMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    // Set by committers that wait for the next flush, so only the first one of a group signals the writer
+    private volatile boolean requested;
+    private volatile boolean running = true;
+    private volatile IOException failure;
+
+    public WALWriter(WriteAheadLog wal, WALConfig config) {
+        this.wal = wal;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getAsyncCommitWindowMillis());
+        this.thread = new Thread(this::run, "wal-writer");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * @param lsn    LSN of a record that is already in the log buffer
+     * @param urgent true to force the log right away instead of within the async commit window
+     * @return a future completed with the given LSN once every record up to it is durable
+     */
+    public CompletableFuture<Long> whenDurable(long lsn, boolean urgent) {
+        if (failure != null) {
+            return CompletableFuture.failedFuture(new RuntimeException("Failed to write WAL entry", failure));
+        }
+        if (wal.getDurableLSN() >= lsn) {
+            return CompletableFuture.completedFuture(lsn);
+        }
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        waiters.put(lsn, future);
+        // The writer may have flushed past this LSN before the future was registered
+        long durableLsn = wal.getDurableLSN();
+        if (durableLsn >= lsn) {
+            completeUpTo(durableLsn);
+        } else if (urgent && !requested) {
+            requested = true;
+            lock.lock();
+            try {
+                flushRequested.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return future;
+    }
+
+    private void run() {
+        long nextFlushNanos = System.nanoTime() + windowNanos;
+        while (running) {
+            lock.lock();
+            try {
+                long waitNanos = nextFlushNanos - System.nanoTime();
+                if (!requested && running && waitNanos > 0) {
+                    flushRequested.awaitNanos(waitNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } finally {
+                lock.unlock();
+            }
+            requested = false;
+            // The window counts from the start of the previous flush, so a slow fsync does not stretch it
+            nextFlushNanos = System.nanoTime() + windowNanos;
+            flush();
+        }
+        flush();
+    }
+
+    private void flush() {
+        if (failure != null) {
+            return;
+        }
+        try {
+            long currentLsn = wal.getCurrentLSN();
+            if (currentLsn > wal.getDurableLSN()) {
+                wal.flushLog(currentLsn);
+            }
+            completeUpTo(wal.getDurableLSN());
+        } catch (IOException e) {
+            // The log can not be trusted any more, fail every commit waiting for it
+            failure = e;
+            System.err.println("Error flushing WAL in the background: " + e.getMessage());
+            Map.Entry<Long, CompletableFuture<Long>> waiter;
+            while ((waiter = waiters.pollFirstEntry()) != null) {
+                waiter.getValue().completeExceptionally(new RuntimeException("Failed to write WAL entry", e));
+            }
+        }
+    }
+
+    // Completed in LSN order, every waiter is removed exactly once
+    private void completeUpTo(long durableLsn) {
+        Map.Entry<Long, CompletableFuture<Long>> waiter;
+        while ((waiter = waiters.firstEntry()) != null && waiter.getKey() <= durableLsn) {
+            if (waiters.remove(waiter.getKey(), waiter.getValue())) {
+                waiter.getValue().complete(waiter.getKey());
+            }
+        }
+    }
+
+    /**
+     * Stop the writer after forcing every record appended so far and completing the waiting commits.
+     */
+    public void shutdown() {
+        // Signalled rather than interrupted, an interrupt would close the segment channels in the middle of a write
+        lock.lock();
+        try {
+            running = false;
+            flushRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package org.datnh.wal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the WAL with many concurrent clients running YCSB-style operation mixes, then reports throughput, latency
+ * percentiles, abort rates and the bytes written to the WAL and the storage engine.
+ * <br/> Mixes: {@code read-heavy} (95% reads, 5% updates), {@code update-heavy} (50% reads, 50% updates),
+ * {@code insert-only}, and {@code hot-key}, the update-heavy mix with keys drawn from a Zipfian distribution.
+ * Every operation is one transaction, an update reads the row and writes it back. Updates that lose a write conflict
+ * are counted as aborts and not retried.
+ * <br/> Every client runs on its own virtual thread when the JVM supports them (Java 21+), otherwise on a platform
+ * thread.
+ * <br/> With {@code --crash} the workload runs in a child JVM that reports every acknowledged commit and is killed at a
+ * random point. The log is then recovered and every acknowledged commit must still be there. Clients own disjoint keys
+ * in this mode, so the last acknowledged value of every key is known.
+ * <br/> Usage: {@code WorkloadGenerator [--mix update-heavy] [--clients 64] [--keys 100000] [--value-size 100]
+ * [--seconds 10] [--storage page|lsm] [--durability sync|async] [--compression off|0-9] [--streams 1] [--dir path]
+ * [--crash] [--help]}
+ */
+public class WorkloadGenerator {
+    private static final String TABLE = "usertable";
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final String USAGE = "Usage: WorkloadGenerator [--mix read-heavy|update-heavy|insert-only|hot-key]"
+            + " [--clients 64] [--keys 100000] [--value-size 100] [--seconds 10] [--storage page|lsm]"
+            + " [--durability sync|async] [--compression off|0-9] [--streams 1] [--dir path] [--crash] [--help]";
+    private static final Set<String> OPTIONS = Set.of("mix", "clients", "keys", "value-size", "seconds", "storage",
+            "durability", "compression", "streams", "dir");
+    // Options without a value, --child runs the workload of a crash test in the child JVM
+    private static final Set<String> FLAGS = Set.of("crash", "child", "help");
+
+    enum Mix {
+        READ_HEAVY("read-heavy", 95, 5, false),
+        UPDATE_HEAVY("update-heavy", 50, 50, false),
+        INSERT_ONLY("insert-only", 0, 0, false),
+        HOT_KEY("hot-key", 50, 50, true);
+
+        private final String name;
+        private final int readPercent;
+        private final int updatePercent;
+        private final boolean zipfian;
+
+        Mix(String name, int readPercent, int updatePercent, boolean zipfian) {
+            this.name = name;
+            this.readPercent = readPercent;
+            this.updatePercent = updatePercent;
+            this.zipfian = zipfian;
+        }
+
+        static Mix parse(String name) {
+            for (Mix mix : values()) {
+                if (mix.name.equals(name)) {
+                    return mix;
+                }
+            }
+            throw new IllegalArgumentException("Unknown workload mix: " + name);
+        }
+    }
+
+    private final Mix mix;
+    private final int clients;
+    private final long keySpace;
+    private final int valueSize;
+    private final int seconds;
+    private final String storageEngine;
+    private final Durability durability;
+    // WAL compression level, -1 when compression is off
+    private final int compressionLevel;
+    // Number of log streams, see WALConfig#logStreams
+    private final int streams;
+    private final Path directory;
+    // Null for a uniform key distribution
+    private final ZipfianGenerator zipfian;
+    private final String padding;
+    // Keys of inserted rows continue after the loaded key space
+    private final AtomicLong insertedKeys = new AtomicLong();
+
+    WorkloadGenerator(Map<String, String> options) {
+        this.mix = Mix.parse(options.getOrDefault("mix", "update-heavy"));
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "64"));
+        this.keySpace = Long.parseLong(options.getOrDefault("keys", "100000"));
+        this.valueSize = Integer.parseInt(options.getOrDefault("value-size", "100"));
+        this.seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        this.storageEngine = options.getOrDefault("storage", "page");
+        this.durability = Durability.valueOf(options.getOrDefault("durability", "sync").toUpperCase());
+        String compression = options.getOrDefault("compression", "off");
+        this.compressionLevel = compression.equals("off") ? -1 : Integer.parseInt(compression);
+        this.streams = Integer.parseInt(options.getOrDefault("streams", "1"));
+        this.directory = options.containsKey("dir") ? Paths.get(options.get("dir")) : null;
+        if (clients < 1 || keySpace < clients || valueSize < 0 || seconds < 1) {
+            throw new IllegalArgumentException("Need at least one client, one key per client and one second");
+        }
+        this.zipfian = mix.zipfian ? new ZipfianGenerator(keySpace) : null;
+        this.padding = "x".repeat(valueSize);
+    }
+
+    private WALConfig walConfig() {
+        return new WALConfig().compression(compressionLevel >= 0).compressionLevel(Math.max(compressionLevel, 0))
+                .logStreams(streams);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        WorkloadGenerator generator;
+        try {
+            options = parseOptions(args);
+            if (options.containsKey("help")) {
+                System.out.println(USAGE);
+                return;
+            }
+            generator = new WorkloadGenerator(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.containsKey("child")) {
+            generator.runChild();
+        } else if (options.containsKey("crash")) {
+            System.exit(generator.runCrashTest() ? 0 : 1);
+        } else {
+            generator.run();
+        }
+    }
+
+    // Options are "--name value" pairs, a flag has no value
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option instead of " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (FLAGS.contains(name)) {
+                options.put(name, "true");
+            } else if (!OPTIONS.contains(name)) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Option " + args[i] + " needs a value");
+            }
+        }
+        return options;
+    }
+
+    private void run() throws Exception {
+        Path dir = directory != null ? directory : Files.createTempDirectory("wal-workload");
+        PrintStream console = System.out;
+        // Silence the per-operation console output of the transaction path while measuring
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            BufferPool bufferPool = new BufferPool();
+            StorageEngine storage = StorageEngine.open(storageEngine, dir.toString());
+            WriteAheadLog wal = new WriteAheadLog(dir.resolve("wal").toString(), bufferPool, storage, walConfig());
+            wal.recover();
+            load(wal, bufferPool);
+
+            long walBytesBefore = wal.getAppendedBytes();
+            long storageBytesBefore = storage.getBytesWritten();
+            long start = System.nanoTime();
+            Stats stats = drive(wal, bufferPool, TimeUnit.SECONDS.toNanos(seconds), null);
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            long walBytes = wal.getAppendedBytes() - walBytesBefore;
+            // The final checkpoint writes back the pages the workload left dirty
+            wal.shutdown();
+            long storageBytes = storage.getBytesWritten() - storageBytesBefore;
+            storage.close();
+
+            report(console, stats, elapsedSeconds, walBytes, storageBytes);
+        } finally {
+            System.setOut(console);
+            if (directory == null) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private void report(PrintStream out, Stats stats, double elapsedSeconds, long walBytes, long storageBytes) {
+        long operations = stats.reads.snapshot().getCount() + stats.updates.snapshot().getCount()
+                + stats.inserts.snapshot().getCount();
+        long writes = stats.commits.sum() + stats.aborts.sum();
+        out.printf("mix=%s clients=%d keys=%d value-size=%d storage=%s durability=%s compression=%s streams=%d "
+                        + "threads=%s%n", mix.name, clients, keySpace, valueSize, storageEngine,
+                durability.name().toLowerCase(), compressionLevel < 0 ? "off" : String.valueOf(compressionLevel),
+                streams, threadKind());
+        out.printf("%d operations in %.1f s: %.0f ops/sec, %d write commits, %d aborts (%.2f%% of writes)%n",
+                operations, elapsedSeconds, operations / elapsedSeconds, stats.commits.sum(), stats.aborts.sum(),
+                writes == 0 ? 0 : 100.0 * stats.aborts.sum() / writes);
+        out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 us", "p90 us", "p99 us",
+                "p99.9 us", "max us");
+        printLatency(out, "read", stats.reads);
+        printLatency(out, "update", stats.updates);
+        printLatency(out, "insert", stats.inserts);
+        out.printf("WAL bytes written: %d (%.1f MB/sec, %.0f per write commit)%n", walBytes,
+                walBytes / elapsedSeconds / (1024 * 1024), stats.commits.sum() == 0 ? 0.0
+                        : (double) walBytes / stats.commits.sum());
+        out.printf("Storage bytes written: %d, including the final checkpoint%n", storageBytes);
+    }
+
+    private static void printLatency(PrintStream out, String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot latency = histogram.snapshot();
+        if (latency.getCount() > 0) {
+            out.printf("%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, latency.getCount(),
+                    latency.getP50() / 1e3, latency.getP90() / 1e3, latency.getP99() / 1e3, latency.getP999() / 1e3,
+                    latency.getMax() / 1e3);
+        }
+    }
+
+    // Insert the key space in large transactions before anything is measured
+    private void load(WriteAheadLog wal, BufferPool bufferPool) {
+        if (mix == Mix.INSERT_ONLY) {
+            return;
+        }
+        Transaction txn = null;
+        for (long first = 0; first < keySpace; first += LOAD_BATCH_SIZE) {
+            txn = txn == null ? new Transaction(wal, bufferPool) : txn.begin();
+            for (long key = first; key < Math.min(keySpace, first + LOAD_BATCH_SIZE); key++) {
+                txn.insert(TABLE, key(key), value("load", 0));
+            }
+            txn.commit();
+        }
+    }
+
+    /**
+     * Run the clients until the duration has passed.
+     *
+     * @param acks receives a line for every acknowledged write in crash mode, null otherwise
+     */
+    private Stats drive(WriteAheadLog wal, BufferPool bufferPool, long durationNanos, PrintStream acks)
+            throws InterruptedException {
+        Stats stats = new Stats();
+        long deadline = System.nanoTime() + durationNanos;
+        ExecutorService executor = newClientExecutor();
+        for (int c = 0; c < clients; c++) {
+            int clientId = c;
+            executor.execute(() -> client(clientId, wal, bufferPool, deadline, stats, acks));
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationNanos + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+        return stats;
+    }
+
+    // Virtual threads are looked up at runtime, the project still compiles for Java 17
+    private static ExecutorService newClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static String threadKind() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return "virtual";
+        } catch (NoSuchMethodException e) {
+            return "platform";
+        }
+    }
+
+    private void client(int clientId, WriteAheadLog wal, BufferPool bufferPool, long deadline, Stats stats,
+                        PrintStream acks) {
+        String client = String.valueOf(clientId);
+        long seq = 0;
+        // One transaction per client, started again for every operation
+        Transaction txn = null;
+        while (System.nanoTime() < deadline) {
+            int dice = ThreadLocalRandom.current().nextInt(100);
+            long start = System.nanoTime();
+            txn = txn == null ? new Transaction(wal, bufferPool, durability) : txn.begin();
+            try {
+                if (dice < mix.readPercent) {
+                    txn.read(TABLE, key(nextKey(clientId, acks != null)));
+                    txn.commit();
+                    stats.reads.record(System.nanoTime() - start);
+                } else if (dice < mix.readPercent + mix.updatePercent) {
+                    String key = key(nextKey(clientId, acks != null));
+                    String oldValue = txn.read(TABLE, key);
+                    txn.update(TABLE, key, oldValue, value(client, ++seq));
+                    txn.commit();
+                    stats.updates.record(System.nanoTime() - start);
+                    stats.commits.increment();
+                    acknowledge(acks, key, seq);
+                } else {
+                    String key = key(keySpace + insertedKeys.getAndIncrement());
+                    txn.insert(TABLE, key, value(client, ++seq));
+                    txn.commit();
+                    stats.inserts.record(System.nanoTime() - start);
+                    stats.commits.increment();
+                    acknowledge(acks, key, seq);
+                }
+            } catch (WriteConflictException e) {
+                stats.aborts.increment();
+            }
+        }
+    }
+
+    // In crash mode every client only writes the keys that are equal to its id modulo the number of clients
+    private long nextKey(int clientId, boolean partitioned) {
+        long key = zipfian != null ? zipfian.next() : ThreadLocalRandom.current().nextLong(keySpace);
+        if (partitioned) {
+            key = key - key % clients + clientId;
+            if (key >= keySpace) {
+                key -= clients;
+            }
+        }
+        return key;
+    }
+
+    private static String key(long key) {
+        return "user" + key;
+    }
+
+    // The writing client and its write sequence number lead the value, crash mode reads them back after recovery
+    private String value(String client, long seq) {
+        return client + ":" + seq + ":" + padding;
+    }
+
+    private static long sequenceOf(String value) {
+        return Long.parseLong(value.split(":", 3)[1]);
+    }
+
+    private static void acknowledge(PrintStream acks, String key, long seq) {
+        if (acks != null) {
+            acks.println("ACK " + key + " " + seq);
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Runs in the child JVM of a crash test until the parent kills it
+    private void runChild() throws Exception {
+        PrintStream acks = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        BufferPool bufferPool = new BufferPool();
+        StorageEngine storage = StorageEngine.open(storageEngine, directory.toString());
+        WriteAheadLog wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage, walConfig());
+        wal.recover();
+        load(wal, bufferPool);
+        acks.println("READY");
+        drive(wal, bufferPool, TimeUnit.DAYS.toNanos(1), acks);
+    }
+
+    /**
+     * Run the workload in a child JVM, kill it at a random point, recover the log and check that every commit the
+     * child acknowledged survived.
+     *
+     * @return true if no acknowledged commit was lost, or if the loss is allowed by async durability
+     */
+    private boolean runCrashTest() throws Exception {
+        Path dir = directory != null ? directory : Files.createTempDirectory("wal-crash");
+        List<String> command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), WorkloadGenerator.class.getName(), "--child",
+                "--dir", dir.toString(), "--mix", mix.name, "--clients", String.valueOf(clients),
+                "--keys", String.valueOf(keySpace), "--value-size", String.valueOf(valueSize),
+                "--storage", storageEngine, "--durability", durability.name().toLowerCase(),
+                "--compression", compressionLevel < 0 ? "off" : String.valueOf(compressionLevel),
+                "--streams", String.valueOf(streams)));
+        Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        // Last acknowledged sequence number of every key, only read after the reader has finished
+        Map<String, Long> acknowledged = new HashMap<>();
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicBoolean killed = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(
+                    new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.startsWith("ACK ")) {
+                        String[] parts = line.split(" ");
+                        acknowledged.merge(parts[1], Long.parseLong(parts[2]), Math::max);
+                    } else if (line.equals("READY")) {
+                        ready.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                // Killing the child closes the pipe under the reader, that is the end of its output
+                if (!killed.get()) {
+                    System.err.println("Error reading the workload output: " + e.getMessage());
+                }
+            }
+        }, "crash-test-reader");
+        reader.start();
+
+        try {
+            if (!ready.await(5, TimeUnit.MINUTES) || !child.isAlive()) {
+                System.out.println("The workload did not start");
+                return false;
+            }
+            long crashAfterMillis = ThreadLocalRandom.current().nextLong(100, seconds * 1000L + 1);
+            Thread.sleep(crashAfterMillis);
+            killed.set(true);
+            child.destroyForcibly().waitFor();
+            reader.join();
+            System.out.println("Killed the workload after " + crashAfterMillis + " ms with " + acknowledged.size()
+                    + " acknowledged keys, recovering...");
+
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long lost = 0;
+            List<String> examples = new ArrayList<>();
+            try {
+                BufferPool bufferPool = new BufferPool();
+                StorageEngine storage = StorageEngine.open(storageEngine, dir.toString());
+                WriteAheadLog wal = new WriteAheadLog(dir.resolve("wal").toString(), bufferPool, storage, walConfig());
+                wal.recover();
+                Transaction check = new Transaction(wal, bufferPool);
+                for (Map.Entry<String, Long> ack : acknowledged.entrySet()) {
+                    String value = check.read(TABLE, ack.getKey());
+                    if (value == null || sequenceOf(value) < ack.getValue()) {
+                        lost++;
+                        if (examples.size() < 10) {
+                            examples.add(ack.getKey() + ": acknowledged write " + ack.getValue() + ", recovered "
+                                    + (value == null ? "nothing" : "write " + sequenceOf(value)));
+                        }
+                    }
+                }
+                check.rollback();
+                wal.close();
+                storage.close();
+            } finally {
+                System.setOut(console);
+            }
+
+            examples.forEach(example -> System.out.println("  LOST " + example));
+            if (lost == 0) {
+                System.out.println("Verified all " + acknowledged.size() + " acknowledged keys after recovery");
+                return true;
+            }
+            System.out.println(lost + " of " + acknowledged.size() + " acknowledged keys lost their last write"
+                    + (durability == Durability.ASYNC ? ", allowed within the async commit window" : ""));
+            return durability == Durability.ASYNC;
+        } finally {
+            child.destroyForcibly();
+            if (directory == null) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private static final class Stats {
+        private final LatencyHistogram reads = new LatencyHistogram();
+        private final LatencyHistogram updates = new LatencyHistogram();
+        private final LatencyHistogram inserts = new LatencyHistogram();
+        private final LongAdder commits = new LongAdder();
+        private final LongAdder aborts = new LongAdder();
+    }
+}
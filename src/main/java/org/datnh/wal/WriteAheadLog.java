@@ -1,144 +1,1323 @@
 package org.datnh.wal;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.jfr.FlightRecorder;
 
 /**
  * This class responsible for managing the Write-Ahead Log (WAL) in a database system.
  */
 class WriteAheadLog {
-    private final AtomicLong lsnCounter = new AtomicLong(0);
-    private final String walFile;
+    private final Path walDirectory;
     private final BufferPool bufferPool;
-    private final DiskStorage diskStorage;
-    private final List<LogEntry> logEntries = new ArrayList<>();
-//    private final ScheduledExecutorService checkpointExecutor;
+    private final StorageEngine diskStorage;
 
-    public WriteAheadLog(String walFile, BufferPool bufferPool, DiskStorage diskStorage) {
-        this.walFile = walFile;
+    // The WAL is one or more streams, each a directory of preallocated segment files that stay open for the whole
+    // lifetime of the log and a log buffer committing threads copy their records into in parallel, see LogStream
+    private final LogStream[] streams;
+    // Streams new changes are routed to, a log written with more streams keeps them open until recovery read them
+    private final int routedStreams;
+    // LSNs of all streams when there are several, null when the only stream assigns them itself
+    private final AtomicLong sequence;
+    // Forces the log for asynchronous commits and completes their durability futures
+    private final WALWriter writer;
+    private final int recoveryThreads;
+
+    // Lower bound of the first LSN of every transaction that is not yet applied to the buffer pool, with the number of
+    // transactions sharing each bound
+    private final ConcurrentSkipListMap<Long, Integer> inFlightCommits = new ConcurrentSkipListMap<>();
+    // All changes up to the redo LSN of the last completed checkpoint are persisted in the data files
+    private volatile CheckpointRecord lastCheckpoint;
+    // Only one checkpoint runs at a time, committers never take this lock
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // Bulk loads run one at a time, commits changing the table being loaded fail
+    private final ReentrantLock bulkLoadLock = new ReentrantLock();
+    private volatile String loadingTable;
+    private final Checkpointer checkpointer;
+    // Checkpoints must not run before the log has been replayed, they would release segments that were never applied
+    private volatile boolean recovered;
+    // A standby only appends records shipped by its primary until it is promoted, see StandbyReplica
+    private volatile boolean replica;
+    // Ships the log to standbys once replication is started, null before
+    private volatile WALSender sender;
+    private final WALConfig config;
+
+    // Open readers of the log, segments they have not read yet are kept
+    private final Set<WALReader> readers = ConcurrentHashMap.newKeySet();
+    // Readers following the tail of the log park here until the durable LSN moves past their position
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableAdvanced = durableLock.newCondition();
+    private volatile int durableWaiters;
+
+    // Null when metrics are disabled, so the hot path does not even read the clock
+    private final WALMetrics metrics;
+    private final Runnable statisticsEvent;
+
+    public WriteAheadLog(String walDirectory, BufferPool bufferPool, StorageEngine diskStorage) {
+        this(walDirectory, bufferPool, diskStorage, new WALConfig());
+    }
+
+    public WriteAheadLog(String walDirectory, BufferPool bufferPool, StorageEngine diskStorage, WALConfig config) {
+        this.walDirectory = Paths.get(walDirectory);
         this.bufferPool = bufferPool;
         this.diskStorage = diskStorage;
-//        this.checkpointExecutor = Executors.newScheduledThreadPool(1);
-//
-//        // Schedule periodic checkpoints every 10 seconds
-//        checkpointExecutor.scheduleAtFixedRate(this::checkpoint, 10, 10, TimeUnit.SECONDS);
+        this.recoveryThreads = config.getRecoveryThreads();
+        this.config = config;
+        this.replica = config.isReplica();
+        config.validate();
+        this.metrics = config.isMetricsEnabled() ? new WALMetrics() : null;
+        try {
+            int streamCount = Math.max(config.getLogStreams(), LogStream.countStreams(this.walDirectory));
+            this.sequence = streamCount > 1 ? new AtomicLong() : null;
+            this.streams = new LogStream[streamCount];
+            for (int i = 0; i < streamCount; i++) {
+                streams[i] = new LogStream(this, LogStream.directory(this.walDirectory, i), config, metrics, sequence);
+            }
+            this.lastCheckpoint = CheckpointRecord.read(this.walDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open WAL directory " + walDirectory, e);
+        }
+        this.routedStreams = config.getLogStreams();
+        // New LSNs continue after the last record already in any stream
+        List<WALSegmentInfo> segments = listSegments();
+        if (sequence != null) {
+            for (LogStream stream : streams) {
+                sequence.accumulateAndGet(stream.getCurrentLsn(), Math::max);
+            }
+        }
+        this.statisticsEvent = metrics != null ? this::emitStatistics : null;
+        if (statisticsEvent != null) {
+            FlightRecorder.addPeriodicEvent(WALEvents.Statistics.class, statisticsEvent);
+        }
+        this.writer = new WALWriter(this, config);
+        this.checkpointer = config.isBackgroundCheckpointEnabled() ? new Checkpointer(this, bufferPool, config) : null;
+        bufferPool.setWalFlusher(this::flushTo);
+        bufferPool.getVersionStore().setVisibleTimestamp(this::getAppliedLSN);
+        if (config.getVacuumIntervalMillis() > 0) {
+            bufferPool.getVersionStore().startVacuum(config.getVacuumIntervalMillis());
+        }
+        if (segments.isEmpty()) {
+            markRecovered();
+        }
+    }
+
+    private void markRecovered() {
+        // Also called by recover() when the log is empty, the background threads must only be started once
+        if (recovered) {
+            return;
+        }
+        recovered = true;
+        writer.start();
+        // A standby must not log checkpoints of its own, its log holds the LSNs of the primary
+        if (checkpointer != null && !replica) {
+            checkpointer.start();
+        }
+    }
+
+    /**
+     * Turn a standby into a primary: transactions may write again and background checkpoints start. The buffer pool
+     * already holds every applied transaction, so nothing has to be recovered.
+     */
+    public void promote() {
+        if (!replica) {
+            throw new IllegalStateException("Only a standby can be promoted");
+        }
+        replica = false;
+        if (recovered && checkpointer != null) {
+            checkpointer.start();
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println(">>> PROMOTED TO PRIMARY at LSN " + getCurrentLSN() + " <<<");
+        }
+    }
+
+    private void checkWritable() {
+        if (replica) {
+            throw new IllegalStateException("A standby is read-only until it is promoted");
+        }
+    }
+
+    /**
+     * @return the LSN of the last record appended to the log, it may not be durable yet
+     */
+    public long getCurrentLSN() {
+        return sequence != null ? sequence.get() : streams[0].getCurrentLsn();
+    }
+
+    /**
+     * Commit the log entries of a transaction without checking them for write conflicts with earlier commits, see
+     * {@link #commit(List, long)}.
+     */
+    public long commit(List<LogEntry> entries) {
+        return commit(entries, Long.MAX_VALUE);
+    }
+
+    /**
+     * Write all log entries of a transaction followed by its commit record to the WAL, force them to disk and apply them
+     * to the buffer pool.
+     * <br/> The rows are first checked for write conflicts and claimed in the version store, so a transaction never
+     * writes its log when another one has committed a row it changed since its snapshot (first-committer-wins).
+     * Once durable, the changes are installed as versions stamped with the commit LSN, then applied to the buffer pool.
+     * <br/> The records are copied into the log buffer without locks, which assigns their LSNs so that LSN order always
+     * matches the order of records in the log. In group commit mode concurrent commits then share one write and one
+     * fsync, otherwise every transaction drains the log buffer and forces the log itself. Once replication is started,
+     * the commit then waits for a standby as its {@link ReplicationMode} asks.
+     * <br/> With several log streams the changes go to the streams of their rows. A transaction within one stream is
+     * only written to and forced with that stream, otherwise every stream gets a part ending with its own commit
+     * record, and the commit waits until all parts are durable, see {@link LogStream}.
+     *
+     * @param entries           log entries of one transaction
+     * @param snapshotTimestamp snapshot the transaction read from, {@link Long#MAX_VALUE} to skip the conflict check
+     * @return the LSN of the commit record, or the current LSN if the transaction did not change anything
+     * @throws WriteConflictException if another transaction committed or is committing a row of this one
+     */
+    public long commit(List<LogEntry> entries, long snapshotTimestamp) {
+        if (entries.isEmpty()) {
+            return getCurrentLSN();
+        }
+
+        checkWritable();
+        long start = metrics != null ? System.nanoTime() : 0;
+        long transactionId = entries.get(0).getTransactionId();
+        bufferPool.getVersionStore().claim(transactionId, entries, snapshotTimestamp);
+        List<List<LogEntry>> parts = splitByStream(entries, transactionId);
+        long inFlight = enterInFlight();
+        try {
+            checkNotLoading(entries);
+            long lastLsn = writeAndForce(parts);
+            WALSender sender = this.sender;
+            if (sender != null) {
+                sender.whenReplicated(lastLsn).join();
+            }
+            // Only after WAL is safely on disk, apply changes to buffer pool to make it visible to other transactions.
+            applyCommit(entries, lastLsn);
+            if (metrics != null) {
+                metrics.commitCompleted(start, recordCount(parts), lastLsn);
+            }
+            return lastLsn;
+        } finally {
+            endCommit(transactionId, entries, inFlight);
+        }
     }
 
-    public synchronized long getNextLSN() {
-        return lsnCounter.incrementAndGet();
+    /**
+     * Write all log entries of a transaction followed by its commit record to the log buffer without waiting for the
+     * disk, see {@link #commit(List, long)}.
+     * <br/> With {@link Durability#SYNC} the changes are applied once the background WAL writer has forced them, right
+     * before the returned future completes, so they never become visible before they are durable. With
+     * {@link Durability#ASYNC} they are applied and visible before this method returns, and the future only reports
+     * when they are durable.
+     * <br/> No thread blocks on the fsync, so any number of transactions can commit concurrently.
+     *
+     * @param entries           log entries of one transaction
+     * @param snapshotTimestamp snapshot the transaction read from, {@link Long#MAX_VALUE} to skip the conflict check
+     * @param durability        whether the changes wait for the disk before they become visible
+     * @return a future completed with the LSN of the commit record once it is durable, or with the current LSN if the
+     * transaction did not change anything
+     * @throws WriteConflictException if another transaction committed or is committing a row of this one
+     */
+    public CompletableFuture<Long> commitAsync(List<LogEntry> entries, long snapshotTimestamp, Durability durability) {
+        if (entries.isEmpty()) {
+            return CompletableFuture.completedFuture(getCurrentLSN());
+        }
+
+        checkWritable();
+        long start = metrics != null ? System.nanoTime() : 0;
+        long transactionId = entries.get(0).getTransactionId();
+        bufferPool.getVersionStore().claim(transactionId, entries, snapshotTimestamp);
+        List<List<LogEntry>> parts = splitByStream(entries, transactionId);
+        int records = recordCount(parts);
+        long inFlight = enterInFlight();
+        long lastLsn;
+        try {
+            checkNotLoading(entries);
+            lastLsn = appendToLog(parts, new long[parts.size()]);
+        } catch (IOException e) {
+            endCommit(transactionId, entries, inFlight);
+            return CompletableFuture.failedFuture(new RuntimeException("Failed to write WAL entry", e));
+        } catch (IllegalStateException e) {
+            endCommit(transactionId, entries, inFlight);
+            throw e;
+        }
+
+        if (durability == Durability.ASYNC) {
+            // Visible before it is durable, the WAL writer forces it within the async commit window
+            try {
+                applyCommit(entries, lastLsn);
+                if (metrics != null) {
+                    metrics.commitCompleted(start, records, lastLsn);
+                }
+            } finally {
+                endCommit(transactionId, entries, inFlight);
+            }
+            return writer.whenDurable(lastLsn, false);
+        }
+        CompletableFuture<Long> durable = writer.whenDurable(lastLsn, true);
+        WALSender sender = this.sender;
+        if (sender != null) {
+            durable = durable.thenCompose(sender::whenReplicated);
+        }
+        // Runs on the thread that completes the durability future, before the caller sees it completed
+        return durable.whenComplete((lsn, error) -> {
+            try {
+                if (error == null) {
+                    applyCommit(entries, lsn);
+                    if (metrics != null) {
+                        metrics.commitCompleted(start, records, lsn);
+                    }
+                }
+            } finally {
+                endCommit(transactionId, entries, inFlight);
+            }
+        });
     }
 
-    public synchronized void writeLogEntryToDisk(LogEntry entry) {
-        // Add to our in-memory log
-        logEntries.add(entry);
+    private static List<LogEntry> withCommitRecord(List<LogEntry> entries, long transactionId) {
+        List<LogEntry> records = new ArrayList<>(entries.size() + 1);
+        records.addAll(entries);
+        records.add(LogEntry.commitRecord(transactionId));
+        return records;
+    }
 
-        // Write to WAL file (but don't force to disk yet)
+    // The records of a transaction for every stream, null for the streams without changes of the transaction
+    private List<List<LogEntry>> splitByStream(List<LogEntry> entries, long transactionId) {
+        if (routedStreams == 1) {
+            return Collections.singletonList(withCommitRecord(entries, transactionId));
+        }
+        List<List<LogEntry>> parts = new ArrayList<>(Collections.nCopies(routedStreams, null));
+        int partCount = 0;
+        for (LogEntry entry : entries) {
+            int stream = streamOf(entry);
+            if (parts.get(stream) == null) {
+                parts.set(stream, new ArrayList<>());
+                partCount++;
+            }
+            parts.get(stream).add(entry);
+        }
+        for (List<LogEntry> part : parts) {
+            if (part != null) {
+                part.add(LogEntry.commitRecord(transactionId, partCount));
+            }
+        }
+        return parts;
+    }
+
+    // All changes of a row go to the same stream, like the redo partitions of recovery
+    private int streamOf(LogEntry entry) {
+        int hash = 31 * entry.getTable().hashCode() + entry.getKey().hashCode();
+        return (hash & Integer.MAX_VALUE) % routedStreams;
+    }
+
+    private static int recordCount(List<List<LogEntry>> parts) {
+        int records = 0;
+        for (List<LogEntry> part : parts) {
+            records += part != null ? part.size() : 0;
+        }
+        return records;
+    }
+
+    // Install the changes as versions stamped with the commit LSN, then apply them to the buffer pool
+    private void applyCommit(List<LogEntry> entries, long commitLsn) {
+        bufferPool.getVersionStore().install(entries, commitLsn);
+        for (LogEntry entry : entries) {
+            applyToBufferPool(entry);
+        }
+    }
+
+    // Checked once the commit is in flight, so a bulk load starting meanwhile waits for it, see bulkLoad()
+    private void checkNotLoading(List<LogEntry> entries) {
+        String table = loadingTable;
+        if (table == null) {
+            return;
+        }
+        for (LogEntry entry : entries) {
+            if (table.equals(entry.getTable())) {
+                throw new IllegalStateException("Table " + table + " is being bulk loaded");
+            }
+        }
+    }
+
+    private void endCommit(long transactionId, List<LogEntry> entries, long inFlight) {
+        bufferPool.getVersionStore().release(transactionId, entries);
+        exitInFlight(inFlight);
+    }
+
+    // Append the records for every stream, then wait until each stream is durable up to its last record
+    private long writeAndForce(List<List<LogEntry>> parts) {
         try {
-            String logLine = entry.toString() + "\n";
-            Files.write(Paths.get(walFile), logLine.getBytes(),
-                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            System.out.println("  [WAL] Written to log buffer: " + entry);
+            long[] partLsns = new long[parts.size()];
+            long lastLsn = appendToLog(parts, partLsns);
+            for (int i = 0; i < parts.size(); i++) {
+                if (parts.get(i) == null) {
+                    continue;
+                }
+                GroupCommitter groupCommitter = streams[i].getGroupCommitter();
+                if (groupCommitter != null) {
+                    groupCommitter.awaitDurable(partLsns[i]);
+                } else {
+                    flushLog(partLsns[i], streams[i]);
+                    if (WALTrace.ENABLED) {
+                        System.out.println("  [WAL] FORCE SYNC - All log entries are now durable on disk");
+                    }
+                }
+            }
+            return lastLsn;
         } catch (IOException e) {
             throw new RuntimeException("Failed to write WAL entry", e);
         }
     }
 
-    public synchronized void forceWALToDisk() {
-        // In a real database, this would call fsync() to force OS buffers to disk
-        // For simulation, we just print that we're forcing the flush
-        System.out.println("  [WAL] FORCE SYNC - All log entries are now durable on disk");
+    // Registered before the LSNs of a transaction are reserved, LSNs only grow, so a checkpoint that sees these LSNs
+    // also sees the transaction in flight
+    private long enterInFlight() {
+        long lsn = getCurrentLSN() + 1;
+        inFlightCommits.merge(lsn, 1, Integer::sum);
+        return lsn;
+    }
+
+    private void exitInFlight(long lsn) {
+        inFlightCommits.computeIfPresent(lsn, (l, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Copy the records of one transaction into the log buffer of the first stream, see
+     * {@link #appendToLog(List, LogStream)}.
+     */
+    long appendToLog(List<LogEntry> records) throws IOException {
+        return appendToLog(records, streams[0]);
+    }
+
+    // Append the records for every stream, stores the LSN of the last record of every part and returns the highest
+    private long appendToLog(List<List<LogEntry>> parts, long[] partLsns) throws IOException {
+        long lastLsn = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.get(i) != null) {
+                partLsns[i] = appendToLog(parts.get(i), streams[i]);
+                lastLsn = Math.max(lastLsn, partLsns[i]);
+            }
+        }
+        return lastLsn;
+    }
 
-        // Simulate the time it takes to force data to disk
+    /**
+     * Copy the records of one transaction into the log buffer of a stream, assigning their LSNs. Safe to call from any
+     * number of threads, the records are neither written to the segments nor forced yet.
+     *
+     * @return the LSN of the last record
+     */
+    long appendToLog(List<LogEntry> records, LogStream stream) throws IOException {
+        long lastLsn = stream.getBuffer().append(records);
+        if (WALTrace.ENABLED) {
+            for (LogEntry record : records) {
+                System.out.println("  [WAL] Written to log buffer: " + record);
+            }
+        }
+        return lastLsn;
+    }
+
+    /**
+     * Write the log buffers of all streams to their segments up to at least the given LSN and force them to disk.
+     *
+     * @return the LSN up to which the log is now durable
+     */
+    long flushLog(long lsn) throws IOException {
+        if (streams.length == 1) {
+            return flushLog(lsn, streams[0]);
+        }
+        // Every stream is drained before the first force, so no stream's records wait in memory for the others' forces
+        long[] drainedLsns = new long[streams.length];
+        for (int i = 0; i < streams.length; i++) {
+            drainedLsns[i] = streams[i].isPending(lsn) ? streams[i].getBuffer().drainTo(lsn) : -1;
+        }
+        for (int i = 0; i < streams.length; i++) {
+            if (drainedLsns[i] >= 0) {
+                force(streams[i], drainedLsns[i]);
+                streams[i].durable(drainedLsns[i]);
+            }
+        }
+        signalDurable();
+        return getDurableLSN();
+    }
+
+    /**
+     * Write the log buffer of one stream to its segments up to at least the given LSN and force them to disk.
+     *
+     * @return the LSN up to which the stream is now durable
+     */
+    long flushLog(long lsn, LogStream stream) throws IOException {
+        long drainedLsn = stream.getBuffer().drainTo(lsn);
+        force(stream, drainedLsn);
+        stream.durable(drainedLsn);
+        signalDurable();
+        return drainedLsn;
+    }
+
+    private void signalDurable() {
+        if (durableWaiters > 0) {
+            durableLock.lock();
+            try {
+                durableAdvanced.signalAll();
+            } finally {
+                durableLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Park until the log is durable beyond the given LSN.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} after which to give up
+     * @return false if the deadline passed first
+     */
+    boolean awaitDurable(long lsn, long deadlineNanos) throws InterruptedException {
+        if (getDurableLSN() > lsn) {
+            return true;
+        }
+        durableLock.lock();
         try {
-            Thread.sleep(5); // 5ms to simulate fsync() call
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            // A flush that misses the new waiter count has already moved the durable LSN checked below
+            durableWaiters++;
+            try {
+                while (getDurableLSN() <= lsn) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    durableAdvanced.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                durableWaiters--;
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    /**
+     * Open a reader of the durable records from the given LSN on, see {@link WALReader}.
+     * The records must still be in the log, i.e. after the redo LSN of the last checkpoint when no other reader keeps
+     * them.
+     *
+     * @throws IllegalStateException if the log has several streams, see {@link WALConfig#validate()}
+     */
+    public WALReader openReader(long fromLsn) {
+        return openReader(fromLsn, false);
+    }
+
+    WALReader openReader(long fromLsn, boolean checkpointRecords) {
+        if (streams.length > 1) {
+            throw new IllegalStateException("Readers need a single log stream, the WAL has " + streams.length
+                    + " (WALConfig.logStreams)");
+        }
+        WALReader reader = new WALReader(this, streams[0].getLog(), fromLsn, checkpointRecords);
+        readers.add(reader);
+        return reader;
+    }
+
+    void readerClosed(WALReader reader) {
+        readers.remove(reader);
+    }
+
+    /**
+     * @return number of durable records the slowest open reader has not read yet, 0 without readers
+     */
+    public long getMaxReaderLag() {
+        long lag = 0;
+        for (WALReader reader : readers) {
+            lag = Math.max(lag, reader.getLag());
+        }
+        return lag;
+    }
+
+    /**
+     * Make sure every record up to the given LSN is durable, forcing the log if needed.
+     * Called before a page changed by these records is written to storage.
+     */
+    void flushTo(long lsn) {
+        if (lsn > getDurableLSN()) {
+            try {
+                flushLog(lsn);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to flush WAL up to LSN " + lsn, e);
+            }
+        }
+    }
+
+    /**
+     * @return the LSN up to which all records are forced to disk
+     */
+    public long getDurableLSN() {
+        if (sequence == null) {
+            return streams[0].getDurableLsn();
+        }
+        // Read before the streams, records reserved afterwards have higher LSNs
+        long durable = sequence.get();
+        for (LogStream stream : streams) {
+            durable = Math.min(durable, stream.getDurableBound());
+        }
+        return durable;
+    }
+
+    // Write a record that does not belong to a transaction, such as a checkpoint record
+    private long writeSystemRecord(LogEntry record) {
+        long inFlight = enterInFlight();
+        try {
+            return writeAndForce(Collections.singletonList(Collections.singletonList(record)));
+        } finally {
+            exitInFlight(inFlight);
+        }
+    }
+
+    // Force a stream to disk, the LSN of the last appended record is only reported to the metrics
+    private void force(LogStream stream, long lsn) {
+        if (metrics == null) {
+            stream.getLog().force();
+            return;
+        }
+        long start = System.nanoTime();
+        stream.getLog().force();
+        metrics.fsyncCompleted(start, lsn);
+    }
+
+    public void forceWALToDisk() {
+        // Drain the log buffer and fsync() the written part of the WAL so that OS buffers are forced to disk
+        try {
+            flushLog(getCurrentLSN());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write WAL entry", e);
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("  [WAL] FORCE SYNC - All log entries are now durable on disk");
+        }
+    }
+
+    /**
+     * @return total number of WAL bytes written since the log was opened
+     */
+    public long getAppendedBytes() {
+        long bytes = 0;
+        for (LogStream stream : streams) {
+            bytes += stream.getLog().getAppendedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return average number of transactions that shared one fsync of a stream, 0 when group commit is disabled
+     */
+    public double getAverageGroupSize() {
+        double total = 0;
+        int groups = 0;
+        for (LogStream stream : streams) {
+            GroupCommitter groupCommitter = stream.getGroupCommitter();
+            double groupSize = groupCommitter != null ? groupCommitter.getAverageGroupSize() : 0;
+            if (groupSize > 0) {
+                total += groupSize;
+                groups++;
+            }
         }
+        return groups == 0 ? 0 : total / groups;
+    }
+
+    /**
+     * @return number of log streams, see {@link WALConfig#logStreams(int)}
+     */
+    public int getStreamCount() {
+        return streams.length;
+    }
+
+    /**
+     * @return the metrics collected so far
+     * @throws IllegalStateException if metrics are not enabled in the {@link WALConfig}
+     */
+    public WALMetrics.Snapshot getMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+        return metrics.snapshot(bufferPool.getDirtyPageCount());
+    }
+
+    WALMetrics getMetricsCollector() {
+        return metrics;
+    }
+
+    private void emitStatistics() {
+        WALEvents.Statistics event = new WALEvents.Statistics();
+        event.appendedEntries = metrics.getAppendedEntries();
+        event.appendedBytes = metrics.getAppendedBytes();
+        event.durableLsn = getDurableLSN();
+        event.maxReaderLag = getMaxReaderLag();
+        event.dirtyPages = bufferPool.getDirtyPageCount();
+        event.averageGroupSize = getAverageGroupSize();
+        event.commit();
     }
 
     public void applyToBufferPool(LogEntry entry) {
+        if (entry.isIncrement()) {
+            bufferPool.increment(entry.getTable(), entry.getKey(), entry.getDelta(), entry.getLsn());
+        } else if (!"DELETE".equals(entry.getOperation())) {
+            bufferPool.put(entry.getTable(), entry.getKey(), entry.getNewValue(), entry.getLsn());
+        }
+        if (WALTrace.ENABLED) {
+            System.out.println("  [BUFFER] Applied: " + entry.getOperation() + " " +
+                    entry.getTable() + "." + entry.getKey() + (entry.isIncrement() ? " by " : " = ")
+                    + entry.getNewValue());
+        }
+    }
+
+    // Re-apply a logged change during recovery, unless the data files already hold it or a later change
+    void redo(LogEntry entry) {
+        if (entry.isIncrement()) {
+            // Not idempotent, so always checked. The row is stored as of its page LSN, a change redone over the stored
+            // value is a value written after the checkpoint, and the increments after it are redone as well
+            if (diskStorage.getPageLSN(entry.getTable(), entry.getKey()) < entry.getLsn()
+                    || bufferPool.isDirty(entry.getTable(), entry.getKey())) {
+                bufferPool.increment(entry.getTable(), entry.getKey(), entry.getDelta(), entry.getLsn());
+            }
+            return;
+        }
+        if (entry.getLsn() <= lastCheckpoint.getEndLsn()
+                && diskStorage.getPageLSN(entry.getTable(), entry.getKey()) >= entry.getLsn()) {
+            return;
+        }
         if (!"DELETE".equals(entry.getOperation())) {
-            bufferPool.put(entry.getTable(), entry.getKey(), entry.getNewValue());
+            bufferPool.put(entry.getTable(), entry.getKey(), entry.getNewValue(), entry.getLsn());
         }
-        System.out.println("  [BUFFER] Applied: " + entry.getOperation() + " " +
-                entry.getTable() + "." + entry.getKey() + " = " + entry.getNewValue());
     }
 
     /**
      * Perform a checkpoint operation to write all dirty pages to disk.
      * This simulates the process of flushing all changes to persistent storage.
+     * <br/> Once the checkpoint completes, WAL segments holding only records up to the checkpoint LSN are released.
      */
     public void checkpoint() {
-        System.out.println("\n>>> CHECKPOINT STARTED <<<");
-        Set<String> dirtyPages = bufferPool.getDirtyPages();
+        checkpoint(0);
+    }
 
-        if (dirtyPages.isEmpty()) {
-            System.out.println("No dirty pages to checkpoint.");
-            return;
+    /**
+     * Perform a fuzzy checkpoint while transactions keep committing.
+     * <br/> The redo LSN is captured first and logged in a CHECKPOINT_BEGIN record, then the dirty pages are written at
+     * the given rate and a CHECKPOINT_END record is logged. Pages changed again during the checkpoint stay dirty and
+     * their changes have LSNs above the redo LSN, so recovery from this checkpoint still replays them.
+     *
+     * @param pagesPerSecond upper bound of page writes per second, 0 means unlimited
+     */
+    public void checkpoint(int pagesPerSecond) {
+        if (!recovered) {
+            throw new IllegalStateException("WAL must be recovered before running a checkpoint");
+        }
+        checkWritable();
+
+        checkpointLock.lock();
+        try {
+            if (WALTrace.ENABLED) {
+                System.out.println("\n>>> CHECKPOINT STARTED <<<");
+            }
+            long start = System.nanoTime();
+            VersionStore versions = bufferPool.getVersionStore();
+            // The redo LSN is the snapshot the pages are written as of, see writeDirtyPages()
+            long redoLsn = versions.beginSnapshot();
+            try {
+                // The CHECKPOINT_BEGIN record only forces its own stream, the records of the pages must be durable
+                // on all of them before a page is written, like in BufferPool.writeBack()
+                flushTo(redoLsn);
+                Map<String, BufferPool.DirtyPage> dirtyPages = bufferPool.getDirtyPages();
+
+                if (dirtyPages.isEmpty() && redoLsn <= lastCheckpoint.getEndLsn()) {
+                    if (WALTrace.ENABLED) {
+                        System.out.println("No dirty pages to checkpoint.");
+                    }
+                    return;
+                }
+
+                long beginLsn = writeSystemRecord(LogEntry.checkpointBeginRecord(redoLsn));
+                long pageIntervalNanos = pagesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / pagesPerSecond : 0;
+                long pagesWritten = writeDirtyPages(dirtyPages, pageIntervalNanos, redoLsn);
+                long endLsn = writeSystemRecord(LogEntry.checkpointEndRecord(beginLsn));
+                try {
+                    CheckpointRecord checkpoint = new CheckpointRecord(redoLsn, beginLsn, endLsn);
+                    checkpoint.write(walDirectory);
+                    lastCheckpoint = checkpoint;
+                } catch (IOException e) {
+                    System.err.println("Error writing checkpoint record: " + e.getMessage());
+                }
+                releaseSegments();
+                if (metrics != null) {
+                    metrics.checkpointCompleted(start, pagesWritten, redoLsn);
+                }
+                if (WALTrace.ENABLED) {
+                    System.out.println(">>> CHECKPOINT COMPLETED, redo LSN " + redoLsn + " (begin " + beginLsn + ", end " + endLsn + ") <<<\n");
+                }
+            } finally {
+                versions.endSnapshot(redoLsn);
+            }
+        } finally {
+            checkpointLock.unlock();
         }
+    }
 
-        for (String page : dirtyPages) {
-            String[] parts = page.split(":");
+    // Write the dirty pages to the data files and make them durable, returns the number of pages written.
+    // Pages are written as they were at the redo LSN, an open snapshot of it: increments are applied out of LSN
+    // order, so the latest value of a counter row may miss one with a lower LSN that is still being applied
+    private long writeDirtyPages(Map<String, BufferPool.DirtyPage> dirtyPages, long pageIntervalNanos, long redoLsn) {
+        VersionStore versions = bufferPool.getVersionStore();
+        long nextWriteNanos = System.nanoTime();
+        long pagesWritten = 0;
+        for (Map.Entry<String, BufferPool.DirtyPage> page : dirtyPages.entrySet()) {
+            String[] parts = page.getKey().split(":", 2);
             String table = parts[0];
             String key = parts[1];
-            String value = bufferPool.get(table, key);
+            // Not resident any more if the page was evicted, eviction already wrote it back. Null as well if the row
+            // was inserted after the redo LSN, it stays dirty
+            String value = versions.peek(table, key, redoLsn);
 
             if (value != null) {
-                diskStorage.writePageToDisk(table, key, value);
-                bufferPool.markClean(page);
+                if (pageIntervalNanos > 0) {
+                    // Pace page writes so committers keep most of the I/O bandwidth
+                    long waitNanos = nextWriteNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                    nextWriteNanos = Math.max(nextWriteNanos, System.nanoTime() - pageIntervalNanos) + pageIntervalNanos;
+                }
+                diskStorage.writePageToDisk(table, key, value, redoLsn);
+                BufferPool.DirtyPage dirty = page.getValue();
+                if (dirty.isCounter()) {
+                    bufferPool.markCounterClean(table, key, redoLsn);
+                } else if (dirty.getLsn() <= redoLsn) {
+                    // Stays dirty if the page was changed again while it was being written
+                    bufferPool.markClean(page.getKey(), dirty);
+                }
+                pagesWritten++;
+            }
+        }
+        // The checkpoint only counts once its pages are durable
+        diskStorage.flush();
+        return pagesWritten;
+    }
+
+    /**
+     * Take a full online snapshot of the data file and the WAL into a new directory.
+     *
+     * @see #snapshot(Path, Path)
+     */
+    public DatabaseSnapshot snapshot(Path directory) throws IOException {
+        return snapshot(directory, null);
+    }
+
+    /**
+     * Take an online snapshot of the data file and the WAL into a new directory while transactions keep committing, see
+     * {@link DatabaseSnapshot}. Restore it with {@link DatabaseSnapshot#restore(Path, Path, Path)}, then recover a WAL
+     * opened on the restored files.
+     * <br/> The snapshot runs a checkpoint first and holds the checkpoint lock until it is complete, so background
+     * checkpoints wait and no segment of its log tail is released while it is copied.
+     *
+     * @param base an earlier snapshot of this database, only the pages changed since are copied, null for a full
+     *             snapshot
+     * @throws IllegalStateException if the log has several streams, see {@link WALConfig#validate()}
+     */
+    public DatabaseSnapshot snapshot(Path directory, Path base) throws IOException {
+        if (!(diskStorage instanceof DiskStorage)) {
+            throw new UnsupportedOperationException("Snapshots need the page storage engine");
+        }
+        if (streams.length > 1) {
+            throw new IllegalStateException("Snapshots need a single log stream, the WAL has " + streams.length
+                    + " (WALConfig.logStreams)");
+        }
+        DatabaseSnapshot baseSnapshot = base == null ? null : DatabaseSnapshot.read(base);
+        if (baseSnapshot != null && baseSnapshot.getSnapshotLsn() > getCurrentLSN()) {
+            throw new IllegalArgumentException("Snapshot " + base + " is newer than this log");
+        }
+        Files.createDirectories(directory);
+
+        checkpointLock.lock();
+        try {
+            long start = System.nanoTime();
+            checkpoint();
+            CheckpointRecord checkpoint = lastCheckpoint;
+            DiskStorage storage = (DiskStorage) diskStorage;
+            int pageCount = storage.getDataFilePageCount();
+            int copiedPages = DatabaseSnapshot.copyPages(storage, pageCount, baseSnapshot, directory);
+            // The copied pages hold no change beyond the current LSN
+            long toLsn = getCurrentLSN();
+            flushTo(toLsn);
+            long snapshotLsn = DatabaseSnapshot.copyLogTail(streams[0].getLog().getSegments(), checkpoint, toLsn, directory);
+            DatabaseSnapshot snapshot = new DatabaseSnapshot(directory, snapshotLsn, checkpoint.getRedoLsn(), pageCount,
+                    copiedPages, base);
+            snapshot.write();
+            if (WALTrace.ENABLED) {
+                System.out.println(">>> SNAPSHOT COMPLETED at LSN " + snapshotLsn + ", " + copiedPages + " of "
+                        + pageCount + " page(s) copied in " + (System.nanoTime() - start) / 1_000_000 + " ms <<<\n");
+            }
+            return snapshot;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Load rows into an empty table without logging them one by one.
+     * <br/> The rows are written straight to new pages at the end of the data file with large sequential writes and
+     * forced, see {@link DiskStorage#stageBulkLoad}. Then a single BULK_LOAD record with the number of rows and their
+     * checksum is logged and forced, and the pages become part of the table. Recovery attaches the pages of every load
+     * whose record is in the log and drops the pages of the others, so after a crash a load is either complete or not
+     * there at all. A key loaded more than once keeps its last row.
+     * <br/> The table is locked while it is loaded: it must not hold rows, and commits changing it fail until the load
+     * returns. Loads run one at a time. The rows are written with the LSN the load started at, later changes win over
+     * them.
+     *
+     * @param rows rows in any order, rows in key order are indexed faster
+     * @return number of rows loaded
+     * @throws IllegalStateException if the table already holds rows
+     */
+    public long bulkLoad(String table, Iterator<Map.Entry<String, String>> rows) {
+        if (!recovered) {
+            throw new IllegalStateException("WAL must be recovered before a bulk load");
+        }
+        checkWritable();
+        if (!(diskStorage instanceof DiskStorage)) {
+            throw new UnsupportedOperationException("Bulk loads need the page storage engine");
+        }
+        if (sender != null) {
+            throw new UnsupportedOperationException("Bulk loads are not replicated, standbys never get their pages");
+        }
+
+        bulkLoadLock.lock();
+        loadingTable = table;
+        long inFlight = enterInFlight();
+        try {
+            // Commits that were in flight before the table was locked may still change it
+            while (!inFlightCommits.headMap(inFlight).isEmpty() || inFlightCommits.get(inFlight) > 1) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            }
+            if (bufferPool.hasRows(table)) {
+                throw new IllegalStateException("Table " + table + " already holds rows");
+            }
+            long start = System.nanoTime();
+            // Every load logs records, so the next load starts at a higher LSN and the LSN is a unique id
+            DiskStorage.BulkLoad load = ((DiskStorage) diskStorage).stageBulkLoad(inFlight, table, rows, inFlight);
+            long transactionId = Transaction.nextTransactionId();
+            LogEntry record = LogEntry.bulkLoadRecord(transactionId, table, load.getId(), load.getRowCount(),
+                    load.getChecksum());
+            try {
+                writeAndForce(splitByStream(Collections.singletonList(record), transactionId));
+            } catch (RuntimeException e) {
+                // Recovery ignores the record if it reached the log anyway, the load is no longer pending
+                ((DiskStorage) diskStorage).abandonBulkLoad(load.getId());
+                throw e;
+            }
+            attachBulkLoad(record);
+            if (WALTrace.ENABLED) {
+                System.out.println(">>> BULK LOAD of " + load.getRowCount() + " row(s) into " + table
+                        + " committed at LSN " + record.getLsn() + " in " + (System.nanoTime() - start) / 1_000_000
+                        + " ms <<<");
+            }
+            return load.getRowCount();
+        } finally {
+            exitInFlight(inFlight);
+            loadingTable = null;
+            bulkLoadLock.unlock();
+        }
+    }
+
+    // Make the rows of a logged bulk load part of its table, nothing changes if they already are
+    private void attachBulkLoad(LogEntry record) {
+        if (!(diskStorage instanceof DiskStorage)) {
+            throw new IllegalStateException("The log holds a bulk load, it needs the page storage engine");
+        }
+        DiskStorage storage = (DiskStorage) diskStorage;
+        if (storage.attachBulkLoad(record.getBulkLoadId(), record.getBulkLoadRows(), record.getBulkLoadChecksum())
+                && !bufferPool.isBounded()) {
+            // A bounded buffer pool reads the rows through on demand
+            for (Map.Entry<String, String> row : storage.readTable(record.getTable()).entrySet()) {
+                bufferPool.load(record.getTable(), row.getKey(), row.getValue());
+            }
+        }
+    }
+
+    // Drop the pages of the bulk loads whose record is not in the log
+    private void abandonBulkLoads() {
+        if (diskStorage instanceof DiskStorage) {
+            int abandoned = ((DiskStorage) diskStorage).abandonBulkLoads();
+            if (abandoned > 0) {
+                System.out.println("Dropped " + abandoned + " uncommitted bulk load(s)");
+            }
+        }
+    }
+
+    /**
+     * Checkpoint a standby when its primary completed a checkpoint. The dirty pages are written like in a checkpoint,
+     * but no checkpoint record is logged, the log of a standby only holds records of its primary. Called by the thread
+     * applying the shipped records, between two transactions.
+     */
+    void restartpoint() {
+        checkpointLock.lock();
+        try {
+            long start = System.nanoTime();
+            VersionStore versions = bufferPool.getVersionStore();
+            long redoLsn = versions.beginSnapshot();
+            long pagesWritten;
+            try {
+                flushTo(redoLsn);
+                pagesWritten = writeDirtyPages(bufferPool.getDirtyPages(), 0, redoLsn);
+            } finally {
+                versions.endSnapshot(redoLsn);
+            }
+            try {
+                CheckpointRecord checkpoint = new CheckpointRecord(redoLsn, redoLsn, redoLsn);
+                checkpoint.write(walDirectory);
+                lastCheckpoint = checkpoint;
+            } catch (IOException e) {
+                System.err.println("Error writing checkpoint record: " + e.getMessage());
+            }
+            releaseSegments();
+            if (metrics != null) {
+                metrics.checkpointCompleted(start, pagesWritten, redoLsn);
             }
+            if (WALTrace.ENABLED) {
+                System.out.println(">>> RESTARTPOINT COMPLETED, redo LSN " + redoLsn + " <<<\n");
+            }
+        } finally {
+            checkpointLock.unlock();
         }
+    }
 
-        System.out.println(">>> CHECKPOINT COMPLETED <<<\n");
+    /**
+     * Append the records of one transaction shipped by the primary, ending with its commit record, or a single
+     * checkpoint record, then apply the changes. The records keep the LSNs they have in the log of the primary.
+     * The log is not forced, the caller forces it once per batch of shipped records.
+     *
+     * @return the LSN of the last record
+     * @throws IllegalStateException if the records do not directly follow the end of the log
+     */
+    long applyReplicated(List<LogEntry> records) throws IOException {
+        if (!replica) {
+            throw new IllegalStateException("Only a standby applies shipped records");
+        }
+        long expectedLsn = getCurrentLSN() + 1;
+        if (records.get(0).getLsn() != expectedLsn) {
+            throw new IllegalStateException("Shipped record has LSN " + records.get(0).getLsn() + ", expected "
+                    + expectedLsn);
+        }
+        if (records.get(0).isBulkLoadRecord()) {
+            throw new IllegalStateException("Bulk load at LSN " + records.get(0).getLsn() + " cannot be applied, its "
+                    + "pages are only in the data file of the primary");
+        }
+        LogEntry last = records.get(records.size() - 1);
+        if (last.isCheckpointRecord()) {
+            return appendToLog(records);
+        }
+        List<LogEntry> entries = records.subList(0, records.size() - 1);
+        long inFlight = enterInFlight();
+        try {
+            // Appending in LSN order on a single thread reassigns the same LSNs
+            long lastLsn = appendToLog(records);
+            applyCommit(entries, lastLsn);
+            Transaction.advanceTransactionIds(last.getTransactionId());
+            return lastLsn;
+        } finally {
+            exitInFlight(inFlight);
+        }
+    }
+
+    /**
+     * Start shipping the durable log to standbys connecting on the given port of the loopback interface, see
+     * {@link WALSender}.
+     *
+     * @param port TCP port, 0 picks a free port
+     * @return the port standbys connect to
+     * @throws IllegalStateException if the log has several streams, see {@link WALConfig#validate()}
+     */
+    public synchronized int startReplication(int port) throws IOException {
+        if (sender != null) {
+            throw new IllegalStateException("Replication is already started");
+        }
+        if (streams.length > 1) {
+            throw new IllegalStateException("Replication needs a single log stream, the WAL has " + streams.length
+                    + " (WALConfig.logStreams)");
+        }
+        checkWritable();
+        sender = new WALSender(this, config, port);
+        return sender.getPort();
+    }
+
+    /**
+     * @return number of durable records the most up-to-date standby has not applied yet, -1 without a standby
+     */
+    public long getReplicationLagLsn() {
+        WALSender sender = this.sender;
+        return sender != null ? sender.getLagLsn() : -1;
+    }
+
+    /**
+     * @return milliseconds since the oldest records the most up-to-date standby has not applied yet were shipped, -1
+     * without a standby
+     */
+    public long getReplicationLagMillis() {
+        WALSender sender = this.sender;
+        return sender != null ? sender.getLagMillis() : -1;
+    }
+
+    // Every transaction with LSNs up to the returned LSN is already applied to the buffer pool
+    long getAppliedLSN() {
+        long currentLsn = getCurrentLSN();
+        Map.Entry<Long, Integer> oldestInFlight = inFlightCommits.firstEntry();
+        return oldestInFlight == null ? currentLsn : Math.min(currentLsn, oldestInFlight.getKey() - 1);
+    }
+
+    private void releaseSegments() {
+        long releaseLsn = lastCheckpoint.getRedoLsn();
+        for (WALReader reader : readers) {
+            releaseLsn = Math.min(releaseLsn, reader.getLastLsn());
+        }
+        try {
+            int released = 0;
+            for (LogStream stream : streams) {
+                released += stream.getLog().releaseSegmentsUpTo(releaseLsn);
+            }
+            if (WALTrace.ENABLED && released > 0) {
+                System.out.println("Released " + released + " WAL segment(s) up to LSN " + releaseLsn);
+            }
+        } catch (IOException e) {
+            System.err.println("Error releasing WAL segments: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the redo LSN of the last completed checkpoint
+     */
+    public long getLastCheckpointLSN() {
+        return lastCheckpoint.getRedoLsn();
+    }
+
+    /**
+     * @return the WAL segments in log order together with the LSN range each of them holds, stream by stream
+     */
+    public List<WALSegmentInfo> listSegments() {
+        if (streams.length == 1) {
+            return streams[0].getLog().listSegments();
+        }
+        List<WALSegmentInfo> segments = new ArrayList<>();
+        for (LogStream stream : streams) {
+            segments.addAll(stream.getLog().listSegments());
+        }
+        return segments;
     }
 
     /**
      * Recover the database state by replaying the Write-Ahead Log (WAL).
-     * This method reads the WAL file and re-applies all operations to restore the in-memory state.
+     * <br/> This method loads the checkpointed data from disk, then streams the WAL segments in order starting after the
+     * last checkpoint LSN. An analysis step keeps the records of a transaction until its commit record is read, so only
+     * committed transactions are replayed. Their changes are redone in parallel, partitioned by table and key.
+     * Replay stops at a torn record left by a crash.
+     * <br/> The segments of several log streams are merged in LSN order. A transaction written to several streams is
+     * replayed once the commit records of all its parts are read, a torn record only ends the replay of its own stream.
+     * <br/> A committed bulk load is attached to its table when its record is read, the pages of bulk loads without a
+     * record in the log are dropped once the replay is complete.
      */
     public void recover() {
         System.out.println("\n>>> RECOVERY STARTED <<<");
+        long start = System.nanoTime();
 
-        try {
-            if (!Files.exists(Paths.get(walFile))) {
-                System.out.println("No WAL file found. Nothing to recover.");
-                return;
+        // Changes older than the retained WAL segments only exist in the data files, a bounded buffer pool faults
+        // them in on demand instead
+        for (String table : bufferPool.isBounded() ? Collections.<String>emptySet() : diskStorage.getTables()) {
+            for (Map.Entry<String, String> row : diskStorage.readTable(table).entrySet()) {
+                bufferPool.load(table, row.getKey(), row.getValue());
             }
+        }
 
-            List<String> logLines = Files.readAllLines(Paths.get(walFile));
-            System.out.println("Replaying " + logLines.size() + " log entries...");
-
-            for (String line : logLines) {
-                String[] parts = line.split("\\|");
-                if (parts.length >= 7) {
-                    String operation = parts[2];
-                    String table = parts[3];
-                    String key = parts[4];
-                    String newValue = parts[5].split("->")[1];
+        if (listSegments().isEmpty()) {
+            System.out.println("WAL is empty. Nothing to recover.");
+            abandonBulkLoads();
+            markRecovered();
+            return;
+        }
+        long redoLsn = lastCheckpoint.getRedoLsn();
+        System.out.println("Replaying WAL after checkpoint redo LSN " + redoLsn + " with " + recoveryThreads + " thread(s)");
 
-                    // Replay the operation
-                    if (!"DELETE".equals(operation)) {
-                        bufferPool.put(table, key, newValue);
+        List<RecoveryCursor> cursors = new ArrayList<>();
+        for (LogStream stream : streams) {
+            List<WALSegment> segments = new ArrayList<>();
+            for (WALSegment segment : stream.getLog().getSegments()) {
+                // Everything in a segment up to the redo LSN is already in the data files
+                if (segment.getLastLsn() > redoLsn) {
+                    segments.add(segment);
+                }
+            }
+            cursors.add(new RecoveryCursor(segments));
+        }
+        if (metrics != null) {
+            metrics.recoveryStarted(cursors.stream().mapToLong(cursor -> cursor.segments.size()).sum());
+        }
+        ParallelRedo redo = new ParallelRedo(this, recoveryThreads);
+        long maxTransactionId = 0;
+        long maxLsn = 0;
+        long skipped = 0;
+        long discarded = 0;
+        try {
+            PriorityQueue<RecoveryCursor> merge = new PriorityQueue<>(Comparator.comparingLong(cursor -> cursor.entry.getLsn()));
+            for (RecoveryCursor cursor : cursors) {
+                if (cursor.next()) {
+                    merge.add(cursor);
+                }
+            }
+            // Changes of every transaction whose commit records were not all read yet, and the commit records read
+            Map<Long, List<LogEntry>> transactions = new HashMap<>();
+            Map<Long, Integer> committedParts = new HashMap<>();
+            while (!merge.isEmpty()) {
+                RecoveryCursor cursor = merge.poll();
+                LogEntry entry = cursor.entry;
+                maxLsn = Math.max(maxLsn, entry.getLsn());
+                maxTransactionId = Math.max(maxTransactionId, entry.getTransactionId());
+                if (entry.getLsn() <= redoLsn) {
+                    skipped++;
+                } else if (entry.isCheckpointRecord()) {
+                    // Checkpoint records carry no changes
+                } else if (entry.isCommitRecord()) {
+                    int parts = entry.getCommitParts();
+                    if (parts == 1 || committedParts.merge(entry.getTransactionId(), 1, Integer::sum) == parts) {
+                        committedParts.remove(entry.getTransactionId());
+                        List<LogEntry> transaction = transactions.remove(entry.getTransactionId());
+                        if (transaction != null && transaction.get(0).isBulkLoadRecord()) {
+                            // The table was locked during the load, no earlier change of it is still being redone
+                            attachBulkLoad(transaction.get(0));
+                        } else {
+                            redo.submit(transaction != null ? transaction : Collections.emptyList());
+                        }
                     }
-                    System.out.println("  [RECOVERY] Replayed: " + operation + " " + table + "." + key);
+                } else {
+                    transactions.computeIfAbsent(entry.getTransactionId(), id -> new ArrayList<>()).add(entry);
+                }
+                if (cursor.next()) {
+                    merge.add(cursor);
                 }
             }
+            if (sequence != null) {
+                sequence.accumulateAndGet(maxLsn, Math::max);
+            } else {
+                streams[0].getBuffer().advanceLsn(maxLsn);
+            }
+            // Changes without all commit records belong to a transaction that did not finish writing its log
+            for (List<LogEntry> transaction : transactions.values()) {
+                discarded += transaction.size();
+            }
 
+            long replayed = redo.finish();
+            abandonBulkLoads();
+            Transaction.advanceTransactionIds(maxTransactionId);
+            markRecovered();
+            if (metrics != null) {
+                metrics.recoveryCompleted(start, replayed, skipped, discarded);
+            }
+            System.out.println("Replayed " + replayed + " log entries, skipped " + skipped + " before checkpoint, discarded "
+                    + discarded + " uncommitted in " + (System.nanoTime() - start) / 1_000_000 + " ms");
             System.out.println(">>> RECOVERY COMPLETED <<<\n");
         } catch (IOException e) {
             System.err.println("Error during recovery: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Recovery interrupted");
+        }
+    }
+
+    // Reads the records of one stream during recovery, segment by segment until the end or a torn record
+    private final class RecoveryCursor {
+        private final List<WALSegment> segments;
+        private int nextSegment;
+        private WALSegment segment;
+        private LogRecordDecoder decoder;
+        private long entriesRead;
+        // The record read last
+        private LogEntry entry;
+
+        private RecoveryCursor(List<WALSegment> segments) {
+            this.segments = segments;
+        }
+
+        // Returns false at the end of the stream
+        private boolean next() throws IOException {
+            while (true) {
+                if (decoder != null) {
+                    entry = decoder.next();
+                    if (entry != null) {
+                        entriesRead++;
+                        return true;
+                    }
+                    if (metrics != null) {
+                        metrics.recoverySegmentRead(entriesRead);
+                    }
+                    if (WALTrace.ENABLED) {
+                        System.out.println("  [RECOVERY] Read segment " + segment.getPath().getFileName() + " up to LSN " + decoder.getLastLsn());
+                    }
+                    if (decoder.isTornTail()) {
+                        System.out.println("Torn record in segment " + segment.getPath().getFileName() + " at offset "
+                                + decoder.getValidPosition() + ", stopping replay");
+                        return false;
+                    }
+                }
+                if (nextSegment == segments.size()) {
+                    return false;
+                }
+                segment = segments.get(nextSegment++);
+                decoder = segment.openDecoder();
+                entriesRead = 0;
+            }
         }
     }
 
     public void shutdown() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+        }
         // Ensure any dirty pages are written to disk before shutdown
         checkpoint(); // Final checkpoint
-//        checkpointExecutor.shutdown();
+        close();
+    }
+
+    /**
+     * Close the WAL segments without running a final checkpoint.
+     */
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+        }
+        if (sender != null) {
+            sender.shutdown();
+        }
+        // Forces the records of async commits that are still in the log buffer
+        writer.shutdown();
+        bufferPool.getVersionStore().shutdown();
+        if (statisticsEvent != null) {
+            FlightRecorder.removePeriodicEvent(statisticsEvent);
+        }
+        try {
+            for (LogStream stream : streams) {
+                stream.getLog().close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing WAL: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,13 @@
+package org.datnh.wal;
+
+/**
+ * Thrown when a transaction commits a row that another transaction committed after the snapshot of the first one
+ * was taken. The transaction is rolled back and can be retried.
+ */
+class WriteConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    WriteConflictException(String message) {
+        super(message);
+    }
+}
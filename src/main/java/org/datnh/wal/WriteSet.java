@@ -0,0 +1,178 @@
+package org.datnh.wal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * This class is the write set of a transaction: the log entries of its changes in the order they were made, and an
+ * open-addressing hash table from (table, key) to the newest entry of every row it changed.
+ * <br/> Cleared write sets keep their table and log entries, the next transaction of the same {@link Transaction}
+ * object refills them in place, so a thread running transactions one after another allocates neither map nodes nor
+ * log entries. The entries must not be used any more once the write set is cleared.
+ */
+class WriteSet {
+    private static final int INITIAL_SLOTS = 16;
+    // A cleared write set drops larger tables and more entries, a single huge transaction does not pin its memory
+    private static final int MAX_RETAINED_SLOTS = 1 << 12;
+    private static final Comparator<LogEntry> BY_KEY = Comparator.comparing(LogEntry::getKey);
+
+    // Log entries in change order, the first size ones belong to the current transaction, the rest are kept for reuse
+    private final ArrayList<LogEntry> entries = new ArrayList<>();
+    private int size;
+    // Index + 1 of the newest entry of a row, 0 for an empty slot, linear probing with at most half the slots in use
+    private int[] slots = new int[INITIAL_SLOTS];
+
+    // The current transaction's entries without a copy
+    private final List<LogEntry> view = new AbstractList<>() {
+        @Override
+        public LogEntry get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return entries.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+    /**
+     * Record a change of a row, it replaces an earlier change of the same row for reads but both stay in the log.
+     */
+    void add(long transactionId, String operation, String table, String key, String oldValue, String newValue,
+             long timestamp) {
+        next().reset(transactionId, operation, table, key, oldValue, newValue, timestamp);
+        index(table, key);
+    }
+
+    /**
+     * Record an increment of a row. Increments of a row add up in a single entry, and an increment of a row the
+     * transaction wrote a value to is recorded as an update of that value.
+     *
+     * @throws NumberFormatException if the transaction wrote a value to the row that is not a number
+     */
+    void increment(long transactionId, String table, String key, long delta, long timestamp) {
+        LogEntry newest = get(table, key);
+        if (newest == null) {
+            next().resetIncrement(transactionId, table, key, delta, timestamp);
+            index(table, key);
+        } else if (newest.isIncrement()) {
+            newest.resetIncrement(transactionId, table, key, newest.getDelta() + delta, timestamp);
+        } else {
+            add(transactionId, "UPDATE", table, key, newest.getNewValue(),
+                    LogEntry.increment(newest.getNewValue(), delta), timestamp);
+        }
+    }
+
+    /**
+     * @return the newest change of the row, null if the transaction did not change it
+     */
+    LogEntry get(String table, String key) {
+        int slot = slots[find(table, key)];
+        return slot == 0 ? null : entries.get(slot - 1);
+    }
+
+    /**
+     * @param value the value of a row after its newest change, which needs the committed value for an increment
+     * @return the newest values of the changed rows of a table with a key from fromKey inclusive to toKey exclusive,
+     * copied in key order
+     */
+    List<Map.Entry<String, String>> scan(String table, String fromKey, String toKey,
+                                         Function<LogEntry, String> value) {
+        List<LogEntry> rows = null;
+        for (int i = 0; i < size; i++) {
+            LogEntry entry = entries.get(i);
+            if (entry.getTable().equals(table) && entry.getKey().compareTo(fromKey) >= 0
+                    && (toKey == null || entry.getKey().compareTo(toKey) < 0)
+                    && slots[find(table, entry.getKey())] == i + 1) {
+                if (rows == null) {
+                    rows = new ArrayList<>();
+                }
+                rows.add(entry);
+            }
+        }
+        if (rows == null) {
+            return Collections.emptyList();
+        }
+        rows.sort(BY_KEY);
+        List<Map.Entry<String, String>> copies = new ArrayList<>(rows.size());
+        for (LogEntry row : rows) {
+            copies.add(Map.entry(row.getKey(), value.apply(row)));
+        }
+        return copies;
+    }
+
+    /**
+     * @return log entries of the changes in the order they were made, a live view until the write set is cleared
+     */
+    List<LogEntry> entries() {
+        return view;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Forget all changes and keep the entries for the next transaction.
+     */
+    void clear() {
+        if (slots.length > MAX_RETAINED_SLOTS) {
+            slots = new int[INITIAL_SLOTS];
+            entries.subList(MAX_RETAINED_SLOTS / 2, entries.size()).clear();
+        } else if (size > 0) {
+            Arrays.fill(slots, 0);
+        }
+        size = 0;
+    }
+
+    // The entry for the next change, reused from an earlier transaction if there is one
+    private LogEntry next() {
+        if (size == entries.size()) {
+            entries.add(new LogEntry(0, 0, null, null, null, null, null, 0));
+        }
+        return entries.get(size++);
+    }
+
+    // Make the newest entry the one the row resolves to
+    private void index(String table, String key) {
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            slots[find(table, key)] = size;
+        }
+    }
+
+    // Slot of the row, or the empty slot it would take
+    private int find(String table, String key) {
+        int mask = slots.length - 1;
+        int hash = 31 * table.hashCode() + key.hashCode();
+        for (int i = (hash ^ (hash >>> 16)) & mask; ; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return i;
+            }
+            LogEntry entry = entries.get(slot - 1);
+            if (entry.getKey().equals(key) && entry.getTable().equals(table)) {
+                return i;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            LogEntry entry = entries.get(i);
+            // Later entries of a row overwrite earlier ones
+            slots[find(entry.getTable(), entry.getKey())] = i + 1;
+        }
+    }
+}
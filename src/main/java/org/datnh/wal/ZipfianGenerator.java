@@ -0,0 +1,55 @@
+package org.datnh.wal;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class draws item numbers from {@code [0, items)} with a Zipfian distribution, item 0 being the most popular.
+ * <br/> It uses the algorithm of Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as YCSB does: the
+ * zeta constant is computed once in O(items), then every draw is a few floating point operations. Draws use
+ * {@link ThreadLocalRandom}, so one generator can be shared by any number of threads.
+ */
+class ZipfianGenerator {
+    // The skew YCSB uses for its hot-key workloads
+    static final double DEFAULT_THETA = 0.99;
+
+    private final long items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfianGenerator(long items) {
+        this(items, DEFAULT_THETA);
+    }
+
+    ZipfianGenerator(long items, double theta) {
+        if (items < 2) {
+            throw new IllegalArgumentException("A Zipfian distribution needs at least 2 items: " + items);
+        }
+        this.items = items;
+        this.theta = theta;
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
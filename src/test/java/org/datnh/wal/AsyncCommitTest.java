@@ -0,0 +1,154 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class AsyncCommitTest {
+    private static final String TABLE = "accounts";
+    private static final int SMALL = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+
+    @AfterEach
+    void close() {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    @Test
+    void asyncCommitThrowsWhenTheLogCannotBeWritten() {
+        // A record larger than the log buffer is appended to the segment directly, and it does not fit one
+        open(new WALConfig().segmentSize(SMALL).logBufferSize(SMALL));
+        Transaction txn = new Transaction(wal, bufferPool, Durability.ASYNC);
+        txn.insert(TABLE, "big", randomValue(2 * SMALL));
+
+        RuntimeException e = assertThrows(RuntimeException.class, txn::commit);
+        assertEquals("Failed to write WAL entry", e.getMessage());
+        assertTrue(e.getCause().getMessage().contains("exceeds segment size"), e.getCause().getMessage());
+        assertNull(new Transaction(wal, bufferPool).read(TABLE, "big"));
+
+        // The row is free for the next transaction
+        Transaction next = new Transaction(wal, bufferPool, Durability.ASYNC);
+        next.insert(TABLE, "big", "small");
+        next.commit();
+        assertFalse(next.isFailed());
+        assertEquals("small", new Transaction(wal, bufferPool).read(TABLE, "big"));
+    }
+
+    @Test
+    void commitAsyncReportsAFailedWriteThroughTheFuture() {
+        open(new WALConfig().segmentSize(SMALL).logBufferSize(SMALL));
+        Transaction txn = new Transaction(wal, bufferPool);
+        txn.insert(TABLE, "big", randomValue(2 * SMALL));
+
+        CompletableFuture<Long> commit = txn.commitAsync();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> commit.get(10, TimeUnit.SECONDS));
+        assertEquals("Failed to write WAL entry", e.getCause().getMessage());
+        assertNull(new Transaction(wal, bufferPool).read(TABLE, "big"));
+    }
+
+    @Test
+    void commitAsyncCompletesWithADurableLsn() throws Exception {
+        open(new WALConfig());
+        Transaction sync = new Transaction(wal, bufferPool);
+        sync.insert(TABLE, "alice", "100");
+        long syncLsn = sync.commitAsync().get(10, TimeUnit.SECONDS);
+        assertTrue(syncLsn <= wal.getDurableLSN());
+        assertEquals("100", new Transaction(wal, bufferPool).read(TABLE, "alice"));
+
+        // With ASYNC durability the change is visible before the future completes
+        Transaction async = new Transaction(wal, bufferPool, Durability.ASYNC);
+        async.update(TABLE, "alice", "100", "90");
+        CompletableFuture<Long> commit = async.commitAsync();
+        assertEquals("90", new Transaction(wal, bufferPool).read(TABLE, "alice"));
+        long asyncLsn = commit.get(10, TimeUnit.SECONDS);
+        assertTrue(asyncLsn > syncLsn);
+        assertTrue(asyncLsn <= wal.getDurableLSN());
+    }
+
+    @Test
+    void virtualThreadsCommitConcurrently() throws Exception {
+        ExecutorService executor = newVirtualThreadExecutor();
+        assumeTrue(executor != null, "Virtual threads need Java 21");
+        open(new WALConfig());
+        int threads = 1000;
+        List<Future<Long>> commits = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                int id = i;
+                // Half of them block in commit(), the others wait on the future of commitAsync()
+                commits.add(executor.submit(() -> {
+                    Transaction txn = new Transaction(wal, bufferPool, id % 4 == 0 ? Durability.ASYNC
+                            : Durability.SYNC);
+                    txn.insert(TABLE, "key" + id, "value" + id);
+                    if (id % 2 == 0) {
+                        txn.commit();
+                        return 0L;
+                    }
+                    return txn.commitAsync().get();
+                }));
+            }
+            for (Future<Long> commit : commits) {
+                commit.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Transaction check = new Transaction(wal, bufferPool);
+        for (int i = 0; i < threads; i++) {
+            assertEquals("value" + i, check.read(TABLE, "key" + i));
+        }
+    }
+
+    private void open(WALConfig config) {
+        storage = new DiskStorage(directory.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                config.checkpointIntervalMillis(0));
+        wal.recover();
+    }
+
+    // Random characters, so a compressed log cannot shrink the value below the segment size
+    private static String randomValue(int length) {
+        Random random = new Random(1);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('!' + random.nextInt(90)));
+        }
+        return value.toString();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
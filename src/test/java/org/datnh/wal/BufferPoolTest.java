@@ -0,0 +1,146 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest {
+    private static final String TABLE = "t";
+    // Size of a frame of a row with a 3 character key and a 1 character value
+    private static final int FRAME_SIZE = 2 * (1 + 3 + 1) + 144;
+
+    @Test
+    void pageFaultedInAgainAfterItsEvictionSurvivesAScan() {
+        MemoryStorage storage = new MemoryStorage();
+        for (int i = 0; i < 100; i++) {
+            storage.writePageToDisk(TABLE, key(i), "v", 0);
+        }
+        BufferPool pool = new BufferPool(10L * FRAME_SIZE, storage);
+
+        // Read once, the page only passes through probation
+        pool.get(TABLE, key(0));
+        // The pool holds ten frames, the eleventh pushes out the oldest page of probation
+        for (int i = 1; i <= 10; i++) {
+            pool.get(TABLE, key(i));
+        }
+        assertEquals(1, pool.getEvictionCount());
+        // Faulted in again while it is remembered as evicted, the page is admitted to the main queue
+        pool.get(TABLE, key(0));
+
+        // A scan reads every cold row once, it cycles through probation
+        for (int i = 11; i < 100; i++) {
+            pool.get(TABLE, key(i));
+        }
+        long misses = pool.getMissCount();
+        pool.get(TABLE, key(0));
+        assertEquals(misses, pool.getMissCount(), "hot page was evicted by the scan");
+        pool.get(TABLE, key(50));
+        assertEquals(misses + 1, pool.getMissCount(), "cold page stayed resident");
+    }
+
+    @Test
+    void dirtyVictimIsWrittenBackOnlyOnceTheLogIsDurable() {
+        MemoryStorage storage = new MemoryStorage();
+        BufferPool pool = new BufferPool(10L * FRAME_SIZE, storage);
+        pool.setWalFlusher(lsn -> storage.durableLsn = Math.max(storage.durableLsn, lsn));
+
+        for (int i = 0; i < 100; i++) {
+            pool.put(TABLE, key(i), "v", i + 1);
+        }
+        assertTrue(pool.getWriteBackCount() >= 90, pool.getWriteBackCount() + " write-backs");
+        assertEquals(pool.getWriteBackCount(), storage.writtenLsns.size());
+        for (int i = 0; i < storage.writtenLsns.size(); i++) {
+            long lsn = storage.writtenLsns.get(i);
+            assertTrue(lsn <= storage.durableLsnAtWrite.get(i), "page of LSN " + lsn + " written before the log");
+        }
+        // A row written back is faulted in with its last change
+        pool.put(TABLE, key(0), "w", 101);
+        for (int i = 1; i < 100; i++) {
+            pool.get(TABLE, key(i));
+        }
+        assertEquals("w", pool.get(TABLE, key(0)));
+    }
+
+    private static String key(int i) {
+        return String.format("k%02d", i);
+    }
+
+    // Rows by table and key in memory, records the LSN the log was durable up to at every page write
+    private static final class MemoryStorage implements StorageEngine {
+        private final Map<String, String> rows = new TreeMap<>();
+        private final Map<String, Long> pageLsns = new TreeMap<>();
+        private final List<Long> writtenLsns = new ArrayList<>();
+        private final List<Long> durableLsnAtWrite = new ArrayList<>();
+        private volatile long durableLsn;
+
+        @Override
+        public synchronized void writePageToDisk(String table, String key, String value, long lsn) {
+            rows.put(table + ":" + key, value);
+            pageLsns.put(table + ":" + key, lsn);
+            if (lsn > 0) {
+                writtenLsns.add(lsn);
+                durableLsnAtWrite.add(durableLsn);
+            }
+        }
+
+        @Override
+        public synchronized String readFromDisk(String table, String key) {
+            return rows.get(table + ":" + key);
+        }
+
+        @Override
+        public synchronized long getPageLSN(String table, String key) {
+            return pageLsns.getOrDefault(table + ":" + key, 0L);
+        }
+
+        @Override
+        public Set<String> getTables() {
+            return Set.of(TABLE);
+        }
+
+        @Override
+        public synchronized Map<String, String> readTable(String table) {
+            return readRange(table, "", null, Integer.MAX_VALUE).stream()
+                    .collect(TreeMap::new, (map, row) -> map.put(row.getKey(), row.getValue()), Map::putAll);
+        }
+
+        @Override
+        public synchronized List<Map.Entry<String, String>> readRange(String table, String fromKey, String toKey,
+                                                                      int limit) {
+            List<Map.Entry<String, String>> range = new ArrayList<>();
+            for (Map.Entry<String, String> row : rows.entrySet()) {
+                String key = row.getKey().substring(table.length() + 1);
+                if (row.getKey().startsWith(table + ":") && key.compareTo(fromKey) >= 0
+                        && (toKey == null || key.compareTo(toKey) < 0) && range.size() < limit) {
+                    range.add(Map.entry(key, row.getValue()));
+                }
+            }
+            return range;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return 0;
+        }
+
+        @Override
+        public long getFileSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DatabaseSnapshotTest {
+    private static final String TABLE = "accounts";
+    private static final int ROWS = 2000;
+
+    @TempDir
+    Path directory;
+
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+
+    @AfterEach
+    void close() {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    @Test
+    void fullAndIncrementalSnapshotsRestoreTheirCommits() throws IOException {
+        open(Files.createDirectories(directory.resolve("primary")));
+        Transaction load = new Transaction(wal, bufferPool);
+        for (int i = 0; i < ROWS; i++) {
+            load.insert(TABLE, key(i), "v0");
+        }
+        load.commit();
+        DatabaseSnapshot full = wal.snapshot(directory.resolve("full"));
+        assertNull(full.getBase());
+
+        // Committed after the full snapshot, only the pages they changed are copied again
+        commit(0, 10, "v1");
+        Transaction insert = new Transaction(wal, bufferPool);
+        insert.insert(TABLE, "new", "v1");
+        insert.commit();
+        DatabaseSnapshot incremental = wal.snapshot(directory.resolve("incremental"), full.getDirectory());
+        assertEquals(full.getDirectory(), incremental.getBase());
+        assertTrue(incremental.getCopiedPages() < full.getCopiedPages(),
+                incremental.getCopiedPages() + " of " + full.getCopiedPages() + " pages copied");
+
+        // Not in either snapshot
+        commit(5, 20, "v2");
+        wal.close();
+
+        restore(incremental, "restored-incremental");
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i < 10 ? "v1" : "v0", read(key(i)), key(i));
+        }
+        assertEquals("v1", read("new"));
+        wal.close();
+
+        restore(full, "restored-full");
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals("v0", read(key(i)), key(i));
+        }
+        assertNull(read("new"));
+    }
+
+    private void restore(DatabaseSnapshot snapshot, String name) throws IOException {
+        Path restored = directory.resolve(name);
+        DatabaseSnapshot.restore(snapshot.getDirectory(), restored.resolve("data.db"), restored.resolve("wal"));
+        open(restored);
+    }
+
+    private void open(Path database) {
+        DiskStorage storage = new DiskStorage(database.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        wal = new WriteAheadLog(database.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0));
+        wal.recover();
+    }
+
+    // Set the rows from index from to index to, exclusive, in one transaction
+    private void commit(int from, int to, String value) {
+        Transaction transaction = new Transaction(wal, bufferPool);
+        for (int i = from; i < to; i++) {
+            transaction.update(TABLE, key(i), transaction.read(TABLE, key(i)), value);
+        }
+        transaction.commit();
+    }
+
+    private String read(String key) {
+        Transaction transaction = new Transaction(wal, bufferPool);
+        String value = transaction.read(TABLE, key);
+        transaction.rollback();
+        return value;
+    }
+
+    private static String key(int i) {
+        return String.format("key%05d", i);
+    }
+}
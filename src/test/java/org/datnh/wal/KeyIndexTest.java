@@ -0,0 +1,147 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyIndexTest {
+    private static final String TABLE = "accounts";
+    private static final int ROWS = 2000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void indexIsReloadedWithItsDeltas() throws IOException {
+        Path dataFile = directory.resolve("data.db");
+        DiskStorage storage = new DiskStorage(dataFile.toString());
+        write(storage, 0, ROWS, "v0");
+        storage.close();
+        assertTrue(Files.exists(index(dataFile)));
+
+        storage = new DiskStorage(dataFile.toString());
+        assertRows(storage, 0, ROWS, "v0");
+        // Rows inserted since the base go to a small delta, rows changed in place keep their location
+        write(storage, 0, 10, "v1");
+        write(storage, ROWS, ROWS + 10, "v1");
+        storage.close();
+        assertEquals(2, DiskStorage.keyIndexFiles(dataFile).size());
+
+        storage = new DiskStorage(dataFile.toString());
+        assertRows(storage, 0, 10, "v1");
+        assertRows(storage, 10, ROWS, "v0");
+        assertRows(storage, ROWS, ROWS + 10, "v1");
+        assertNull(storage.readFromDisk(TABLE, key(ROWS + 10)));
+        storage.close();
+    }
+
+    @Test
+    void corruptIndexFallsBackToAPageScan() throws IOException {
+        Path dataFile = directory.resolve("data.db");
+        DiskStorage storage = new DiskStorage(dataFile.toString());
+        write(storage, 0, ROWS, "v0");
+        storage.close();
+
+        // Flip the last byte of the footer, its checksum no longer matches
+        try (FileChannel channel = FileChannel.open(index(dataFile), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long position = channel.size() - 21;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            channel.write(b.rewind(), position);
+        }
+        storage = new DiskStorage(dataFile.toString());
+        assertFalse(Files.exists(index(dataFile)), "corrupt index was kept");
+        assertRows(storage, 0, ROWS, "v0");
+        // The next flush writes the index again
+        storage.flush();
+        storage.close();
+        assertTrue(Files.exists(index(dataFile)));
+        storage = new DiskStorage(dataFile.toString());
+        assertRows(storage, 0, ROWS, "v0");
+        storage.close();
+    }
+
+    @Test
+    void staleIndexFilesAreDroppedAndThePagesRead() throws IOException {
+        Path dataFile = directory.resolve("data.db");
+        DiskStorage storage = new DiskStorage(dataFile.toString());
+        write(storage, 0, ROWS, "v0");
+        storage.close();
+        // Only rows inserted or moved since the base are written to a delta
+        storage = new DiskStorage(dataFile.toString());
+        write(storage, ROWS, ROWS + 10, "v1");
+        storage.close();
+        Path staleDelta = null;
+        for (Path file : DiskStorage.keyIndexFiles(dataFile)) {
+            if (!file.equals(index(dataFile))) {
+                staleDelta = file;
+            }
+        }
+        assertNotNull(staleDelta);
+        Path copy = directory.resolve("stale-delta");
+        Files.copy(staleDelta, copy);
+
+        // As many rows again are inserted, so the next flush writes a new base and drops the delta
+        storage = new DiskStorage(dataFile.toString());
+        write(storage, ROWS + 10, 2 * ROWS, "v2");
+        storage.close();
+        assertFalse(Files.exists(staleDelta));
+        // A delta of the previous base left behind by a crash is ignored and deleted
+        Files.copy(copy, staleDelta);
+        storage = new DiskStorage(dataFile.toString());
+        assertFalse(Files.exists(staleDelta), "delta of an older base was kept");
+        assertRows(storage, 0, ROWS, "v0");
+        assertRows(storage, ROWS, ROWS + 10, "v1");
+        assertRows(storage, ROWS + 10, 2 * ROWS, "v2");
+        storage.close();
+
+        // An index naming pages the data file does not hold is dropped and the data file scanned
+        Path small = directory.resolve("small.db");
+        storage = new DiskStorage(small.toString());
+        write(storage, 0, 10, "small");
+        storage.close();
+        Files.copy(index(dataFile), index(small), StandardCopyOption.REPLACE_EXISTING);
+        storage = new DiskStorage(small.toString());
+        assertFalse(Files.exists(index(small)), "index of another data file was kept");
+        assertRows(storage, 0, 10, "small");
+        assertNull(storage.readFromDisk(TABLE, key(10)));
+        storage.close();
+    }
+
+    // Writes the rows from index from to index to, exclusive, and flushes them with the key index
+    private static void write(DiskStorage storage, int from, int to, String value) {
+        for (int i = from; i < to; i++) {
+            storage.writePageToDisk(TABLE, key(i), value + "-" + i);
+        }
+        storage.flush();
+    }
+
+    private static void assertRows(DiskStorage storage, int from, int to, String value) {
+        for (int i = from; i < to; i++) {
+            assertEquals(value + "-" + i, storage.readFromDisk(TABLE, key(i)), key(i));
+        }
+    }
+
+    private static Path index(Path dataFile) {
+        return Path.of(dataFile + DiskStorage.INDEX_SUFFIX);
+    }
+
+    private static String key(int i) {
+        return String.format("key%06d", i);
+    }
+}
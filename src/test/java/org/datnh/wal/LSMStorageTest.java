@@ -0,0 +1,87 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LSMStorageTest {
+    private static final String TABLE = "accounts";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void compactionKeepsTheNewestVersionOfEveryRow() throws InterruptedException {
+        LSMStorage storage = new LSMStorage(directory.toString());
+        long lsn = 0;
+        // Every flush writes a level 0 run, the last one fills the level and merges the runs into one
+        for (int round = 0; round < LSMStorage.COMPACTION_FANOUT; round++) {
+            for (int i = round; i < 100; i++) {
+                storage.writePageToDisk(TABLE, "key" + i, "v" + round + "-" + i, ++lsn);
+            }
+            storage.writePageToDisk("other", "key" + round, "other" + round, ++lsn);
+            storage.flush();
+        }
+        storage.awaitCompaction();
+        assertEquals(1, storage.getRunCount());
+        assertTrue(storage.getCompactedBytes() > 0);
+        assertNewest(storage);
+        storage.close();
+
+        // The manifest lists the compacted run only
+        storage = new LSMStorage(directory.toString());
+        assertEquals(1, storage.getRunCount());
+        assertNewest(storage);
+        storage.close();
+    }
+
+    @Test
+    void bloomFilterHasNoFalseNegatives() {
+        int keys = 10_000;
+        BloomFilter filter = BloomFilter.create(keys);
+        for (int i = 0; i < keys; i++) {
+            filter.add("key" + i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(filter.getSerializedSize());
+        filter.write(buffer);
+        buffer.flip();
+        BloomFilter read = BloomFilter.read(buffer.duplicate());
+        BloomFilter wrapped = BloomFilter.wrap(buffer.duplicate());
+
+        for (int i = 0; i < keys; i++) {
+            assertTrue(filter.mightContain("key" + i), "key" + i);
+            assertTrue(read.mightContain("key" + i), "key" + i);
+            assertTrue(wrapped.mightContain("key" + i), "key" + i);
+        }
+        // With 10 bits per key and 7 hashes about 1% of other keys pass
+        int falsePositives = 0;
+        for (int i = 0; i < keys; i++) {
+            if (filter.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < keys / 20, falsePositives + " false positives");
+        assertFalse(BloomFilter.create(keys).mightContain("key0"));
+    }
+
+    // Key i was last written in round min(i, fanout - 1)
+    private static void assertNewest(LSMStorage storage) {
+        for (int i = 0; i < 100; i++) {
+            int round = Math.min(i, LSMStorage.COMPACTION_FANOUT - 1);
+            assertEquals("v" + round + "-" + i, storage.readFromDisk(TABLE, "key" + i), "key" + i);
+        }
+        Map<String, String> rows = storage.readTable(TABLE);
+        assertEquals(100, rows.size());
+        assertEquals("v3-99", rows.get("key99"));
+        assertEquals("other2", storage.readFromDisk("other", "key2"));
+        assertNull(storage.readFromDisk(TABLE, "key100"));
+    }
+}
@@ -0,0 +1,161 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogBufferTest {
+    private static final int RING = 4096;
+    private static final int SEGMENT = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private SegmentedLog log;
+    private LogBuffer buffer;
+
+    @BeforeEach
+    void open() throws IOException {
+        log = new SegmentedLog(directory, SEGMENT, 0);
+        buffer = new LogBuffer(log, RING, 0, null);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        log.close();
+    }
+
+    @Test
+    void recordsWrapAroundTheRing() throws IOException {
+        // Record sizes that do not divide the ring, so records keep straddling its end
+        List<LogEntry> expected = new ArrayList<>();
+        for (int t = 1; t <= 500; t++) {
+            List<LogEntry> records = transaction(t, 3, 20 + t % 37);
+            expected.addAll(records);
+            long lastLsn = buffer.append(records);
+            assertEquals(expected.size(), lastLsn);
+        }
+        assertEquals(expected.size(), buffer.drain());
+        long appended = log.getAppendedBytes();
+        assertTrue(appended > 10L * RING, "the ring wrapped " + appended / RING + " times");
+
+        List<LogEntry> read = readLog();
+        assertEquals(expected.size(), read.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i + 1, read.get(i).getLsn());
+            assertEquals(expected.get(i).getKey(), read.get(i).getKey());
+            assertEquals(expected.get(i).getNewValue(), read.get(i).getNewValue());
+        }
+    }
+
+    @Test
+    void concurrentAppendsKeepLsnOrder() throws Exception {
+        int threads = 8;
+        int transactions = 300;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> appenders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            appenders.add(executor.submit(() -> {
+                for (int i = 0; i < transactions; i++) {
+                    buffer.append(transaction(thread * transactions + i + 1, 2, 10 + i % 50));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> appender : appenders) {
+            appender.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        buffer.drain();
+
+        // Every transaction is contiguous in the log and its records end with its commit record
+        List<LogEntry> read = readLog();
+        assertEquals(threads * transactions * 3, read.size());
+        Set<Long> transactionIds = new HashSet<>();
+        for (int i = 0; i < read.size(); i += 3) {
+            long transactionId = read.get(i).getTransactionId();
+            assertTrue(transactionIds.add(transactionId));
+            for (int r = 0; r < 3; r++) {
+                assertEquals(i + r + 1, read.get(i + r).getLsn());
+                assertEquals(transactionId, read.get(i + r).getTransactionId());
+            }
+            assertEquals("COMMIT", read.get(i + 2).getOperation());
+        }
+    }
+
+    @Test
+    void transactionsLargerThanTheRingAreStreamedInOrder() throws IOException {
+        List<LogEntry> expected = new ArrayList<>(transaction(1, 2, 100));
+        // Many records that only fit the ring one by one, then one record that does not fit it at all
+        expected.addAll(transaction(2, 200, 100));
+        List<LogEntry> oversized = transaction(3, 1, 3 * RING);
+        expected.addAll(oversized);
+        expected.addAll(transaction(4, 2, 100));
+
+        buffer.append(expected.subList(0, 3));
+        buffer.append(expected.subList(3, 204));
+        buffer.append(oversized);
+        assertEquals(expected.size(), buffer.append(expected.subList(206, 209)));
+        buffer.drain();
+
+        List<LogEntry> read = readLog();
+        assertEquals(expected.size(), read.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i + 1, read.get(i).getLsn());
+            assertEquals(expected.get(i).getNewValue(), read.get(i).getNewValue());
+        }
+    }
+
+    @Test
+    void recordLargerThanASegmentIsRefusedWithoutBlockingTheBuffer() throws IOException {
+        buffer.append(transaction(1, 2, 100));
+        IOException e = assertThrows(IOException.class, () -> buffer.append(transaction(2, 1, SEGMENT)));
+        assertTrue(e.getMessage().contains("exceeds segment size"), e.getMessage());
+        assertEquals(3, buffer.getCurrentLsn());
+
+        assertEquals(6, buffer.append(transaction(3, 2, 100)));
+        assertEquals(6, buffer.drain());
+        assertEquals(6, readLog().size());
+    }
+
+    // Updates with values of the given length followed by a commit record, the LSNs are assigned by the buffer
+    private static List<LogEntry> transaction(long transactionId, int updates, int valueLength) {
+        List<LogEntry> records = new ArrayList<>();
+        for (int u = 0; u < updates; u++) {
+            String value = Character.toString('a' + u % 26).repeat(valueLength);
+            records.add(new LogEntry(transactionId, "UPDATE", "t", transactionId + "-" + u, null, value));
+        }
+        records.add(LogEntry.commitRecord(transactionId));
+        return records;
+    }
+
+    private List<LogEntry> readLog() throws IOException {
+        log.close();
+        log = new SegmentedLog(directory, SEGMENT, 0);
+        List<LogEntry> entries = new ArrayList<>();
+        for (WALSegment segment : log.getSegments()) {
+            LogRecordDecoder decoder = segment.openDecoder();
+            for (LogEntry entry = decoder.next(); entry != null; entry = decoder.next()) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
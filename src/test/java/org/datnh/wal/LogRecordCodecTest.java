@@ -0,0 +1,312 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogRecordCodecTest {
+    private static final long BASE_LSN = 100;
+
+    @TempDir
+    Path directory;
+
+    private final LogRecordEncoder encoder = new LogRecordEncoder();
+
+    @Test
+    void roundTripsEveryOperation() throws IOException {
+        List<LogEntry> entries = everyOperation();
+        List<LogEntry> decoded = readAll(writeSegment(entries, 64));
+
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertSameEntry(entries.get(i), decoded.get(i));
+        }
+        assertEquals(-25, decoded.get(4).getDelta());
+        assertEquals(1, decoded.get(5).getCommitParts());
+        assertEquals(3, decoded.get(6).getCommitParts());
+        assertEquals(BASE_LSN, Long.parseLong(decoded.get(7).getNewValue()));
+        assertEquals(7, decoded.get(9).getBulkLoadId());
+        assertEquals(2_000_000, decoded.get(9).getBulkLoadRows());
+        assertEquals(0xCAFEBABEL, decoded.get(9).getBulkLoadChecksum());
+    }
+
+    @Test
+    void encodedSizeMatchesTheRecord() {
+        for (LogEntry entry : everyOperation()) {
+            assertEquals(LogRecordEncoder.encodedSize(entry, entry.getLsn()), encoder.encode(entry).remaining(),
+                    entry.getOperation());
+        }
+    }
+
+    @Test
+    void incrementDeltasKeepEveryDigit() {
+        for (long delta : new long[]{0, 9, -9, 10, -10, 1_234_567_890_123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            LogEntry entry = increment(BASE_LSN + 1, delta);
+            ByteBuffer record = encoder.encode(entry);
+            record.position(LogRecordFormat.RECORD_HEADER_SIZE);
+            LogEntry decoded = LogRecordDecoder.decodeBody(record);
+            assertEquals(delta, decoded.getDelta());
+            assertEquals(Long.toString(delta), decoded.getNewValue());
+        }
+    }
+
+    @Test
+    void roundTripsVarintEdges() {
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1,
+                Long.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (long value : values) {
+            buffer.clear();
+            LogRecordFormat.putVarLong(buffer, value);
+            assertEquals(LogRecordFormat.varLongSize(value), buffer.position(), "size of " + value);
+            buffer.flip();
+            assertEquals(value, LogRecordFormat.getVarLong(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        assertEquals(1, LogRecordFormat.varLongSize(127));
+        assertEquals(2, LogRecordFormat.varLongSize(128));
+        assertEquals(10, LogRecordFormat.varLongSize(-1));
+    }
+
+    @Test
+    void rejectsAnOverlongVarint() {
+        ByteBuffer buffer = ByteBuffer.allocate(11);
+        for (int i = 0; i < 10; i++) {
+            buffer.put((byte) 0x80);
+        }
+        buffer.put((byte) 1).flip();
+        assertThrows(IllegalArgumentException.class, () -> LogRecordFormat.getVarLong(buffer));
+    }
+
+    @Test
+    void roundTripsLsnsAcrossVarintWidths() throws IOException {
+        // LSNs only have to increase, a record may jump to any width
+        List<LogEntry> entries = new ArrayList<>();
+        long[] lsns = {BASE_LSN + 1, 127, 128, 16_384, 1L << 35, Long.MAX_VALUE};
+        for (long lsn : lsns) {
+            entries.add(new LogEntry(lsn, 1, "INSERT", "t", "k" + lsn, null, "v", lsn));
+        }
+        List<LogEntry> decoded = readAll(writeSegment(entries, 0));
+        assertEquals(entries.size(), decoded.size());
+        assertEquals(Long.MAX_VALUE, decoded.get(decoded.size() - 1).getLsn());
+    }
+
+    @Test
+    void stopsCleanlyAtTheEndOfThePreallocatedSegment() throws IOException {
+        Path segment = writeSegment(everyOperation(), 4096);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            assertEquals(everyOperation().size(), drain(decoder).size());
+            assertFalse(decoder.isTornTail());
+            assertEquals(channel.size() - 4096, decoder.getValidPosition());
+        }
+    }
+
+    @Test
+    void stopsAtATornRecord() throws IOException {
+        List<LogEntry> entries = everyOperation();
+        Path segment = writeSegment(entries, 0);
+        long intactEnd = segmentSize(entries.subList(0, entries.size() - 1));
+        // A crash left only part of the last record on disk
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            assertEquals(entries.size() - 1, drain(decoder).size());
+            assertTrue(decoder.isTornTail());
+            assertEquals(intactEnd, decoder.getValidPosition());
+            assertEquals(entries.get(entries.size() - 2).getLsn(), decoder.getLastLsn());
+        }
+    }
+
+    @Test
+    void stopsAtAPartialRecordHeader() throws IOException {
+        List<LogEntry> entries = everyOperation().subList(0, 2);
+        Path segment = writeSegment(entries, 0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{5, 0, 0}));
+        }
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            assertEquals(2, drain(decoder).size());
+            assertTrue(decoder.isTornTail());
+            assertEquals(segmentSize(entries), decoder.getValidPosition());
+        }
+    }
+
+    @Test
+    void stopsAtACorruptedRecord() throws IOException {
+        List<LogEntry> entries = everyOperation();
+        Path segment = writeSegment(entries, 0);
+        long corruptedStart = segmentSize(entries.subList(0, 3));
+        // Flip a byte inside the body of the fourth record, its CRC no longer matches
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = corruptedStart + LogRecordFormat.RECORD_HEADER_SIZE + 2;
+            channel.read(b, position);
+            channel.write(b.put(0, (byte) (b.get(0) ^ 0x40)).rewind(), position);
+        }
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            assertEquals(3, drain(decoder).size());
+            assertTrue(decoder.isTornTail());
+            assertEquals(corruptedStart, decoder.getValidPosition());
+        }
+    }
+
+    @Test
+    void stopsAtARecordLeftByAnEarlierUseOfTheSegment() throws IOException {
+        List<LogEntry> entries = new ArrayList<>(everyOperation().subList(0, 3));
+        // Intact, but its LSN does not follow the records before it
+        entries.add(new LogEntry(BASE_LSN + 1, 9, "INSERT", "t", "old", null, "v", 1));
+        Path segment = writeSegment(entries, 0);
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            assertEquals(3, drain(decoder).size());
+            assertFalse(decoder.isTornTail());
+            assertEquals(segmentSize(entries.subList(0, 3)), decoder.getValidPosition());
+        }
+    }
+
+    @Test
+    void decodesAMemoryMappedSegmentFromARecordBoundary() throws IOException {
+        List<LogEntry> entries = everyOperation();
+        Path segment = writeSegment(entries, 128);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int start = (int) segmentSize(entries.subList(0, 4));
+            LogRecordDecoder decoder = new LogRecordDecoder(mapped, start, entries.get(3).getLsn());
+            List<LogEntry> decoded = drain(decoder);
+            assertEquals(entries.size() - 4, decoded.size());
+            assertSameEntry(entries.get(4), decoded.get(0));
+            assertFalse(decoder.isTornTail());
+        }
+    }
+
+    @Test
+    void roundTripsACompressedBatch() throws IOException {
+        List<LogEntry> entries = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            LogEntry entry = i % 10 == 0 ? LogEntry.commitRecord(i / 10, 2)
+                    : i % 5 == 0 ? increment(0, -i)
+                    : new LogEntry(0, i / 10, "UPDATE", "accounts", "key" + i, "old", "new" + i, 1000 + i);
+            entry.assignLsn(BASE_LSN + i);
+            entries.add(entry);
+        }
+        int rawBytes = 0;
+        for (LogEntry entry : entries) {
+            rawBytes += LogRecordEncoder.encodedSize(entry, entry.getLsn());
+        }
+        ByteBuffer batch = new LogBatchCompressor(6).compress(entries, rawBytes);
+        Path segment = directory.resolve("batch.seg");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(LogRecordFormat.segmentHeader(1, BASE_LSN));
+            channel.write(batch);
+        }
+
+        List<LogEntry> decoded = readAll(segment);
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertSameEntry(entries.get(i), decoded.get(i));
+        }
+        assertEquals(2, decoded.get(9).getCommitParts());
+        assertEquals(-5, decoded.get(4).getDelta());
+    }
+
+    // One entry of every kind, with LSNs following BASE_LSN
+    private static List<LogEntry> everyOperation() {
+        List<LogEntry> entries = new ArrayList<>();
+        entries.add(new LogEntry(0, 1, "INSERT", "accounts", "alice", null, "1000", 1_700_000_000_000L));
+        entries.add(new LogEntry(0, 1, "UPDATE", "accounts", "bob", "500", "Z\u00fcrich \u2713 \u6771\u4eac",
+                1_700_000_000_001L));
+        entries.add(new LogEntry(0, 1, "DELETE", "accounts", "carol", "42", null, 1_700_000_000_002L));
+        entries.add(new LogEntry(0, 2, "UPDATE", "accounts", "a|b->c", "", "x|y->z", 1_700_000_000_003L));
+        entries.add(increment(0, -25));
+        entries.add(LogEntry.commitRecord(1));
+        entries.add(LogEntry.commitRecord(2, 3));
+        entries.add(LogEntry.checkpointBeginRecord(BASE_LSN));
+        entries.add(LogEntry.checkpointEndRecord(BASE_LSN + 8));
+        entries.add(LogEntry.bulkLoadRecord(3, "accounts", 7, 2_000_000, 0xCAFEBABEL));
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).assignLsn(BASE_LSN + 1 + i);
+        }
+        return entries;
+    }
+
+    // An increment as the write set of a transaction records it
+    private static LogEntry increment(long lsn, long delta) {
+        WriteSet writeSet = new WriteSet();
+        writeSet.increment(4, "counters", "hits", delta, 1_700_000_000_004L);
+        LogEntry entry = writeSet.entries().get(0);
+        entry.assignLsn(lsn);
+        return entry;
+    }
+
+    private static void assertSameEntry(LogEntry expected, LogEntry actual) {
+        assertEquals(expected.getLsn(), actual.getLsn());
+        assertEquals(expected.getTransactionId(), actual.getTransactionId());
+        assertEquals(expected.getOperation(), actual.getOperation());
+        assertEquals(expected.getTable(), actual.getTable());
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getOldValue(), actual.getOldValue());
+        assertEquals(expected.getNewValue(), actual.getNewValue());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+    }
+
+    // A segment with the records of the entries followed by zeroed preallocated space
+    private Path writeSegment(List<LogEntry> entries, int padding) throws IOException {
+        Path segment = directory.resolve("segment-" + System.nanoTime() + ".seg");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(LogRecordFormat.segmentHeader(1, BASE_LSN));
+            for (LogEntry entry : entries) {
+                channel.write(encoder.encode(entry));
+            }
+            channel.write(ByteBuffer.allocate(padding));
+        }
+        return segment;
+    }
+
+    private static long segmentSize(List<LogEntry> entries) {
+        long size = LogRecordFormat.SEGMENT_HEADER_SIZE;
+        for (LogEntry entry : entries) {
+            size += LogRecordEncoder.encodedSize(entry, entry.getLsn());
+        }
+        return size;
+    }
+
+    private static List<LogEntry> readAll(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            LogRecordDecoder decoder = new LogRecordDecoder(channel);
+            List<LogEntry> entries = drain(decoder);
+            assertFalse(decoder.isTornTail());
+            assertNull(decoder.next());
+            return entries;
+        }
+    }
+
+    private static List<LogEntry> drain(LogRecordDecoder decoder) throws IOException {
+        List<LogEntry> entries = new ArrayList<>();
+        for (LogEntry entry = decoder.next(); entry != null; entry = decoder.next()) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
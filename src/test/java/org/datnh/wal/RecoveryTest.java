@@ -0,0 +1,282 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecoveryTest {
+    private static final String TABLE = "accounts";
+
+    @TempDir
+    Path directory;
+
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+
+    @Test
+    void parallelRedoFromACheckpointKeepsTheLastValueOfEveryRow() {
+        open(new WALConfig().recoveryThreads(4));
+        Map<String, String> expected = new HashMap<>();
+        Transaction load = new Transaction(wal, bufferPool);
+        for (int i = 0; i < 200; i++) {
+            load.insert(TABLE, "key" + i, "v0-" + i);
+            expected.put("key" + i, "v0-" + i);
+        }
+        load.commit();
+        wal.checkpoint();
+
+        // Every row is changed several times after the checkpoint, a redo out of order per row leaves an older value
+        long changes = 0;
+        for (int round = 1; round <= 5; round++) {
+            for (int first = 0; first < 200; first += 10) {
+                Transaction transaction = new Transaction(wal, bufferPool);
+                for (int i = first; i < first + 10; i++) {
+                    String key = "key" + i;
+                    String value = "v" + round + "-" + i;
+                    transaction.update(TABLE, key, expected.get(key), value);
+                    expected.put(key, value);
+                    changes++;
+                }
+                transaction.commit();
+            }
+        }
+        Transaction inserts = new Transaction(wal, bufferPool);
+        for (int i = 0; i < 100; i++) {
+            inserts.insert(TABLE, "new" + i, "n-" + i);
+            expected.put("new" + i, "n-" + i);
+            changes++;
+        }
+        inserts.commit();
+        crash();
+
+        open(new WALConfig().recoveryThreads(4).metricsEnabled(true));
+        for (Map.Entry<String, String> row : expected.entrySet()) {
+            assertEquals(row.getValue(), bufferPool.get(TABLE, row.getKey()), row.getKey());
+        }
+        // Only the changes after the checkpoint are redone
+        assertEquals(changes, wal.getMetrics().getRecoveryEntriesReplayed());
+        crash();
+    }
+
+    @Test
+    void crossStreamCommitWithAMissingPartIsDiscarded() throws IOException {
+        open(new WALConfig().logStreams(2));
+        Map<String, String> expected = new HashMap<>();
+        Transaction load = new Transaction(wal, bufferPool);
+        for (int i = 0; i < 16; i++) {
+            load.insert(TABLE, "key" + i, "before-" + i);
+            expected.put("key" + i, "before-" + i);
+        }
+        load.commit();
+        // Rows of both streams, so every stream gets a part with its own commit record
+        Transaction spanning = new Transaction(wal, bufferPool);
+        for (int i = 0; i < 16; i++) {
+            spanning.update(TABLE, "key" + i, "before-" + i, "after-" + i);
+        }
+        spanning.commit();
+        crash();
+
+        // The crash lost the commit record of the second stream's part, the last record of that stream
+        LastRecord last = lastRecord(LogStream.directory(directory.resolve("wal"), 1));
+        assertTrue(last.entry.isCommitRecord());
+        assertEquals(2, last.entry.getCommitParts());
+        zero(last.segment, last.start, last.end);
+
+        open(new WALConfig().logStreams(2));
+        for (Map.Entry<String, String> row : expected.entrySet()) {
+            assertEquals(row.getValue(), bufferPool.get(TABLE, row.getKey()), row.getKey());
+        }
+        crash();
+    }
+
+    @Test
+    void severalStreamsAreRejectedWithSynchronousReplication() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> open(new WALConfig().logStreams(2).replicationMode(ReplicationMode.SYNC)));
+        assertEquals("replicationMode SYNC needs a single log stream, logStreams is 2", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> new WALConfig().logStreams(2).replica(true).validate());
+
+        open(new WALConfig().logStreams(2));
+        assertThrows(IllegalStateException.class, () -> wal.openReader(1));
+        assertThrows(IllegalStateException.class, () -> wal.startReplication(0));
+        crash();
+    }
+
+    @Test
+    void stagedBulkLoadWithoutItsRecordIsAbandoned() {
+        open(new WALConfig());
+        List<Map.Entry<String, String>> rows = rows(5000);
+        wal.bulkLoad("loaded", rows.iterator());
+        long fileSize = storage.getFileSize();
+        // Stage the pages like a bulk load does, then crash before its record is logged
+        long lsn = wal.getCurrentLSN() + 1;
+        storage.stageBulkLoad(lsn, "staged", rows.iterator(), lsn);
+        crash();
+
+        open(new WALConfig());
+        // The pages of the load are cut off the data file
+        assertEquals(fileSize, storage.getFileSize());
+        assertTrue(storage.readTable("staged").isEmpty());
+        assertFalse(bufferPool.hasRows("staged"));
+        for (Map.Entry<String, String> row : rows) {
+            assertEquals(row.getValue(), bufferPool.get("loaded", row.getKey()), row.getKey());
+        }
+        // Nothing of the abandoned load is left in the way of loading the table again
+        assertEquals(rows.size(), wal.bulkLoad("staged", rows.iterator()));
+        assertEquals(rows.size(), storage.readTable("staged").size());
+        crash();
+    }
+
+    @Test
+    void incrementsAlreadyInThePageAreNotRedoneAgain() throws IOException {
+        open(new WALConfig());
+        Transaction init = new Transaction(wal, bufferPool);
+        init.insert(TABLE, "counter", "0");
+        init.insert(TABLE, "written", "0");
+        init.commit();
+        wal.checkpoint();
+        Path checkpoint = directory.resolve("wal").resolve(CheckpointRecord.FILE_NAME);
+        Path firstCheckpoint = directory.resolve("first-checkpoint");
+        Files.copy(checkpoint, firstCheckpoint);
+
+        increment("counter", 1, 10);
+        increment("written", 1, 10);
+        // A row written between increments is redone from the written value, the increments after it over it
+        Transaction write = new Transaction(wal, bufferPool);
+        write.update(TABLE, "written", write.read(TABLE, "written"), "100");
+        write.commit();
+        increment("written", 2, 10);
+        // The pages of this checkpoint reach the data file with the increments above, its record never does
+        wal.checkpoint();
+        Files.copy(firstCheckpoint, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+        increment("counter", 3, 10);
+        increment("written", 3, 10);
+        crash();
+
+        for (int recovery = 0; recovery < 2; recovery++) {
+            // Recovering the same log again after another crash gives the same values
+            open(new WALConfig());
+            assertEquals("40", bufferPool.get(TABLE, "counter"));
+            assertEquals("150", bufferPool.get(TABLE, "written"));
+            crash();
+        }
+    }
+
+    @Test
+    void incrementsOfTheOffHeapBufferPoolAreRecovered() {
+        open(new WALConfig(), true);
+        Transaction init = new Transaction(wal, bufferPool);
+        init.insert(TABLE, "counter", "5");
+        init.commit();
+        increment("counter", 1, 10);
+        increment("new", 2, 10);
+        wal.checkpoint();
+        assertFalse(bufferPool.isDirty(TABLE, "counter"));
+        increment("counter", 3, 10);
+        crash();
+
+        for (int recovery = 0; recovery < 2; recovery++) {
+            open(new WALConfig(), true);
+            assertEquals("45", bufferPool.get(TABLE, "counter"));
+            assertEquals("20", bufferPool.get(TABLE, "new"));
+            crash();
+        }
+    }
+
+    private void open(WALConfig config) {
+        open(config, false);
+    }
+
+    private void open(WALConfig config, boolean offHeap) {
+        storage = new DiskStorage(directory.resolve("data.db").toString());
+        bufferPool = offHeap ? BufferPool.offHeap() : new BufferPool(storage);
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                config.checkpointIntervalMillis(0));
+        wal.recover();
+    }
+
+    // Stop without a final checkpoint, the data file only holds what was written before
+    private void crash() {
+        wal.close();
+    }
+
+    // Commit increments of a row, one per transaction
+    private void increment(String key, long delta, int times) {
+        for (int i = 0; i < times; i++) {
+            Transaction transaction = new Transaction(wal, bufferPool);
+            transaction.increment(TABLE, key, delta);
+            transaction.commit();
+        }
+    }
+
+    private static List<Map.Entry<String, String>> rows(int count) {
+        List<Map.Entry<String, String>> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(Map.entry(String.format("key%08d", i), "value-" + i));
+        }
+        return rows;
+    }
+
+    // The last record of the segments of one stream and where it is in its segment
+    private static LastRecord lastRecord(Path streamDirectory) throws IOException {
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(streamDirectory)) {
+            segments = files.filter(file -> file.getFileName().toString().endsWith(WALSegment.SUFFIX)).sorted()
+                    .collect(Collectors.toList());
+        }
+        LastRecord last = null;
+        for (Path segment : segments) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                LogRecordDecoder decoder = new LogRecordDecoder(channel);
+                long start = decoder.getValidPosition();
+                LogEntry entry;
+                while ((entry = decoder.next()) != null) {
+                    last = new LastRecord(segment, entry, start, decoder.getValidPosition());
+                    start = decoder.getValidPosition();
+                }
+            }
+        }
+        assertNotNull(last, "no record in " + streamDirectory);
+        return last;
+    }
+
+    private static void zero(Path file, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate((int) (end - start)), start);
+        }
+    }
+
+    private static final class LastRecord {
+        private final Path segment;
+        private final LogEntry entry;
+        private final long start;
+        private final long end;
+
+        private LastRecord(Path segment, LogEntry entry, long start, long end) {
+            this.segment = segment;
+            this.entry = entry;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
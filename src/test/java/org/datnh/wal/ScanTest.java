@@ -0,0 +1,95 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ScanTest {
+    private static final String TABLE = "accounts";
+
+    @TempDir
+    Path directory;
+
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+
+    @AfterEach
+    void close() {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    @Test
+    void scanMergesOwnWritesWithTheRowsCommittedBeforeTheSnapshot() {
+        open(false);
+        Transaction load = new Transaction(wal, bufferPool);
+        for (int i = 1; i <= 5; i++) {
+            load.insert(TABLE, "key" + i, String.valueOf(i));
+        }
+        load.commit();
+
+        Transaction transaction = new Transaction(wal, bufferPool);
+        transaction.update(TABLE, "key2", "2", "own2");
+        transaction.insert(TABLE, "key25", "own25");
+        transaction.increment(TABLE, "key5", 10);
+        transaction.insert(TABLE, "key9", "own9");
+        // Committed after the snapshot of the transaction, it does not see these
+        Transaction other = new Transaction(wal, bufferPool);
+        other.update(TABLE, "key3", "3", "other3");
+        other.insert(TABLE, "key35", "other35");
+        other.commit();
+
+        assertEquals(List.of("key1=1", "key2=own2", "key25=own25", "key3=3", "key4=4", "key5=15", "key9=own9"),
+                rows(transaction.scan(TABLE, null, null, 100)));
+        assertEquals(List.of("key2=own2", "key25=own25", "key3=3"), rows(transaction.scan(TABLE, "key2", "key4", 100)));
+        assertEquals(List.of("key25=own25", "key3=3"), rows(transaction.scan(TABLE, "key21", null, 2)));
+        transaction.commit();
+
+        Transaction read = new Transaction(wal, bufferPool);
+        assertEquals(List.of("key1=1", "key2=own2", "key25=own25", "key3=other3", "key35=other35", "key4=4",
+                "key5=15", "key9=own9"), rows(read.scan(TABLE, null, null, 100)));
+        read.rollback();
+    }
+
+    @Test
+    void offHeapBufferPoolScansTheRangeOfOneTableInKeyOrder() {
+        open(true);
+        Transaction load = new Transaction(wal, bufferPool);
+        // Inserted out of key order, the off-heap store keeps rows in insertion order
+        for (int i = 9; i >= 0; i--) {
+            load.insert(TABLE, "key" + i, "value" + i);
+            load.insert("other", "key" + i, "other" + i);
+        }
+        load.commit();
+
+        Transaction read = new Transaction(wal, bufferPool);
+        assertEquals(List.of("key3=value3", "key4=value4", "key5=value5", "key6=value6"),
+                rows(read.scan(TABLE, "key3", "key7", 100)));
+        assertEquals(List.of("key8=value8", "key9=value9"), rows(read.scan(TABLE, "key8", null, 100)));
+        assertEquals(List.of("key0=value0", "key1=value1"), rows(read.scan(TABLE, null, null, 2)));
+        read.rollback();
+    }
+
+    private void open(boolean offHeap) {
+        DiskStorage storage = new DiskStorage(directory.resolve("data.db").toString());
+        bufferPool = offHeap ? BufferPool.offHeap() : new BufferPool(storage);
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0));
+        wal.recover();
+    }
+
+    private static List<String> rows(Iterator<Map.Entry<String, String>> scan) {
+        List<String> rows = new ArrayList<>();
+        scan.forEachRemaining(row -> rows.add(row.getKey() + "=" + row.getValue()));
+        return rows;
+    }
+}
@@ -0,0 +1,100 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotIsolationTest {
+    private static final String TABLE = "accounts";
+
+    @TempDir
+    Path directory;
+
+    private BufferPool bufferPool;
+    private WriteAheadLog wal;
+
+    @BeforeEach
+    void open() {
+        DiskStorage storage = new DiskStorage(directory.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        // Vacuum only runs when the test calls it
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0).vacuumIntervalMillis(0));
+        wal.recover();
+        commit("alice", null, "100");
+    }
+
+    @AfterEach
+    void close() {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    @Test
+    void firstCommitterWins() {
+        Transaction first = new Transaction(wal, bufferPool);
+        Transaction second = new Transaction(wal, bufferPool);
+        first.update(TABLE, "alice", "100", "90");
+        second.update(TABLE, "alice", "100", "80");
+        first.commit();
+
+        // The row was committed after the snapshot of the second transaction was taken
+        assertThrows(WriteConflictException.class, second::commit);
+        assertEquals("90", read("alice"));
+
+        // Increments commute, they only conflict with a value written to the row
+        Transaction increment = new Transaction(wal, bufferPool);
+        Transaction otherIncrement = new Transaction(wal, bufferPool);
+        Transaction write = new Transaction(wal, bufferPool);
+        increment.increment(TABLE, "alice", 5);
+        otherIncrement.increment(TABLE, "alice", 5);
+        write.update(TABLE, "alice", "90", "0");
+        increment.commit();
+        otherIncrement.commit();
+        assertThrows(WriteConflictException.class, write::commit);
+        assertEquals("100", read("alice"));
+    }
+
+    @Test
+    void vacuumKeepsTheVersionsALiveSnapshotCanSee() {
+        VersionStore versions = bufferPool.getVersionStore();
+        Transaction reader = new Transaction(wal, bufferPool);
+        commit("alice", "100", "90");
+        commit("alice", "90", "80");
+        commit("bob", null, "50");
+
+        versions.vacuum();
+        assertEquals("100", reader.read(TABLE, "alice"));
+        assertNull(reader.read(TABLE, "bob"));
+        assertEquals("80", read("alice"));
+
+        // Once the snapshot ends, every row's newest version is visible to all and the rows are read from the pool
+        reader.rollback();
+        assertTrue(versions.vacuum() > 0);
+        assertEquals(0, versions.getVersionedRowCount());
+        assertEquals("80", read("alice"));
+        assertEquals("50", read("bob"));
+    }
+
+    private void commit(String key, String oldValue, String newValue) {
+        Transaction transaction = new Transaction(wal, bufferPool);
+        transaction.update(TABLE, key, oldValue, newValue);
+        transaction.commit();
+    }
+
+    private String read(String key) {
+        Transaction transaction = new Transaction(wal, bufferPool);
+        String value = transaction.read(TABLE, key);
+        transaction.rollback();
+        return value;
+    }
+}
@@ -0,0 +1,152 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StandbyReplicaTest {
+    private static final String TABLE = "accounts";
+
+    @TempDir
+    Path directory;
+
+    private DiskStorage storage;
+    private BufferPool bufferPool;
+    private WriteAheadLog primary;
+    private StandbyReplica standby;
+
+    @AfterEach
+    void close() throws IOException {
+        if (standby != null) {
+            standby.close();
+        }
+        if (primary != null) {
+            primary.close();
+        }
+    }
+
+    @Test
+    void standbyAppliesCommittedTransactionsOnly() throws Exception {
+        int port = openPrimary(ReplicationMode.SYNC);
+        standby = new StandbyReplica(directory.resolve("standby"), new WALConfig());
+        standby.connect(port);
+
+        commit("alice", "100");
+        commit("bob", "50");
+        Transaction rolledBack = new Transaction(primary, bufferPool);
+        rolledBack.insert(TABLE, "carol", "10");
+        rolledBack.rollback();
+        awaitApplied(primary.getDurableLSN());
+
+        Transaction read = standby.begin();
+        assertEquals("100", read.read(TABLE, "alice"));
+        assertEquals("50", read.read(TABLE, "bob"));
+        assertNull(read.read(TABLE, "carol"));
+        read.rollback();
+
+        // Once the standby is connected and caught up, a SYNC commit waits until the standby applied it
+        commit("alice", "90");
+        assertEquals("90", standby.begin().read(TABLE, "alice"));
+        assertEquals(0, standby.getLagLsn());
+    }
+
+    @Test
+    void standbyIsReadOnly() throws Exception {
+        int port = openPrimary(ReplicationMode.ASYNC);
+        standby = new StandbyReplica(directory.resolve("standby"), new WALConfig());
+        standby.connect(port);
+
+        Transaction write = standby.begin();
+        write.insert(TABLE, "alice", "100");
+        assertThrows(IllegalStateException.class, write::commit);
+    }
+
+    @Test
+    void standbyCatchesUpWithCommitsMadeBeforeItConnected() throws Exception {
+        int port = openPrimary(ReplicationMode.ASYNC);
+        for (int i = 0; i < 100; i++) {
+            commit("key" + i, "value" + i);
+        }
+
+        standby = new StandbyReplica(directory.resolve("standby"), new WALConfig());
+        standby.connect(port);
+        awaitApplied(primary.getDurableLSN());
+
+        Transaction read = standby.begin();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, read.read(TABLE, "key" + i));
+        }
+        read.rollback();
+    }
+
+    @Test
+    void promotedStandbyTakesCommitsAndRecoversThem() throws Exception {
+        int port = openPrimary(ReplicationMode.SYNC);
+        standby = new StandbyReplica(directory.resolve("standby"), new WALConfig());
+        standby.connect(port);
+        commit("alice", "100");
+        commit("bob", "50");
+        awaitApplied(primary.getDurableLSN());
+
+        // The primary crashes, the standby takes over without a recovery
+        primary.close();
+        primary = null;
+        WriteAheadLog promoted = standby.promote();
+        assertFalse(standby.isConnected());
+        BufferPool promotedPool = standby.getBufferPool();
+        Transaction transfer = new Transaction(promoted, promotedPool);
+        transfer.update(TABLE, "alice", "100", "70");
+        transfer.update(TABLE, "bob", "50", "80");
+        transfer.commit();
+        assertEquals("70", new Transaction(promoted, promotedPool).read(TABLE, "alice"));
+
+        // Its own log holds the replicated and its own commits
+        standby.close();
+        standby = null;
+        Path standbyDirectory = directory.resolve("standby");
+        storage = new DiskStorage(standbyDirectory.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        primary = new WriteAheadLog(standbyDirectory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0));
+        primary.recover();
+        Transaction read = new Transaction(primary, bufferPool);
+        assertEquals("70", read.read(TABLE, "alice"));
+        assertEquals("80", read.read(TABLE, "bob"));
+    }
+
+    // Starts a primary shipping its log, returns the port standbys connect to
+    private int openPrimary(ReplicationMode mode) throws IOException {
+        Path primaryDirectory = Files.createDirectories(directory.resolve("primary"));
+        storage = new DiskStorage(primaryDirectory.resolve("data.db").toString());
+        bufferPool = new BufferPool(storage);
+        primary = new WriteAheadLog(primaryDirectory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0).replicationMode(mode));
+        primary.recover();
+        return primary.startReplication(0);
+    }
+
+    private void commit(String key, String value) {
+        Transaction transaction = new Transaction(primary, bufferPool);
+        transaction.update(TABLE, key, null, value);
+        transaction.commit();
+    }
+
+    private void awaitApplied(long lsn) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (standby.getAppliedLsn() < lsn) {
+            assertTrue(System.currentTimeMillis() < deadline, "standby applied LSN " + standby.getAppliedLsn()
+                    + " of " + lsn);
+            Thread.sleep(10);
+        }
+    }
+}
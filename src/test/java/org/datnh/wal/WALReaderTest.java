@@ -0,0 +1,90 @@
+package org.datnh.wal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WALReaderTest {
+    private static final String TABLE = "accounts";
+    private static final int TRANSACTIONS = 100;
+
+    @TempDir
+    Path directory;
+
+    private WriteAheadLog wal;
+
+    @AfterEach
+    void close() {
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    @Test
+    void readerTailsTheLogAcrossSegmentRolls() throws Exception {
+        DiskStorage storage = new DiskStorage(directory.resolve("data.db").toString());
+        BufferPool bufferPool = new BufferPool(storage);
+        wal = new WriteAheadLog(directory.resolve("wal").toString(), bufferPool, storage,
+                new WALConfig().checkpointIntervalMillis(0).segmentSize(64 * 1024));
+        wal.recover();
+
+        WALReader reader = wal.openReader(wal.getDurableLSN() + 1);
+        // The consumer follows the tail while the transactions below fill several segments
+        CompletableFuture<List<LogEntry>> consumer = CompletableFuture.supplyAsync(() -> {
+            List<LogEntry> entries = new ArrayList<>();
+            try {
+                int commits = 0;
+                while (commits < TRANSACTIONS) {
+                    LogEntry entry = reader.poll(10, TimeUnit.SECONDS);
+                    if (entry == null) {
+                        break;
+                    }
+                    entries.add(entry);
+                    commits += entry.isCommitRecord() ? 1 : 0;
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return entries;
+        });
+        String value = "x".repeat(2048);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction transaction = new Transaction(wal, bufferPool);
+            transaction.update(TABLE, "key" + i, null, value + i);
+            transaction.commit();
+            if (i == TRANSACTIONS / 2) {
+                // Checkpoint records are skipped, and the segments the reader has not read are kept
+                wal.checkpoint();
+            }
+        }
+
+        List<LogEntry> entries = consumer.get(30, TimeUnit.SECONDS);
+        assertTrue(wal.listSegments().size() > 2, wal.listSegments().size() + " segment(s)");
+        assertEquals(2 * TRANSACTIONS, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            LogEntry entry = entries.get(i);
+            assertFalse(entry.isCheckpointRecord());
+            assertTrue(i == 0 || entry.getLsn() > entries.get(i - 1).getLsn());
+            if (i % 2 == 0) {
+                assertEquals("key" + i / 2, entry.getKey());
+                assertEquals(value + i / 2, entry.getNewValue());
+            } else {
+                assertTrue(entry.isCommitRecord());
+            }
+        }
+        assertNull(reader.next());
+        assertEquals(0, reader.getLag());
+        reader.close();
+    }
+}